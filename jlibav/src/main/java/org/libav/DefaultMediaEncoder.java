@@ -19,15 +19,22 @@ package org.libav;
 
 import java.io.FileNotFoundException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import org.libav.audio.AudioFrameEncoder;
 import org.libav.avcodec.CodecID;
+import org.libav.avcodec.CodecOptions;
 import org.libav.avcodec.CodecWrapperFactory;
 import org.libav.avcodec.ICodecContextWrapper;
+import org.libav.avcodec.EncodingProfile;
 import org.libav.avcodec.ICodecWrapper;
 import org.libav.avcodec.IPacketWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
 import org.libav.avformat.IFormatContextWrapper;
 import org.libav.avformat.IStreamWrapper;
+import org.libav.avutil.IDictionaryWrapper;
+import org.libav.avutil.MediaType;
 import org.libav.avutil.SampleFormat;
 import org.libav.video.VideoFrameEncoder;
 
@@ -45,6 +52,12 @@ public class DefaultMediaEncoder implements IMediaEncoder {
     
     private Map<Integer, IEncoder> aEncoders;
     private Map<Integer, IEncoder> vEncoders;
+    
+    private int threadCount;
+    private int threadType;
+    private EncodingProfile profile;
+    private Map<Integer, CodecOptions> streamOptions;
+    private Set<Integer> copyStreams;
 
     /**
      * Create a new media encoder using the default media writer.
@@ -64,6 +77,117 @@ public class DefaultMediaEncoder implements IMediaEncoder {
         
         aEncoders = new HashMap<Integer, IEncoder>();
         vEncoders = new HashMap<Integer, IEncoder>();
+        
+        threadCount = 1;
+        threadType = AVCodecLibrary.FF_THREAD_FRAME | AVCodecLibrary.FF_THREAD_SLICE;
+        profile = null;
+        streamOptions = new HashMap<Integer, CodecOptions>();
+        copyStreams = new HashSet<Integer>();
+    }
+    
+    /**
+     * Set number of threads used by video encoders. The value is applied 
+     * when the header is written. The default value is 1 because some 
+     * encoders (e.g. MJPEG or H.263 without slices) refuse to open with more
+     * threads. Use Runtime.availableProcessors() for encoders which support 
+     * frame or slice threading (e.g. libx264).
+     * 
+     * @param threadCount number of threads (0 means auto-detection if it is 
+     * supported by the encoder)
+     */
+    public synchronized void setEncoderThreadCount(int threadCount) {
+        if (threadCount < 0)
+            throw new IllegalArgumentException("thread count must not be negative");
+        
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Get number of threads used by video encoders.
+     * 
+     * @return number of threads
+     */
+    public synchronized int getEncoderThreadCount() {
+        return threadCount;
+    }
+    
+    /**
+     * Set threading methods allowed for video encoders. The value is applied 
+     * when the header is written. Both frame and slice threading are allowed
+     * by default.
+     * 
+     * @param threadType a mix of AVCodecLibrary.FF_THREAD_* flags
+     */
+    public synchronized void setEncoderThreadType(int threadType) {
+        this.threadType = threadType;
+    }
+    
+    /**
+     * Get threading methods allowed for video encoders.
+     * 
+     * @return a mix of AVCodecLibrary.FF_THREAD_* flags
+     */
+    public synchronized int getEncoderThreadType() {
+        return threadType;
+    }
+    
+    /**
+     * Set speed/quality profile of video encoders. The profile is applied 
+     * when the header is written. Options set by the setStreamOptions() 
+     * method take precedence over the profile options.
+     * 
+     * @param profile a profile or null to use encoder defaults
+     */
+    public synchronized void setEncodingProfile(EncodingProfile profile) {
+        this.profile = profile;
+    }
+    
+    /**
+     * Get speed/quality profile of video encoders.
+     * 
+     * @return profile or null if encoder defaults are used
+     */
+    public synchronized EncodingProfile getEncodingProfile() {
+        return profile;
+    }
+    
+    /**
+     * Set codec options (including codec private options) of the given 
+     * stream. The options are applied when the header is written.
+     * 
+     * @param streamIndex a stream index
+     * @param options codec options or null
+     */
+    public synchronized void setStreamOptions(int streamIndex, CodecOptions options) {
+        if (options == null)
+            streamOptions.remove(streamIndex);
+        else
+            streamOptions.put(streamIndex, new CodecOptions(options));
+    }
+    
+    /**
+     * Get codec options of the given stream.
+     * 
+     * @param streamIndex a stream index
+     * @return codec options or null
+     */
+    public synchronized CodecOptions getStreamOptions(int streamIndex) {
+        CodecOptions result = streamOptions.get(streamIndex);
+        return result == null ? null : new CodecOptions(result);
+    }
+    
+    private synchronized CodecOptions getEffectiveOptions(int streamIndex, MediaType mediaType) {
+        CodecOptions result = new CodecOptions();
+        if (profile != null && mediaType == MediaType.VIDEO)
+            result.setAll(profile.getOptions());
+        if (streamOptions.containsKey(streamIndex))
+            result.setAll(streamOptions.get(streamIndex));
+        
+        return result;
+    }
+    
+    private synchronized boolean isStreamCopy(int streamIndex) {
+        return copyStreams.contains(streamIndex);
     }
 
     @Override
@@ -212,6 +336,17 @@ public class DefaultMediaEncoder implements IMediaEncoder {
             return mw.addAudioStream(codecId, sampleRate, sampleFormat, channelCount);
         }
 
+        @Override
+        public int addStreamCopy(IStreamWrapper template) throws LibavException {
+            int result = mw.addStreamCopy(template);
+            // copied streams are not encoded, so no codec is opened for them
+            synchronized (DefaultMediaEncoder.this) {
+                copyStreams.add(result);
+            }
+            
+            return result;
+        }
+
         @Override
         public IStreamWrapper getAudioStream(int audioStreamIndex) {
             return mw.getAudioStream(audioStreamIndex);
@@ -223,13 +358,26 @@ public class DefaultMediaEncoder implements IMediaEncoder {
             IStreamWrapper stream;
             ICodecContextWrapper cc;
             ICodecWrapper codec;
+            IDictionaryWrapper options;
             
             for (int i = 0; i < mw.getStreamCount(); i++) {
+                if (isStreamCopy(i))
+                    continue;
+                
                 stream = mw.getStream(i);
                 cc = stream.getCodecContext();
                 cc.clearWrapperCache();
                 codec = cwf.findEncoder(cc.getCodecId());
-                cc.open(codec);
+                if (cc.getCodecType() == MediaType.VIDEO) {
+                    cc.setThreadCount(getEncoderThreadCount());
+                    cc.setThreadType(getEncoderThreadType());
+                }
+                options = getEffectiveOptions(i, cc.getCodecType()).toDictionary();
+                try {
+                    cc.open(codec, options);
+                } finally {
+                    options.free();
+                }
             }
             
             mw.writeHeader();
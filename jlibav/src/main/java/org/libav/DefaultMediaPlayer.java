@@ -17,14 +17,22 @@
  */
 package org.libav;
 
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.sound.sampled.DataLine;
 import org.libav.audio.AudioFrameDecoder;
+import org.libav.audio.AudioPlaybackClock;
+import org.libav.avcodec.ICodecContextWrapper;
 import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
 import org.libav.avformat.IFormatContextWrapper;
 import org.libav.avformat.IInputFormatWrapper;
 import org.libav.avformat.IStreamWrapper;
+import org.libav.avcodec.IPacketWrapper;
 import org.libav.data.IPacketConsumer;
+import org.libav.data.PacketPool;
+import org.libav.util.Buffer;
 import org.libav.video.VideoFrameDecoder;
 
 /**
@@ -33,6 +41,25 @@ import org.libav.video.VideoFrameDecoder;
  * @author Ondrej Perutka
  */
 public class DefaultMediaPlayer implements IMediaPlayer {
+    
+    /**
+     * All video frames are decoded. (Late frames are never displayed, 
+     * regardless of the degradation level.)
+     */
+    public static final int DEGRADATION_NONE = 0;
+    
+    /**
+     * The loop filter is not applied.
+     */
+    public static final int DEGRADATION_SKIP_LOOP_FILTER = 1;
+    
+    /**
+     * The loop filter is not applied and non-reference frames are not 
+     * decoded.
+     */
+    public static final int DEGRADATION_SKIP_NONREF = 2;
+
+    private static final int PACKET_QUEUE_CAPACITY = 256;
 
     private IMediaReader mr;
     private boolean liveStream;
@@ -40,10 +67,16 @@ public class DefaultMediaPlayer implements IMediaPlayer {
     private IDecoder[] aDecoders;
     private IDecoder[] vDecoders;
     
+    private PacketQueue[] packetQueues;
     private ThreadedStreamPlayer[] streamPlayers;
     private Thread[] playerThreads;
+    private Demuxer demuxer;
+    private Thread demuxThread;
     private long stopPosition;
     private long startTime;
+    private IPlaybackClock clock;
+    private IPlaybackClock clockOverride;
+    private DataLine[] aDataLines;
 
     /**
      * Create a new media player and open the given media URL using the default
@@ -134,10 +167,104 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         aDecoders = new IDecoder[mr.getAudioStreamCount()];
         vDecoders = new IDecoder[mr.getVideoStreamCount()];
         
+        packetQueues = new PacketQueue[mr.getStreamCount()];
         playerThreads = null;
         streamPlayers = null;
+        demuxer = null;
+        demuxThread = null;
         stopPosition = 0;
         startTime = 0;
+        clock = new SystemPlaybackClock();
+        clockOverride = null;
+        aDataLines = new DataLine[mr.getAudioStreamCount()];
+    }
+    
+    /**
+     * Override the playback clock shared by all stream players. The video 
+     * presentation and the audio frame delivery are slaved to this clock. 
+     * By default, the clock is selected automatically (see the 
+     * setAudioStreamDataLine() method).
+     * 
+     * @param clock a playback clock or null to select the clock 
+     * automatically
+     */
+    public synchronized void setPlaybackClock(IPlaybackClock clock) {
+        clockOverride = clock;
+        updatePlaybackClock();
+    }
+    
+    /**
+     * Set the audio data line playing the given audio stream. While the 
+     * stream is being decoded, an AudioPlaybackClock driven by this line is 
+     * used as the master clock (unless the clock is overridden using the 
+     * setPlaybackClock() method). The SystemPlaybackClock is used if no 
+     * decoded audio stream has a data line.
+     * 
+     * @param audioStreamIndex an audio stream index
+     * @param dataLine a data line (see AudioStreamPlayer.getDataLine() or 
+     * PlaybackMixer.getDataLine()) or null
+     */
+    public synchronized void setAudioStreamDataLine(int audioStreamIndex, DataLine dataLine) {
+        aDataLines[audioStreamIndex] = dataLine;
+        updatePlaybackClock();
+    }
+    
+    /**
+     * Get the audio data line playing the given audio stream.
+     * 
+     * @param audioStreamIndex an audio stream index
+     * @return data line or null
+     */
+    public synchronized DataLine getAudioStreamDataLine(int audioStreamIndex) {
+        return aDataLines[audioStreamIndex];
+    }
+    
+    private void updatePlaybackClock() {
+        if (clockOverride != null) {
+            installPlaybackClock(clockOverride);
+            return;
+        }
+        
+        DataLine line = null;
+        for (int i = 0; i < aDataLines.length && line == null; i++) {
+            if (aDataLines[i] != null && aDecoders[i] != null && mr.containsAudioPacketConsumer(i, getAudioPacketQueue(i)))
+                line = aDataLines[i];
+        }
+        
+        if (line == null) {
+            if (!(clock instanceof SystemPlaybackClock))
+                installPlaybackClock(new SystemPlaybackClock());
+        } else if (!(clock instanceof AudioPlaybackClock) || ((AudioPlaybackClock)clock).getDataLine() != line)
+            installPlaybackClock(new AudioPlaybackClock(line));
+    }
+    
+    private void installPlaybackClock(IPlaybackClock clock) {
+        if (this.clock == clock)
+            return;
+        
+        if (this.clock.isRunning()) {
+            this.clock.stop();
+            clock.start(this.clock.getTime());
+        }
+        
+        this.clock = clock;
+        for (IDecoder dec : vDecoders) {
+            if (dec instanceof SynchronizedVideoFrameDecoder)
+                ((SynchronizedVideoFrameDecoder)dec).setClock(clock);
+        }
+        for (IDecoder dec : aDecoders) {
+            if (dec instanceof SynchronizedAudioFrameDecoder)
+                ((SynchronizedAudioFrameDecoder)dec).setClock(clock);
+        }
+    }
+    
+    /**
+     * Get the playback clock shared by all stream players.
+     * 
+     * @return playback clock
+     */
+    public synchronized IPlaybackClock getPlaybackClock() {
+        return clock;
     }
     
     @Override
@@ -148,25 +275,24 @@ public class DefaultMediaPlayer implements IMediaPlayer {
     @Override
     public synchronized void setVideoStreamDecodingEnabled(int videoStreamIndex, boolean enabled) throws LibavException {
         if (enabled) {
-            mr.addVideoPacketConsumer(videoStreamIndex, getVideoStreamDecoder(videoStreamIndex));
-            mr.setVideoStreamBufferingEnabled(videoStreamIndex, true);
+            getVideoStreamDecoder(videoStreamIndex);
+            mr.addVideoPacketConsumer(videoStreamIndex, getVideoPacketQueue(videoStreamIndex));
             startVideoStreamPlayback(videoStreamIndex);
         } else {
-            mr.removeVideoPacketConsumer(videoStreamIndex, getVideoStreamDecoder(videoStreamIndex));
-            mr.setVideoStreamBufferingEnabled(videoStreamIndex, false);
+            mr.removeVideoPacketConsumer(videoStreamIndex, getVideoPacketQueue(videoStreamIndex));
             stopStreamPlayback(mr.getVideoStream(videoStreamIndex).getIndex());
         }
     }
 
     @Override
     public boolean isVideoStreamDecodingEnabled(int videoStreamIndex) throws LibavException {
-        return mr.containsVideoPacketConsumer(videoStreamIndex, getVideoStreamDecoder(videoStreamIndex));
+        return mr.containsVideoPacketConsumer(videoStreamIndex, getVideoPacketQueue(videoStreamIndex));
     }
 
     @Override
     public IDecoder getVideoStreamDecoder(int videoStreamIndex) throws LibavException {
         if (vDecoders[videoStreamIndex] == null)
-            vDecoders[videoStreamIndex] = new SynchronizedVideoFrameDecoder(mr.getVideoStream(videoStreamIndex));
+            vDecoders[videoStreamIndex] = new SynchronizedVideoFrameDecoder(mr.getVideoStream(videoStreamIndex), clock);
         
         return vDecoders[videoStreamIndex];
     }
@@ -174,29 +300,129 @@ public class DefaultMediaPlayer implements IMediaPlayer {
     @Override
     public synchronized void setAudioStreamDecodingEnabled(int audioStreamIndex, boolean enabled) throws LibavException {
         if (enabled) {
-            mr.addAudioPacketConsumer(audioStreamIndex, getAudioStreamDecoder(audioStreamIndex));
-            mr.setAudioStreamBufferingEnabled(audioStreamIndex, true);
+            getAudioStreamDecoder(audioStreamIndex);
+            mr.addAudioPacketConsumer(audioStreamIndex, getAudioPacketQueue(audioStreamIndex));
+            updatePlaybackClock();
             startAudioStreamPlayback(audioStreamIndex);
         } else {
-            mr.removeAudioPacketConsumer(audioStreamIndex, getAudioStreamDecoder(audioStreamIndex));
-            mr.setAudioStreamBufferingEnabled(audioStreamIndex, false);
+            mr.removeAudioPacketConsumer(audioStreamIndex, getAudioPacketQueue(audioStreamIndex));
             stopStreamPlayback(mr.getAudioStream(audioStreamIndex).getIndex());
+            updatePlaybackClock();
         }
     }
 
     @Override
     public boolean isAudioStreamDecodingEnabled(int audioStreamIndex) throws LibavException {
-        return mr.containsAudioPacketConsumer(audioStreamIndex, getAudioStreamDecoder(audioStreamIndex));
+        return mr.containsAudioPacketConsumer(audioStreamIndex, getAudioPacketQueue(audioStreamIndex));
     }
 
     @Override
     public IDecoder getAudioStreamDecoder(int audioStreamIndex) throws LibavException {
         if (aDecoders[audioStreamIndex] == null)
-            aDecoders[audioStreamIndex] = new SynchronizedAudioFrameDecoder(mr.getAudioStream(audioStreamIndex));
+            aDecoders[audioStreamIndex] = new SynchronizedAudioFrameDecoder(mr.getAudioStream(audioStreamIndex), clock);
         
         return aDecoders[audioStreamIndex];
     }
     
+    /**
+     * Enable or disable adaptive decoding degradation of the given video 
+     * stream. If it is enabled, the player measures lateness of decoded 
+     * frames and if the playback falls behind, it progressively skips the 
+     * loop filter and drops non-reference frames (see the DEGRADATION_* 
+     * constants) until the playback catches up. If it is disabled, all 
+     * frames are decoded. Late frames are not displayed in both cases. It is
+     * enabled by default.
+     * 
+     * @param videoStreamIndex a video stream index
+     * @param enabled true to enable the adaptive degradation, false otherwise
+     * @throws LibavException if the video decoder cannot be created
+     */
+    public void setAdaptiveDegradationEnabled(int videoStreamIndex, boolean enabled) throws LibavException {
+        IDecoder dec = getVideoStreamDecoder(videoStreamIndex);
+        if (dec instanceof SynchronizedVideoFrameDecoder)
+            ((SynchronizedVideoFrameDecoder)dec).setAdaptiveDegradationEnabled(enabled);
+    }
+    
+    /**
+     * Check whether adaptive decoding degradation of the given video stream
+     * is enabled.
+     * 
+     * @param videoStreamIndex a video stream index
+     * @return true if the adaptive degradation is enabled, false otherwise
+     * @throws LibavException if the video decoder cannot be created
+     */
+    public boolean isAdaptiveDegradationEnabled(int videoStreamIndex) throws LibavException {
+        IDecoder dec = getVideoStreamDecoder(videoStreamIndex);
+        if (dec instanceof SynchronizedVideoFrameDecoder)
+            return ((SynchronizedVideoFrameDecoder)dec).isAdaptiveDegradationEnabled();
+        
+        return false;
+    }
+    
+    /**
+     * Get current decoding degradation level of the given video stream.
+     * 
+     * @param videoStreamIndex a video stream index
+     * @return one of the DEGRADATION_* constants
+     * @throws LibavException if the video decoder cannot be created
+     */
+    public int getDegradationLevel(int videoStreamIndex) throws LibavException {
+        IDecoder dec = getVideoStreamDecoder(videoStreamIndex);
+        if (dec instanceof SynchronizedVideoFrameDecoder)
+            return ((SynchronizedVideoFrameDecoder)dec).getDegradationLevel();
+        
+        return DEGRADATION_NONE;
+    }
+    
+    /**
+     * Get number of decoded video frames of the given stream which were not
+     * displayed because they were late.
+     * 
+     * @param videoStreamIndex a video stream index
+     * @return number of dropped frames
+     * @throws LibavException if the video decoder cannot be created
+     */
+    public long getDroppedFrameCount(int videoStreamIndex) throws LibavException {
+        IDecoder dec = getVideoStreamDecoder(videoStreamIndex);
+        if (dec instanceof SynchronizedVideoFrameDecoder)
+            return ((SynchronizedVideoFrameDecoder)dec).getDroppedFrameCount();
+        
+        return 0;
+    }
+    
+    /**
+     * Get average difference between the playback clock and the timestamps 
+     * of presented video frames of the given stream (A/V drift if the audio 
+     * output is the master clock). Positive values mean that the video is 
+     * late.
+     * 
+     * @param videoStreamIndex a video stream index
+     * @return drift in milliseconds
+     * @throws LibavException if the video decoder cannot be created
+     */
+    public long getAVDrift(int videoStreamIndex) throws LibavException {
+        IDecoder dec = getVideoStreamDecoder(videoStreamIndex);
+        if (dec instanceof SynchronizedVideoFrameDecoder)
+            return ((SynchronizedVideoFrameDecoder)dec).getDrift();
+        
+        return 0;
+    }
+    
+    private synchronized PacketQueue getVideoPacketQueue(int videoStreamIndex) {
+        return getPacketQueue(mr.getVideoStream(videoStreamIndex).getIndex());
+    }
+    
+    private synchronized PacketQueue getAudioPacketQueue(int audioStreamIndex) {
+        return getPacketQueue(mr.getAudioStream(audioStreamIndex).getIndex());
+    }
+    
+    private synchronized PacketQueue getPacketQueue(int streamIndex) {
+        if (packetQueues[streamIndex] == null)
+            packetQueues[streamIndex] = new PacketQueue(PACKET_QUEUE_CAPACITY);
+        
+        return packetQueues[streamIndex];
+    }
+    
     private synchronized void startVideoStreamPlayback(int videoStreamIndex) {
         IStreamWrapper sw = mr.getVideoStream(videoStreamIndex);
         int si = sw.getIndex();
@@ -204,13 +430,11 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         if (streamPlayers == null || streamPlayers[si] != null)
             return;
         
-        if (liveStream)
-            stopPosition = System.currentTimeMillis() - startTime - 500;
-        
-        streamPlayers[si] = new ThreadedVideoStreamPlayer(mr, videoStreamIndex, stopPosition);
+        streamPlayers[si] = new ThreadedVideoStreamPlayer(videoStreamIndex, getPacketQueue(si));
         playerThreads[si] = new Thread(streamPlayers[si], "StreamPlayer");
         playerThreads[si].setDaemon(true);
         playerThreads[si].start();
+        startDemuxing();
     }
     
     private synchronized void startAudioStreamPlayback(int audioStreamIndex) {
@@ -220,13 +444,11 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         if (streamPlayers == null || streamPlayers[si] != null)
             return;
         
-        if (liveStream)
-            stopPosition = System.currentTimeMillis() - startTime - 500;
-        
-        streamPlayers[si] = new ThreadedAudioStreamPlayer(mr, audioStreamIndex, stopPosition);
+        streamPlayers[si] = new ThreadedAudioStreamPlayer(audioStreamIndex, getPacketQueue(si));
         playerThreads[si] = new Thread(streamPlayers[si], "StreamPlayer");
         playerThreads[si].setDaemon(true);
         playerThreads[si].start();
+        startDemuxing();
     }
     
     private synchronized void stopStreamPlayback(int streamIndex) {
@@ -238,6 +460,37 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         }
         streamPlayers[streamIndex] = null;
         playerThreads[streamIndex] = null;
+        
+        for (ThreadedStreamPlayer sp : streamPlayers) {
+            if (sp != null)
+                return;
+        }
+        // do not read the media if there is nobody to consume the packets
+        stopDemuxing();
+    }
+    
+    private synchronized void startDemuxing() {
+        if (demuxer != null)
+            return;
+        
+        demuxer = new Demuxer(mr, packetQueues);
+        demuxThread = new Thread(demuxer, "Demuxer");
+        demuxThread.setDaemon(true);
+        demuxThread.start();
+    }
+    
+    private synchronized void stopDemuxing() {
+        if (demuxer == null)
+            return;
+        
+        demuxer.stop();
+        try {
+            demuxThread.join();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for demuxer to stop", ex);
+        }
+        demuxer = null;
+        demuxThread = null;
     }
 
     @Override
@@ -259,9 +512,8 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         for (int i = 0; i < mr.getVideoStreamCount(); i++) {
             if (!isVideoStreamDecodingEnabled(i))
                 continue;
-            mr.setVideoStreamBufferingEnabled(i, true);
             sw = mr.getVideoStream(i);
-            streamPlayers[sw.getIndex()] = new ThreadedVideoStreamPlayer(mr, i, stopPosition);
+            streamPlayers[sw.getIndex()] = new ThreadedVideoStreamPlayer(i, getPacketQueue(sw.getIndex()));
             playerThreads[sw.getIndex()] = new Thread(streamPlayers[sw.getIndex()], "StreamPlayer");
             playerThreads[sw.getIndex()].setDaemon(true);
         }
@@ -269,17 +521,23 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         for (int i = 0; i < mr.getAudioStreamCount(); i++) {
             if (!isAudioStreamDecodingEnabled(i))
                 continue;
-            mr.setAudioStreamBufferingEnabled(i, true);
             sw = mr.getAudioStream(i);
-            streamPlayers[sw.getIndex()] = new ThreadedAudioStreamPlayer(mr, i, stopPosition);
+            streamPlayers[sw.getIndex()] = new ThreadedAudioStreamPlayer(i, getPacketQueue(sw.getIndex()));
             playerThreads[sw.getIndex()] = new Thread(streamPlayers[sw.getIndex()], "StreamPlayer");
             playerThreads[sw.getIndex()].setDaemon(true);
         }
         
+        clock.start(stopPosition);
+        boolean consumed = false;
         for (int i = 0; i < playerThreads.length; i++) {
-            if (playerThreads[i] != null)
+            if (playerThreads[i] != null) {
                 playerThreads[i].start();
+                consumed = true;
+            }
         }
+        
+        if (consumed)
+            startDemuxing();
     }
 
     @Override
@@ -291,6 +549,11 @@ public class DefaultMediaPlayer implements IMediaPlayer {
             if (sp != null)
                 sp.stop();
         }
+        // stream players close their queues, so the demuxer cannot get stuck
+        if (demuxer != null)
+            demuxer.stop();
+        // stopping the clock also releases stream players waiting for it
+        clock.stop();
         
         try {
             join();
@@ -298,13 +561,16 @@ public class DefaultMediaPlayer implements IMediaPlayer {
             Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for playback to stop", ex);
         }
         
-        stopPosition += System.currentTimeMillis() - startTime;
+        stopPosition = clock.getTime();
         
         streamPlayers = null;
+        demuxer = null;
+        demuxThread = null;
     }
 
     @Override
     public void join() throws InterruptedException {
+        Thread dt = demuxThread;
         Thread[] pts = playerThreads;
         if (pts == null)
             return;
@@ -313,6 +579,8 @@ public class DefaultMediaPlayer implements IMediaPlayer {
             if (pt != null)
                 pt.join();
         }
+        if (dt != null)
+            dt.join();
     }
 
     @Override
@@ -329,6 +597,11 @@ public class DefaultMediaPlayer implements IMediaPlayer {
                 vfd.close();
         }
         
+        for (PacketQueue pq : packetQueues) {
+            if (pq != null)
+                pq.dispose();
+        }
+        
         mr.close();
     }
     
@@ -345,24 +618,20 @@ public class DefaultMediaPlayer implements IMediaPlayer {
     }
     
     private class ThreadedVideoStreamPlayer extends ThreadedStreamPlayer {
-        private long startPoint;
         private int videoStreamIndex;
         
-        public ThreadedVideoStreamPlayer(IMediaReader mr, int videoStreamIndex, long startPoint) {
-            super(mr, mr.getVideoStream(videoStreamIndex).getIndex());
+        public ThreadedVideoStreamPlayer(int videoStreamIndex, PacketQueue queue) {
+            super(queue);
             
             this.videoStreamIndex = videoStreamIndex;
-            this.startPoint = startPoint;
         }
 
         @Override
         public void run() {
-            IDecoder decoder = null;
-            
             try {
                 decoder = getVideoStreamDecoder(videoStreamIndex);
                 if (decoder instanceof SynchronizedVideoFrameDecoder)
-                    ((SynchronizedVideoFrameDecoder)decoder).setStartPoint(System.currentTimeMillis() - startPoint);
+                    ((SynchronizedVideoFrameDecoder)decoder).setClock(clock);
             } catch (LibavException ex) {
                 Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.SEVERE, "unable to get video frame decoder", ex);
             }
@@ -379,24 +648,20 @@ public class DefaultMediaPlayer implements IMediaPlayer {
     }
     
     private class ThreadedAudioStreamPlayer extends ThreadedStreamPlayer {
-        private long startPoint;
         private int audioStreamIndex;
         
-        public ThreadedAudioStreamPlayer(IMediaReader mr, int audioStreamIndex, long startPoint) {
-            super(mr, mr.getAudioStream(audioStreamIndex).getIndex());
+        public ThreadedAudioStreamPlayer(int audioStreamIndex, PacketQueue queue) {
+            super(queue);
             
             this.audioStreamIndex = audioStreamIndex;
-            this.startPoint = startPoint;
         }
 
         @Override
         public void run() {
-            IDecoder decoder = null;
-            
             try {
                 decoder = getAudioStreamDecoder(audioStreamIndex);
                 if (decoder instanceof SynchronizedAudioFrameDecoder)
-                    ((SynchronizedAudioFrameDecoder)decoder).setStartPoint(System.currentTimeMillis() - startPoint);
+                    ((SynchronizedAudioFrameDecoder)decoder).setClock(clock);
             } catch (LibavException ex) {
                 Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.SEVERE, "unable to get audio frame decoder", ex);
             }
@@ -412,89 +677,343 @@ public class DefaultMediaPlayer implements IMediaPlayer {
         }
     }
     
+    /**
+     * Stream player consuming packets of a single stream from its own queue.
+     */
     private static class ThreadedStreamPlayer implements Runnable {
-        protected IMediaReader mr;
-        private int streamIndex;
-        private boolean stop;
+        protected IDecoder decoder;
+        private PacketQueue queue;
+        private volatile boolean stop;
 
-        public ThreadedStreamPlayer(IMediaReader mr, int streamIndex) {
-            this.mr = mr;
-            this.streamIndex = streamIndex;
+        public ThreadedStreamPlayer(PacketQueue queue) {
+            this.queue = queue;
             
+            decoder = null;
             stop = false;
+            queue.open();
         }
         
         @Override
         public void run() {
+            IPacketWrapper packet;
+            
             while (!stop) {
                 try {
-                    if (!mr.readNextPacket(streamIndex))
-                        stop = true;
+                    if ((packet = queue.take()) == null)
+                        break;
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for a packet", ex);
+                    break;
+                }
+                
+                try {
+                    if (decoder != null && !stop)
+                        decoder.processPacket(this, packet);
                 } catch (LibavException ex) {
                     Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.SEVERE, "error while playing media", ex);
+                } finally {
+                    packet.free();
                 }
             }
         }
 
         public void stop() {
             stop = true;
+            queue.close();
+        }
+    }
+    
+    /**
+     * Reads all packets of the media and routes them to per-stream packet 
+     * queues (registered as packet consumers of the media reader). The end 
+     * of the media is signalled to all open queues.
+     */
+    private static class Demuxer implements Runnable {
+        private IMediaReader mr;
+        private PacketQueue[] queues;
+        private volatile boolean stop;
+
+        public Demuxer(IMediaReader mr, PacketQueue[] queues) {
+            this.mr = mr;
+            this.queues = queues;
+            
+            stop = false;
+        }
+        
+        @Override
+        public void run() {
+            while (!stop) {
+                try {
+                    if (!mr.readNextPacket())
+                        break;
+                } catch (LibavException ex) {
+                    Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.SEVERE, "error while reading media", ex);
+                }
+            }
+            
+            if (stop)
+                return;
+            
+            for (PacketQueue pq : queues) {
+                if (pq != null)
+                    pq.endOfStream();
+            }
+        }
+
+        public void stop() {
+            stop = true;
+        }
+    }
+    
+    /**
+     * Bounded queue of packets of a single stream. Packets are cloned, 
+     * because the media reader frees them after they are consumed. The 
+     * demuxer is blocked if the queue is full. Null element marks end of 
+     * the stream.
+     */
+    private static class PacketQueue implements IPacketConsumer {
+        private Buffer<IPacketWrapper> buffer;
+        private PacketPool packetPool;
+        private volatile boolean closed;
+
+        public PacketQueue(int capacity) {
+            buffer = new Buffer<IPacketWrapper>(capacity);
+            packetPool = new PacketPool();
+            closed = true;
+        }
+        
+        @Override
+        public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+            if (closed)
+                return;
+            
+            IPacketWrapper pw = packetPool.clonePacket(packet);
+            try {
+                buffer.waitPut(pw);
+            } catch (InterruptedException ex) {
+                pw.free();
+                throw new LibavException("interrupted while queueing a packet", ex);
+            }
+        }
+        
+        public IPacketWrapper take() throws InterruptedException {
+            return buffer.waitGet();
+        }
+        
+        public void endOfStream() {
+            if (closed)
+                return;
+            
+            try {
+                buffer.waitPut(null);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while queueing end of stream", ex);
+            }
+        }
+        
+        public void open() {
+            drop();
+            closed = false;
+        }
+        
+        public void close() {
+            closed = true;
+            drop();
+            // wake up the stream player
+            buffer.put(null);
+        }
+        
+        public void dispose() {
+            closed = true;
+            drop();
+            packetPool.dispose();
+        }
+        
+        private void drop() {
+            IPacketWrapper packet;
+            synchronized (buffer) {
+                while (buffer.getItemCount() > 0) {
+                    if ((packet = buffer.get()) != null)
+                        packet.free();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Wait until the clock reaches the given time or until it is stopped. 
+     * The calling thread is parked for the most of the remaining time and 
+     * the clock is re-read after each wake up, so the wait follows clocks 
+     * which do not run at the system timer rate.
+     */
+    private static void waitForClock(IPlaybackClock clock, long time) {
+        long delay;
+        
+        while (clock.isRunning() && (delay = time - clock.getTime()) > 0) {
+            if (delay > 1)
+                LockSupport.parkNanos((delay - 1) * 1000000);
+            else
+                Thread.yield();
+            
+            if (Thread.interrupted()) {
+                Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for a sync point");
+                return;
+            }
         }
     }
     
     private static class SynchronizedVideoFrameDecoder extends VideoFrameDecoder {
-        private long startPoint;
+        private static final int DEGRADE_LATENESS = 40;
+        private static final int RECOVER_LATENESS = 5;
+        private static final int DEGRADE_DELAY = 10;
+        private static final int RECOVER_DELAY = 50;
+        
+        private volatile IPlaybackClock clock;
+        private volatile long drift;
         
-        public SynchronizedVideoFrameDecoder(IStreamWrapper stream) throws LibavException {
+        private volatile boolean adaptive;
+        private volatile int level;
+        private volatile long avgLateness;
+        private int framesSinceChange;
+        private volatile long droppedFrames;
+        private volatile boolean resetPending;
+        
+        public SynchronizedVideoFrameDecoder(IStreamWrapper stream, IPlaybackClock clock) throws LibavException {
             super(stream);
             
-            startPoint = 0;
+            this.clock = clock;
+            drift = 0;
+            
+            adaptive = true;
+            level = 0;
+            avgLateness = 0;
+            framesSinceChange = 0;
+            droppedFrames = 0;
+            resetPending = false;
+        }
+        
+        public void setClock(IPlaybackClock clock) {
+            this.clock = clock;
+            drift = 0;
+            resetPending = true;
+        }
+        
+        public void setAdaptiveDegradationEnabled(boolean enabled) {
+            adaptive = enabled;
+            if (!enabled)
+                resetPending = true;
+        }
+        
+        public boolean isAdaptiveDegradationEnabled() {
+            return adaptive;
+        }
+        
+        public int getDegradationLevel() {
+            return level;
+        }
+        
+        public long getDroppedFrameCount() {
+            return droppedFrames;
         }
         
-        public void setStartPoint(long startPoint) {
-            this.startPoint = startPoint;
+        public long getDrift() {
+            return drift;
+        }
+        
+        private void setDegradationLevel(int level) {
+            if (this.level == level)
+                return;
+            
+            this.level = level;
+            framesSinceChange = 0;
+            // do not override the key frame only mode
+            if (isKeyFrameOnlyDecoding())
+                return;
+            
+            ICodecContextWrapper cc = getCodecContext();
+            cc.setSkipLoopFilter(level >= DEGRADATION_SKIP_LOOP_FILTER ? AVCodecLibrary.AVDISCARD_ALL : AVCodecLibrary.AVDISCARD_DEFAULT);
+            cc.setSkipFrame(level >= DEGRADATION_SKIP_NONREF ? AVCodecLibrary.AVDISCARD_NONREF : AVCodecLibrary.AVDISCARD_DEFAULT);
+        }
+        
+        /**
+         * Reset the degradation level if requested. The codec context may be 
+         * changed only by the decoding thread, so the reset is applied 
+         * before the next packet is decoded.
+         */
+        private void applyReset() {
+            if (!resetPending)
+                return;
+            
+            resetPending = false;
+            avgLateness = 0;
+            framesSinceChange = 0;
+            setDegradationLevel(0);
+        }
+        
+        @Override
+        public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+            applyReset();
+            super.processPacket(producer, packet);
+        }
+        
+        @Override
+        public void flush() throws LibavException {
+            applyReset();
+            super.flush();
+        }
+        
+        private void updateDegradationLevel(long lateness) {
+            avgLateness = (7 * avgLateness + lateness) / 8;
+            framesSinceChange++;
+            
+            if (avgLateness > DEGRADE_LATENESS && level < DEGRADATION_SKIP_NONREF && framesSinceChange >= DEGRADE_DELAY)
+                setDegradationLevel(level + 1);
+            else if (avgLateness < RECOVER_LATENESS && level > 0 && framesSinceChange >= RECOVER_DELAY)
+                setDegradationLevel(level - 1);
         }
 
         @Override
         protected void sendFrame(IFrameWrapper frame) throws LibavException {
-            long tmp = frame.getPts() + startPoint - System.currentTimeMillis();
-            //System.out.printf("VF: pts = %d, tmp = %d (expected_pts = %d, start_point = %d)\n", frame.getPts(), tmp, System.currentTimeMillis() - startPoint, startPoint);
-            if (tmp > 0) {
-                try {
-                    Thread.sleep(tmp);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for a sync point");
-                }
-            } else if (tmp < -10) // drop frame if it is too late
+            IPlaybackClock c = clock;
+            long tmp = frame.getPts() - c.getTime();
+            //System.out.printf("VF: pts = %d, tmp = %d (clock = %d)\n", frame.getPts(), tmp, c.getTime());
+            applyReset();
+            if (adaptive)
+                updateDegradationLevel(-tmp);
+            
+            if (tmp > 0)
+                waitForClock(c, frame.getPts());
+            else if (tmp < -10) { // drop frame if it is too late
+                droppedFrames++;
                 return;
+            }
             
+            drift = (7 * drift + c.getTime() - frame.getPts()) / 8;
             super.sendFrame(frame);
         }
     }
     
     private static class SynchronizedAudioFrameDecoder extends AudioFrameDecoder {
-        private long startPoint;
+        private volatile IPlaybackClock clock;
         
-        public SynchronizedAudioFrameDecoder(IStreamWrapper stream) throws LibavException {
+        public SynchronizedAudioFrameDecoder(IStreamWrapper stream, IPlaybackClock clock) throws LibavException {
             super(stream);
             
-            startPoint = 0;
+            this.clock = clock;
         }
         
-        public void setStartPoint(long startPoint) {
-            this.startPoint = startPoint;
+        public void setClock(IPlaybackClock clock) {
+            this.clock = clock;
         }
 
         @Override
         protected void sendFrame(IFrameWrapper frame) throws LibavException {
-            long tmp = frame.getPts() + startPoint - System.currentTimeMillis() - 500;
-            //System.out.printf("AF: pts = %d, tmp = %d (expected_pts = %d, start_point = %d)\n", frame.getPts(), tmp, System.currentTimeMillis() - startPoint, startPoint);
-            if (tmp > 0) {
-                try {
-                    Thread.sleep(tmp);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(DefaultMediaPlayer.class.getName()).log(Level.WARNING, "interrupted while waiting for a sync point");
-                }
-            } else if (tmp < -100) // drop frame if it is too late
+            IPlaybackClock c = clock;
+            long tmp = frame.getPts() - c.getTime() - 500;
+            //System.out.printf("AF: pts = %d, tmp = %d (clock = %d)\n", frame.getPts(), tmp, c.getTime());
+            if (tmp > 0)
+                waitForClock(c, frame.getPts() - 500);
+            else if (tmp < -100) // drop frame if it is too late
                 return;
             
             super.sendFrame(frame);
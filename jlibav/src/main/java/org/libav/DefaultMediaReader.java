@@ -20,7 +20,9 @@ package org.libav;
 import java.util.*;
 import org.libav.avcodec.ICodecContextWrapper;
 import org.libav.avcodec.IPacketWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
 import org.libav.avformat.*;
+import org.libav.avutil.bridge.AVUtilLibrary;
 import org.libav.data.BufferedPacketReader;
 import org.libav.data.IPacketConsumer;
 import org.libav.util.Buffer;
@@ -29,6 +31,9 @@ import org.libav.util.Rational;
 /**
  * Default implementation of the media reader interface.
  * 
+ * Streams without any packet consumer and with disabled buffering are 
+ * discarded by the demuxer (see setAutoDiscardEnabled()).
+ * 
  * @author Ondrej Perutka
  */
 public class DefaultMediaReader implements IMediaReader {
@@ -48,6 +53,17 @@ public class DefaultMediaReader implements IMediaReader {
     private Rational[] timeBases;
     private long position;
     
+    private boolean autoDiscard;
+    private final Object discardLock;
+    private volatile boolean readingStarted;
+    
+    private long[] lastDts;
+    private boolean[] catchingUp;
+    private long readGeneration;
+    private long rewindGeneration;
+    private long seekGeneration;
+    private final Object bufferLock;
+    
     /**
      * Open the given media URL.
      * 
@@ -82,6 +98,8 @@ public class DefaultMediaReader implements IMediaReader {
     
     private DefaultMediaReader(IFormatContextWrapper formatContext) throws LibavException {
         this.formatContext = formatContext;
+        this.discardLock = new Object();
+        this.bufferLock = new Object();
         
         packetReader = new BufferedPacketReader(formatContext, 50);
         
@@ -92,6 +110,8 @@ public class DefaultMediaReader implements IMediaReader {
         bufferingEnabled = new boolean[streams.length];
         packetConsumers = new ArrayList<Set<IPacketConsumer>>();
         timeBases = new Rational[streams.length];
+        lastDts = new long[streams.length];
+        catchingUp = new boolean[streams.length];
         int v = 0, a = 0;
         
         for (int i = 0; i < streams.length; i++) {
@@ -105,6 +125,8 @@ public class DefaultMediaReader implements IMediaReader {
                 default: break;
             }
             timeBases[i] = streams[i].getTimeBase().mul(1000);
+            lastDts[i] = AVUtilLibrary.AV_NOPTS_VALUE;
+            catchingUp[i] = false;
         }
         
         vStreams = new int[v];
@@ -120,6 +142,14 @@ public class DefaultMediaReader implements IMediaReader {
         }
         
         position = 0;
+        readingStarted = false;
+        readGeneration = -1;
+        rewindGeneration = -1;
+        seekGeneration = -1;
+        
+        autoDiscard = true;
+        for (int i = 0; i < streams.length; i++)
+            updateDiscard(i);
     }
 
     @Override
@@ -135,11 +165,13 @@ public class DefaultMediaReader implements IMediaReader {
     @Override
     public void addPacketConsumer(int streamIndex, IPacketConsumer consumer) {
         packetConsumers.get(streamIndex).add(consumer);
+        updateDiscard(streamIndex);
     }
 
     @Override
     public void removePacketConsumer(int streamIndex, IPacketConsumer consumer) {
         packetConsumers.get(streamIndex).remove(consumer);
+        updateDiscard(streamIndex);
     }
     
     @Override
@@ -240,20 +272,30 @@ public class DefaultMediaReader implements IMediaReader {
     }
 
     @Override
-    public synchronized void seek(long time) throws LibavException {
+    public void seek(long time) throws LibavException {
         if (isClosed())
             return;
         
-        dropAllBuffers();
-        packetReader.resetEof();
-        formatContext.seekFile(time - 10000, time, time + 500);
-        
-        position = time;
+        // the seek is executed by the packet reader thread, it does not wait 
+        // for a thread blocked in readNextPacket(); a failure is thrown by 
+        // the next readNextPacket() call; packets read before the seek are 
+        // dropped by the reading thread (see nextPacket())
+        synchronized (bufferLock) {
+            seekGeneration = packetReader.seek(time - 10000, time, time + 500);
+            dropStreamBuffers();
+            position = time;
+        }
     }
 
     @Override
-    public synchronized void dropAllBuffers() {
-        packetReader.dropBuffer();
+    public void dropAllBuffers() {
+        synchronized (bufferLock) {
+            packetReader.dropBuffer();
+            dropStreamBuffers();
+        }
+    }
+    
+    private void dropStreamBuffers() {
         for (Buffer<IPacketWrapper> sb : streamBuffers) {
             while (sb.getItemCount() > 0)
                 sb.get().free();
@@ -267,7 +309,8 @@ public class DefaultMediaReader implements IMediaReader {
         synchronized (this) {
             if (isClosed())
                 return false;
-            pw = packetReader.nextPacket();
+            readingStarted = true;
+            pw = nextPacket();
         }
         
         if (pw != null)
@@ -285,17 +328,23 @@ public class DefaultMediaReader implements IMediaReader {
                 return false;
 
             setStreamBufferingEnabled(streamIndex, true);
-            if (streamBuffers.get(streamIndex).getItemCount() > 0)
-                pw = streamBuffers.get(streamIndex).get();
-            else {
-                pw = packetReader.nextPacket();
+            synchronized (bufferLock) {
+                pw = streamBuffers.get(streamIndex).getItemCount() > 0 ? streamBuffers.get(streamIndex).get() : null;
+            }
+            if (pw == null) {
+                readingStarted = true;
+                pw = nextPacket();
                 if (pw == null)
                     return false;
                 else if (pw.getStreamIndex() != streamIndex) {
-                    if (isStreamBufferingEnabled(pw.getStreamIndex()))
-                        streamBuffers.get(pw.getStreamIndex()).put(pw);
-                    else
-                        pw.free();
+                    synchronized (bufferLock) {
+                        // the packet must not be buffered if there was 
+                        // a seek after it had been read
+                        if (isStreamBufferingEnabled(pw.getStreamIndex()) && packetReader.getPacketGeneration() >= seekGeneration)
+                            streamBuffers.get(pw.getStreamIndex()).put(pw);
+                        else
+                            pw.free();
+                    }
                 }
             }
         }
@@ -306,6 +355,66 @@ public class DefaultMediaReader implements IMediaReader {
         return true;
     }
 
+    /**
+     * Get the next packet from the packet reader. After the packet reader 
+     * seeks back because of a stream which stopped being discarded, the 
+     * packets of the other streams are read again. These are dropped until 
+     * each stream gets past the last packet it has already provided.
+     * 
+     * @return packet or null in case of EOF
+     * @throws LibavException if the packet cannot be read
+     */
+    private IPacketWrapper nextPacket() throws LibavException {
+        IPacketWrapper pw;
+        int si;
+        long dts;
+        
+        while ((pw = packetReader.nextPacket()) != null) {
+            long gen = packetReader.getPacketGeneration();
+            boolean seeked;
+            synchronized (bufferLock) {
+                // drop packets read before a seek
+                if (gen < seekGeneration) {
+                    pw.free();
+                    continue;
+                }
+                seeked = seekGeneration > readGeneration;
+            }
+            
+            if (gen != readGeneration) {
+                // the first packet after a seek or a buffer drop (the re-read 
+                // packets are not dropped if the media has been seeked since 
+                // the last packet)
+                boolean rewound;
+                synchronized (discardLock) {
+                    rewound = gen == rewindGeneration && !seeked;
+                }
+                readGeneration = gen;
+                for (int i = 0; i < streams.length; i++) {
+                    catchingUp[i] = rewound && lastDts[i] != AVUtilLibrary.AV_NOPTS_VALUE;
+                    if (!rewound)
+                        lastDts[i] = AVUtilLibrary.AV_NOPTS_VALUE;
+                }
+            }
+            
+            si = pw.getStreamIndex();
+            dts = pw.getDts();
+            if (catchingUp[si]) {
+                if (dts == AVUtilLibrary.AV_NOPTS_VALUE || dts <= lastDts[si]) {
+                    pw.free();
+                    continue;
+                }
+                catchingUp[si] = false;
+            }
+            if (dts != AVUtilLibrary.AV_NOPTS_VALUE)
+                lastDts[si] = dts;
+            
+            return pw;
+        }
+        
+        return null;
+    }
+
     @Override
     public boolean readNextVideoPacket(int videoStreamIndex) throws LibavException {
         return readNextPacket(vStreams[videoStreamIndex]);
@@ -323,7 +432,7 @@ public class DefaultMediaReader implements IMediaReader {
 
     @Override
     public void setStreamBufferingEnabled(int streamIndex, boolean enabled) {
-        synchronized (this) {
+        synchronized (bufferLock) {
             bufferingEnabled[streamIndex] = enabled;
             if (!enabled) {
                 Buffer<IPacketWrapper> buf = streamBuffers.get(streamIndex);
@@ -331,6 +440,61 @@ public class DefaultMediaReader implements IMediaReader {
                     buf.get().free();
             }
         }
+        updateDiscard(streamIndex);
+    }
+    
+    /**
+     * Enable or disable automatic discarding of unused streams. If it is 
+     * enabled, the demuxer drops packets of streams which have no packet 
+     * consumer and which have disabled buffering. The discard flags are 
+     * updated whenever a packet consumer is added or removed or the buffering 
+     * is enabled or disabled. It is enabled by default.
+     * 
+     * When a discarded stream becomes used again, the packet reader seeks 
+     * back to the current position (if the media is seekable), because the 
+     * packets read ahead do not contain any packets of the stream. Packets 
+     * of the other streams which are read again are dropped, so they are 
+     * not provided twice.
+     * 
+     * @param enabled true to enable automatic discarding, false otherwise
+     */
+    public void setAutoDiscardEnabled(boolean enabled) {
+        synchronized (discardLock) {
+            autoDiscard = enabled;
+            for (int i = 0; i < streams.length; i++)
+                updateDiscard(i);
+        }
+    }
+    
+    /**
+     * Check whether automatic discarding of unused streams is enabled.
+     * 
+     * @return true if automatic discarding is enabled, false otherwise
+     */
+    public boolean isAutoDiscardEnabled() {
+        return autoDiscard;
+    }
+    
+    private void updateDiscard(int streamIndex) {
+        // NOTE: the reader monitor cannot be used here, it may be held by 
+        // a thread waiting for the next packet
+        synchronized (discardLock) {
+            if (isClosed())
+                return;
+            
+            boolean used = !autoDiscard || bufferingEnabled[streamIndex] || !packetConsumers.get(streamIndex).isEmpty();
+            int discard = used ? AVCodecLibrary.AVDISCARD_DEFAULT : AVCodecLibrary.AVDISCARD_ALL;
+            int oldDiscard = streams[streamIndex].getDiscard();
+            if (oldDiscard == discard)
+                return;
+            
+            streams[streamIndex].setDiscard(discard);
+            // packets of the stream have been dropped by the demuxer while 
+            // reading ahead, read them again from the current position
+            if (oldDiscard == AVCodecLibrary.AVDISCARD_ALL && readingStarted && isSeekable()) {
+                rewindGeneration = packetReader.seek(position - 10000, position, position);
+            }
+        }
     }
 
     @Override
@@ -356,16 +520,17 @@ public class DefaultMediaReader implements IMediaReader {
     @Override
     public void close() throws LibavException {
         synchronized (this) {
-            for (Buffer<IPacketWrapper> sb : streamBuffers) {
-                while (sb.getItemCount() > 0)
-                    sb.get().free();
+            synchronized (bufferLock) {
+                dropStreamBuffers();
             }
             
             packetReader.close();
-            if (formatContext != null)
-                formatContext.close();
+            synchronized (discardLock) {
+                if (formatContext != null)
+                    formatContext.close();
             
-            formatContext = null;
+                formatContext = null;
+            }
         }
     }
 
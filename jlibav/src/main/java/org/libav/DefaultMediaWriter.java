@@ -194,6 +194,36 @@ public class DefaultMediaWriter implements IMediaWriter {
         return aStreams.length - 1;
     }
 
+    @Override
+    public synchronized int addStreamCopy(IStreamWrapper template) throws LibavException {
+        if (isClosed())
+            throw new IllegalStateException("the media stream has been closed");
+        
+        AVCodecLibrary codecLib = LibraryManager.getInstance().getAVCodecLibrary();
+        ICodecContextWrapper src = template.getCodecContext();
+        IStreamWrapper stream = formatContext.newStream();
+        ICodecContextWrapper cc = stream.getCodecContext();
+        
+        int res = codecLib.avcodec_copy_context(cc.getPointer(), src.getPointer());
+        if (res != 0)
+            throw new LibavException(res);
+        
+        cc.clearWrapperCache();
+        // the codec tag is container specific
+        cc.setCodecTag(0);
+        // the codec time base is not always set by demuxers
+        Rational tb = cc.getTimeBase();
+        if (tb.getNumerator() == 0 || tb.getDenominator() == 0)
+            cc.setTimeBase(template.getTimeBase());
+        
+        IOutputFormatWrapper ofw = formatContext.getOutputFormat();
+        if ((ofw.getFlags() & AVFormatLibrary.AVFMT_GLOBALHEADER) != 0)
+            cc.setFlags(cc.getFlags() | AVCodecLibrary.CODEC_FLAG_GLOBAL_HEADER);
+        
+        reloadStreams();
+        return streams.length - 1;
+    }
+
     @Override
     public IStreamWrapper getAudioStream(int audioStreamIndex) {
         return getStream(aStreams[audioStreamIndex]);
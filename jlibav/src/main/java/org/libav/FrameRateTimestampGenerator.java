@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav;
+
+import org.libav.util.Rational;
+
+/**
+ * Constant frame rate timestamp generator. The generated timestamps are 
+ * aligned to the frame slots of the given frame rate (input timestamp - 
+ * offset is used to find the slot). Input frames which do not reach a new 
+ * slot are dropped (nextFrame() returns -1 at the first call). If the input
+ * skips some slots and duplication is enabled, the frame is repeated for 
+ * all of them, otherwise only the last reached slot is used.
+ * 
+ * The first input timestamp is set as offset after the new object creation
+ * or reset call.
+ * 
+ * NOTE:
+ * The time base of the encoder should correspond to the frame rate (e.g.
+ * 1/15 for 15 fps), otherwise the generated timestamps are rounded.
+ * 
+ * @author Ondrej Perutka
+ */
+public class FrameRateTimestampGenerator implements ITimestampGenerator {
+
+    private final Rational frameDuration;
+    private boolean duplicate;
+    
+    private boolean inputAsOffset;
+    private long offset;
+    private long nextSlot;
+    private long lastTimestamp;
+    
+    private long droppedFrames;
+    private long duplicatedFrames;
+    private boolean repeating;
+    
+    /**
+     * Create a new constant frame rate timestamp generator.
+     * 
+     * @param frameRate output frame rate (frames per second)
+     * @param duplicate true to repeat frames for skipped slots, false 
+     * otherwise
+     */
+    public FrameRateTimestampGenerator(Rational frameRate, boolean duplicate) {
+        if (frameRate.getNumerator() <= 0 || frameRate.getDenominator() <= 0)
+            throw new IllegalArgumentException("frame rate must be greater than 0");
+        
+        this.frameDuration = frameRate.invert().mul(1000);
+        this.duplicate = duplicate;
+        
+        inputAsOffset = true;
+        offset = 0;
+        nextSlot = 0;
+        lastTimestamp = -1;
+        
+        droppedFrames = 0;
+        duplicatedFrames = 0;
+        repeating = false;
+    }
+    
+    /**
+     * Create a new constant frame rate timestamp generator with frame 
+     * duplication enabled.
+     * 
+     * @param frameRate output frame rate (frames per second)
+     */
+    public FrameRateTimestampGenerator(int frameRate) {
+        this(new Rational(frameRate, 1), true);
+    }
+    
+    /**
+     * Get output frame rate.
+     * 
+     * @return frame rate
+     */
+    public Rational getFrameRate() {
+        return frameDuration.div(1000).invert();
+    }
+    
+    /**
+     * Check whether frames are repeated for skipped slots.
+     * 
+     * @return true if the duplication is enabled, false otherwise
+     */
+    public boolean isDuplicationEnabled() {
+        return duplicate;
+    }
+    
+    /**
+     * Enable or disable frame repeating for skipped slots.
+     * 
+     * @param duplicate true to enable the duplication, false to disable it
+     */
+    public void setDuplicationEnabled(boolean duplicate) {
+        this.duplicate = duplicate;
+    }
+    
+    /**
+     * Get number of input frames dropped since the generator creation.
+     * 
+     * @return number of dropped frames
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+    
+    /**
+     * Get number of repeated output frames since the generator creation.
+     * 
+     * @return number of repeated frames
+     */
+    public long getDuplicatedFrameCount() {
+        return duplicatedFrames;
+    }
+    
+    private long slotTime(long slot) {
+        return frameDuration.mul(slot).longValue();
+    }
+    
+    @Override
+    public long nextFrame(long inputTimestamp) {
+        if (inputAsOffset) {
+            offset = inputTimestamp;
+            nextSlot = 0;
+            lastTimestamp = -1;
+            inputAsOffset = false;
+        }
+        
+        long ts = inputTimestamp - offset;
+        if (slotTime(nextSlot) > ts) {
+            if (!repeating)
+                droppedFrames++;
+            repeating = false;
+            return -1;
+        }
+        
+        if (repeating)
+            duplicatedFrames++;
+        else if (!duplicate) {
+            // skip to the last reached slot
+            nextSlot = frameDuration.invert().mul(ts).longValue();
+            while (slotTime(nextSlot + 1) <= ts)
+                nextSlot++;
+        }
+        
+        lastTimestamp = slotTime(nextSlot++);
+        repeating = true;
+        
+        return lastTimestamp;
+    }
+    
+    @Override
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+    
+    @Override
+    public void setInputOffset(long offset) {
+        this.offset = offset;
+        nextSlot = 0;
+        lastTimestamp = -1;
+        repeating = false;
+    }
+    
+    @Override
+    public long getInputOffset() {
+        return offset;
+    }
+    
+    @Override
+    public void reset() {
+        inputAsOffset = true;
+        repeating = false;
+    }
+
+}
@@ -113,6 +113,18 @@ public interface IMediaWriter extends IPacketConsumer {
      */
     int addAudioStream(CodecID codecId, int sampleRate, SampleFormat sampleFormat, int channelCount) throws LibavException;
     
+    /**
+     * Create a new stream with codec parameters (including extradata) copied
+     * from the given stream. No encoder is needed for such stream, it is 
+     * intended for stream copy (i.e. writing packets of the given stream 
+     * without decoding and encoding them).
+     * 
+     * @param template a stream (e.g. an input stream of a media reader)
+     * @return index of the created stream
+     * @throws LibavException if an error occurs while creating a new stream
+     */
+    int addStreamCopy(IStreamWrapper template) throws LibavException;
+    
     /**
      * Get stream wrapper for the audio stream at the given index.
      * 
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav;
+
+/**
+ * Interface for playback clocks. A playback clock provides the current media
+ * time, which is shared by all stream players of a media player.
+ * 
+ * @author Ondrej Perutka
+ */
+public interface IPlaybackClock {
+
+    /**
+     * Start the clock at the given media time.
+     * 
+     * @param time a media time in milliseconds
+     */
+    void start(long time);
+    
+    /**
+     * Stop the clock. The media time is frozen until the next start.
+     */
+    void stop();
+    
+    /**
+     * Check whether the clock is running.
+     * 
+     * @return true if the clock is running, false otherwise
+     */
+    boolean isRunning();
+    
+    /**
+     * Get current media time.
+     * 
+     * @return media time in milliseconds
+     */
+    long getTime();
+
+}
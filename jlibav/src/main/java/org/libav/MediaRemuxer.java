@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.libav.avcodec.IPacketWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avformat.IStreamWrapper;
+import org.libav.avutil.MediaType;
+import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.data.IPacketConsumer;
+import org.libav.util.Rational;
+
+/**
+ * Stream copy (remux) pipeline. It copies packets of the selected input 
+ * streams into new output streams without decoding and encoding them. The
+ * codec parameters (including extradata) are copied from the input streams
+ * and the packet timestamps are rescaled from the input stream time bases 
+ * into the output stream time bases.
+ * 
+ * The output may be trimmed using the setStartTime() and setEndTime() 
+ * methods. Video streams start at the first keyframe following the start 
+ * time and the timestamps are shifted, so the start time becomes zero.
+ * 
+ * @author Ondrej Perutka
+ */
+public class MediaRemuxer {
+
+    private final IMediaReader mr;
+    private final IMediaWriter mw;
+    private final List<StreamCopy> streams;
+    
+    private long startTime;
+    private long endTime;
+    
+    /**
+     * Create a new remuxer. The media writer must not have its header 
+     * written yet.
+     * 
+     * @param mr a media reader
+     * @param mw a media writer
+     */
+    public MediaRemuxer(IMediaReader mr, IMediaWriter mw) {
+        this.mr = mr;
+        this.mw = mw;
+        this.streams = new ArrayList<StreamCopy>();
+        
+        startTime = 0;
+        endTime = Long.MAX_VALUE;
+    }
+    
+    /**
+     * Select the given input stream for copying. A new output stream with 
+     * the same codec parameters is created.
+     * 
+     * @param streamIndex index of an input stream
+     * @return index of the created output stream
+     * @throws LibavException if the output stream cannot be created
+     */
+    public int addStream(int streamIndex) throws LibavException {
+        IStreamWrapper is = mr.getStream(streamIndex);
+        int outputIndex = mw.addStreamCopy(is);
+        streams.add(new StreamCopy(streamIndex, outputIndex, is.getCodecContext().getCodecType() == MediaType.VIDEO));
+        
+        return outputIndex;
+    }
+    
+    /**
+     * Select all audio and video input streams for copying.
+     * 
+     * @throws LibavException if some output stream cannot be created
+     */
+    public void addAllStreams() throws LibavException {
+        for (int i = 0; i < mr.getStreamCount(); i++) {
+            MediaType mt = mr.getStream(i).getCodecContext().getCodecType();
+            if (mt == MediaType.VIDEO || mt == MediaType.AUDIO)
+                addStream(i);
+        }
+    }
+    
+    /**
+     * Set start of the copied time range. The reader is seeked to this 
+     * position (it has to be seekable).
+     * 
+     * @param startTime time in milliseconds
+     */
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+    
+    /**
+     * Get start of the copied time range.
+     * 
+     * @return time in milliseconds
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * Set end of the copied time range.
+     * 
+     * @param endTime time in milliseconds (Long.MAX_VALUE means the end of 
+     * the input)
+     */
+    public void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+    
+    /**
+     * Get end of the copied time range.
+     * 
+     * @return time in milliseconds
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+    
+    /**
+     * Write the output header, copy all packets of the selected streams
+     * within the given time range and write the output trailer.
+     * 
+     * @throws LibavException if an error occurs while reading or writing
+     */
+    public void remux() throws LibavException {
+        if (streams.isEmpty())
+            throw new IllegalStateException("no stream selected");
+        
+        mw.writeHeader();
+        
+        // the output time bases are known after the header is written
+        for (StreamCopy sc : streams) {
+            sc.init();
+            mr.addPacketConsumer(sc.inputIndex, sc);
+        }
+        
+        try {
+            if (startTime > 0)
+                mr.seek(startTime);
+            
+            while (!isFinished() && mr.readNextPacket());
+        } finally {
+            for (StreamCopy sc : streams)
+                mr.removePacketConsumer(sc.inputIndex, sc);
+        }
+        
+        mw.writeTrailer();
+    }
+    
+    private boolean isFinished() {
+        for (StreamCopy sc : streams) {
+            if (!sc.finished)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    private class StreamCopy implements IPacketConsumer {
+        private final int inputIndex;
+        private final int outputIndex;
+        private final boolean video;
+        
+        private Rational toMillis;
+        private Rational scale;
+        private long shift;
+        
+        private boolean started;
+        private boolean finished;
+        private long lastDts;
+        
+        public StreamCopy(int inputIndex, int outputIndex, boolean video) {
+            this.inputIndex = inputIndex;
+            this.outputIndex = outputIndex;
+            this.video = video;
+            
+            started = false;
+            finished = false;
+            lastDts = AVUtilLibrary.AV_NOPTS_VALUE;
+        }
+        
+        public void init() {
+            Rational itb = mr.getStream(inputIndex).getTimeBase();
+            IStreamWrapper os = mw.getStream(outputIndex);
+            os.clearWrapperCache();
+            Rational otb = os.getTimeBase();
+            
+            toMillis = itb.mul(1000);
+            scale = itb.div(otb);
+            shift = new Rational(startTime, 1000).div(otb).longValue();
+        }
+        
+        @Override
+        public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+            if (finished)
+                return;
+            
+            long pts = packet.getPts();
+            long dts = packet.getDts();
+            long ts = pts == AVUtilLibrary.AV_NOPTS_VALUE ? dts : pts;
+            if (ts != AVUtilLibrary.AV_NOPTS_VALUE) {
+                long time = toMillis.mul(ts).longValue();
+                if (time >= endTime) {
+                    finished = true;
+                    return;
+                } else if (!started && time < startTime)
+                    return;
+            }
+            
+            if (!started) {
+                if (video && (packet.getFlags() & AVCodecLibrary.AV_PKT_FLAG_KEY) == 0)
+                    return;
+                started = true;
+            }
+            
+            int duration = packet.getDuration();
+            int streamIndex = packet.getStreamIndex();
+            long newPts = pts;
+            long newDts = dts;
+            if (newDts != AVUtilLibrary.AV_NOPTS_VALUE) {
+                newDts = scale.mul(newDts).longValue() - shift;
+                if (lastDts != AVUtilLibrary.AV_NOPTS_VALUE && newDts <= lastDts)
+                    newDts = lastDts + 1;
+                lastDts = newDts;
+            }
+            if (newPts != AVUtilLibrary.AV_NOPTS_VALUE) {
+                newPts = scale.mul(newPts).longValue() - shift;
+                if (newDts != AVUtilLibrary.AV_NOPTS_VALUE && newPts < newDts)
+                    newPts = newDts;
+            }
+            
+            // the packet is modified in place to avoid copying its data
+            packet.setPts(newPts);
+            packet.setDts(newDts);
+            packet.setDuration((int)scale.mul(duration).longValue());
+            packet.setStreamIndex(outputIndex);
+            try {
+                mw.processPacket(this, packet);
+            } finally {
+                packet.setPts(pts);
+                packet.setDts(dts);
+                packet.setDuration(duration);
+                packet.setStreamIndex(streamIndex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,710 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.libav.avcodec.CodecID;
+import org.libav.avcodec.EncodingProfile;
+import org.libav.avcodec.ICodecContextWrapper;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.IPacketWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avformat.IStreamWrapper;
+import org.libav.avutil.PixelFormat;
+import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.data.IFrameConsumer;
+import org.libav.data.IFrameProducer;
+import org.libav.data.IPacketConsumer;
+import org.libav.util.Rational;
+import org.libav.video.FrameScaler;
+
+/**
+ * Parallel transcoder. It transcodes the first video stream and the first 
+ * audio stream of the input. The video stream is split into segments at 
+ * keyframes and the segments are transcoded concurrently by independent 
+ * decoders and encoders into temporary files. The audio stream is 
+ * transcoded by a single task running along with the video segments (it is 
+ * cheap and it cannot be split at video keyframes without breaking the 
+ * audio frames at the seams). The temporary files are concatenated into the
+ * output afterwards (without re-encoding). All video segments are encoded 
+ * with global headers and the concatenation fails if the headers of the 
+ * segments differ.
+ * 
+ * @author Ondrej Perutka
+ */
+public class ParallelTranscoder {
+
+    public static final long DEFAULT_SEGMENT_DURATION = 30000;
+    
+    private static final String SEGMENT_FORMAT = "matroska";
+    
+    private final String srcUrl;
+    private final String dstUrl;
+    private final String outputFormatName;
+    
+    private CodecID videoCodecId;
+    private CodecID audioCodecId;
+    private PixelFormat pixelFormat;
+    private EncodingProfile profile;
+    private long segmentDuration;
+    private int threadCount;
+    private File tempDir;
+    
+    /**
+     * Create a new parallel transcoder.
+     * 
+     * @param srcUrl a source URL (it has to be seekable)
+     * @param dstUrl a destination URL
+     * @param outputFormatName a name of the output format (if it is null, 
+     * the format is guessed from the destination URL)
+     */
+    public ParallelTranscoder(String srcUrl, String dstUrl, String outputFormatName) {
+        this.srcUrl = srcUrl;
+        this.dstUrl = dstUrl;
+        this.outputFormatName = outputFormatName;
+        
+        videoCodecId = null;
+        audioCodecId = null;
+        pixelFormat = null;
+        profile = null;
+        segmentDuration = DEFAULT_SEGMENT_DURATION;
+        threadCount = Runtime.getRuntime().availableProcessors();
+        tempDir = null;
+    }
+    
+    /**
+     * Set output video codec. The video stream is dropped if it is null 
+     * (default).
+     * 
+     * @param videoCodecId a codec ID or null
+     */
+    public void setVideoCodec(CodecID videoCodecId) {
+        this.videoCodecId = videoCodecId;
+    }
+    
+    /**
+     * Get output video codec.
+     * 
+     * @return codec ID or null
+     */
+    public CodecID getVideoCodec() {
+        return videoCodecId;
+    }
+    
+    /**
+     * Set output audio codec. The audio stream is dropped if it is null 
+     * (default).
+     * 
+     * @param audioCodecId a codec ID or null
+     */
+    public void setAudioCodec(CodecID audioCodecId) {
+        this.audioCodecId = audioCodecId;
+    }
+    
+    /**
+     * Get output audio codec.
+     * 
+     * @return codec ID or null
+     */
+    public CodecID getAudioCodec() {
+        return audioCodecId;
+    }
+    
+    /**
+     * Set output pixel format. The source pixel format is used if it is null
+     * (default).
+     * 
+     * @param pixelFormat a pixel format or null
+     */
+    public void setPixelFormat(PixelFormat pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+    
+    /**
+     * Get output pixel format.
+     * 
+     * @return pixel format or null
+     */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+    
+    /**
+     * Set encoding profile used by all encoders.
+     * 
+     * @param profile an encoding profile or null
+     */
+    public void setEncodingProfile(EncodingProfile profile) {
+        this.profile = profile;
+    }
+    
+    /**
+     * Get encoding profile.
+     * 
+     * @return encoding profile or null
+     */
+    public EncodingProfile getEncodingProfile() {
+        return profile;
+    }
+    
+    /**
+     * Set minimal duration of video segments. The segments start at the
+     * first keyframe following this duration.
+     * 
+     * @param segmentDuration duration in milliseconds
+     */
+    public void setSegmentDuration(long segmentDuration) {
+        if (segmentDuration <= 0)
+            throw new IllegalArgumentException("segment duration must be greater than 0");
+        
+        this.segmentDuration = segmentDuration;
+    }
+    
+    /**
+     * Get minimal duration of video segments.
+     * 
+     * @return duration in milliseconds
+     */
+    public long getSegmentDuration() {
+        return segmentDuration;
+    }
+    
+    /**
+     * Set number of segments transcoded concurrently. The default value is 
+     * the number of available processors.
+     * 
+     * @param threadCount number of threads
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("thread count must be greater than 0");
+        
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Get number of segments transcoded concurrently.
+     * 
+     * @return number of threads
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+    
+    /**
+     * Set directory for temporary segment files. The default temporary 
+     * directory is used if it is null (default).
+     * 
+     * @param tempDir a directory or null
+     */
+    public void setTempDirectory(File tempDir) {
+        this.tempDir = tempDir;
+    }
+    
+    /**
+     * Get directory for temporary segment files.
+     * 
+     * @return directory or null
+     */
+    public File getTempDirectory() {
+        return tempDir;
+    }
+    
+    /**
+     * Transcode the input. This method blocks until the output is written.
+     * 
+     * @throws LibavException if the transcoding fails
+     */
+    public void transcode() throws LibavException {
+        List<Long> bounds = null;
+        if (videoCodecId != null)
+            bounds = scanSegments();
+        boolean hasAudio = audioCodecId != null && hasAudioStream();
+        
+        List<File> files = new ArrayList<File>();
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+        
+        try {
+            // the audio task is the longest one, so it starts first
+            File audioFile = null;
+            if (hasAudio) {
+                audioFile = createTempFile();
+                files.add(audioFile);
+                futures.add(executor.submit(new AudioTask(audioFile)));
+            }
+            
+            List<File> videoFiles = new ArrayList<File>();
+            if (bounds != null) {
+                for (int i = 0; i < bounds.size(); i++) {
+                    long end = i + 1 < bounds.size() ? bounds.get(i + 1) : Long.MAX_VALUE;
+                    File f = createTempFile();
+                    files.add(f);
+                    videoFiles.add(f);
+                    futures.add(executor.submit(new VideoSegmentTask(f, i == 0 ? Long.MIN_VALUE : bounds.get(i), end)));
+                }
+            }
+            
+            List<Long> offsets = new ArrayList<Long>();
+            for (Future<Long> f : futures)
+                offsets.add(f.get());
+            
+            long audioOffset = hasAudio ? offsets.remove(0) : 0;
+            concat(videoFiles, offsets, audioFile, audioOffset);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while transcoding", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof LibavException)
+                throw (LibavException)ex.getCause();
+            throw new LibavException("segment transcoding failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (File f : files) {
+                if (!f.delete())
+                    f.deleteOnExit();
+            }
+        }
+    }
+    
+    private File createTempFile() throws LibavException {
+        try {
+            return File.createTempFile("jlibav-segment", ".mkv", tempDir);
+        } catch (IOException ex) {
+            throw new LibavException("unable to create a temporary file", ex);
+        }
+    }
+    
+    private boolean hasAudioStream() throws LibavException {
+        IMediaReader mr = new DefaultMediaReader(srcUrl);
+        try {
+            return mr.getAudioStreamCount() > 0;
+        } finally {
+            mr.close();
+        }
+    }
+    
+    private List<Long> scanSegments() throws LibavException {
+        final List<Long> result = new ArrayList<Long>();
+        final IMediaReader mr = new DefaultMediaReader(srcUrl);
+        
+        try {
+            if (mr.getVideoStreamCount() == 0)
+                return null;
+            
+            IStreamWrapper stream = mr.getVideoStream(0);
+            final Rational tb = stream.getTimeBase().mul(1000);
+            
+            // other streams are discarded by the demuxer, so only the video 
+            // packets are read
+            mr.addVideoPacketConsumer(0, new IPacketConsumer() {
+                @Override
+                public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+                    if ((packet.getFlags() & AVCodecLibrary.AV_PKT_FLAG_KEY) == 0)
+                        return;
+                    
+                    long ts = packet.getPts();
+                    if (ts == AVUtilLibrary.AV_NOPTS_VALUE)
+                        ts = packet.getDts();
+                    if (ts == AVUtilLibrary.AV_NOPTS_VALUE)
+                        return;
+                    
+                    ts = tb.mul(ts).longValue();
+                    if (result.isEmpty() || ts >= result.get(result.size() - 1) + segmentDuration)
+                        result.add(ts);
+                }
+            });
+            
+            while (mr.readNextPacket());
+            if (result.isEmpty())
+                result.add(0L);
+        } finally {
+            mr.close();
+        }
+        
+        return result;
+    }
+    
+    private void concat(List<File> videoFiles, List<Long> videoOffsets, File audioFile, long audioOffset) throws LibavException {
+        long origin = Long.MAX_VALUE;
+        if (!videoOffsets.isEmpty())
+            origin = videoOffsets.get(0);
+        if (audioFile != null)
+            origin = Math.min(origin, audioOffset);
+        
+        IMediaWriter mw = new DefaultMediaWriter(dstUrl, outputFormatName);
+        SegmentReader video = null;
+        SegmentReader audio = null;
+        
+        try {
+            if (!videoFiles.isEmpty())
+                video = new SegmentReader(mw, videoFiles, videoOffsets, origin);
+            if (audioFile != null) {
+                List<Long> ao = new ArrayList<Long>();
+                ao.add(audioOffset);
+                audio = new SegmentReader(mw, Collections.singletonList(audioFile), ao, origin);
+            }
+            
+            mw.writeHeader();
+            if (video != null)
+                video.init();
+            if (audio != null)
+                audio.init();
+            
+            // interleave the packets by their decoding time
+            IPacketWrapper vp = video == null ? null : video.next();
+            IPacketWrapper ap = audio == null ? null : audio.next();
+            while (vp != null || ap != null) {
+                if (ap == null || (vp != null && video.getTime() <= audio.getTime())) {
+                    mw.processPacket(this, vp);
+                    vp = video.next();
+                } else {
+                    mw.processPacket(this, ap);
+                    ap = audio.next();
+                }
+            }
+            
+            mw.writeTrailer();
+        } finally {
+            if (video != null)
+                video.close();
+            if (audio != null)
+                audio.close();
+            mw.close();
+        }
+    }
+    
+    /**
+     * Forwards only frames within the given time range and remembers the
+     * timestamp of the first forwarded frame.
+     */
+    private static class RangeFilter implements IFrameConsumer, IFrameProducer {
+        private final long start;
+        private final long end;
+        private IFrameConsumer consumer;
+        private long firstPts;
+        private boolean done;
+        
+        public RangeFilter(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.consumer = null;
+            this.firstPts = -1;
+            this.done = false;
+        }
+        
+        @Override
+        public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+            long pts = frame.getPts();
+            if (pts < start)
+                return;
+            if (pts >= end) {
+                done = true;
+                return;
+            }
+            
+            if (firstPts == -1)
+                firstPts = pts;
+            if (consumer != null)
+                consumer.processFrame(this, frame);
+        }
+        
+        @Override
+        public void addFrameConsumer(IFrameConsumer c) {
+            consumer = c;
+        }
+        
+        @Override
+        public void removeFrameConsumer(IFrameConsumer c) {
+            if (consumer == c)
+                consumer = null;
+        }
+        
+        public boolean isDone() {
+            return done;
+        }
+        
+        public long getFirstPts() {
+            return firstPts;
+        }
+    }
+    
+    private class VideoSegmentTask implements Callable<Long> {
+        private final File file;
+        private final long start;
+        private final long end;
+        
+        public VideoSegmentTask(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        public Long call() throws LibavException {
+            IMediaDecoder md = null;
+            DefaultMediaEncoder me = null;
+            FrameScaler scaler = null;
+            
+            try {
+                md = new DefaultMediaDecoder(srcUrl);
+                IMediaReader mr = md.getMediaReader();
+                if (start != Long.MIN_VALUE)
+                    mr.seek(start);
+                
+                md.setVideoStreamDecodingEnabled(0, true);
+                ICodecContextWrapper cc1 = md.getVideoStreamDecoder(0).getCodecContext();
+                PixelFormat pf = pixelFormat == null ? cc1.getPixelFormat() : pixelFormat;
+                
+                // the segments run concurrently, so single-threaded 
+                // encoders are used
+                me = new DefaultMediaEncoder(file.getPath(), SEGMENT_FORMAT);
+                me.setEncoderThreadCount(1);
+                me.setEncodingProfile(profile);
+                IMediaWriter mw = me.getMediaWriter();
+                int si = mw.addVideoStream(videoCodecId, cc1.getWidth(), cc1.getHeight());
+                IEncoder enc = me.getVideoStreamEncoder(si);
+                ICodecContextWrapper cc2 = enc.getCodecContext();
+                cc2.setPixelFormat(pf);
+                // container time bases (e.g. 1/90000 of MPEG-TS) are too 
+                // fine for some encoders, the frame rate is used instead (the 
+                // writer default is kept if it is not known)
+                Rational frameRate = mr.getVideoStream(0).getAverageFrameRate();
+                if (frameRate.getNumerator() > 0 && frameRate.getDenominator() > 0)
+                    cc2.setTimeBase(frameRate.invert().normalize());
+                // the segment headers must be identical, so they cannot be 
+                // repeated in the packets
+                cc2.setFlags(cc2.getFlags() | AVCodecLibrary.CODEC_FLAG_GLOBAL_HEADER);
+                
+                RangeFilter filter = new RangeFilter(start, end);
+                md.getVideoStreamDecoder(0).addFrameConsumer(filter);
+                if (pf != cc1.getPixelFormat()) {
+                    scaler = new FrameScaler(cc1.getWidth(), cc1.getHeight(), cc1.getPixelFormat(), cc1.getWidth(), cc1.getHeight(), pf);
+                    scaler.addFrameConsumer(enc);
+                    filter.addFrameConsumer(scaler);
+                } else
+                    filter.addFrameConsumer(enc);
+                
+                mw.writeHeader();
+                while (!filter.isDone() && mr.readNextPacket());
+                if (!filter.isDone())
+                    md.flush();
+                me.flush();
+                mw.writeTrailer();
+                
+                if (start != Long.MIN_VALUE && filter.getFirstPts() != start)
+                    Logger.getLogger(ParallelTranscoder.class.getName()).log(Level.WARNING, "segment starting at {0} ms starts at {1} ms", new Object[] { start, filter.getFirstPts() });
+                
+                return filter.getFirstPts();
+            } finally {
+                closeAll(md, me, scaler);
+            }
+        }
+    }
+    
+    private class AudioTask implements Callable<Long> {
+        private final File file;
+        
+        public AudioTask(File file) {
+            this.file = file;
+        }
+        
+        @Override
+        public Long call() throws LibavException {
+            IMediaDecoder md = null;
+            DefaultMediaEncoder me = null;
+            
+            try {
+                md = new DefaultMediaDecoder(srcUrl);
+                IMediaReader mr = md.getMediaReader();
+                md.setAudioStreamDecodingEnabled(0, true);
+                ICodecContextWrapper cc1 = md.getAudioStreamDecoder(0).getCodecContext();
+                
+                me = new DefaultMediaEncoder(file.getPath(), SEGMENT_FORMAT);
+                me.setEncodingProfile(profile);
+                IMediaWriter mw = me.getMediaWriter();
+                int si = mw.addAudioStream(audioCodecId, cc1.getSampleRate(), cc1.getSampleFormat(), cc1.getChannels());
+                
+                RangeFilter filter = new RangeFilter(Long.MIN_VALUE, Long.MAX_VALUE);
+                md.getAudioStreamDecoder(0).addFrameConsumer(filter);
+                filter.addFrameConsumer(me.getAudioStreamEncoder(si));
+                
+                mw.writeHeader();
+                while (mr.readNextPacket());
+                md.flush();
+                me.flush();
+                mw.writeTrailer();
+                
+                return filter.getFirstPts();
+            } finally {
+                closeAll(md, me, null);
+            }
+        }
+    }
+    
+    private static void closeAll(IMediaDecoder md, IMediaEncoder me, FrameScaler scaler) {
+        try {
+            if (md != null)
+                md.close();
+            if (me != null)
+                me.close();
+            if (scaler != null)
+                scaler.dispose();
+        } catch (LibavException ex) {
+            Logger.getLogger(ParallelTranscoder.class.getName()).log(Level.WARNING, "unable to close a segment transcoder", ex);
+        }
+    }
+    
+    /**
+     * Reads packets of the first stream of the given segment files one by
+     * one and maps their timestamps into the time base of the output stream.
+     * The output stream is a copy of the first segment stream, so the other 
+     * segments must have the same extradata.
+     */
+    private static class SegmentReader implements IPacketConsumer {
+        private final IMediaWriter mw;
+        private final List<File> files;
+        private final List<Long> offsets;
+        private final long origin;
+        private final int outputIndex;
+        private final byte[] extradata;
+        
+        private int segment;
+        private IMediaReader mr;
+        private Rational scale;
+        private long shift;
+        private Rational toMillis;
+        
+        private IPacketWrapper packet;
+        private long lastDts;
+        private long time;
+        
+        public SegmentReader(IMediaWriter mw, List<File> files, List<Long> offsets, long origin) throws LibavException {
+            this.mw = mw;
+            this.files = files;
+            this.offsets = offsets;
+            this.origin = origin;
+            
+            segment = 0;
+            mr = new DefaultMediaReader(files.get(0).getPath());
+            outputIndex = mw.addStreamCopy(mr.getStream(0));
+            extradata = mr.getStream(0).getCodecContext().getExtradata();
+            
+            packet = null;
+            lastDts = AVUtilLibrary.AV_NOPTS_VALUE;
+            time = 0;
+        }
+        
+        public void init() throws LibavException {
+            // the output time base is known after the header is written
+            IStreamWrapper os = mw.getStream(outputIndex);
+            os.clearWrapperCache();
+            toMillis = os.getTimeBase().mul(1000);
+            openSegment();
+        }
+        
+        private void openSegment() throws LibavException {
+            if (!Arrays.equals(extradata, mr.getStream(0).getCodecContext().getExtradata()))
+                throw new LibavException("segment " + segment + " has different global headers than the first segment");
+            
+            Rational otb = mw.getStream(outputIndex).getTimeBase();
+            mr.addPacketConsumer(0, this);
+            scale = mr.getStream(0).getTimeBase().div(otb);
+            shift = new Rational(offsets.get(segment) - origin, 1000).div(otb).longValue();
+        }
+        
+        public IPacketWrapper next() throws LibavException {
+            if (packet != null)
+                packet.free();
+            packet = null;
+            
+            while (packet == null) {
+                if (!mr.readNextPacket()) {
+                    if (++segment >= files.size())
+                        return null;
+                    mr.close();
+                    mr = new DefaultMediaReader(files.get(segment).getPath());
+                    openSegment();
+                }
+            }
+            
+            return packet;
+        }
+        
+        public long getTime() {
+            return time;
+        }
+        
+        @Override
+        public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+            IPacketWrapper pw = packet.clone();
+            long dts = pw.getDts();
+            long pts = pw.getPts();
+            
+            if (dts != AVUtilLibrary.AV_NOPTS_VALUE)
+                dts = scale.mul(dts).longValue() + shift;
+            if (pts != AVUtilLibrary.AV_NOPTS_VALUE)
+                pts = scale.mul(pts).longValue() + shift;
+            // timestamps must be monotonic at the seams
+            if (dts != AVUtilLibrary.AV_NOPTS_VALUE && lastDts != AVUtilLibrary.AV_NOPTS_VALUE && dts <= lastDts)
+                dts = lastDts + 1;
+            if (dts != AVUtilLibrary.AV_NOPTS_VALUE && pts != AVUtilLibrary.AV_NOPTS_VALUE && pts < dts)
+                pts = dts;
+            if (dts != AVUtilLibrary.AV_NOPTS_VALUE) {
+                lastDts = dts;
+                time = toMillis.mul(dts).longValue();
+            }
+            
+            pw.setDts(dts);
+            pw.setPts(pts);
+            pw.setDuration((int)scale.mul(pw.getDuration()).longValue());
+            pw.setStreamIndex(outputIndex);
+            this.packet = pw;
+        }
+        
+        public void close() {
+            if (packet != null)
+                packet.free();
+            packet = null;
+            
+            try {
+                mr.close();
+            } catch (LibavException ex) {
+                Logger.getLogger(ParallelTranscoder.class.getName()).log(Level.WARNING, "unable to close a segment reader", ex);
+            }
+        }
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "ParallelTranscoder worker");
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav;
+
+/**
+ * Playback clock driven by the monotonic system timer (System.nanoTime()).
+ * 
+ * @author Ondrej Perutka
+ */
+public class SystemPlaybackClock implements IPlaybackClock {
+
+    private long startTime;
+    private long startNanos;
+    private boolean running;
+    
+    public SystemPlaybackClock() {
+        startTime = 0;
+        startNanos = 0;
+        running = false;
+    }
+    
+    @Override
+    public synchronized void start(long time) {
+        startTime = time;
+        startNanos = System.nanoTime();
+        running = true;
+    }
+    
+    @Override
+    public synchronized void stop() {
+        startTime = getTime();
+        running = false;
+    }
+    
+    @Override
+    public synchronized boolean isRunning() {
+        return running;
+    }
+    
+    @Override
+    public synchronized long getTime() {
+        if (!running)
+            return startTime;
+        
+        return startTime + (System.nanoTime() - startNanos) / 1000000;
+    }
+
+}
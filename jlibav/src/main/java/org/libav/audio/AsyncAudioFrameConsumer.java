@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.libav.LibavException;
+import org.libav.util.Buffer;
+
+/**
+ * Asynchronous audio frame pipeline stage. It queues received audio frames 
+ * and passes them to its consumers from a dedicated thread, so the producer 
+ * and the consumers (e.g. a resampler and an analyzer) may run in parallel.
+ * 
+ * Reference counted frames are retained while they are queued. Other frames
+ * (e.g. views of native memory of a resampler) are copied into frames taken
+ * from an internal audio frame pool, so the copies are recycled instead of 
+ * allocated for every frame. The queue is bounded, so the producer is 
+ * blocked if the consumers are not fast enough.
+ * 
+ * NOTE:
+ * Call the flush() method before flushing the consumers to make sure that 
+ * all queued frames have been processed. Errors thrown by the consumers are 
+ * re-thrown from the next processFrame() or flush() call.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AsyncAudioFrameConsumer implements IAudioFrameConsumer, IAudioFrameProducer {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    
+    private final Set<IAudioFrameConsumer> consumers;
+    private final Buffer<AudioFrame> queue;
+    private final AudioFramePool framePool;
+    private final Object lock;
+    
+    private int pending;
+    private volatile LibavException error;
+    private boolean closed;
+    private Thread worker;
+    
+    /**
+     * Create a new asynchronous stage with the default queue capacity.
+     */
+    public AsyncAudioFrameConsumer() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * Create a new asynchronous stage.
+     * 
+     * @param queueCapacity maximum number of queued frames
+     */
+    public AsyncAudioFrameConsumer(int queueCapacity) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queue capacity must be greater than 0");
+        
+        consumers = Collections.synchronizedSet(new HashSet<IAudioFrameConsumer>());
+        queue = new Buffer<AudioFrame>(queueCapacity);
+        framePool = new AudioFramePool(queueCapacity + 1);
+        lock = new Object();
+        
+        pending = 0;
+        error = null;
+        closed = false;
+        
+        worker = new Thread(new Worker(), "AsyncAudioFrameConsumer worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Get maximum number of queued frames.
+     * 
+     * @return queue capacity
+     */
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+    
+    /**
+     * Get number of frames which are queued or currently processed.
+     * 
+     * @return number of pending frames
+     */
+    public int getPendingFrameCount() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+    
+    @Override
+    public void processFrame(Object producer, AudioFrame frame) throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("the frame stage has been closed");
+            checkError();
+            pending++;
+        }
+        
+        AudioFrame queued = null;
+        try {
+            queued = hold(frame);
+            queue.waitPut(queued);
+        } catch (InterruptedException ex) {
+            queued.release();
+            done();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while waiting for a free queue slot", ex);
+        } catch (RuntimeException ex) {
+            done();
+            throw ex;
+        }
+    }
+    
+    private AudioFrame hold(AudioFrame frame) {
+        if (frame.isReferenceCounted()) {
+            frame.retain();
+            return frame;
+        }
+        
+        return framePool.copy(frame);
+    }
+    
+    private void done() {
+        synchronized (lock) {
+            pending--;
+            lock.notifyAll();
+        }
+    }
+    
+    private void checkError() throws LibavException {
+        if (error == null)
+            return;
+        
+        LibavException ex = error;
+        error = null;
+        throw new LibavException("audio frame consumer error", ex);
+    }
+    
+    /**
+     * Wait until all queued frames are processed.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void flush() throws LibavException {
+        synchronized (lock) {
+            try {
+                while (pending > 0)
+                    lock.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new LibavException("interrupted while flushing the frame queue", ex);
+            }
+            
+            checkError();
+        }
+    }
+    
+    /**
+     * Process all queued frames, stop the worker thread and release all 
+     * associated resources.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void close() throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        
+        try {
+            // nothing can be queued once the stage is closed and all pending
+            // frames are processed, so the null item is the last one
+            synchronized (lock) {
+                while (pending > 0)
+                    lock.wait();
+            }
+            queue.waitPut(null);
+            worker.join();
+        } catch (InterruptedException ex) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while closing the frame stage", ex);
+        } finally {
+            framePool.dispose();
+        }
+        
+        synchronized (lock) {
+            checkError();
+        }
+    }
+    
+    /**
+     * Check whether the stage is closed or not.
+     * 
+     * @return true if it is closed, false otherwise
+     */
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+    
+    private void sendFrame(AudioFrame frame) throws LibavException {
+        synchronized (consumers) {
+            for (IAudioFrameConsumer c : consumers)
+                c.processFrame(this, frame);
+        }
+    }
+
+    @Override
+    public void addAudioFrameConsumer(IAudioFrameConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    @Override
+    public void removeAudioFrameConsumer(IAudioFrameConsumer consumer) {
+        consumers.remove(consumer);
+    }
+    
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            AudioFrame frame;
+            
+            try {
+                while ((frame = queue.waitGet()) != null) {
+                    try {
+                        if (error == null)
+                            sendFrame(frame);
+                    } catch (LibavException ex) {
+                        error = ex;
+                    } catch (RuntimeException ex) {
+                        error = new LibavException("unexpected audio frame consumer error", ex);
+                    } finally {
+                        frame.release();
+                        done();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // the stage is being closed
+            }
+        }
+    }
+
+}
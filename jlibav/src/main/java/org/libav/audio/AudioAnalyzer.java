@@ -0,0 +1,693 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.bridj.Pointer;
+import org.libav.LibavException;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVChannelLayout;
+import org.libav.data.IFrameConsumer;
+
+/**
+ * Single-pass audio analyzer. It computes the EBU R128 (ITU-R BS.1770) 
+ * integrated, short-term and momentary loudness, true peak, sample peak and 
+ * RMS of the consumed audio frames and builds a multi-resolution min/max 
+ * waveform summary. All values are computed incrementally, so the analyzer 
+ * can be attached next to an encoder.
+ * 
+ * All sample formats (planar or interleaved) are supported. Loudness values 
+ * are in LUFS, peaks and RMS in dBFS (dBTP for the true peak). Negative 
+ * infinity is returned if there is nothing to measure.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AudioAnalyzer implements IFrameConsumer {
+
+    public static final int DEFAULT_SAMPLES_PER_BIN = 256;
+    public static final int DEFAULT_WAVEFORM_LEVELS = 8;
+    
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    private static final int BLOCK_LENGTH = 4;          // in 100 ms sub-blocks
+    private static final int SHORT_TERM_LENGTH = 30;    // in 100 ms sub-blocks
+    
+    private static final double HISTOGRAM_STEP = 0.1;
+    private static final int HISTOGRAM_SIZE = 1000;
+    
+    private static final int OVERSAMPLING = 4;
+    private static final int TAPS_PER_PHASE = 12;
+    private static final double[][] interpolator;
+    
+    static {
+        // windowed-sinc polyphase interpolator, phase 0 is the original 
+        // sample
+        interpolator = new double[OVERSAMPLING][TAPS_PER_PHASE];
+        double half = TAPS_PER_PHASE / 2;
+        for (int p = 0; p < OVERSAMPLING; p++) {
+            double sum = 0;
+            for (int j = 0; j < TAPS_PER_PHASE; j++) {
+                double t = j - half + (double)p / OVERSAMPLING;
+                double sinc = t == 0 ? 1 : Math.sin(Math.PI * t) / (Math.PI * t);
+                double window = 0.5 * (1 + Math.cos(Math.PI * t / half));
+                interpolator[p][j] = sinc * window;
+                sum += interpolator[p][j];
+            }
+            for (int j = 0; j < TAPS_PER_PHASE; j++)
+                interpolator[p][j] /= sum;
+        }
+    }
+    
+    private final int channelCount;
+    private final int sampleRate;
+    private final SampleFormat sampleFormat;
+    private final int bytesPerSample;
+    private final double[] channelWeights;
+    
+    private final double[] filter;
+    private final double[][] filterState;
+    
+    private final int subBlockSize;
+    private int subBlockPosition;
+    private double subBlockEnergy;
+    private final double[] subBlocks;
+    private long subBlockCount;
+    private double maxMomentary;
+    private double maxShortTerm;
+    
+    private final double[] histogramEnergy;
+    private final long[] histogramCount;
+    
+    private final double[][] peakHistory;
+    private int peakHistoryPosition;
+    private final double[] truePeak;
+    private final double[] samplePeak;
+    private final double[] sumSquares;
+    private long sampleCount;
+    
+    private final int samplesPerBin;
+    private final WaveformLevel[] waveform;
+    private int binPosition;
+    private float binMin;
+    private float binMax;
+    
+    private float[][] samples;
+    private double[] energy;
+    private float[] frameMin;
+    private float[] frameMax;
+    
+    /**
+     * Create a new audio analyzer using the default waveform resolution.
+     * 
+     * @param channelLayout a channel layout of the input frames
+     * @param sampleRate a sample rate of the input frames
+     * @param sampleFormat a sample format of the input frames
+     */
+    public AudioAnalyzer(long channelLayout, int sampleRate, SampleFormat sampleFormat) {
+        this(channelLayout, sampleRate, sampleFormat, DEFAULT_SAMPLES_PER_BIN, DEFAULT_WAVEFORM_LEVELS);
+    }
+    
+    /**
+     * Create a new audio analyzer.
+     * 
+     * @param channelLayout a channel layout of the input frames
+     * @param sampleRate a sample rate of the input frames
+     * @param sampleFormat a sample format of the input frames
+     * @param samplesPerBin number of samples per bin at the finest waveform 
+     * level
+     * @param waveformLevels number of waveform levels (each level has half 
+     * resolution of the previous one)
+     */
+    public AudioAnalyzer(long channelLayout, int sampleRate, SampleFormat sampleFormat, int samplesPerBin, int waveformLevels) {
+        this.channelCount = AVChannelLayout.getChannelCount(channelLayout);
+        this.sampleRate = sampleRate;
+        this.sampleFormat = sampleFormat;
+        this.bytesPerSample = sampleFormat.getBytesPerSample();
+        this.channelWeights = getChannelWeights(channelLayout, channelCount);
+        
+        filter = getKWeightingFilter(sampleRate);
+        filterState = new double[channelCount][4];
+        
+        subBlockSize = Math.max(1, Math.round(sampleRate / 10f));
+        subBlocks = new double[SHORT_TERM_LENGTH];
+        
+        histogramEnergy = new double[HISTOGRAM_SIZE];
+        histogramCount = new long[HISTOGRAM_SIZE];
+        
+        peakHistory = new double[channelCount][2 * TAPS_PER_PHASE];
+        truePeak = new double[channelCount];
+        samplePeak = new double[channelCount];
+        sumSquares = new double[channelCount];
+        
+        this.samplesPerBin = samplesPerBin;
+        waveform = new WaveformLevel[waveformLevels];
+        for (int i = 0; i < waveformLevels; i++)
+            waveform[i] = new WaveformLevel();
+        
+        samples = new float[channelCount][0];
+        energy = new double[0];
+        frameMin = new float[0];
+        frameMax = new float[0];
+        
+        reset();
+    }
+    
+    /**
+     * Drop all measured values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < channelCount; i++) {
+            Arrays.fill(filterState[i], 0);
+            Arrays.fill(peakHistory[i], 0);
+        }
+        
+        subBlockPosition = 0;
+        subBlockEnergy = 0;
+        subBlockCount = 0;
+        maxMomentary = 0;
+        maxShortTerm = 0;
+        
+        Arrays.fill(histogramEnergy, 0);
+        Arrays.fill(histogramCount, 0);
+        
+        peakHistoryPosition = 0;
+        Arrays.fill(truePeak, 0);
+        Arrays.fill(samplePeak, 0);
+        Arrays.fill(sumSquares, 0);
+        sampleCount = 0;
+        
+        for (WaveformLevel wl : waveform)
+            wl.clear();
+        binPosition = 0;
+        binMin = Float.MAX_VALUE;
+        binMax = -Float.MAX_VALUE;
+    }
+    
+    @Override
+    public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        int lineSize = frame.getLineSize().get(0);
+        int count = lineSize / bytesPerSample;
+        if (count == 0)
+            return;
+        
+        ByteBuffer[] buffers;
+        if (sampleFormat.isPlanar()) {
+            Pointer<Pointer<Byte>> data = frame.getExtendedData();
+            buffers = new ByteBuffer[channelCount];
+            for (int i = 0; i < channelCount; i++)
+                buffers[i] = data.get(i).getByteBuffer(lineSize);
+        } else {
+            buffers = new ByteBuffer[] { frame.getData().get(0).getByteBuffer(lineSize) };
+            count /= channelCount;
+        }
+        
+        processSamples(buffers, count);
+    }
+    
+    /**
+     * Analyze the given samples. Planar samples are passed as one buffer 
+     * for each channel, interleaved samples as a single buffer.
+     * 
+     * @param buffers sample buffers
+     * @param count number of samples per channel
+     */
+    synchronized void processSamples(ByteBuffer[] buffers, int count) {
+        if (energy.length < count) {
+            samples = new float[channelCount][count];
+            energy = new double[count];
+            frameMin = new float[count];
+            frameMax = new float[count];
+        }
+        
+        ByteBuffer bb;
+        for (int i = 0; i < channelCount; i++) {
+            if (sampleFormat.isPlanar())
+                bb = buffers[i];
+            else
+                bb = buffers[0];
+            bb.order(ByteOrder.nativeOrder());
+            
+            if (sampleFormat.isPlanar())
+                decode(bb, 0, 1, samples[i], count);
+            else
+                decode(bb, i, channelCount, samples[i], count);
+        }
+        
+        analyze(count);
+    }
+    
+    private void decode(ByteBuffer bb, int first, int stride, float[] dst, int count) {
+        int index = first;
+        switch (sampleFormat) {
+            case U8:
+            case U8P:
+                for (int i = 0; i < count; i++, index += stride)
+                    dst[i] = ((bb.get(index) & 0xff) - 128) / 128f;
+                break;
+            case S16:
+            case S16P:
+                for (int i = 0; i < count; i++, index += stride)
+                    dst[i] = bb.getShort(index << 1) / 32768f;
+                break;
+            case S32:
+            case S32P:
+                for (int i = 0; i < count; i++, index += stride)
+                    dst[i] = bb.getInt(index << 2) / 2147483648f;
+                break;
+            case FLT:
+            case FLTP:
+                for (int i = 0; i < count; i++, index += stride)
+                    dst[i] = bb.getFloat(index << 2);
+                break;
+            case DBL:
+            case DBLP:
+                for (int i = 0; i < count; i++, index += stride)
+                    dst[i] = (float)bb.getDouble(index << 3);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported sample format: " + sampleFormat);
+        }
+    }
+    
+    private void analyze(int count) {
+        Arrays.fill(energy, 0, count, 0);
+        Arrays.fill(frameMin, 0, count, Float.MAX_VALUE);
+        Arrays.fill(frameMax, 0, count, -Float.MAX_VALUE);
+        
+        for (int c = 0; c < channelCount; c++)
+            analyzeChannel(c, samples[c], count);
+        peakHistoryPosition = (peakHistoryPosition + count) % TAPS_PER_PHASE;
+        sampleCount += count;
+        
+        for (int i = 0; i < count; i++) {
+            subBlockEnergy += energy[i];
+            if (++subBlockPosition == subBlockSize)
+                endSubBlock();
+            
+            binMin = Math.min(binMin, frameMin[i]);
+            binMax = Math.max(binMax, frameMax[i]);
+            if (++binPosition == samplesPerBin) {
+                addBin(0, toShort(binMin), toShort(binMax));
+                binPosition = 0;
+                binMin = Float.MAX_VALUE;
+                binMax = -Float.MAX_VALUE;
+            }
+        }
+    }
+    
+    private void analyzeChannel(int channel, float[] x, int count) {
+        double[] state = filterState[channel];
+        double[] history = peakHistory[channel];
+        double w = channelWeights[channel];
+        double s1 = state[0], s2 = state[1], s3 = state[2], s4 = state[3];
+        double sPeak = samplePeak[channel];
+        double tPeak = truePeak[channel];
+        double squares = 0;
+        int hp = peakHistoryPosition;
+        double v, y, abs;
+        
+        for (int i = 0; i < count; i++) {
+            v = x[i];
+            squares += v * v;
+            abs = Math.abs(v);
+            if (abs > sPeak)
+                sPeak = abs;
+            frameMin[i] = Math.min(frameMin[i], x[i]);
+            frameMax[i] = Math.max(frameMax[i], x[i]);
+            
+            // true peak (the history is stored twice to avoid wrapping)
+            history[hp] = v;
+            history[hp + TAPS_PER_PHASE] = v;
+            hp = (hp + 1) % TAPS_PER_PHASE;
+            for (int p = 1; p < OVERSAMPLING; p++) {
+                double[] c = interpolator[p];
+                y = 0;
+                for (int j = 0; j < TAPS_PER_PHASE; j++)
+                    y += c[j] * history[hp + j];
+                abs = Math.abs(y);
+                if (abs > tPeak)
+                    tPeak = abs;
+            }
+            
+            // K-weighting (two biquads, transposed direct form II)
+            y = filter[0] * v + s1;
+            s1 = filter[1] * v - filter[3] * y + s2;
+            s2 = filter[2] * v - filter[4] * y;
+            v = y;
+            y = filter[5] * v + s3;
+            s3 = filter[6] * v - filter[8] * y + s4;
+            s4 = filter[7] * v - filter[9] * y;
+            
+            energy[i] += w * y * y;
+        }
+        
+        state[0] = s1;
+        state[1] = s2;
+        state[2] = s3;
+        state[3] = s4;
+        samplePeak[channel] = sPeak;
+        truePeak[channel] = Math.max(tPeak, sPeak);
+        sumSquares[channel] += squares;
+    }
+    
+    private void endSubBlock() {
+        subBlocks[(int)(subBlockCount % SHORT_TERM_LENGTH)] = subBlockEnergy / subBlockSize;
+        subBlockCount++;
+        subBlockEnergy = 0;
+        subBlockPosition = 0;
+        
+        if (subBlockCount >= BLOCK_LENGTH) {
+            double block = getMeanEnergy(BLOCK_LENGTH);
+            maxMomentary = Math.max(maxMomentary, block);
+            
+            double loudness = toLoudness(block);
+            if (loudness >= ABSOLUTE_GATE) {
+                int bin = Math.min(HISTOGRAM_SIZE - 1, (int)((loudness - ABSOLUTE_GATE) / HISTOGRAM_STEP));
+                histogramEnergy[bin] += block;
+                histogramCount[bin]++;
+            }
+        }
+        
+        if (subBlockCount >= SHORT_TERM_LENGTH)
+            maxShortTerm = Math.max(maxShortTerm, getMeanEnergy(SHORT_TERM_LENGTH));
+    }
+    
+    private double getMeanEnergy(int length) {
+        length = (int)Math.min(length, subBlockCount);
+        if (length == 0)
+            return 0;
+        
+        double sum = 0;
+        for (int i = 1; i <= length; i++)
+            sum += subBlocks[(int)((subBlockCount - i) % SHORT_TERM_LENGTH)];
+        
+        return sum / length;
+    }
+    
+    private void addBin(int level, short min, short max) {
+        WaveformLevel wl = waveform[level];
+        wl.add(min, max);
+        if (level + 1 < waveform.length && (wl.size & 1) == 0) {
+            int i = 2 * wl.size - 4;
+            addBin(level + 1, (short)Math.min(wl.data[i], wl.data[i + 2]), (short)Math.max(wl.data[i + 1], wl.data[i + 3]));
+        }
+    }
+    
+    /**
+     * Get the integrated (gated) loudness of all the analyzed audio.
+     * 
+     * @return integrated loudness in LUFS
+     */
+    public synchronized double getIntegratedLoudness() {
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            sum += histogramEnergy[i];
+            count += histogramCount[i];
+        }
+        if (count == 0)
+            return Double.NEGATIVE_INFINITY;
+        
+        double threshold = toLoudness(sum / count) + RELATIVE_GATE;
+        int first = (int)Math.ceil((threshold - ABSOLUTE_GATE) / HISTOGRAM_STEP);
+        sum = 0;
+        count = 0;
+        for (int i = Math.max(0, first); i < HISTOGRAM_SIZE; i++) {
+            sum += histogramEnergy[i];
+            count += histogramCount[i];
+        }
+        
+        return count == 0 ? Double.NEGATIVE_INFINITY : toLoudness(sum / count);
+    }
+    
+    /**
+     * Get the momentary loudness (the last 400 ms).
+     * 
+     * @return momentary loudness in LUFS
+     */
+    public synchronized double getMomentaryLoudness() {
+        return toLoudness(getMeanEnergy(BLOCK_LENGTH));
+    }
+    
+    /**
+     * Get the maximum momentary loudness.
+     * 
+     * @return maximum momentary loudness in LUFS
+     */
+    public synchronized double getMaxMomentaryLoudness() {
+        return toLoudness(maxMomentary);
+    }
+    
+    /**
+     * Get the short-term loudness (the last 3 s).
+     * 
+     * @return short-term loudness in LUFS
+     */
+    public synchronized double getShortTermLoudness() {
+        return toLoudness(getMeanEnergy(SHORT_TERM_LENGTH));
+    }
+    
+    /**
+     * Get the maximum short-term loudness.
+     * 
+     * @return maximum short-term loudness in LUFS
+     */
+    public synchronized double getMaxShortTermLoudness() {
+        return toLoudness(maxShortTerm);
+    }
+    
+    /**
+     * Get the true peak of the given channel (using 4x oversampling).
+     * 
+     * @param channel a channel index
+     * @return true peak in dBTP
+     */
+    public synchronized double getTruePeak(int channel) {
+        return toDecibels(truePeak[channel]);
+    }
+    
+    /**
+     * Get the true peak of all channels (using 4x oversampling).
+     * 
+     * @return true peak in dBTP
+     */
+    public synchronized double getTruePeak() {
+        return toDecibels(max(truePeak));
+    }
+    
+    /**
+     * Get the sample peak of the given channel.
+     * 
+     * @param channel a channel index
+     * @return sample peak in dBFS
+     */
+    public synchronized double getSamplePeak(int channel) {
+        return toDecibels(samplePeak[channel]);
+    }
+    
+    /**
+     * Get the sample peak of all channels.
+     * 
+     * @return sample peak in dBFS
+     */
+    public synchronized double getSamplePeak() {
+        return toDecibels(max(samplePeak));
+    }
+    
+    /**
+     * Get RMS of the given channel.
+     * 
+     * @param channel a channel index
+     * @return RMS in dBFS
+     */
+    public synchronized double getRms(int channel) {
+        if (sampleCount == 0)
+            return Double.NEGATIVE_INFINITY;
+        
+        return toDecibels(Math.sqrt(sumSquares[channel] / sampleCount));
+    }
+    
+    /**
+     * Get RMS of all channels.
+     * 
+     * @return RMS in dBFS
+     */
+    public synchronized double getRms() {
+        if (sampleCount == 0)
+            return Double.NEGATIVE_INFINITY;
+        
+        double sum = 0;
+        for (int i = 0; i < channelCount; i++)
+            sum += sumSquares[i];
+        
+        return toDecibels(Math.sqrt(sum / (sampleCount * channelCount)));
+    }
+    
+    /**
+     * Get number of analyzed samples (per channel).
+     * 
+     * @return number of samples
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+    
+    /**
+     * Get duration of the analyzed audio.
+     * 
+     * @return duration in milliseconds
+     */
+    public synchronized long getDuration() {
+        return sampleCount * 1000 / sampleRate;
+    }
+    
+    /**
+     * Write the waveform summary of the analyzed audio into the given file. 
+     * Samples which do not fill a whole bin are not included. Use the
+     * WaveformSummary class to read the file.
+     * 
+     * @param file a file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void writeWaveform(File file) throws IOException {
+        short[][] levels = new short[waveform.length][];
+        int[] binCounts = new int[waveform.length];
+        for (int i = 0; i < waveform.length; i++) {
+            levels[i] = waveform[i].data;
+            binCounts[i] = waveform[i].size;
+        }
+        
+        WaveformSummary.write(file, sampleRate, samplesPerBin, levels, binCounts);
+    }
+    
+    private static double max(double[] values) {
+        double result = 0;
+        for (double v : values)
+            result = Math.max(result, v);
+        
+        return result;
+    }
+    
+    private static double toLoudness(double energy) {
+        if (energy <= 0)
+            return Double.NEGATIVE_INFINITY;
+        
+        return -0.691 + 10 * Math.log10(energy);
+    }
+    
+    private static double toDecibels(double value) {
+        if (value <= 0)
+            return Double.NEGATIVE_INFINITY;
+        
+        return 20 * Math.log10(value);
+    }
+    
+    private static short toShort(float value) {
+        return (short)Math.max(-32767, Math.min(32767, Math.round(value * 32767)));
+    }
+    
+    /**
+     * Get weights of the channels of the given layout as defined by the ITU-R
+     * BS.1770 (LFE channels are ignored, surround channels are boosted).
+     */
+    private static double[] getChannelWeights(long channelLayout, int channelCount) {
+        double[] result = new double[channelCount];
+        Arrays.fill(result, 1);
+        
+        long surround = AVChannelLayout.AV_CH_SIDE_LEFT | AVChannelLayout.AV_CH_SIDE_RIGHT 
+                | AVChannelLayout.AV_CH_BACK_LEFT | AVChannelLayout.AV_CH_BACK_RIGHT;
+        long lfe = AVChannelLayout.AV_CH_LOW_FREQUENCY | AVChannelLayout.AV_CH_LOW_FREQUENCY_2;
+        
+        long mask;
+        int channel = 0;
+        for (int i = 0; i < 63 && channel < channelCount; i++) {
+            mask = 1L << i;
+            if ((channelLayout & mask) == 0)
+                continue;
+            if ((lfe & mask) != 0)
+                result[channel] = 0;
+            else if ((surround & mask) != 0)
+                result[channel] = 1.41;
+            channel++;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get coefficients of the K-weighting filter (pre-filter and RLB filter)
+     * for the given sample rate: b0, b1, b2, a1, a2 of both stages.
+     */
+    private static double[] getKWeightingFilter(int sampleRate) {
+        double[] result = new double[10];
+        
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        result[0] = (vh + vb * k / q + k * k) / a0;
+        result[1] = 2 * (k * k - vh) / a0;
+        result[2] = (vh - vb * k / q + k * k) / a0;
+        result[3] = 2 * (k * k - 1) / a0;
+        result[4] = (1 - k / q + k * k) / a0;
+        
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1 + k / q + k * k;
+        result[5] = 1;
+        result[6] = -2;
+        result[7] = 1;
+        result[8] = 2 * (k * k - 1) / a0;
+        result[9] = (1 - k / q + k * k) / a0;
+        
+        return result;
+    }
+    
+    private static class WaveformLevel {
+        private short[] data;
+        private int size;
+        
+        public WaveformLevel() {
+            data = new short[256];
+            size = 0;
+        }
+        
+        public void add(short min, short max) {
+            if (2 * size + 2 > data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            
+            data[2 * size] = min;
+            data[2 * size + 1] = max;
+            size++;
+        }
+        
+        public void clear() {
+            size = 0;
+        }
+    }
+
+}
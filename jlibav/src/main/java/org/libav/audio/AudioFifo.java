@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import org.bridj.Pointer;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.bridge.LibraryManager;
+
+/**
+ * FIFO for audio samples stored in native memory. It works with planar as 
+ * well as interleaved sample formats (all channels of an interleaved format
+ * are stored in one plane).
+ * 
+ * The FIFO is lock-free for one producer thread (calling the write methods) 
+ * and one consumer thread (calling the read methods). The read and write 
+ * positions are published using volatile fields. Methods changing the 
+ * capacity or resetting the FIFO must not be called concurrently with any 
+ * other method.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AudioFifo {
+
+    private static final AVUtilLibrary utilLib = LibraryManager.getInstance().getAVUtilLibrary();
+    
+    private final SampleFormat sampleFormat;
+    private final int channelCount;
+    private final int planeCount;
+    private final int sampleSize;
+    
+    private Pointer<Byte> buffer;
+    private int sampleCapacity;
+    
+    private volatile long readPosition;
+    private volatile long writePosition;
+    
+    /**
+     * Create a new audio FIFO.
+     * 
+     * @param sampleFormat a sample format
+     * @param channelCount number of channels
+     * @param sampleCapacity maximum number of samples (per channel) stored in
+     * the FIFO
+     */
+    public AudioFifo(SampleFormat sampleFormat, int channelCount, int sampleCapacity) {
+        this.sampleFormat = sampleFormat;
+        this.channelCount = channelCount;
+        
+        planeCount = sampleFormat.isPlanar() ? channelCount : 1;
+        int size = sampleFormat.getBytesPerSample();
+        if (!sampleFormat.isPlanar())
+            size *= channelCount;
+        sampleSize = size;
+        
+        buffer = null;
+        this.sampleCapacity = 0;
+        readPosition = 0;
+        writePosition = 0;
+        
+        realloc(sampleCapacity);
+    }
+    
+    /**
+     * Get sample format.
+     * 
+     * @return sample format
+     */
+    public SampleFormat getSampleFormat() {
+        return sampleFormat;
+    }
+    
+    /**
+     * Get number of channels.
+     * 
+     * @return number of channels
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+    
+    /**
+     * Get number of planes.
+     * 
+     * @return number of planes
+     */
+    public int getPlaneCount() {
+        return planeCount;
+    }
+    
+    /**
+     * Get maximum number of samples the FIFO can hold.
+     * 
+     * @return sample capacity
+     */
+    public int getSampleCapacity() {
+        return sampleCapacity;
+    }
+    
+    /**
+     * Get number of samples available for reading.
+     * 
+     * @return number of samples
+     */
+    public int getSampleCount() {
+        return (int)(writePosition - readPosition);
+    }
+    
+    /**
+     * Get number of samples which can be written without overwriting unread 
+     * data.
+     * 
+     * @return free space in samples
+     */
+    public int getFreeSpace() {
+        return sampleCapacity - getSampleCount();
+    }
+    
+    /**
+     * Change capacity of the FIFO. Samples stored in the FIFO are preserved.
+     * If the new capacity is less than the current number of samples, the 
+     * newest samples are dropped. Zero capacity releases the buffer.
+     * 
+     * This method is not thread-safe.
+     * 
+     * @param sampleCapacity new capacity
+     */
+    public void realloc(int sampleCapacity) {
+        if (sampleCapacity < 0)
+            throw new IllegalArgumentException("capacity cannot be negative");
+        if (sampleCapacity == this.sampleCapacity)
+            return;
+        if (sampleCapacity == 0) {
+            free();
+            return;
+        }
+        
+        int size = sampleCapacity * sampleSize * planeCount;
+        Pointer<Byte> tmp = utilLib.av_malloc(size + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE).as(Byte.class);
+        if (tmp == null)
+            throw new OutOfMemoryError("not enough memory for the audio FIFO");
+        
+        int count = Math.min(getSampleCount(), sampleCapacity);
+        if (buffer != null) {
+            for (int i = 0; i < planeCount; i++)
+                copyFrom(readPosition, tmp.offset(i * sampleCapacity * sampleSize), i, count);
+            utilLib.av_free(buffer);
+        }
+        
+        buffer = tmp;
+        this.sampleCapacity = sampleCapacity;
+        readPosition = 0;
+        writePosition = count;
+    }
+    
+    /**
+     * Make sure the FIFO can hold at least the given number of samples. 
+     * 
+     * This method is not thread-safe.
+     * 
+     * @param sampleCount number of samples
+     */
+    public void ensureCapacity(int sampleCount) {
+        if (sampleCount > sampleCapacity)
+            realloc(Math.max(sampleCount, sampleCapacity + sampleCapacity / 2));
+    }
+    
+    /**
+     * Write samples into the FIFO. Only the samples which fit into the free 
+     * space are written.
+     * 
+     * @param planes source planes (one plane for interleaved formats)
+     * @param offset offset of the first sample in the source planes
+     * @param sampleCount number of samples
+     * @return number of samples written
+     */
+    public int write(Pointer<Pointer<Byte>> planes, int offset, int sampleCount) {
+        long wp = writePosition;
+        sampleCount = Math.min(sampleCount, sampleCapacity - (int)(wp - readPosition));
+        if (sampleCount <= 0)
+            return 0;
+        
+        int index = (int)(wp % sampleCapacity);
+        int len1 = Math.min(sampleCount, sampleCapacity - index);
+        int len2 = sampleCount - len1;
+        Pointer<Byte> src, dst;
+        
+        for (int i = 0; i < planeCount; i++) {
+            src = planes.get(i).offset(offset * sampleSize);
+            dst = buffer.offset(i * sampleCapacity * sampleSize);
+            src.copyTo(dst.offset(index * sampleSize), len1 * sampleSize);
+            if (len2 > 0)
+                src.offset(len1 * sampleSize).copyTo(dst, len2 * sampleSize);
+        }
+        
+        writePosition = wp + sampleCount;
+        
+        return sampleCount;
+    }
+    
+    /**
+     * Write silence into the FIFO. Only the samples which fit into the free 
+     * space are written.
+     * 
+     * @param sampleCount number of samples
+     * @return number of samples written
+     */
+    public int writeSilence(int sampleCount) {
+        long wp = writePosition;
+        sampleCount = Math.min(sampleCount, sampleCapacity - (int)(wp - readPosition));
+        if (sampleCount <= 0)
+            return 0;
+        
+        // unsigned 8-bit samples are centered around 0x80
+        byte silence = sampleFormat == SampleFormat.U8 || sampleFormat == SampleFormat.U8P ? (byte)0x80 : 0;
+        int index = (int)(wp % sampleCapacity);
+        int len1 = Math.min(sampleCount, sampleCapacity - index);
+        int len2 = sampleCount - len1;
+        Pointer<Byte> dst;
+        
+        for (int i = 0; i < planeCount; i++) {
+            dst = buffer.offset(i * sampleCapacity * sampleSize);
+            dst.clearBytesAtOffset(index * sampleSize, len1 * sampleSize, silence);
+            if (len2 > 0)
+                dst.clearBytesAtOffset(0, len2 * sampleSize, silence);
+        }
+        
+        writePosition = wp + sampleCount;
+        
+        return sampleCount;
+    }
+    
+    /**
+     * Read samples from the FIFO.
+     * 
+     * @param planes destination planes (one plane for interleaved formats)
+     * @param offset offset of the first sample in the destination planes
+     * @param sampleCount maximum number of samples to read
+     * @return number of samples read
+     */
+    public int read(Pointer<Pointer<Byte>> planes, int offset, int sampleCount) {
+        long rp = readPosition;
+        sampleCount = Math.min(sampleCount, (int)(writePosition - rp));
+        if (sampleCount <= 0)
+            return 0;
+        
+        for (int i = 0; i < planeCount; i++)
+            copyFrom(rp, planes.get(i).offset(offset * sampleSize), i, sampleCount);
+        
+        readPosition = rp + sampleCount;
+        
+        return sampleCount;
+    }
+    
+    /**
+     * Drop samples from the begining of the FIFO.
+     * 
+     * @param sampleCount maximum number of samples to drop
+     * @return number of samples dropped
+     */
+    public int skip(int sampleCount) {
+        long rp = readPosition;
+        sampleCount = Math.min(sampleCount, (int)(writePosition - rp));
+        if (sampleCount <= 0)
+            return 0;
+        
+        readPosition = rp + sampleCount;
+        
+        return sampleCount;
+    }
+    
+    /**
+     * Drop all samples. 
+     * 
+     * This method is not thread-safe.
+     */
+    public void reset() {
+        readPosition = 0;
+        writePosition = 0;
+    }
+    
+    private void copyFrom(long position, Pointer<Byte> dst, int plane, int sampleCount) {
+        Pointer<Byte> src = buffer.offset(plane * sampleCapacity * sampleSize);
+        int index = (int)(position % sampleCapacity);
+        int len1 = Math.min(sampleCount, sampleCapacity - index);
+        int len2 = sampleCount - len1;
+        
+        src.offset(index * sampleSize).copyTo(dst, len1 * sampleSize);
+        if (len2 > 0)
+            src.copyTo(dst.offset(len1 * sampleSize), len2 * sampleSize);
+    }
+    
+    /**
+     * Release all native resources.
+     */
+    public void free() {
+        if (buffer == null)
+            return;
+        
+        utilLib.av_free(buffer);
+        
+        buffer = null;
+        sampleCapacity = 0;
+        readPosition = 0;
+        writePosition = 0;
+    }
+
+}
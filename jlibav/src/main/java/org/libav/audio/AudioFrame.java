@@ -17,11 +17,20 @@
  */
 package org.libav.audio;
 
+import java.nio.ByteBuffer;
 import org.libav.avutil.SampleFormat;
 
 /**
  * Audio frame. Holds an array of audio samples and its size in bytes.
  * 
+ * The samples may be also stored in a direct byte buffer (e.g. a view of
+ * native memory of a decoder or a resampler). Such frames are valid only 
+ * until the processFrame() method of the consumer returns. Frames taken from 
+ * an audio frame pool are reference counted. A consumer which needs to hold 
+ * a frame after the processFrame() method returns must either retain a 
+ * reference counted frame (and release it later) or copy it (see the 
+ * AudioFramePool.copy() method and the AsyncAudioFrameConsumer).
+ * 
  * NOTE:
  * The audio frame may contain more samples than the number of channels.
  * 
@@ -30,10 +39,14 @@ import org.libav.avutil.SampleFormat;
 public class AudioFrame {
     
     private byte[] samples;
+    private ByteBuffer buffer;
     private int frameSize;
     private int channelCount;
     private SampleFormat sampleFormat;
     private int sampleRate;
+    
+    private AudioFramePool pool;
+    private int refCount;
 
     /**
      * Create a new audio frame and set the array of audio samples. The size
@@ -60,20 +73,123 @@ public class AudioFrame {
      */
     public AudioFrame(byte[] samples, int frameSize, int channelCount, SampleFormat sampleFormat, int sampleRate) {
         this.samples = samples;
+        this.buffer = null;
+        this.frameSize = frameSize;
+        this.channelCount = channelCount;
+        this.sampleFormat = sampleFormat;
+        this.sampleRate = sampleRate;
+        
+        pool = null;
+        refCount = 0;
+    }
+    
+    /**
+     * Create a new audio frame backed by the given byte buffer. The samples 
+     * are not copied. The frame size must not be greater than the buffer 
+     * capacity.
+     * 
+     * @param buffer a buffer containing audio samples (starting at index 0)
+     * @param frameSize a frame size
+     * @param channelCount number of audio channels
+     * @param sampleFormat a sample format
+     * @param sampleRate sample rate
+     */
+    public AudioFrame(ByteBuffer buffer, int frameSize, int channelCount, SampleFormat sampleFormat, int sampleRate) {
+        this((byte[])null, frameSize, channelCount, sampleFormat, sampleRate);
+        
+        if (frameSize > buffer.capacity())
+            throw new IllegalArgumentException("frame size is greater than the buffer capacity");
+        
+        this.buffer = buffer;
+    }
+    
+    AudioFrame(AudioFramePool pool, ByteBuffer buffer) {
+        this(buffer, 0, 0, null, 0);
+        
+        this.pool = pool;
+    }
+    
+    void set(ByteBuffer buffer, int frameSize, int channelCount, SampleFormat sampleFormat, int sampleRate) {
+        this.samples = null;
+        this.buffer = buffer;
         this.frameSize = frameSize;
         this.channelCount = channelCount;
         this.sampleFormat = sampleFormat;
         this.sampleRate = sampleRate;
     }
 
+    ByteBuffer getInternalBuffer() {
+        return buffer;
+    }
+
     /**
-     * Get audio samples.
+     * Get audio samples. If the frame is backed by a byte buffer, the 
+     * samples are copied into a new array. Use the getSamples(int, byte[], 
+     * int, int) or the getBuffer() method to avoid the copy.
      * 
      * @return audio samples
      */
     public byte[] getSamples() {
+        if (samples == null) {
+            byte[] result = new byte[frameSize];
+            getSamples(0, result, 0, frameSize);
+            if (pool == null)
+                samples = result;
+            return result;
+        }
+        
         return samples;
     }
+    
+    /**
+     * Copy the given range of samples into the given array using a single 
+     * bulk copy.
+     * 
+     * @param offset offset of the first byte in this frame
+     * @param dst destination array
+     * @param dstOffset destination offset
+     * @param length number of bytes
+     */
+    public void getSamples(int offset, byte[] dst, int dstOffset, int length) {
+        if (offset < 0 || length < 0 || offset + length > frameSize)
+            throw new IndexOutOfBoundsException();
+        
+        if (buffer == null)
+            System.arraycopy(samples, offset, dst, dstOffset, length);
+        else {
+            ByteBuffer bb = buffer.duplicate();
+            bb.limit(offset + length);
+            bb.position(offset);
+            bb.get(dst, dstOffset, length);
+        }
+    }
+    
+    /**
+     * Get a byte buffer view of the samples. The buffer position is zero and 
+     * its limit is equal to the frame size. The samples are not copied.
+     * 
+     * @return byte buffer
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer == null)
+            return ByteBuffer.wrap(samples, 0, frameSize).slice();
+        
+        ByteBuffer result = buffer.duplicate();
+        result.limit(frameSize);
+        result.position(0);
+        
+        return result;
+    }
+    
+    /**
+     * Check whether the samples are stored in a direct byte buffer.
+     * 
+     * @return true if the samples are stored in a direct byte buffer, false 
+     * otherwise
+     */
+    public boolean isDirect() {
+        return buffer != null && buffer.isDirect();
+    }
 
     /**
      * Get frame size.
@@ -111,4 +227,52 @@ public class AudioFrame {
         return sampleRate;
     }
     
+    /**
+     * Increment the reference counter. It does nothing if the frame is not 
+     * reference counted.
+     */
+    public void retain() {
+        if (pool == null)
+            return;
+        
+        synchronized (this) {
+            if (refCount <= 0)
+                throw new IllegalStateException("the frame has been already released");
+            refCount++;
+        }
+    }
+
+    /**
+     * Decrement the reference counter and return the frame into its pool if 
+     * the counter reaches zero. It does nothing if the frame is not reference
+     * counted.
+     */
+    public void release() {
+        if (pool == null)
+            return;
+        
+        synchronized (this) {
+            if (refCount <= 0)
+                throw new IllegalStateException("the frame has been already released");
+            if (--refCount > 0)
+                return;
+        }
+        
+        pool.recycle(this);
+    }
+    
+    /**
+     * Check whether the frame is reference counted (i.e. taken from an audio
+     * frame pool).
+     * 
+     * @return true if the frame is reference counted, false otherwise
+     */
+    public boolean isReferenceCounted() {
+        return pool != null;
+    }
+    
+    synchronized void setRefCount(int refCount) {
+        this.refCount = refCount;
+    }
+    
 }
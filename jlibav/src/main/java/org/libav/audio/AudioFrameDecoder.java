@@ -29,6 +29,7 @@ import org.libav.avformat.IStreamWrapper;
 import org.libav.avutil.MediaType;
 import org.libav.avutil.bridge.AVUtilLibrary;
 import org.libav.bridge.LibraryManager;
+import org.libav.data.FramePool;
 import org.libav.data.IFrameConsumer;
 import org.libav.util.Rational;
 
@@ -51,6 +52,9 @@ public class AudioFrameDecoder implements IDecoder {
     private Pointer<Byte> sampleBuffer;
     private int sampleBufferSize;
     
+    private FramePool framePool;
+    private int framePoolCapacity;
+    
     private final Set<IFrameConsumer> consumers;
 
     /**
@@ -81,6 +85,9 @@ public class AudioFrameDecoder implements IDecoder {
         audioFrame.getData().set(0, sampleBuffer);
         audioFrame.getLineSize().set(0, sampleBufferSize);
 
+        framePool = null;
+        framePoolCapacity = 0;
+        
         consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
     }
 
@@ -100,10 +107,49 @@ public class AudioFrameDecoder implements IDecoder {
             audioFrame.free();
         if (sampleBuffer != null)
             utilLib.av_free(sampleBuffer);
+        if (framePool != null)
+            framePool.dispose();
         cc.close();
         
         audioFrame = null;
         sampleBuffer = null;
+        framePool = null;
+    }
+    
+    /**
+     * Set maximum number of decoded frames which can be held by consumers at 
+     * the same time. If the capacity is greater than zero, decoded frames are 
+     * copied into a bounded frame pool before they are sent to consumers, 
+     * so the consumers may retain them and process them asynchronously. The 
+     * decoder blocks when the limit is reached until some of the frames are 
+     * released. Zero capacity (default) disables the pool and consumers get 
+     * the internal decoder frame which is valid only until the processFrame() 
+     * method returns.
+     * 
+     * @param capacity maximum number of retained frames or zero
+     */
+    public synchronized void setFramePoolCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        
+        if (capacity == 0 && framePool != null) {
+            framePool.dispose();
+            framePool = null;
+        } else if (framePool != null)
+            framePool.setCapacity(capacity);
+        
+        framePoolCapacity = capacity;
+    }
+    
+    /**
+     * Get maximum number of decoded frames which can be held by consumers at 
+     * the same time.
+     * 
+     * @return maximum number of retained frames or zero if the frame pool is 
+     * disabled
+     */
+    public int getFramePoolCapacity() {
+        return framePoolCapacity;
     }
     
     @Override
@@ -112,42 +158,100 @@ public class AudioFrameDecoder implements IDecoder {
     }
 
     @Override
-    public synchronized void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+    public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
         if (isClosed() || packet.getStreamIndex() != stream.getIndex())
             return;
         
         //System.out.printf("AP: dts = %d\n", sTimeBase.mul(packet.getDts()).longValue());
         Pointer<Byte> tmp = packet.getData();
-        while (packet.getSize() > 0) {
-            audioFrame.getLineSize().set(0, sampleBufferSize);
-            if (cc.decodeAudioFrame(packet, audioFrame))
-                sendFrame(transformPts(audioFrame));
+        try {
+            while (packet.getSize() > 0 && !isClosed())
+                decodeFrame(packet);
+        } finally {
+            packet.setData(tmp);
         }
-        packet.setData(tmp);
     }
 
     @Override
-    public synchronized void flush() throws LibavException {
-        IFrameWrapper fr;
-        while ((fr = flushContext()) != null)
-            sendFrame(transformPts(fr));
+    public void flush() throws LibavException {
+        IPacketWrapper packet = PacketWrapperFactory.getInstance().alloc();
+        packet.setSize(0);
+        packet.setData(null);
+        try {
+            while (decodeFrame(packet));
+        } finally {
+            packet.free();
+        }
     }
     
-    private synchronized IFrameWrapper flushContext() throws LibavException {
-        if (isClosed())
-            return null;
+    /**
+     * Decode a frame from the given packet and send it to the consumers. 
+     * Returns false if no frame has been decoded.
+     */
+    private boolean decodeFrame(IPacketWrapper packet) throws LibavException {
+        FramePool pool;
+        synchronized (this) {
+            if (framePoolCapacity > 0 && framePool == null && !isClosed())
+                framePool = new FramePool(sampleBufferSize, framePoolCapacity);
+            pool = framePool;
+        }
         
-        IPacketWrapper packet = PacketWrapperFactory.getInstance().alloc();
-        IFrameWrapper result = null;
+        // wait for a free frame without holding the decoder lock, so the pool 
+        // can be reconfigured or disposed meanwhile
+        IFrameWrapper pooled = null;
+        if (pool != null) {
+            try {
+                pooled = pool.getFrame();
+            } catch (LibavException ex) {
+                synchronized (this) {
+                    if (pool == framePool)
+                        throw ex;
+                }
+            }
+        }
         
-        packet.setSize(0);
-        packet.setData(null);
-        audioFrame.getLineSize().set(0, sampleBufferSize);
-        if (cc.decodeAudioFrame(packet, audioFrame))
-            result = audioFrame;
-        packet.free();
+        try {
+            synchronized (this) {
+                if (isClosed())
+                    return false;
+                
+                audioFrame.getLineSize().set(0, sampleBufferSize);
+                if (!cc.decodeAudioFrame(packet, audioFrame))
+                    return false;
+                
+                transformPts(audioFrame);
+                IFrameWrapper f = framePoolCapacity == 0 ? audioFrame : cloneAudioFrame(audioFrame, pool, pooled);
+                try {
+                    sendFrame(f);
+                } finally {
+                    if (f != audioFrame)
+                        f.release();
+                }
+                
+                return true;
+            }
+        } finally {
+            if (pooled != null)
+                pooled.release();
+        }
+    }
+    
+    /**
+     * Copy the given frame into the pooled frame if it comes from the current
+     * frame pool. Otherwise the pool has been replaced meanwhile and the frame
+     * is copied into a frame of the new pool, which never blocks. The returned
+     * frame holds its own reference.
+     */
+    private IFrameWrapper cloneAudioFrame(IFrameWrapper frame, FramePool pool, IFrameWrapper pooled) throws LibavException {
+        if (framePool == null)
+            framePool = new FramePool(sampleBufferSize, framePoolCapacity);
+        
+        if (pooled == null || pool != framePool)
+            return framePool.cloneAudioFrame(frame, cc.getChannels(), cc.getSampleFormat());
         
-        return result;
+        framePool.copyAudioFrame(frame, pooled, cc.getChannels(), cc.getSampleFormat());
+        pooled.retain();
+        return pooled;
     }
     
     protected void sendFrame(IFrameWrapper frame) throws LibavException {
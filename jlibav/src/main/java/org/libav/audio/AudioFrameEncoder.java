@@ -38,6 +38,9 @@ import org.libav.util.Rational;
 /**
  * Audio frame encoder.
  * 
+ * Input frames with exactly the codec frame size are encoded directly. Other
+ * frames are re-buffered using an audio FIFO.
+ * 
  * @author Ondrej Perutka
  */
 public class AudioFrameEncoder implements IEncoder {
@@ -52,18 +55,16 @@ public class AudioFrameEncoder implements IEncoder {
     private IFrameWrapper tmpFrame;
     private Pointer<Byte> buffer;
     private int bufferSize;
-    private int bufferSampleCapacity;
     private Pointer<Pointer<Byte>> planes;
     private int planeCount;
-    private int frameSize;
+    private int sampleSize;
     private int frameSampleCount;
     private long frameDuration;
-    private Rational byteDuration;
+    private AudioFifo fifo;
     
     private IPacketWrapper packet;
     
     private long flushFramePts;
-    private int offset;
     private Rational ptsTransformBase;
     private ITimestampGenerator timestampGenerator;
     
@@ -88,15 +89,14 @@ public class AudioFrameEncoder implements IEncoder {
         smallLastFrame = false;
         
         tmpFrame = FrameWrapperFactory.getInstance().allocFrame();
-        bufferSize = AVCodecLibrary.AVCODEC_MAX_AUDIO_FRAME_SIZE;
-        buffer = malloc(bufferSize + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE);
-        bufferSampleCapacity = 0;
+        buffer = null;
+        bufferSize = 0;
         planes = null;
         planeCount = 0;
-        frameSize = 0;
+        sampleSize = 0;
         frameSampleCount = 0;
         frameDuration = 0;
-        byteDuration = null;
+        fifo = null;
         
         packet = PacketWrapperFactory.getInstance().alloc();
         
@@ -136,11 +136,14 @@ public class AudioFrameEncoder implements IEncoder {
             utilLib.av_free(buffer);
         if (tmpFrame != null)
             tmpFrame.free();
+        if (fifo != null)
+            fifo.free();
         
         packet = null;
         buffer = null;
         tmpFrame = null;
         planes = null;
+        fifo = null;
     }
     
     @Override
@@ -156,6 +159,34 @@ public class AudioFrameEncoder implements IEncoder {
         return ptr;
     }
     
+    /**
+     * Get number of samples in each frame passed to the codec. Input frames 
+     * of this size are encoded without copying (e.g. set it as the output 
+     * frame size of an audio frame resampler).
+     * 
+     * @return number of samples in each encoded frame
+     * @throws LibavException if there is no encoder for the codec ID
+     */
+    public synchronized int getFrameSampleCount() throws LibavException {
+        if (initialized)
+            return frameSampleCount;
+        
+        cc.clearWrapperCache();
+        ICodecWrapper codec = CodecWrapperFactory.getInstance().findEncoder(cc.getCodecId());
+        
+        return getFrameSampleCount(codec);
+    }
+    
+    private int getFrameSampleCount(ICodecWrapper codec) {
+        int result = cc.getFrameSize();
+        if ((codec.getCapabilities() & AVCodecLibrary.CODEC_CAP_VARIABLE_FRAME_SIZE) == AVCodecLibrary.CODEC_CAP_VARIABLE_FRAME_SIZE)
+            result = 8192;
+        if (result <= 1) // keep compatibility with older PCM encoders
+            result = 8192;
+        
+        return result;
+    }
+    
     @Override
     public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
         if (isClosed())
@@ -189,35 +220,28 @@ public class AudioFrameEncoder implements IEncoder {
         ICodecWrapper codec = CodecWrapperFactory.getInstance().findEncoder(cc.getCodecId());
         
         smallLastFrame = (codec.getCapabilities() & AVCodecLibrary.CODEC_CAP_SMALL_LAST_FRAME) == AVCodecLibrary.CODEC_CAP_SMALL_LAST_FRAME;
-        frameSampleCount = cc.getFrameSize();
-        if ((codec.getCapabilities() & AVCodecLibrary.CODEC_CAP_VARIABLE_FRAME_SIZE) == AVCodecLibrary.CODEC_CAP_VARIABLE_FRAME_SIZE)
-            frameSampleCount = 8192;
-        if (frameSampleCount <= 1) // keep compatibility with older PCM encoders
-            frameSampleCount = 8192;
+        frameSampleCount = getFrameSampleCount(codec);
         
         SampleFormat sampleFormat = cc.getSampleFormat();
-        int bytesPerSample = sampleFormat.getBytesPerSample();
         int channelCount = cc.getChannels();
         
-        frameSize = frameSampleCount * bytesPerSample;
+        sampleSize = sampleFormat.getBytesPerSample();
         if (sampleFormat.isPlanar())
             planeCount = channelCount;
         else {
-            frameSize *= channelCount;
+            sampleSize *= channelCount;
             planeCount = 1;
         }
         
+        bufferSize = frameSampleCount * sampleSize * planeCount;
+        buffer = malloc(bufferSize + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE);
         planes = Pointer.allocatePointers(Byte.class, planeCount);
-        int lineSize = bufferSize / planeCount;
-        lineSize -= lineSize % bytesPerSample;
         for (int i = 0; i < planeCount; i++)
-            planes.set(i, buffer.offset(i * lineSize));
+            planes.set(i, buffer.offset(i * frameSampleCount * sampleSize));
         
-        bufferSampleCapacity = lineSize * planeCount / (channelCount * bytesPerSample);
+        fifo = new AudioFifo(sampleFormat, channelCount, 2 * frameSampleCount);
         
         frameDuration = 1000 * frameSampleCount / cc.getSampleRate();
-        byteDuration = new Rational(frameDuration, frameSize);
-        offset = 0;
         
         // propper time base is set after avformat_write_header() call
         stream.clearWrapperCache();
@@ -231,17 +255,15 @@ public class AudioFrameEncoder implements IEncoder {
         packet.setData(null);
         packet.setSize(0);
         
-        int sampleCount = offset * planeCount / (cc.getChannels() * cc.getSampleFormat().getBytesPerSample());
+        int sampleCount = fifo.read(planes, 0, frameSampleCount);
         if (sampleCount > 0) {
             if (sampleCount < frameSampleCount && !smallLastFrame) {
-                sampleCount = frameSampleCount;
                 for (int i = 0; i < planeCount; i++)
-                    planes.get(i).clearBytesAtOffset(offset, frameSize - offset, (byte)0);
-                offset = frameSize;
+                    planes.get(i).clearBytesAtOffset(sampleCount * sampleSize, (frameSampleCount - sampleCount) * sampleSize, (byte)0);
+                sampleCount = frameSampleCount;
             }
-            tmpFrame.fillAudioFrame(sampleCount, cc.getChannels(), cc.getSampleFormat(), buffer, bufferSize, bufferSampleCapacity);
+            tmpFrame.fillAudioFrame(sampleCount, cc.getChannels(), cc.getSampleFormat(), buffer, bufferSize, frameSampleCount);
         }
-        offset = 0;
 
         boolean result;
         if (result = cc.encodeAudioFrame(sampleCount == 0 ? null : tmpFrame, packet)) {
@@ -253,65 +275,55 @@ public class AudioFrameEncoder implements IEncoder {
             flushFramePts += frameDuration;
         }
         
-        return result;
+        return result || fifo.getSampleCount() > 0;
     }
     
     private void encodeFrame(IFrameWrapper frame, long pts) throws LibavException {
-        int lineSize = frame.getLineSize().get(0);
-        int size = lineSize;
-        pts -= byteDuration.mul(offset).longValue();
+        int sampleCount = frame.getLineSize().get(0) / sampleSize;
         
-        while (size > 0) {
-            size -= appendSamples(frame, lineSize - size);
-            
-            if (offset == frameSize) {
-                offset = 0;
-                tmpFrame.fillAudioFrame(frameSampleCount, cc.getChannels(), cc.getSampleFormat(), buffer, bufferSize, bufferSampleCapacity);
-                
-                packet.init();
-                packet.setData(null);
-                packet.setSize(0);
-                
-                if (cc.encodeAudioFrame(tmpFrame, packet)) {
-                    packet.clearWrapperCache();
-                    //System.out.printf("encoding audio frame: pts = %d (pts_offset = %d, source_pts = %d)\n", pts, timestampGenerator.getOffset(), frame.getPts());
-                    packet.setStreamIndex(stream.getIndex());
-                    packet.setPts(ptsTransformBase.mul(pts).longValue());
-                    packet.setDts(packet.getPts());
-                    sendPacket(packet);
-                    pts += frameDuration;
-                    flushFramePts = pts;
-                }
-            }
+        // the frame matches the codec frame size, there is no need to copy it
+        if (sampleCount == frameSampleCount && fifo.getSampleCount() == 0) {
+            encodeAudioFrame(frame, pts);
+            return;
         }
-    }
-    
-    private int appendSamples(IFrameWrapper frame, int frameOffset) {
+            
         Pointer<Pointer<Byte>> data;
         if (planeCount > frame.getDataLength())
             data = frame.getExtendedData();
         else
             data = frame.getData();
+                
+        pts -= 1000L * fifo.getSampleCount() / cc.getSampleRate();
         
-        int tmp = frameSize - offset;
-        int lineSize = frame.getLineSize().get(0);
-        int size = lineSize - frameOffset;
-        
-        if (size < tmp)
-            tmp = size;
-        
-        Pointer<Byte> dataPlane;
-        Pointer<Byte> plane;
-        
-        for (int i = 0; i < planeCount; i++) {
-            dataPlane = data.get(i).offset(frameOffset);
-            plane = planes.get(i).offset(offset);
-            dataPlane.copyTo(plane, tmp);
+        int offset = 0;
+        while (offset < sampleCount) {
+            offset += fifo.write(data, offset, sampleCount - offset);
+            
+            while (fifo.getSampleCount() >= frameSampleCount) {
+                fifo.read(planes, 0, frameSampleCount);
+                tmpFrame.fillAudioFrame(frameSampleCount, cc.getChannels(), cc.getSampleFormat(), buffer, bufferSize, frameSampleCount);
+                pts = encodeAudioFrame(tmpFrame, pts);
+            }
         }
+    }
+    
+    private long encodeAudioFrame(IFrameWrapper frame, long pts) throws LibavException {
+        packet.init();
+        packet.setData(null);
+        packet.setSize(0);
         
-        offset += tmp;
+        if (cc.encodeAudioFrame(frame, packet)) {
+            packet.clearWrapperCache();
+            //System.out.printf("encoding audio frame: pts = %d (pts_offset = %d, source_pts = %d)\n", pts, timestampGenerator.getOffset(), frame.getPts());
+            packet.setStreamIndex(stream.getIndex());
+            packet.setPts(ptsTransformBase.mul(pts).longValue());
+            packet.setDts(packet.getPts());
+            sendPacket(packet);
+            pts += frameDuration;
+            flushFramePts = pts;
+        }
         
-        return tmp;
+        return pts;
     }
     
     private void sendPacket(IPacketWrapper packet) throws LibavException {
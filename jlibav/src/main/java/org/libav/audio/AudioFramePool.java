@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import org.libav.avutil.SampleFormat;
+
+/**
+ * Pool of reference counted audio frames backed by direct byte buffers. 
+ * Frames are returned into the pool when they are released. The pool never
+ * blocks, it allocates a new buffer if there is no free buffer large 
+ * enough.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AudioFramePool {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    
+    private static final int BUFFER_ALIGNMENT = 4096;
+    
+    private final Deque<AudioFrame> recycle;
+    private int capacity;
+    private boolean disposed;
+    
+    /**
+     * Create a new audio frame pool with the default capacity.
+     */
+    public AudioFramePool() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Create a new audio frame pool.
+     * 
+     * @param capacity maximum number of free frames kept in the pool
+     */
+    public AudioFramePool(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        
+        this.capacity = capacity;
+        
+        recycle = new ArrayDeque<AudioFrame>();
+        disposed = false;
+    }
+    
+    /**
+     * Get maximum number of free frames kept in the pool.
+     * 
+     * @return capacity
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Get a frame from the pool. The content of the frame is undefined.
+     * 
+     * @param frameSize a frame size
+     * @param channelCount number of audio channels
+     * @param sampleFormat a sample format
+     * @param sampleRate sample rate
+     * @return frame with reference counter set to one
+     */
+    public AudioFrame getFrame(int frameSize, int channelCount, SampleFormat sampleFormat, int sampleRate) {
+        AudioFrame result = null;
+        
+        synchronized (this) {
+            Iterator<AudioFrame> it = recycle.iterator();
+            while (it.hasNext()) {
+                AudioFrame af = it.next();
+                if (af.getInternalBuffer().capacity() >= frameSize) {
+                    it.remove();
+                    result = af;
+                    break;
+                }
+            }
+        }
+        
+        if (result == null) {
+            int size = (frameSize + BUFFER_ALIGNMENT - 1) / BUFFER_ALIGNMENT * BUFFER_ALIGNMENT;
+            result = new AudioFrame(this, ByteBuffer.allocateDirect(Math.max(size, BUFFER_ALIGNMENT)));
+        }
+        
+        result.set(result.getInternalBuffer(), frameSize, channelCount, sampleFormat, sampleRate);
+        result.setRefCount(1);
+        
+        return result;
+    }
+    
+    /**
+     * Copy the given frame into a pooled frame.
+     * 
+     * @param frame an audio frame
+     * @return frame with reference counter set to one
+     */
+    public AudioFrame copy(AudioFrame frame) {
+        AudioFrame result = getFrame(frame.getFrameSize(), frame.getChannelCount(), frame.getSampleFormat(), frame.getSampleRate());
+        ByteBuffer dst = result.getInternalBuffer().duplicate();
+        dst.clear();
+        dst.put(frame.getBuffer());
+        
+        return result;
+    }
+    
+    /**
+     * Drop all free frames. Frames held outside the pool are dropped when 
+     * they are released.
+     */
+    public synchronized void dispose() {
+        disposed = true;
+        recycle.clear();
+    }
+    
+    synchronized void recycle(AudioFrame frame) {
+        if (disposed || recycle.size() >= capacity)
+            return;
+        
+        recycle.add(frame);
+    }
+
+}
@@ -37,12 +37,20 @@ import org.libav.data.IFrameProducer;
 /**
  * Resampler for audio frames.
  * 
+ * The output buffer is sized from the number of input samples and the 
+ * resampler delay and it grows only when needed. Samples buffered inside the
+ * resampler can be drained using the flush() method. The resampler may also
+ * emit output frames of a fixed size (e.g. the frame size of an audio 
+ * encoder).
+ * 
  * @author Ondrej Perutka
  */
 public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
 
     private static final AVUtilLibrary utilLib = LibraryManager.getInstance().getAVUtilLibrary();
     
+    private static final int OUTPUT_SAMPLE_RESERVE = 16;
+    
     private long inputChannelLayout;
     private int inputChannelCount;
     private int inputSampleRate;
@@ -58,6 +66,13 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
     private ResampleBuffer resampleBuffer;
     private IFrameWrapper outputFrame;
     
+    private int outputFrameSize;
+    private AudioFifo fifo;
+    private long pendingPts;
+    private boolean keyFrame;
+    private long packetDts;
+    private long packetPts;
+    
     private final Set<IFrameConsumer> consumers;
 
     /**
@@ -87,6 +102,13 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
         resampleBuffer = null;
         outputFrame = null;
         
+        outputFrameSize = 0;
+        fifo = null;
+        pendingPts = 0;
+        keyFrame = true;
+        packetDts = 0;
+        packetPts = 0;
+        
         init();
         
         consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
@@ -99,10 +121,13 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
             resampleBuffer.free();
         if (outputFrame != null)
             outputFrame.free();
+        if (fifo != null)
+            fifo.free();
         
         resampleContext = null;
         resampleBuffer = null;
         outputFrame = null;
+        fifo = null;
         
         if (inputChannelLayout != outputChannelLayout || inputSampleFormat != outputSampleFormat || inputSampleRate != outputSampleRate) {
             resampleContext = AudioResampleContextWrapperFactory.getInstance().allocate();
@@ -113,9 +138,16 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
             resampleContext.setOutputSampleFormat(outputSampleFormat);
             resampleContext.setOutputSampleRate(outputSampleRate);
             resampleContext.open();
-            resampleBuffer = new ResampleBuffer(outputSampleFormat, outputChannelCount);
-            outputFrame = FrameWrapperFactory.getInstance().allocFrame();
         }
+        
+        if (resampleContext != null || outputFrameSize > 0)
+            initBuffers();
+    }
+    
+    private void initBuffers() throws LibavException {
+        resampleBuffer = new ResampleBuffer(outputSampleFormat, outputChannelCount);
+        outputFrame = FrameWrapperFactory.getInstance().allocFrame();
+        fifo = new AudioFifo(outputSampleFormat, outputChannelCount, outputFrameSize);
     }
     
     /**
@@ -227,6 +259,85 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
         return outputSampleRate;
     }
     
+    /**
+     * Get size of the output frames.
+     * 
+     * @return number of samples in each output frame or 0 if the output frames
+     * have variable size
+     */
+    public int getOutputFrameSize() {
+        return outputFrameSize;
+    }
+    
+    /**
+     * Set size of the output frames. If the size is greater than zero, the 
+     * output samples are buffered and sent in frames of exactly this size 
+     * (only the last frame emitted by the flush() method may be smaller). Use 
+     * the frame size of a downstream encoder to avoid buffering in the 
+     * encoder. Zero means that each input frame produces one output frame 
+     * of variable size.
+     * 
+     * @param sampleCount number of samples in each output frame or 0
+     * @throws LibavException if an error occurs
+     */
+    public synchronized void setOutputFrameSize(int sampleCount) throws LibavException {
+        if (sampleCount < 0)
+            throw new IllegalArgumentException("frame size cannot be negative");
+        
+        outputFrameSize = sampleCount;
+        if (resampleBuffer == null && sampleCount > 0)
+            initBuffers();
+        else if (fifo != null)
+            fifo.ensureCapacity(sampleCount);
+    }
+    
+    /**
+     * Get number of output samples buffered inside this resampler (including 
+     * the resampler delay).
+     * 
+     * @return number of buffered output samples
+     */
+    public synchronized int getBufferedSampleCount() {
+        int count = fifo == null ? 0 : fifo.getSampleCount();
+        return count + getInternalSampleCount();
+    }
+    
+    private int getInternalSampleCount() {
+        if (resampleContext == null)
+            return 0;
+        
+        long delay = (long)resampleContext.getDelay() * outputSampleRate / inputSampleRate;
+        return (int)delay + resampleContext.getAvailableSampleCount();
+    }
+    
+    /**
+     * Drain all samples buffered inside this resampler and send them to the
+     * consumers.
+     * 
+     * @throws LibavException if an error occurs
+     */
+    public synchronized void flush() throws LibavException {
+        if (resampleBuffer == null)
+            return;
+        
+        int sampleCount, count;
+        do {
+            sampleCount = fifo.getSampleCount();
+            resampleBuffer.ensureCapacity(sampleCount + getInternalSampleCount() + OUTPUT_SAMPLE_RESERVE);
+            sampleCount = fifo.read(resampleBuffer.getData(0), 0, sampleCount);
+            
+            count = 0;
+            if (resampleContext != null) {
+                count = resampleContext.convert(resampleBuffer.getData(sampleCount), 
+                        resampleBuffer.getPlaneSize(sampleCount), 
+                        resampleBuffer.getSampleCapacity() - sampleCount, null, 0, 0);
+            }
+            
+            sampleCount += count;
+            sendSamples(sampleCount, count == 0);
+        } while (count > 0);
+    }
+    
     /**
      * Release all native resources.
      */
@@ -237,39 +348,93 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
             resampleBuffer.free();
         if (outputFrame != null)
             outputFrame.free();
+        if (fifo != null)
+            fifo.free();
         
         resampleContext = null;
         resampleBuffer = null;
         outputFrame = null;
+        fifo = null;
     }
     
     @Override
-    public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
-        if (resampleContext == null)
+    public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        if (resampleBuffer == null) {
             sendFrame(frame);
-        else {
-            Pointer inputData = frame.getData();
-            int inPlaneSize = frame.getLineSize().get(0);
-            int inSampleCount = inPlaneSize / inputBytesPerSample;
-            if (inputSampleFormat.isPlanar())
-                inputData = frame.getExtendedData();
-            else
-                inSampleCount /= inputChannelCount;
+            return;
+        }
+        
+        Pointer<Pointer<Byte>> inputData = frame.getData();
+        int inPlaneSize = frame.getLineSize().get(0);
+        int inSampleCount = inPlaneSize / inputBytesPerSample;
+        if (inputSampleFormat.isPlanar())
+            inputData = frame.getExtendedData();
+        else
+            inSampleCount /= inputChannelCount;
+        
+        keyFrame = frame.isKeyFrame();
+        packetDts = frame.getPacketDts();
+        packetPts = frame.getPacketPts();
+        int sampleCount = fifo.getSampleCount();
+        pendingPts = frame.getPts() - 1000L * (sampleCount + getInternalSampleCount()) / outputSampleRate;
+        
+        if (resampleContext == null && sampleCount == 0 && (outputFrameSize == 0 || inSampleCount == outputFrameSize)) {
+            // there is nothing to convert and the frame already has the right size
+            sendFrame(frame);
+            return;
+        } else if (resampleContext == null) {
+            resampleBuffer.ensureCapacity(sampleCount + inSampleCount);
+            sampleCount = fifo.read(resampleBuffer.getData(0), 0, sampleCount);
+            resampleBuffer.append(sampleCount, inputData, inSampleCount);
+            sampleCount += inSampleCount;
+        } else {
+            long outSampleCount = (long)(inSampleCount + resampleContext.getDelay()) * outputSampleRate;
+            outSampleCount = (outSampleCount + inputSampleRate - 1) / inputSampleRate;
+            outSampleCount += resampleContext.getAvailableSampleCount() + OUTPUT_SAMPLE_RESERVE;
+            resampleBuffer.ensureCapacity(sampleCount + (int)outSampleCount);
+            sampleCount = fifo.read(resampleBuffer.getData(0), 0, sampleCount);
             
-            int outSampleCount = resampleContext.convert(resampleBuffer.getData(), 
-                    resampleBuffer.getLineSize(), resampleBuffer.getMaxSampleCount(), 
+            sampleCount += resampleContext.convert(resampleBuffer.getData(sampleCount), 
+                    resampleBuffer.getPlaneSize(sampleCount), resampleBuffer.getSampleCapacity() - sampleCount, 
                     inputData, inPlaneSize, inSampleCount);
-            
-            outputFrame.fillAudioFrame(outSampleCount, outputChannelCount, outputSampleFormat, 
-                    resampleBuffer.getBuffer(), resampleBuffer.getBufferSize(), resampleBuffer.getMaxSampleCount());
-            
-            outputFrame.setKeyFrame(frame.isKeyFrame());
-            outputFrame.setPacketDts(frame.getPacketDts());
-            outputFrame.setPacketPts(frame.getPacketPts());
-            outputFrame.setPts(frame.getPts());
-            
-            sendFrame(outputFrame);
         }
+        
+        sendSamples(sampleCount, false);
+    }
+    
+    /**
+     * Send frames from the first sampleCount samples in the resample buffer. 
+     * Samples which do not form a whole frame are kept in the FIFO.
+     */
+    private void sendSamples(int sampleCount, boolean flush) throws LibavException {
+        int frameSize = outputFrameSize > 0 ? outputFrameSize : sampleCount;
+        int offset = 0;
+        
+        while (sampleCount - offset >= frameSize && frameSize > 0) {
+            sendFrame(offset, frameSize);
+            offset += frameSize;
+        }
+        
+        if (flush && sampleCount > offset) {
+            sendFrame(offset, sampleCount - offset);
+            offset = sampleCount;
+        }
+        
+        fifo.ensureCapacity(sampleCount - offset);
+        fifo.write(resampleBuffer.getData(0), offset, sampleCount - offset);
+        pendingPts += 1000L * offset / outputSampleRate;
+    }
+    
+    private void sendFrame(int offset, int sampleCount) throws LibavException {
+        outputFrame.fillAudioFrame(sampleCount, outputChannelCount, outputSampleFormat, 
+                resampleBuffer.getBuffer(offset), resampleBuffer.getBufferSize(), resampleBuffer.getSampleCapacity());
+        
+        outputFrame.setKeyFrame(keyFrame);
+        outputFrame.setPacketDts(packetDts);
+        outputFrame.setPacketPts(packetPts);
+        outputFrame.setPts(pendingPts + 1000L * offset / outputSampleRate);
+        
+        sendFrame(outputFrame);
     }
     
     private void sendFrame(IFrameWrapper frame) throws LibavException {
@@ -294,29 +459,50 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
     }
     
     private static class ResampleBuffer {
-        private Pointer<Pointer<?>> data;
+        private Pointer<Pointer<Byte>> data;
         private Pointer<Byte> buffer;
         private int bufferSize;
-        private int lineSize;
-        private int maxSampleCount;
+        private int planeCount;
+        private int sampleSize;
+        private int sampleCapacity;
 
         public ResampleBuffer(SampleFormat sampleFormat, int channelCount) {
-            int planes = sampleFormat.isPlanar() ? channelCount : 1;
+            planeCount = sampleFormat.isPlanar() ? channelCount : 1;
+            sampleSize = sampleFormat.getBytesPerSample();
+            if (!sampleFormat.isPlanar())
+                sampleSize *= channelCount;
             
-            bufferSize = AVCodecLibrary.AVCODEC_MAX_AUDIO_FRAME_SIZE;
+            data = Pointer.allocatePointers(Byte.class, planeCount);
+            buffer = null;
+            bufferSize = 0;
+            sampleCapacity = 0;
+        }
+        
+        /**
+         * Make sure the buffer can hold the given number of samples. The 
+         * buffer content is not preserved if the buffer needs to be 
+         * reallocated.
+         */
+        public void ensureCapacity(int sampleCount) {
+            if (sampleCount <= sampleCapacity)
+                return;
+            
+            if (buffer != null)
+                utilLib.av_free(buffer);
+            
+            sampleCapacity = Math.max(sampleCount, sampleCapacity + sampleCapacity / 2);
+            bufferSize = sampleCapacity * sampleSize * planeCount;
             buffer = utilLib.av_malloc(bufferSize + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE).as(Byte.class);
             if (buffer == null)
                 throw new OutOfMemoryError("not enough memory for the audio frame resampler");
+        }
             
-            int bytesPerSample = sampleFormat.getBytesPerSample();
-            lineSize = bufferSize / planes;
-            lineSize -= lineSize % bytesPerSample;
-            
-            data = Pointer.allocatePointers(planes);
-            for (int i = 0; i < planes; i++)
-                data.set(i, buffer.offset(i * lineSize));
-            
-            maxSampleCount = lineSize * planes / (channelCount * bytesPerSample);
+        /**
+         * Copy samples from the given planes behind the first offset samples.
+         */
+        public void append(int offset, Pointer<Pointer<Byte>> planes, int sampleCount) {
+            for (int i = 0; i < planeCount; i++)
+                planes.get(i).copyTo(buffer.offset((i * sampleCapacity + offset) * sampleSize), sampleCount * sampleSize);
         }
         
         public void free() {
@@ -329,24 +515,38 @@ public class AudioFrameResampler implements IFrameConsumer, IFrameProducer {
             data = null;
         }
 
-        public Pointer<Pointer<?>> getData() {
+        /**
+         * Get plane pointers starting at the given sample.
+         */
+        public Pointer<Pointer<Byte>> getData(int offset) {
+            for (int i = 0; i < planeCount; i++)
+                data.set(i, buffer.offset((i * sampleCapacity + offset) * sampleSize));
+            
             return data;
         }
 
-        public int getLineSize() {
-            return lineSize;
+        /**
+         * Get size of the rest of a plane starting at the given sample.
+         */
+        public int getPlaneSize(int offset) {
+            return (sampleCapacity - offset) * sampleSize;
         }
 
-        public Pointer<Byte> getBuffer() {
-            return buffer;
+        /**
+         * Get buffer starting at the given sample. The plane stride remains 
+         * the same (given by the sample capacity), so the planes of a frame
+         * filled from the returned pointer do not exceed the buffer.
+         */
+        public Pointer<Byte> getBuffer(int offset) {
+            return buffer.offset(offset * sampleSize);
         }
         
         public int getBufferSize() {
             return bufferSize;
         }
         
-        public int getMaxSampleCount() {
-            return maxSampleCount;
+        public int getSampleCapacity() {
+            return sampleCapacity;
         }
     }
     
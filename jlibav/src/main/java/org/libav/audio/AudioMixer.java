@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.util.*;
+import org.bridj.Pointer;
+import org.libav.LibavException;
+import org.libav.avcodec.FrameWrapperFactory;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVChannelLayout;
+import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.bridge.LibraryManager;
+import org.libav.data.IFrameConsumer;
+import org.libav.data.IFrameProducer;
+
+/**
+ * Mixer of decoded audio streams. It does not need any sound hardware, so 
+ * the output can be passed to an audio frame encoder.
+ * 
+ * Each input is normalized to the output channel layout, sample rate and 
+ * the planar float sample format using an audio frame resampler. Inputs are
+ * aligned by pts of their frames. Gaps are filled with silence and 
+ * overlapping samples are dropped. Output frames have fixed size and they 
+ * are produced as soon as all inputs have enough samples. If some input 
+ * stops delivering frames, the mix does not wait for it longer than the 
+ * maximum latency.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AudioMixer implements IFrameConsumer, IFrameProducer {
+
+    private static final AVUtilLibrary utilLib = LibraryManager.getInstance().getAVUtilLibrary();
+    
+    public static final int DEFAULT_FRAME_SIZE = 1024;
+    public static final int DEFAULT_MAX_LATENCY = 200;
+    
+    private static final int SYNC_TOLERANCE = 20;
+    
+    private long channelLayout;
+    private int channelCount;
+    private int sampleRate;
+    private int frameSize;
+    private int maxLatency;
+    private int syncTolerance;
+    
+    private final Map<Object, Input> inputs;
+    private float[][] mix;
+    
+    private Pointer<Byte> buffer;
+    private int bufferSize;
+    private IFrameWrapper outputFrame;
+    
+    private boolean started;
+    private long basePts;
+    private long position;
+    
+    private final Set<IFrameConsumer> consumers;
+    
+    /**
+     * Create a new audio mixer producing frames of the default size.
+     * 
+     * @param channelLayout output channel layout
+     * @param sampleRate output sample rate
+     * @throws LibavException if the output frame cannot be allocated
+     */
+    public AudioMixer(long channelLayout, int sampleRate) throws LibavException {
+        this(channelLayout, sampleRate, DEFAULT_FRAME_SIZE);
+    }
+    
+    /**
+     * Create a new audio mixer.
+     * 
+     * @param channelLayout output channel layout
+     * @param sampleRate output sample rate
+     * @param frameSize number of samples (per channel) of each output frame 
+     * (e.g. the frame size of the audio encoder)
+     * @throws LibavException if the output frame cannot be allocated
+     */
+    public AudioMixer(long channelLayout, int sampleRate, int frameSize) throws LibavException {
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("illegal sample rate");
+        if (frameSize <= 0)
+            throw new IllegalArgumentException("illegal frame size");
+        
+        this.channelLayout = channelLayout;
+        this.channelCount = AVChannelLayout.getChannelCount(channelLayout);
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        
+        inputs = new LinkedHashMap<Object, Input>();
+        mix = new float[channelCount][frameSize];
+        setMaxLatency(DEFAULT_MAX_LATENCY);
+        syncTolerance = (int)((long)SYNC_TOLERANCE * sampleRate / 1000);
+        
+        bufferSize = frameSize * channelCount * SampleFormat.FLTP.getBytesPerSample();
+        buffer = utilLib.av_malloc(bufferSize + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE).as(Byte.class);
+        if (buffer == null)
+            throw new OutOfMemoryError("not enough memory for the audio mixer");
+        try {
+            outputFrame = FrameWrapperFactory.getInstance().allocFrame();
+        } catch (LibavException ex) {
+            utilLib.av_free(buffer);
+            throw ex;
+        }
+        
+        started = false;
+        basePts = 0;
+        position = 0;
+        
+        consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
+    }
+    
+    /**
+     * Get output channel layout.
+     * 
+     * @return output channel layout
+     */
+    public long getChannelLayout() {
+        return channelLayout;
+    }
+    
+    /**
+     * Get number of output channels.
+     * 
+     * @return number of output channels
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+    
+    /**
+     * Get output sample rate.
+     * 
+     * @return output sample rate
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * Get output sample format. It is always the planar float format.
+     * 
+     * @return output sample format
+     */
+    public SampleFormat getSampleFormat() {
+        return SampleFormat.FLTP;
+    }
+    
+    /**
+     * Get number of samples (per channel) of each output frame.
+     * 
+     * @return output frame size
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+    
+    /**
+     * Set maximum time the mixer waits for inputs which do not deliver 
+     * frames. Samples of such inputs are replaced with silence. The default
+     * value is 200 ms.
+     * 
+     * @param maxLatency time in milliseconds
+     */
+    public synchronized void setMaxLatency(int maxLatency) {
+        if (maxLatency < 0)
+            throw new IllegalArgumentException("maximum latency must not be negative");
+        
+        this.maxLatency = (int)((long)maxLatency * sampleRate / 1000);
+    }
+    
+    /**
+     * Get maximum time the mixer waits for inputs which do not deliver 
+     * frames.
+     * 
+     * @return time in milliseconds
+     */
+    public synchronized int getMaxLatency() {
+        return (int)((long)maxLatency * 1000 / sampleRate);
+    }
+    
+    /**
+     * Add a new input. The mixer is registered as a frame consumer of the 
+     * given producer.
+     * 
+     * @param producer producer of the input frames (e.g. an audio frame 
+     * decoder)
+     * @param channelLayout input channel layout
+     * @param sampleRate input sample rate
+     * @param sampleFormat input sample format
+     * @throws LibavException if the input resampler cannot be created
+     */
+    public synchronized void addInput(IFrameProducer producer, long channelLayout, int sampleRate, SampleFormat sampleFormat) throws LibavException {
+        if (inputs.containsKey(producer))
+            throw new IllegalArgumentException("the producer is already an input of this mixer");
+        
+        inputs.put(producer, new Input(channelLayout, sampleRate, sampleFormat));
+        producer.addFrameConsumer(this);
+    }
+    
+    /**
+     * Remove the given input. Its samples which have not been mixed yet are
+     * dropped.
+     * 
+     * @param producer producer of the input frames
+     */
+    public synchronized void removeInput(IFrameProducer producer) {
+        Input in = inputs.remove(producer);
+        if (in == null)
+            return;
+        
+        producer.removeFrameConsumer(this);
+        in.dispose();
+    }
+    
+    /**
+     * Set volume of the given input.
+     * 
+     * @param producer producer of the input frames
+     * @param volume volume (1.0 means the original volume)
+     */
+    public synchronized void setInputVolume(IFrameProducer producer, float volume) {
+        Input in = inputs.get(producer);
+        if (in != null)
+            in.volume = volume;
+    }
+    
+    /**
+     * Get volume of the given input.
+     * 
+     * @param producer producer of the input frames
+     * @return volume or -1 if the producer is not an input of this mixer
+     */
+    public synchronized float getInputVolume(IFrameProducer producer) {
+        Input in = inputs.get(producer);
+        return in == null ? -1 : in.volume;
+    }
+    
+    @Override
+    public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        Input in = inputs.get(producer);
+        if (in == null || buffer == null)
+            return;
+        
+        in.resampler.processFrame(this, frame);
+        mix(false);
+    }
+    
+    /**
+     * Mix all remaining samples. The last output frame is padded with 
+     * silence.
+     * 
+     * @throws LibavException if an error occurs while sending the frames
+     */
+    public synchronized void flush() throws LibavException {
+        if (buffer == null)
+            return;
+        
+        mix(true);
+    }
+    
+    /**
+     * Release all native resources.
+     */
+    public synchronized void dispose() {
+        for (Input in : inputs.values())
+            in.dispose();
+        if (buffer != null)
+            utilLib.av_free(buffer);
+        if (outputFrame != null)
+            outputFrame.free();
+        
+        buffer = null;
+        outputFrame = null;
+    }
+    
+    private void mix(boolean flush) throws LibavException {
+        long end, write, maxWrite;
+        boolean ready;
+        
+        while (!inputs.isEmpty()) {
+            end = position + frameSize;
+            ready = true;
+            maxWrite = position;
+            for (Input in : inputs.values()) {
+                write = in.start + in.count;
+                if (write < end && !in.stalled)
+                    ready = false;
+                maxWrite = Math.max(maxWrite, write);
+            }
+            
+            if (flush && maxWrite <= position)
+                return;
+            // do not wait for slow inputs longer than the maximum latency
+            if (!flush && !ready && maxWrite - end < maxLatency)
+                return;
+            
+            for (int c = 0; c < channelCount; c++)
+                Arrays.fill(mix[c], 0f);
+            for (Input in : inputs.values())
+                in.mixInto(mix, position, frameSize);
+            
+            sendMix();
+            position = end;
+        }
+    }
+    
+    private void sendMix() throws LibavException {
+        int planeSize = frameSize * SampleFormat.FLTP.getBytesPerSample();
+        for (int c = 0; c < channelCount; c++)
+            buffer.setFloatsAtOffset((long)c * planeSize, mix[c], 0, frameSize);
+        
+        outputFrame.fillAudioFrame(frameSize, channelCount, SampleFormat.FLTP, buffer, bufferSize);
+        outputFrame.setKeyFrame(true);
+        outputFrame.setPts(basePts + position * 1000 / sampleRate);
+        
+        synchronized (consumers) {
+            for (IFrameConsumer c : consumers)
+                c.processFrame(this, outputFrame);
+        }
+    }
+    
+    @Override
+    public void addFrameConsumer(IFrameConsumer c) {
+        consumers.add(c);
+    }
+    
+    @Override
+    public void removeFrameConsumer(IFrameConsumer c) {
+        consumers.remove(c);
+    }
+    
+    /**
+     * Sample queue of a single input. Queued samples are stored in linear 
+     * arrays starting at the given offset; the arrays are compacted when 
+     * the offset grows too large.
+     */
+    private class Input implements IFrameConsumer {
+        private AudioFrameResampler resampler;
+        private float volume;
+        
+        private float[][] samples;
+        private int offset;
+        private int count;
+        private long start;
+        private boolean synced;
+        private boolean stalled;
+        
+        public Input(long channelLayout, int sampleRate, SampleFormat sampleFormat) throws LibavException {
+            resampler = new AudioFrameResampler(channelLayout, AudioMixer.this.channelLayout, sampleRate, AudioMixer.this.sampleRate, sampleFormat, SampleFormat.FLTP);
+            resampler.addFrameConsumer(this);
+            volume = 1f;
+            
+            samples = new float[channelCount][2 * frameSize + maxLatency];
+            offset = 0;
+            count = 0;
+            start = position;
+            synced = false;
+            stalled = false;
+        }
+        
+        public void dispose() {
+            resampler.dispose();
+        }
+        
+        @Override
+        public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+            int n = frame.getLineSize().get(0) / SampleFormat.FLTP.getBytesPerSample();
+            if (n <= 0)
+                return;
+            
+            if (!started) {
+                started = true;
+                basePts = frame.getPts();
+                position = 0;
+                start = 0;
+            }
+            
+            long expected = (frame.getPts() - basePts) * sampleRate / 1000;
+            long write = start + count;
+            int skip = 0;
+            
+            if (!synced || count == 0 && write < position) {
+                // (re)start the input at the frame position
+                start = Math.max(expected, position);
+                offset = 0;
+                count = 0;
+                skip = (int)Math.min(n, start - expected);
+                synced = true;
+            } else if (expected - write > syncTolerance) {
+                // fill the gap with silence
+                appendSilence((int)Math.min(expected - write, maxLatency + frameSize));
+            } else if (write - expected > syncTolerance)
+                skip = (int)Math.min(n, write - expected);
+            
+            // samples which are too late for the mix
+            write = start + count;
+            if (write < position) {
+                skip += (int)Math.min(n - skip, position - write);
+                start = position - count;
+            }
+            
+            if (skip < n)
+                append(frame, skip, n - skip);
+            
+            stalled = false;
+        }
+        
+        private void ensureCapacity(int n) {
+            int capacity = samples[0].length;
+            if (offset + count + n <= capacity)
+                return;
+            
+            if (count + n > capacity / 2)
+                capacity = Math.max(2 * capacity, count + n);
+            for (int c = 0; c < channelCount; c++) {
+                float[] tmp = capacity == samples[c].length ? samples[c] : new float[capacity];
+                System.arraycopy(samples[c], offset, tmp, 0, count);
+                samples[c] = tmp;
+            }
+            offset = 0;
+        }
+        
+        private void appendSilence(int n) {
+            ensureCapacity(n);
+            for (int c = 0; c < channelCount; c++)
+                Arrays.fill(samples[c], offset + count, offset + count + n, 0f);
+            count += n;
+        }
+        
+        private void append(IFrameWrapper frame, int skip, int n) {
+            Pointer<Pointer<Byte>> data = channelCount > frame.getDataLength() ? frame.getExtendedData() : frame.getData();
+            int bps = SampleFormat.FLTP.getBytesPerSample();
+            
+            ensureCapacity(n);
+            for (int c = 0; c < channelCount; c++)
+                data.get(c).getFloatsAtOffset((long)skip * bps, samples[c], offset + count, n);
+            count += n;
+        }
+        
+        public void mixInto(float[][] mix, long position, int length) {
+            long end = position + length;
+            if (start + count < end)
+                stalled = true;
+            if (count == 0 || start >= end)
+                return;
+            
+            int from = (int)Math.max(0, start - position);
+            int src = offset + (int)Math.max(0, position - start);
+            int len = (int)(Math.min(end, start + count) - position) - from;
+            float v = volume;
+            float[] m, s;
+            
+            for (int c = 0; c < channelCount; c++) {
+                m = mix[c];
+                s = samples[c];
+                for (int i = 0; i < len; i++)
+                    m[from + i] += s[src + i] * v;
+            }
+            
+            int consumed = (int)(Math.min(end, start + count) - start);
+            offset += consumed;
+            count -= consumed;
+            start += consumed;
+            if (count == 0)
+                offset = 0;
+        }
+    }
+
+}
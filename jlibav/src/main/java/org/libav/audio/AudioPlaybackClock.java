@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import javax.sound.sampled.DataLine;
+import org.libav.IPlaybackClock;
+
+/**
+ * Playback clock driven by the frame position of an audio data line. The 
+ * media time advances only while the audio is being played, so the video 
+ * presentation is slaved to the audio output (the audio is the master 
+ * clock). The frame position is interpolated using the system timer, 
+ * because some data lines update it in large steps.
+ * 
+ * NOTE:
+ * Use the SystemPlaybackClock if there is no audio stream, because this 
+ * clock does not move if nothing is played.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AudioPlaybackClock implements IPlaybackClock {
+
+    private static final long MAX_INTERPOLATION = 50;
+    
+    private final DataLine dataLine;
+    private final float frameRate;
+    
+    private long startTime;
+    private long startFrame;
+    private boolean running;
+    
+    private long lastFrame;
+    private long lastFrameNanos;
+    
+    private volatile long latency;
+    
+    /**
+     * Create a new audio playback clock.
+     * 
+     * @param dataLine an audio data line (see AudioStreamPlayer.getDataLine()
+     * or PlaybackMixer.getDataLine())
+     */
+    public AudioPlaybackClock(DataLine dataLine) {
+        this.dataLine = dataLine;
+        this.frameRate = dataLine.getFormat().getFrameRate();
+        
+        startTime = 0;
+        startFrame = 0;
+        running = false;
+        
+        lastFrame = 0;
+        lastFrameNanos = 0;
+        
+        latency = 0;
+    }
+    
+    /**
+     * Get the data line driving this clock.
+     * 
+     * @return data line
+     */
+    public DataLine getDataLine() {
+        return dataLine;
+    }
+    
+    /**
+     * Get the output latency compensation.
+     * 
+     * @return latency in milliseconds
+     */
+    public long getLatency() {
+        return latency;
+    }
+    
+    /**
+     * Set the output latency compensation. The clock is delayed by the given
+     * time. Use it if the data line frame position does not reflect the real
+     * output latency (e.g. pass the AudioStreamPlayer.getOutputLatency() 
+     * value for data lines reporting the position of the written frames).
+     * 
+     * @param latency latency in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+    
+    @Override
+    public synchronized void start(long time) {
+        startTime = time;
+        startFrame = dataLine.getLongFramePosition();
+        lastFrame = startFrame;
+        lastFrameNanos = System.nanoTime();
+        running = true;
+    }
+    
+    @Override
+    public synchronized void stop() {
+        startTime = getTime();
+        running = false;
+    }
+    
+    @Override
+    public synchronized boolean isRunning() {
+        return running;
+    }
+    
+    @Override
+    public synchronized long getTime() {
+        if (!running)
+            return startTime;
+        
+        long frame = dataLine.getLongFramePosition();
+        long now = System.nanoTime();
+        long interpolation = 0;
+        if (frame != lastFrame) {
+            lastFrame = frame;
+            lastFrameNanos = now;
+        } else if (dataLine.isActive())
+            interpolation = Math.min(MAX_INTERPOLATION, (now - lastFrameNanos) / 1000000);
+        
+        long time = startTime + (long)((frame - startFrame) * 1000 / frameRate) + interpolation - latency;
+        
+        return Math.max(startTime, time);
+    }
+
+}
@@ -18,6 +18,8 @@
 package org.libav.audio;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.sampled.*;
@@ -26,12 +28,23 @@ import javax.sound.sampled.*;
  * Audio stream player. It provides audio playback via Java Sound API. It does
  * not support audio mixing.
  * 
+ * The player writes samples into the data line in periods of a fixed size. 
+ * For low-latency playback, use an explicit (small) data line buffer size
+ * and a stream providing samples in the data line format (so no conversion 
+ * stream is necessary). The current output latency (the difference between
+ * the written frames and the data line frame position) is available via the
+ * getOutputLatency() method.
+ * 
  * @author Ondrej Perutka
  */
 public class AudioStreamPlayer {
     
+    private static final int PERIODS_PER_BUFFER = 4;
+    
     private SourceDataLine dataLine;
-    private AudioInputStream inputStream;
+    private InputStream inputStream;
+    private int periodSize;
+    private final AtomicLong writtenFrames;
     
     private boolean running;
     private boolean stop;
@@ -53,11 +66,27 @@ public class AudioStreamPlayer {
      * supported
      */
     public AudioStreamPlayer(AudioInputStream inputStream, SourceDataLine dataLine) {
+        this((InputStream)(dataLine.getFormat().matches(inputStream.getFormat()) ? inputStream : AudioSystem.getAudioInputStream(dataLine.getFormat(), inputStream)), dataLine);
+    }
+    
+    /**
+     * Create a new audio stream player and set the input stream and the data
+     * line. The input stream must provide samples in the data line format.
+     * 
+     * @param inputStream an input stream
+     * @param dataLine a data line
+     */
+    public AudioStreamPlayer(InputStream inputStream, SourceDataLine dataLine) {
+        AudioFormat af = dataLine.getFormat();
+        
         this.dataLine = dataLine;
-        if (dataLine.getFormat().matches(inputStream.getFormat()))
-            this.inputStream = inputStream;
-        else
-            this.inputStream = AudioSystem.getAudioInputStream(dataLine.getFormat(), inputStream);
+        this.inputStream = inputStream;
+        this.writtenFrames = new AtomicLong(dataLine.getLongFramePosition());
+        
+        // 10 ms by default or a quarter of the data line buffer
+        periodSize = (int)af.getSampleRate() * af.getSampleSizeInBits() * af.getChannels() / 800;
+        periodSize = Math.min(periodSize, dataLine.getBufferSize() / PERIODS_PER_BUFFER);
+        periodSize = Math.max(periodSize - periodSize % af.getFrameSize(), af.getFrameSize());
         
         this.running = false;
         this.stop = false;
@@ -82,7 +111,24 @@ public class AudioStreamPlayer {
      * supported
      */
     public AudioStreamPlayer(AudioInputStream inputStream, AudioFormat outputFormat) throws LineUnavailableException {
-        this(inputStream, openDataLine(outputFormat));
+        this(inputStream, openDataLine(outputFormat, 0));
+    }
+    
+    /**
+     * Create a new audio stream player, set the input stream and open a data
+     * line of the given format and buffer size. The input stream must provide
+     * samples in the given format. Use a small buffer size for low-latency
+     * playback.
+     * 
+     * @param inputStream an input stream
+     * @param outputFormat a data line format
+     * @param bufferSize a data line buffer size in bytes (zero or a negative 
+     * value means the default buffer size)
+     * @throws LineUnavailableException if there is no data line for the given
+     * data line format
+     */
+    public AudioStreamPlayer(InputStream inputStream, AudioFormat outputFormat, int bufferSize) throws LineUnavailableException {
+        this(inputStream, openDataLine(outputFormat, bufferSize));
     }
     
     /**
@@ -161,6 +207,52 @@ public class AudioStreamPlayer {
         return volume;
     }
     
+    /**
+     * Get size of the data written into the data line at once.
+     * 
+     * @return period size in bytes
+     */
+    public int getPeriodSize() {
+        return periodSize;
+    }
+    
+    /**
+     * Set size of the data written into the data line at once. The size is
+     * rounded down to a multiple of the frame size. It takes effect when the
+     * playback is started.
+     * 
+     * @param periodSize period size in bytes
+     */
+    public void setPeriodSize(int periodSize) {
+        int frameSize = dataLine.getFormat().getFrameSize();
+        this.periodSize = Math.max(periodSize - periodSize % frameSize, frameSize);
+    }
+    
+    /**
+     * Get the data line buffer size.
+     * 
+     * @return buffer size in bytes
+     */
+    public int getLineBufferSize() {
+        return dataLine.getBufferSize();
+    }
+    
+    /**
+     * Get the current output latency measured as the difference between 
+     * the number of frames written into the data line and the data line frame
+     * position. Use it to compensate a playback clock driven by the written
+     * samples.
+     * 
+     * @return output latency in milliseconds
+     */
+    public long getOutputLatency() {
+        long frames = writtenFrames.get() - dataLine.getLongFramePosition();
+        if (frames < 0)
+            return 0;
+        
+        return (long)(frames * 1000 / dataLine.getFormat().getFrameRate());
+    }
+    
     /**
      * Close the audio stream player and its data line.
      */
@@ -184,22 +276,35 @@ public class AudioStreamPlayer {
      */
     public void flushDataLine() {
         dataLine.flush();
+        writtenFrames.set(dataLine.getLongFramePosition());
+    }
+    
+    /**
+     * Get the output data line (e.g. to create an AudioPlaybackClock).
+     * 
+     * @return data line
+     */
+    public SourceDataLine getDataLine() {
+        return dataLine;
     }
     
     private class PlayerThread implements Runnable {
         @Override
         public void run() {
-            AudioFormat af = dataLine.getFormat();
-            byte[] frame = new byte[(int)af.getSampleRate() * af.getSampleSizeInBits() * af.getChannels() / 800];
-            int len;
+            int frameSize = dataLine.getFormat().getFrameSize();
+            byte[] period = new byte[periodSize];
+            int len = 0;
             
             dataLine.start();
             while (!stop) {
                 try {
-                    len = inputStream.read(frame);
-                    if (len == -1)
+                    len = readPeriod(period);
+                    if (len > 0) {
+                        dataLine.write(period, 0, len);
+                        writtenFrames.addAndGet(len / frameSize);
+                    }
+                    if (len < period.length)
                         break;
-                    dataLine.write(frame, 0, len);
                 } catch (IOException ex) {
                     if (ex.getCause() instanceof InterruptedException)
                         stop = true;
@@ -211,11 +316,31 @@ public class AudioStreamPlayer {
                 dataLine.drain();
             dataLine.stop();
         }
+        
+        /**
+         * Read the whole period unless the end of the stream is reached.
+         */
+        private int readPeriod(byte[] period) throws IOException {
+            int offset = 0;
+            int len;
+            
+            while (offset < period.length) {
+                len = inputStream.read(period, offset, period.length - offset);
+                if (len == -1)
+                    break;
+                offset += len;
+            }
+            
+            return offset;
+        }
     }
     
-    private static SourceDataLine openDataLine(AudioFormat format) throws LineUnavailableException {
+    private static SourceDataLine openDataLine(AudioFormat format, int bufferSize) throws LineUnavailableException {
         SourceDataLine result = AudioSystem.getSourceDataLine(format);
-        result.open(format);
+        if (bufferSize > 0)
+            result.open(format, bufferSize);
+        else
+            result.open(format);
         return result;
     }
     
@@ -17,6 +17,7 @@
  */
 package org.libav.audio;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -29,12 +30,21 @@ import org.libav.data.IFrameConsumer;
 /**
  * Frame to AudioFrame adapter. It translates frame wrappers to audio frames.
  * 
+ * By default, the resampled samples are copied into reference counted 
+ * frames taken from an audio frame pool, so consumers may retain them and 
+ * process them later. If transient frames are enabled, the produced audio 
+ * frames are views of native memory of the resampler (they are not copied) 
+ * and they are valid only until the processFrame() method of the audio frame 
+ * consumer returns.
+ * 
  * @author Ondrej Perutka
  */
 public class Frame2AudioFrameAdapter implements IFrameConsumer, IAudioFrameProducer {
 
     private AudioFrameResampler resampler;
     private final Set<IAudioFrameConsumer> consumers;
+    private final AudioFramePool framePool;
+    private volatile boolean transientFrames;
 
     /**
      * Create a new frame to audio frame adapter and set resampling parameters.
@@ -50,6 +60,8 @@ public class Frame2AudioFrameAdapter implements IFrameConsumer, IAudioFrameProdu
     public Frame2AudioFrameAdapter(long inputChannelLayout, long outputChannelLayout, int inputSampleRate, int outputSampleRate, SampleFormat inputSampleFormat, SampleFormat outputSampleFormat) throws LibavException {
         resampler = new AudioFrameResampler(inputChannelLayout, outputChannelLayout, inputSampleRate, outputSampleRate, inputSampleFormat, outputSampleFormat);
         consumers = Collections.synchronizedSet(new HashSet<IAudioFrameConsumer>());
+        framePool = new AudioFramePool();
+        transientFrames = false;
         
         resampler.addFrameConsumer(new ResampledFrameConsumer());
     }
@@ -132,11 +144,35 @@ public class Frame2AudioFrameAdapter implements IFrameConsumer, IAudioFrameProdu
         return resampler.getOutputSampleRate();
     }
     
+    /**
+     * Enable or disable transient frames. Transient frames are views of 
+     * native memory of the resampler, they are not copied but they are valid 
+     * only until the processFrame() method of the audio frame consumer 
+     * returns. Enable them only if all consumers process the frames 
+     * synchronously. They are disabled by default.
+     * 
+     * @param enabled true to produce transient frames, false to produce 
+     * reference counted frames
+     */
+    public void setTransientFramesEnabled(boolean enabled) {
+        transientFrames = enabled;
+    }
+    
+    /**
+     * Check whether transient frames are enabled.
+     * 
+     * @return true if transient frames are enabled, false otherwise
+     */
+    public boolean isTransientFramesEnabled() {
+        return transientFrames;
+    }
+    
     /**
      * Release all native resources.
      */
     public synchronized void dispose() {
         resampler.dispose();
+        framePool.dispose();
     }
 
     @Override
@@ -159,19 +195,50 @@ public class Frame2AudioFrameAdapter implements IFrameConsumer, IAudioFrameProdu
     }
     
     private class ResampledFrameConsumer implements IFrameConsumer {
+        private final AudioFrame audioFrame;
+        private ByteBuffer view;
+        private long viewPeer;
+        
+        public ResampledFrameConsumer() {
+            audioFrame = new AudioFrame(new byte[0], 0, null, 0);
+            view = null;
+            viewPeer = 0;
+        }
+        
         @Override
         public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
             Pointer<Byte> data = frame.getData().get();
             int length = frame.getLineSize().get();
             
-            AudioFrame af = new AudioFrame(data.getBytes(length), 
+            // the frame data usually stay at the same address, so the view
+            // of the native memory is reused
+            if (view == null || viewPeer != data.getPeer() || view.capacity() < length) {
+                view = data.getByteBuffer(length);
+                viewPeer = data.getPeer();
+            }
+            
+            audioFrame.set(view, length, 
                     resampler.getOutputChannelCount(), 
                     resampler.getOutputSampleFormat(), 
                     resampler.getOutputSampleRate());
+            
+            if (transientFrames) {
+                sendFrame(audioFrame);
+                return;
+            }
+            
+            AudioFrame af = framePool.copy(audioFrame);
+            try {
+                sendFrame(af);
+            } finally {
+                af.release();
+            }
+        }
         
+        private void sendFrame(AudioFrame frame) throws LibavException {
             synchronized (consumers) {
                 for (IAudioFrameConsumer c : consumers)
-                    c.processFrame(this, af);
+                    c.processFrame(this, frame);
             }
         }
     }
@@ -33,7 +33,8 @@ public interface IAudioFrameConsumer {
      * 
      * @param producer an audio frame decoder responsible for calling this
      * method and producing the audio frame
-     * @param frame an audio frame
+     * @param frame an audio frame (it is valid only until this method returns
+     * unless it is reference counted and retained, see AudioFrame)
      * @throws LibavException you may want to throw this type of exception
      * if you call some Libav function inside this method
      */
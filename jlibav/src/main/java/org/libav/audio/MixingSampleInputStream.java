@@ -19,11 +19,7 @@ package org.libav.audio;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -33,24 +29,40 @@ import javax.sound.sampled.AudioSystem;
  * audio input streams. It is usefull if you need to play multiple audio
  * streams via one data line.
  * 
+ * The samples are mixed in a preallocated floating point accumulator. 
+ * Volume changes are applied using a short linear ramp to avoid clicks and 
+ * the mixed signal is soft clipped. Audio input streams can be added and 
+ * removed while the mixing stream is being read.
+ * 
  * Currently it supports following target sample formats:
- * - 16bit PCM signed
- * - 16bit PCM unsigned
- * - 24bit PCM signed
- * - 24bit PCM unsigned
+ * - 8bit, 16bit, 24bit and 32bit PCM signed
+ * - 8bit, 16bit, 24bit and 32bit PCM unsigned
+ * - 32bit PCM float
  * 
  * @author Ondrej Perutka
  */
 public class MixingSampleInputStream extends InputStream {
 
-    private final Map<AudioInputStream, InputStreamInfo> streams;
+    private static final String PCM_FLOAT = "PCM_FLOAT";
+    
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int GAIN_RAMP_DURATION = 10;
+    private static final float SOFT_CLIP_KNEE = 0.8f;
+
+    private volatile InputStreamInfo[] streams;
+    private final Object streamsLock;
     private AudioFormat targetFormat;
-    private SampleConverter sc;
+    private SampleCodec codec;
     
-    private int sampleCount;
+    private int channelCount;
     private int sampleSize;
     private int frameSize;
-    private int[] samples;
+    private int gainRampLength;
+    private volatile boolean softClipping;
+    
+    private float[] mix;
+    private float[] samples;
+    private final byte[] singleByte;
 
     /**
      * Create a new mixing stream and set the target audio format.
@@ -59,29 +71,38 @@ public class MixingSampleInputStream extends InputStream {
      * @throws IllegalArgumentException if the audio format is not supported
      */
     public MixingSampleInputStream(AudioFormat targetFormat) {
-        this.streams = Collections.synchronizedMap(new HashMap<AudioInputStream, InputStreamInfo>());
+        this.streams = new InputStreamInfo[0];
+        this.streamsLock = new Object();
         this.targetFormat = targetFormat;
         
         frameSize = targetFormat.getFrameSize();
         sampleSize = targetFormat.getSampleSizeInBits() / 8;
-        sampleCount = frameSize / sampleSize;
-        samples = null;
+        channelCount = Math.max(1, frameSize / Math.max(1, sampleSize));
+        float sampleRate = targetFormat.getSampleRate();
+        gainRampLength = Math.max(1, (int)(sampleRate * GAIN_RAMP_DURATION / 1000));
+        softClipping = true;
         
-        boolean le = ByteOrder.LITTLE_ENDIAN.equals(ByteOrder.nativeOrder());
-        if (targetFormat.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)) {
-            switch (targetFormat.getSampleSizeInBits()) {
-                case 16: sc = le ? new Int16LEConverter() : new Int16BEConverter(); break;
-                case 24: sc = le ? new Int24LEConverter() : new Int24BEConverter(); break;
-                default: throw new IllegalArgumentException("unsupported sample size");
-            }
-        } else if (targetFormat.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+        boolean be = targetFormat.isBigEndian();
+        String encoding = targetFormat.getEncoding().toString();
+        boolean signed = encoding.equals(AudioFormat.Encoding.PCM_SIGNED.toString());
+        if (signed || encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED.toString())) {
             switch (targetFormat.getSampleSizeInBits()) {
-                case 16: sc = le ? new UInt16LEConverter() : new UInt16BEConverter(); break;
-                case 24: sc = le ? new UInt24LEConverter() : new UInt24BEConverter(); break;
+                case 8: codec = new Int8Codec(signed); break;
+                case 16: codec = new Int16Codec(be, signed); break;
+                case 24: codec = new Int24Codec(be, signed); break;
+                case 32: codec = new Int32Codec(be, signed); break;
                 default: throw new IllegalArgumentException("unsupported sample size");
             }
+        } else if (encoding.equals(PCM_FLOAT)) {
+            if (targetFormat.getSampleSizeInBits() != 32)
+                throw new IllegalArgumentException("unsupported sample size");
+            codec = new Float32Codec(be);
         } else
             throw new IllegalArgumentException("unsupported sample encoding");
+        
+        mix = new float[DEFAULT_BUFFER_SIZE];
+        samples = new float[DEFAULT_BUFFER_SIZE];
+        singleByte = new byte[1];
     }
 
     /**
@@ -104,6 +125,26 @@ public class MixingSampleInputStream extends InputStream {
         return AudioSystem.isConversionSupported(targetFormat, af);
     }
     
+    /**
+     * Enable or disable soft clipping of the mixed signal. If it is enabled,
+     * peaks above 80% of the full scale are smoothly compressed. Otherwise 
+     * the signal is hard clipped at the full scale. It is enabled by default.
+     * 
+     * @param enabled true to enable soft clipping, false otherwise
+     */
+    public void setSoftClippingEnabled(boolean enabled) {
+        softClipping = enabled;
+    }
+    
+    /**
+     * Check whether soft clipping of the mixed signal is enabled.
+     * 
+     * @return true if soft clipping is enabled, false otherwise
+     */
+    public boolean isSoftClippingEnabled() {
+        return softClipping;
+    }
+    
     /**
      * Add an audio stream to the mixer.
      * 
@@ -117,7 +158,17 @@ public class MixingSampleInputStream extends InputStream {
         if (!targetFormat.matches(ais.getFormat()))
             ais = AudioSystem.getAudioInputStream(targetFormat, ais);
         
-        streams.put(key, new InputStreamInfo(ais));
+        synchronized (streamsLock) {
+            InputStreamInfo[] tmp = streams;
+            int i = indexOf(tmp, key);
+            if (i < 0) {
+                tmp = Arrays.copyOf(tmp, tmp.length + 1);
+                i = tmp.length - 1;
+            } else
+                tmp = tmp.clone();
+            tmp[i] = new InputStreamInfo(key, ais);
+            streams = tmp;
+        }
     }
     
     /**
@@ -126,21 +177,33 @@ public class MixingSampleInputStream extends InputStream {
      * @param ais an audio input stream
      */
     public void removeAudioInputStream(AudioInputStream ais) {
-        streams.remove(ais);
+        synchronized (streamsLock) {
+            InputStreamInfo[] tmp = streams;
+            int i = indexOf(tmp, ais);
+            if (i < 0)
+                return;
+            
+            InputStreamInfo[] result = new InputStreamInfo[tmp.length - 1];
+            System.arraycopy(tmp, 0, result, 0, i);
+            System.arraycopy(tmp, i + 1, result, i, result.length - i);
+            streams = result;
+        }
     }
     
     /**
-     * Set the volume of the given stream.
+     * Set the volume of the given stream. The volume is changed smoothly 
+     * within a few milliseconds.
      * 
      * @param ais an audio input stream
      * @param volume a volume
      */
     public void setStreamVolume(AudioInputStream ais, float volume) {
-        InputStreamInfo isi = streams.get(ais);
-        if (isi == null)
+        InputStreamInfo[] tmp = streams;
+        int i = indexOf(tmp, ais);
+        if (i < 0)
             return;
         
-        isi.setVolume(volume);
+        tmp[i].setVolume(volume);
     }
     
     /**
@@ -150,25 +213,38 @@ public class MixingSampleInputStream extends InputStream {
      * @return the volume or -1 if the stream is not known
      */
     public float getStreamVolume(AudioInputStream ais) {
-        InputStreamInfo isi = streams.get(ais);
-        if (isi == null)
+        InputStreamInfo[] tmp = streams;
+        int i = indexOf(tmp, ais);
+        if (i < 0)
             return -1;
         
-        return isi.getVolume();
+        return tmp[i].getVolume();
+    }
+    
+    private static int indexOf(InputStreamInfo[] streams, AudioInputStream ais) {
+        for (int i = 0; i < streams.length; i++) {
+            if (streams[i].getKey() == ais)
+                return i;
+        }
+        
+        return -1;
     }
     
     @Override
     public int available() {
-        return streams.isEmpty() ? 0 : frameSize;
+        return streams.length == 0 ? 0 : frameSize;
     }
 
     @Override
     public void close() throws IOException {
-        synchronized (streams) {
-            for (InputStreamInfo isi : streams.values())
-                isi.getStream().close();
-            streams.clear();
+        InputStreamInfo[] tmp;
+        synchronized (streamsLock) {
+            tmp = streams;
+            streams = new InputStreamInfo[0];
         }
+        
+        for (InputStreamInfo isi : tmp)
+            isi.getStream().close();
     }
 
     @Override
@@ -185,17 +261,16 @@ public class MixingSampleInputStream extends InputStream {
     }
 
     @Override
-    public int read() throws IOException {
+    public synchronized int read() throws IOException {
         if (frameSize != 1)
             throw new IOException("the audio frame size is greather than one byte, cannot read integral number of frames");
         
-        byte[] result = new byte[1];
-        int len = read(result);
+        int len = read(singleByte, 0, 1);
         
         if (len == -1)
             return -1;
         
-        return result[0];
+        return singleByte[0];
     }
 
     @Override
@@ -204,36 +279,127 @@ public class MixingSampleInputStream extends InputStream {
     }
 
     @Override
-    public int read(byte[] b, int off, int len) throws IOException {
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
         int fcount = len / frameSize;
-        int result, vol;
+        int count = fcount * channelCount;
+        int result;
         
-        if (samples == null || samples.length != (fcount * sampleCount))
-            samples = new int[fcount * sampleCount];
-        Arrays.fill(samples, 0);
+        if (mix.length < count) {
+            mix = new float[count];
+            samples = new float[count];
+        }
+        Arrays.fill(mix, 0, count, 0f);
         
         len = fcount * frameSize;
-        for (InputStreamInfo isi : streams.values()) {
+        for (InputStreamInfo isi : streams) {
             result = isi.getStream().read(b, off, len);
-            if (result == -1)
+            if (result <= 0)
                 continue;
             result /= sampleSize;
-            vol = (int)(isi.getVolume() * 100);
-            sc.getSamples(b, off, samples, result, vol);
+            codec.decode(b, off, samples, result);
+            accumulate(isi, result);
         }
         
-        sc.getBytes(samples, b, off);
+        if (softClipping)
+            softClip(mix, count);
+        else
+            hardClip(mix, count);
+        codec.encode(mix, b, off, count);
         
         return len;
     }
     
+    /**
+     * Add the decoded samples multiplied by the stream gain into the mixing 
+     * accumulator. The gain is ramped linearly (per audio frame) towards 
+     * the stream volume.
+     */
+    private void accumulate(InputStreamInfo isi, int count) {
+        final float[] m = mix;
+        final float[] s = samples;
+        float target = isi.getVolume();
+        float gain = isi.gain;
+        int i = 0;
+        
+        if (gain != target) {
+            if (target != isi.rampTarget) {
+                isi.rampTarget = target;
+                isi.rampStep = (target - gain) / gainRampLength;
+                isi.rampLeft = gainRampLength;
+            }
+            
+            float step = isi.rampStep;
+            int frames = Math.min(isi.rampLeft, count / channelCount);
+            for (int f = 0; f < frames; f++) {
+                gain += step;
+                for (int c = 0; c < channelCount; c++, i++)
+                    m[i] += s[i] * gain;
+            }
+            
+            // the ramp length is counted in frames, so the rounding errors 
+            // of the step cannot make it overshoot
+            isi.rampLeft -= frames;
+            isi.gain = isi.rampLeft == 0 ? target : gain;
+            gain = isi.gain;
+        }
+        
+        if (gain == 1f) {
+            for (; i < count; i++)
+                m[i] += s[i];
+        } else {
+            for (; i < count; i++)
+                m[i] += s[i] * gain;
+        }
+    }
+    
+    private static void hardClip(float[] mix, int count) {
+        for (int i = 0; i < count; i++)
+            mix[i] = Math.max(-1f, Math.min(1f, mix[i]));
+    }
+    
+    /**
+     * Samples above the knee are compressed using x / (1 + x), so the curve 
+     * is continuous, it has unit slope at the knee and it never reaches the 
+     * full scale.
+     */
+    private static void softClip(float[] mix, int count) {
+        final float k = SOFT_CLIP_KNEE;
+        final float r = 1f - k;
+        float a, x;
+        
+        for (int i = 0; i < count; i++) {
+            a = Math.abs(mix[i]);
+            if (a > k) {
+                x = (a - k) / r;
+                mix[i] = Math.copySign(k + r * x / (1f + x), mix[i]);
+            }
+        }
+    }
+    
     private static class InputStreamInfo {
+        private AudioInputStream key;
         private AudioInputStream ais;
-        private float volume;
+        private volatile float volume;
+
+        // accessed only by the reading thread
+        private float gain;
+        private float rampTarget;
+        private float rampStep;
+        private int rampLeft;
 
-        public InputStreamInfo(AudioInputStream ais) {
+        public InputStreamInfo(AudioInputStream key, AudioInputStream ais) {
+            this.key = key;
             this.ais = ais;
             this.volume = 1f;
+            
+            gain = 1f;
+            rampTarget = 1f;
+            rampStep = 0f;
+            rampLeft = 0;
+        }
+
+        public AudioInputStream getKey() {
+            return key;
         }
 
         public AudioInputStream getStream() {
@@ -249,214 +415,176 @@ public class MixingSampleInputStream extends InputStream {
         }
     }
     
-    private static interface SampleConverter {
-        void getSamples(byte[] data, int offset, int[] samples, int count, int volume);
-        void getBytes(int[] samples, byte[] data, int dataOffset);
+    /**
+     * Conversion between the target sample format and normalized float 
+     * samples (full scale is 1.0).
+     */
+    private static interface SampleCodec {
+        void decode(byte[] data, int offset, float[] samples, int count);
+        void encode(float[] samples, byte[] data, int offset, int count);
     }
     
-    private static class Int16LEConverter implements SampleConverter {
-        protected int min;
-        protected int max;
+    private static class Int8Codec implements SampleCodec {
+        private static final float SCALE = 1 << 7;
+        private static final float ISCALE = 1f / SCALE;
         
-        public Int16LEConverter() {
-            min = -1 << 15;
-            max = (1 << 15) - 1;
+        private int flip;
+
+        public Int8Codec(boolean signed) {
+            flip = signed ? 0 : 0x80;
         }
         
         @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] & 0xff;
-                samples[i] |= data[offset++] << 8;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
+        public void decode(byte[] data, int offset, float[] samples, int count) {
+            for (int i = 0; i < count; i++)
+                samples[i] = (byte)(data[offset + i] ^ flip) * ISCALE;
         }
-        
+
         @Override
-        public void getBytes(int[] samples, byte[] data, int dataOffset) {
+        public void encode(float[] samples, byte[] data, int offset, int count) {
             int sample;
-            
-            for (int i = 0; i < samples.length; i++) {
-                sample = samples[i];
-                if (sample > max) sample = max;
-                else if (sample < min) sample = min;
-                data[dataOffset++] = (byte)sample;
-                data[dataOffset++] = (byte)(sample >> 8);
+            for (int i = 0; i < count; i++) {
+                sample = Math.min((int)(samples[i] * SCALE), 0x7f);
+                data[offset + i] = (byte)(sample ^ flip);
             }
         }
     }
     
-    private static class Int16BEConverter implements SampleConverter {
-        protected int min;
-        protected int max;
+    private static class Int16Codec implements SampleCodec {
+        private static final float SCALE = 1 << 15;
+        private static final float ISCALE = 1f / SCALE;
         
-        public Int16BEConverter() {
-            min = -1 << 15;
-            max = (1 << 15) - 1;
-        }
+        private int hi;
+        private int lo;
+        private int flip;
 
-        @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] << 8;
-                samples[i] |= data[offset++] & 0xff;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
+        public Int16Codec(boolean bigEndian, boolean signed) {
+            hi = bigEndian ? 0 : 1;
+            lo = bigEndian ? 1 : 0;
+            flip = signed ? 0 : 0x8000;
         }
 
         @Override
-        public void getBytes(int[] samples, byte[] data, int dataOffset) {
+        public void decode(byte[] data, int offset, float[] samples, int count) {
             int sample;
-            
-            for (int i = 0; i < samples.length; i++) {
-                sample = samples[i];
-                if (sample > max) sample = max;
-                else if (sample < min) sample = min;
-                data[dataOffset++] = (byte)(sample >> 8);
-                data[dataOffset++] = (byte)sample;
+            for (int i = 0, j = offset; i < count; i++, j += 2) {
+                sample = ((data[j + hi] & 0xff) << 8 | (data[j + lo] & 0xff)) ^ flip;
+                samples[i] = (short)sample * ISCALE;
             }
         }
-    }
-    
-    private static class UInt16LEConverter extends Int16LEConverter {
-        public UInt16LEConverter() {
-            min = 0;
-            max = (1 << 16) - 1;
-        }
         
         @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] & 0xff;
-                samples[i] |= (data[offset++] & 0xff) << 8;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
-        }
-    }
-    
-    private static class UInt16BEConverter extends Int16BEConverter {
-        public UInt16BEConverter() {
-            min = 0;
-            max = (1 << 16) - 1;
-        }
-
-        @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = (data[offset++] & 0xff) << 8;
-                samples[i] |= data[offset++] & 0xff;
-                samples[i] *= volume;
-                samples[i] /= 100;
+        public void encode(float[] samples, byte[] data, int offset, int count) {
+            int sample;
+            for (int i = 0, j = offset; i < count; i++, j += 2) {
+                sample = Math.min((int)(samples[i] * SCALE), 0x7fff) ^ flip;
+                data[j + hi] = (byte)(sample >> 8);
+                data[j + lo] = (byte)sample;
             }
         }
     }
     
-    private static class Int24LEConverter implements SampleConverter {
-        protected int min;
-        protected int max;
+    private static class Int24Codec implements SampleCodec {
+        private static final float SCALE = 1 << 23;
+        private static final float ISCALE = 1f / SCALE;
         
-        public Int24LEConverter() {
-            min = -1 << 23;
-            max = (1 << 23) - 1;
+        private int b2;
+        private int b1;
+        private int b0;
+        private int flip;
+
+        public Int24Codec(boolean bigEndian, boolean signed) {
+            b2 = bigEndian ? 0 : 2;
+            b1 = 1;
+            b0 = bigEndian ? 2 : 0;
+            flip = signed ? 0 : 0x800000;
         }
 
         @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] & 0xff;
-                samples[i] |= (data[offset++] & 0xff) << 8;
-                samples[i] |= data[offset++] << 16;
-                samples[i] *= volume;
-                samples[i] /= 100;
+        public void decode(byte[] data, int offset, float[] samples, int count) {
+            int sample;
+            for (int i = 0, j = offset; i < count; i++, j += 3) {
+                sample = ((data[j + b2] & 0xff) << 16 | (data[j + b1] & 0xff) << 8 | (data[j + b0] & 0xff)) ^ flip;
+                samples[i] = (sample << 8 >> 8) * ISCALE;
             }
         }
 
         @Override
-        public void getBytes(int[] samples, byte[] data, int dataOffset) {
+        public void encode(float[] samples, byte[] data, int offset, int count) {
             int sample;
-            
-            for (int i = 0; i < samples.length; i++) {
-                sample = samples[i];
-                if (sample > max) sample = max;
-                else if (sample < min) sample = min;
-                data[dataOffset++] = (byte)sample;
-                data[dataOffset++] = (byte)(sample >> 8);
-                data[dataOffset++] = (byte)(sample >> 16);
+            for (int i = 0, j = offset; i < count; i++, j += 3) {
+                sample = Math.min((int)(samples[i] * SCALE), 0x7fffff) ^ flip;
+                data[j + b2] = (byte)(sample >> 16);
+                data[j + b1] = (byte)(sample >> 8);
+                data[j + b0] = (byte)sample;
             }
         }
     }
     
-    private static class Int24BEConverter implements SampleConverter {
-        protected int min;
-        protected int max;
+    private static class Int32Codec implements SampleCodec {
+        private static final float SCALE = 2147483648f;
+        private static final float ISCALE = 1f / SCALE;
         
-        public Int24BEConverter() {
-            min = -1 << 23;
-            max = (1 << 23) - 1;
-        }
+        private boolean bigEndian;
+        private int flip;
 
+        public Int32Codec(boolean bigEndian, boolean signed) {
+            this.bigEndian = bigEndian;
+            flip = signed ? 0 : 0x80000000;
+        }
+        
         @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] << 16;
-                samples[i] |= (data[offset++] & 0xff) << 8;
-                samples[i] |= data[offset++] & 0xff;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
+        public void decode(byte[] data, int offset, float[] samples, int count) {
+            for (int i = 0, j = offset; i < count; i++, j += 4)
+                samples[i] = (getInt(data, j, bigEndian) ^ flip) * ISCALE;
         }
 
         @Override
-        public void getBytes(int[] samples, byte[] data, int dataOffset) {
-            int sample;
-            
-            for (int i = 0; i < samples.length; i++) {
-                sample = samples[i];
-                if (sample > max) sample = max;
-                else if (sample < min) sample = min;
-                data[dataOffset++] = (byte)(sample >> 16);
-                data[dataOffset++] = (byte)(sample >> 8);
-                data[dataOffset++] = (byte)sample;
-            }
+        public void encode(float[] samples, byte[] data, int offset, int count) {
+            // float to int conversion saturates at the full scale
+            for (int i = 0, j = offset; i < count; i++, j += 4)
+                putInt(data, j, (int)(samples[i] * SCALE) ^ flip, bigEndian);
         }
     }
     
-    private static class UInt24LEConverter extends Int24LEConverter {
-        public UInt24LEConverter() {
-            min = 0;
-            max = (1 << 24) - 1;
+    private static class Float32Codec implements SampleCodec {
+        private boolean bigEndian;
+
+        public Float32Codec(boolean bigEndian) {
+            this.bigEndian = bigEndian;
         }
 
         @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = data[offset++] & 0xff;
-                samples[i] |= (data[offset++] & 0xff) << 8;
-                samples[i] |= (data[offset++] & 0xff) << 16;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
+        public void decode(byte[] data, int offset, float[] samples, int count) {
+            for (int i = 0, j = offset; i < count; i++, j += 4)
+                samples[i] = Float.intBitsToFloat(getInt(data, j, bigEndian));
+        }
+
+        @Override
+        public void encode(float[] samples, byte[] data, int offset, int count) {
+            for (int i = 0, j = offset; i < count; i++, j += 4)
+                putInt(data, j, Float.floatToRawIntBits(samples[i]), bigEndian);
         }
     }
     
-    private static class UInt24BEConverter extends Int24BEConverter {
-        public UInt24BEConverter() {
-            min = 0;
-            max = (1 << 24) - 1;
-        }
+    private static int getInt(byte[] data, int offset, boolean bigEndian) {
+        if (bigEndian)
+            return data[offset] << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+        
+        return data[offset + 3] << 24 | (data[offset + 2] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | (data[offset] & 0xff);
+    }
 
-        @Override
-        public void getSamples(byte[] data, int offset, int[] samples, int count, int volume) {
-            for (int i = 0; i < count; i++) {
-                samples[i] = (data[offset++] & 0xff) << 16;
-                samples[i] |= (data[offset++] & 0xff) << 8;
-                samples[i] |= data[offset++] & 0xff;
-                samples[i] *= volume;
-                samples[i] /= 100;
-            }
+    private static void putInt(byte[] data, int offset, int value, boolean bigEndian) {
+        if (bigEndian) {
+            data[offset] = (byte)(value >> 24);
+            data[offset + 1] = (byte)(value >> 16);
+            data[offset + 2] = (byte)(value >> 8);
+            data[offset + 3] = (byte)value;
+        } else {
+            data[offset + 3] = (byte)(value >> 24);
+            data[offset + 2] = (byte)(value >> 16);
+            data[offset + 1] = (byte)(value >> 8);
+            data[offset] = (byte)value;
         }
     }
 
@@ -23,11 +23,16 @@ import java.util.Map;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
 
 /**
  * Playback mixer. It is an audio stream player which allows you to play 
  * multiple audio streams via one data line.
  * 
+ * The mixed samples are written into the data line directly (without any
+ * conversion stream). A mixer with a small data line buffer can be used for 
+ * low-latency playback (see the getMixer(AudioFormat, int) method).
+ * 
  * @author Ondrej Perutka
  */
 public class PlaybackMixer {
@@ -41,14 +46,17 @@ public class PlaybackMixer {
     }
     
     private MixingSampleInputStream mixingStream;
-    private AudioInputStream as;
+    private AudioFormat format;
     private AudioStreamPlayer asp;
+    private int requestedLineBufferSize;
     
-    private PlaybackMixer(AudioFormat af) throws LineUnavailableException {
+    private PlaybackMixer(AudioFormat af, int lineBufferSize) throws LineUnavailableException {
         mixingStream = new MixingSampleInputStream(af);
-        as = new AudioInputStream(mixingStream, af, -1);
+        format = af;
+        requestedLineBufferSize = lineBufferSize;
         
-        asp = new AudioStreamPlayer(as, af);
+        // the mixing stream produces samples in the target format already
+        asp = new AudioStreamPlayer(mixingStream, af, lineBufferSize);
     }
     
     /**
@@ -81,6 +89,35 @@ public class PlaybackMixer {
         asp.flushDataLine();
     }
     
+    /**
+     * Get the output data line of this mixer (e.g. to create an 
+     * AudioPlaybackClock).
+     * 
+     * @return data line
+     */
+    public SourceDataLine getDataLine() {
+        return asp.getDataLine();
+    }
+    
+    /**
+     * Get the data line buffer size.
+     * 
+     * @return buffer size in bytes
+     */
+    public int getLineBufferSize() {
+        return asp.getLineBufferSize();
+    }
+    
+    /**
+     * Get the current output latency (see 
+     * AudioStreamPlayer.getOutputLatency()).
+     * 
+     * @return output latency in milliseconds
+     */
+    public long getOutputLatency() {
+        return asp.getOutputLatency();
+    }
+    
     private void close() {
         asp.close();
     }
@@ -91,7 +128,7 @@ public class PlaybackMixer {
      * @return audio format
      */
     public AudioFormat getAudioFormat() {
-        return as.getFormat();
+        return format;
     }
     
     /**
@@ -205,11 +242,38 @@ public class PlaybackMixer {
      * not available
      */
     public static PlaybackMixer getMixer(AudioFormat outputFormat) throws LineUnavailableException {
+        return getMixer(outputFormat, 0);
+    }
+    
+    /**
+     * Get mixer for the given target audio format. If there is no such mixer,
+     * a new one is created and its data line is opened with the given buffer 
+     * size. Use a small buffer size for low-latency playback. 
+     * 
+     * There is only one mixer for each audio format. If the mixer already 
+     * exists, the buffer size must be either zero or equal to the buffer size
+     * the mixer was created with. Close the mixer first to change its buffer
+     * size.
+     * 
+     * @param outputFormat an audio format
+     * @param lineBufferSize a data line buffer size in bytes (zero means the
+     * default buffer size)
+     * @return mixer
+     * @throws LineUnavailableException if the data line of the given type is
+     * not available
+     * @throws IllegalStateException if the mixer already exists and it was
+     * created with a different buffer size
+     */
+    public static PlaybackMixer getMixer(AudioFormat outputFormat, int lineBufferSize) throws LineUnavailableException {
         synchronized (instances) {
-            if (!instances.containsKey(outputFormat))
-                instances.put(outputFormat, new PlaybackMixer(outputFormat));
+            PlaybackMixer result = instances.get(outputFormat);
+            if (result == null) {
+                result = new PlaybackMixer(outputFormat, lineBufferSize);
+                instances.put(outputFormat, result);
+            } else if (lineBufferSize > 0 && lineBufferSize != result.requestedLineBufferSize)
+                throw new IllegalStateException("mixer for the given format already exists with a different data line buffer size");
             
-            return instances.get(outputFormat);
+            return result;
         }
     }
     
@@ -19,7 +19,9 @@ package org.libav.audio;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.libav.LibavException;
@@ -28,18 +30,30 @@ import org.libav.LibavException;
  * Sample input stream. It is an adapter between an audio frame consumer and
  * audio input stream.
  * 
+ * The samples are stored in a ring buffer designed for one producer thread
+ * (calling the processFrame() method) and one consumer thread (reading the 
+ * stream). The read and write positions are published using volatile 
+ * fields, so neither side takes a lock unless it has to wait because the 
+ * buffer is empty or full. The stream is also a readable byte channel.
+ * 
  * @author Ondrej Perutka
  */
-public class SampleInputStream extends InputStream implements IAudioFrameConsumer {
+public class SampleInputStream extends InputStream implements IAudioFrameConsumer, ReadableByteChannel {
 
     private final byte[] buffer;
-    private int front;
-    private int end;
-    private int size;
-    private boolean blockingFrameProcessing;
-    private Semaphore emptySpace;
+    private final AtomicLong readPosition;
+    private volatile long writePosition;
+    private volatile boolean blockingFrameProcessing;
+    
+    private final Object lock;
+    private volatile boolean readerWaiting;
+    private volatile boolean writerWaiting;
+    
+    private volatile boolean eof;
     
-    private boolean eof;
+    private final AtomicLong underruns;
+    private final AtomicLong overruns;
+    private final AtomicLong droppedBytes;
     
     /**
      * Create a new sample input stream and set its buffer size. The buffer size
@@ -69,13 +83,19 @@ public class SampleInputStream extends InputStream implements IAudioFrameConsume
      */
     public SampleInputStream(int bufferSize, boolean blockingFrameProcessing) {
         this.buffer = new byte[bufferSize];
-        this.front = 0;
-        this.end = 0;
-        this.size = 0;
+        this.readPosition = new AtomicLong(0);
+        this.writePosition = 0;
         this.blockingFrameProcessing = blockingFrameProcessing;
-        this.emptySpace = new Semaphore(bufferSize);
+        
+        this.lock = new Object();
+        this.readerWaiting = false;
+        this.writerWaiting = false;
         
         this.eof = false;
+        
+        this.underruns = new AtomicLong(0);
+        this.overruns = new AtomicLong(0);
+        this.droppedBytes = new AtomicLong(0);
     }
 
     /**
@@ -106,77 +126,193 @@ public class SampleInputStream extends InputStream implements IAudioFrameConsume
      */
     public void setBlockingFrameProcessing(boolean blockingFrameProcessing) {
         this.blockingFrameProcessing = blockingFrameProcessing;
+        signal();
+    }
+    
+    /**
+     * Get number of reads which had to wait for data because the buffer was
+     * empty.
+     * 
+     * @return number of underruns
+     */
+    public long getUnderrunCount() {
+        return underruns.get();
+    }
+    
+    /**
+     * Get number of frames which did not fit into the buffer. The producer 
+     * either waited for the consumer (blocking frame processing) or some data
+     * were dropped.
+     * 
+     * @return number of overruns
+     */
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+    
+    /**
+     * Get number of bytes dropped because of overruns.
+     * 
+     * @return number of dropped bytes
+     */
+    public long getDroppedByteCount() {
+        return droppedBytes.get();
+    }
+    
+    /**
+     * Reset the underrun, overrun and dropped byte counters.
+     */
+    public void resetCounters() {
+        underruns.set(0);
+        overruns.set(0);
+        droppedBytes.set(0);
+    }
+    
+    /**
+     * Get the buffer size.
+     * 
+     * @return buffer size
+     */
+    public int getBufferSize() {
+        return buffer.length;
     }
     
     private int dropBufferData(int len) {
-        synchronized (buffer) {
+        long rp, wp;
+        do {
+            rp = readPosition.get();
+            wp = writePosition;
+            if (len > wp - rp)
+                len = (int)(wp - rp);
             if (len <= 0)
                 return 0;
-            len = len < size ? len : size;
-            front = (front + len) % buffer.length;
-            size -= len;
-            if (blockingFrameProcessing)
-                emptySpace.release(len);
-            return len;
-        }
+        } while (!readPosition.compareAndSet(rp, rp + len));
+        
+        signal();
+        return len;
     }
     
     /**
      * Drop all data stored inside the buffer.
      */
     public void flushBuffer() {
-        synchronized (buffer) {
-            dropBufferData(size);
+        dropBufferData(buffer.length);
+    }
+    
+    private void signal() {
+        if (readerWaiting || writerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
         }
     }
 
     @Override
     public void processFrame(Object producer, AudioFrame frame) throws LibavException {
-        int tmp, len = frame.getFrameSize();
-        byte[] data = frame.getSamples();
+        int len = frame.getFrameSize();
         
         if (len > buffer.length)
             throw new LibavException("sample stream buffer is smaller than frame");
-        if (blockingFrameProcessing) {
+        if (eof)
+            return;
+        
+        long wp = writePosition;
+        if (buffer.length - (wp - readPosition.get()) < len) {
+            overruns.incrementAndGet();
+            if (!makeSpace(wp, len))
+                return;
+        }
+        
+        // copy straight from the frame memory (e.g. native memory)
+        int index = (int)(wp % buffer.length);
+        int tmp = buffer.length - index;
+        if (tmp < len) {
+            frame.getSamples(0, buffer, index, tmp);
+            frame.getSamples(tmp, buffer, 0, len - tmp);
+        } else
+            frame.getSamples(0, buffer, index, len);
+        
+        writePosition = wp + len;
+        if (readerWaiting)
+            signal();
+    }
+    
+    private boolean makeSpace(long wp, int len) {
+        long rp;
+        
+        if (!blockingFrameProcessing) {
+            // move the read position forward, the reader detects it and 
+            // drops data it may be reading at the same time
+            while ((rp = readPosition.get()) + buffer.length - wp < len) {
+                if (readPosition.compareAndSet(rp, wp + len - buffer.length))
+                    droppedBytes.addAndGet(wp + len - buffer.length - rp);
+            }
+            return true;
+        }
+        
+        synchronized (lock) {
+            writerWaiting = true;
             try {
-                emptySpace.acquire(len);
+                while (buffer.length - (wp - readPosition.get()) < len && blockingFrameProcessing && !eof)
+                    lock.wait();
             } catch (InterruptedException ex) {
                 Logger.getLogger(getClass().getName()).log(Level.WARNING, "interrupted while waiting for empty space");
-                return;
+                return false;
+            } finally {
+                writerWaiting = false;
             }
         }
         
-        synchronized (buffer) {
-            if (len > (buffer.length - size) && !blockingFrameProcessing)
-                dropBufferData(len - buffer.length + size);
+        if (eof)
+            return false;
             
-            tmp = buffer.length - end;
-            if (tmp < len) {
-                System.arraycopy(data, 0, buffer, end, tmp);
-                System.arraycopy(data, tmp, buffer, 0, len - tmp);
-            } else
-                System.arraycopy(data, 0, buffer, end, len);
+        return blockingFrameProcessing || makeSpace(wp, len);
+    }
             
-            end = (end + len) % buffer.length;
-            size += len;
+    /**
+     * Wait until there are some data available. Returns false in case of 
+     * EOF.
+     */
+    private boolean waitForData() throws IOException {
+        if (writePosition != readPosition.get())
+            return true;
+        if (eof)
+            return false;
             
-            buffer.notifyAll();
+        underruns.incrementAndGet();
+        synchronized (lock) {
+            readerWaiting = true;
+            try {
+                while (writePosition == readPosition.get() && !eof)
+                    lock.wait();
+            } catch (InterruptedException ex) {
+                throw new IOException("interrupted while waiting for data", ex);
+            } finally {
+                readerWaiting = false;
+            }
         }
+        
+        return writePosition != readPosition.get();
     }
     
     @Override
     public int available() throws IOException {
-        return size;
+        return (int)(writePosition - readPosition.get());
     }
 
     @Override
     public void close() throws IOException {
-        synchronized (buffer) {
-            eof = true;
-            flushBuffer();
-            buffer.notifyAll();
+        eof = true;
+        flushBuffer();
+        synchronized (lock) {
+            lock.notifyAll();
         }
     }
+    
+    @Override
+    public boolean isOpen() {
+        return !eof;
+    }
 
     @Override
     public synchronized void mark(int i) {
@@ -193,26 +329,20 @@ public class SampleInputStream extends InputStream implements IAudioFrameConsume
 
     @Override
     public int read() throws IOException {
-        synchronized (buffer) {
-            while (true) {
-                if (size > 0) {
-                    byte result = buffer[front];
-                    front = (front + 1) % buffer.length;
-                    size--;
-                    if (blockingFrameProcessing)
-                        emptySpace.release();
-                    return result;
-                } else if (eof)
-                    return -1;
-                else {
-                    try {
-                        buffer.wait();
-                    } catch (InterruptedException ex) {
-                        throw new IOException("interrupted while waiting for data", ex);
-                    }
-                }
-            }
-        }
+        long rp;
+        byte result;
+        
+        do {
+            if (!waitForData())
+                return -1;
+            rp = readPosition.get();
+            result = buffer[(int)(rp % buffer.length)];
+        } while (!readPosition.compareAndSet(rp, rp + 1));
+        
+        if (writerWaiting)
+            signal();
+        
+        return result & 0xff;
     }
 
     @Override
@@ -229,41 +359,77 @@ public class SampleInputStream extends InputStream implements IAudioFrameConsume
         if (len == 0)
             return 0;
         
-        synchronized (buffer) {
-            int rest = len;
-            while (rest > 0) {
-                if (size > 0) {
-                    int readLen = buffer.length - front;
-                    if (readLen > rest)
-                        readLen = rest;
-                    if (readLen > size)
-                        readLen = size;
-                    System.arraycopy(buffer, front, bytes, off, readLen);
-                    off += readLen;
-                    rest -= readLen;
-                    front = (front + readLen) % buffer.length;
-                    size -= readLen;
-                    if (blockingFrameProcessing)
-                        emptySpace.release(readLen);
-                } else if (!eof) {
-                    try {
-                        buffer.wait();
-                    } catch (InterruptedException ex) {
-                        throw new IOException("interrupted while waiting for data", ex);
-                    }
-                } else if (rest == len)
-                    return -1;
-                else
-                    return len - rest;
-            }
+        int rest = len;
+        int readLen;
+        while (rest > 0) {
+            if (!waitForData())
+                return rest == len ? -1 : len - rest;
             
-            return len;
+            readLen = readChunk(bytes, off, rest, null);
+            off += readLen;
+            rest -= readLen;
         }
+        
+        return len;
+    }
+    
+    /**
+     * Read available samples into the given byte buffer. The method blocks 
+     * until at least one byte is available.
+     * 
+     * @param dst a byte buffer
+     * @return number of bytes read or -1 in case of EOF
+     * @throws IOException if the thread is interrupted while waiting for data
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        if (!waitForData())
+            return -1;
+        
+        int len = 0;
+        while (dst.hasRemaining() && available() > 0)
+            len += readChunk(null, 0, dst.remaining(), dst);
+        
+        return len;
+    }
+    
+    /**
+     * Copy a continuous block of samples into the given array or byte buffer
+     * and move the read position. If the producer has dropped the data in the
+     * meantime, the copy is repeated from the new read position.
+     */
+    private int readChunk(byte[] bytes, int off, int len, ByteBuffer dst) {
+        long rp;
+        int index, readLen;
+        int dstPosition = dst == null ? 0 : dst.position();
+        
+        do {
+            rp = readPosition.get();
+            index = (int)(rp % buffer.length);
+            readLen = Math.min(len, buffer.length - index);
+            readLen = (int)Math.min(readLen, writePosition - rp);
+            if (readLen <= 0)
+                return 0;
+            
+            if (dst == null)
+                System.arraycopy(buffer, index, bytes, off, readLen);
+            else {
+                dst.position(dstPosition);
+                dst.put(buffer, index, readLen);
+            }
+        } while (!readPosition.compareAndSet(rp, rp + readLen));
+        
+        if (writerWaiting)
+            signal();
+        
+        return readLen;
     }
 
     @Override
     public long skip(long l) throws IOException {
-        return dropBufferData((int)l);
+        return dropBufferData((int)Math.min(l, buffer.length));
     }
     
 }
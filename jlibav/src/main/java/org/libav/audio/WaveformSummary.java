@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Multi-resolution waveform summary stored in a memory-mapped file. Each 
+ * level contains min/max pairs of 16-bit values; a bin at the level k covers 
+ * samplesPerBin * 2^k samples (all channels together).
+ * 
+ * File layout (big endian): magic, version, sample rate, samples per bin 
+ * (level 0), level count, bin count of each level, min/max pairs of all 
+ * levels.
+ * 
+ * @author Ondrej Perutka
+ */
+public class WaveformSummary {
+
+    private static final int MAGIC = 0x4a4c5746;
+    private static final int VERSION = 1;
+    
+    private final MappedByteBuffer buffer;
+    private final int sampleRate;
+    private final int samplesPerBin;
+    private final int[] binCounts;
+    private final int[] offsets;
+    
+    private WaveformSummary(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        
+        if (buffer.capacity() < 20 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("not a waveform summary file");
+        
+        sampleRate = buffer.getInt(8);
+        samplesPerBin = buffer.getInt(12);
+        int levelCount = buffer.getInt(16);
+        // check the header sizes against the file size before allocating
+        if (levelCount < 0 || levelCount > (buffer.capacity() - 20) / 4)
+            throw new IOException("invalid level count of the waveform summary");
+        
+        binCounts = new int[levelCount];
+        offsets = new int[levelCount];
+        long offset = 20 + 4L * levelCount;
+        for (int i = 0; i < levelCount; i++) {
+            binCounts[i] = buffer.getInt(20 + 4 * i);
+            if (binCounts[i] < 0)
+                throw new IOException("invalid bin count of the waveform summary");
+            offsets[i] = (int)offset;
+            offset += 4L * binCounts[i];
+            if (offset > buffer.capacity())
+                throw new IOException("truncated waveform summary file");
+        }
+    }
+    
+    /**
+     * Get sample rate of the summarized audio.
+     * 
+     * @return sample rate
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * Get number of levels.
+     * 
+     * @return number of levels
+     */
+    public int getLevelCount() {
+        return binCounts.length;
+    }
+    
+    /**
+     * Get number of samples covered by one bin at the given level.
+     * 
+     * @param level a level
+     * @return number of samples per bin
+     */
+    public int getSamplesPerBin(int level) {
+        return samplesPerBin << level;
+    }
+    
+    /**
+     * Get number of bins at the given level.
+     * 
+     * @param level a level
+     * @return number of bins
+     */
+    public int getBinCount(int level) {
+        return binCounts[level];
+    }
+    
+    /**
+     * Get the coarsest level having at most the given number of samples per 
+     * bin (e.g. samples per pixel of a waveform display).
+     * 
+     * @param samplesPerBin number of samples per bin
+     * @return level
+     */
+    public int getLevel(int samplesPerBin) {
+        int level = 0;
+        while (level + 1 < binCounts.length && getSamplesPerBin(level + 1) <= samplesPerBin)
+            level++;
+        
+        return level;
+    }
+    
+    /**
+     * Get minimum sample value of the given bin.
+     * 
+     * @param level a level
+     * @param bin a bin
+     * @return minimum sample value (from -1.0 to 1.0)
+     */
+    public float getMinimum(int level, int bin) {
+        return buffer.getShort(offsets[level] + 4 * bin) / 32767f;
+    }
+    
+    /**
+     * Get maximum sample value of the given bin.
+     * 
+     * @param level a level
+     * @param bin a bin
+     * @return maximum sample value (from -1.0 to 1.0)
+     */
+    public float getMaximum(int level, int bin) {
+        return buffer.getShort(offsets[level] + 4 * bin + 2) / 32767f;
+    }
+    
+    /**
+     * Map the given waveform summary file.
+     * 
+     * @param file a waveform summary file
+     * @return waveform summary
+     * @throws IOException if the file cannot be read or it is not a waveform
+     * summary file
+     */
+    public static WaveformSummary open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new WaveformSummary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Write a waveform summary file. Level i consists of binCounts[i] min/max
+     * pairs stored in levels[i].
+     */
+    static void write(File file, int sampleRate, int samplesPerBin, short[][] levels, int[] binCounts) throws IOException {
+        long size = 20 + 4 * levels.length;
+        for (int i = 0; i < levels.length; i++)
+            size += 4 * binCounts[i];
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(sampleRate);
+            buffer.putInt(samplesPerBin);
+            buffer.putInt(levels.length);
+            for (int i = 0; i < levels.length; i++)
+                buffer.putInt(binCounts[i]);
+            for (int i = 0; i < levels.length; i++) {
+                buffer.asShortBuffer().put(levels[i], 0, 2 * binCounts[i]);
+                buffer.position(buffer.position() + 4 * binCounts[i]);
+            }
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+}
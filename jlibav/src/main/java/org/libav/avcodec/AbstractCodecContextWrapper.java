@@ -32,6 +32,7 @@ public abstract class AbstractCodecContextWrapper implements ICodecContextWrappe
     protected IFrameWrapper codedFrame;
     protected MediaType codecType;
     protected CodecID codecId;
+    protected Integer codecTag;
     protected Integer flags;
     protected Integer width;
     protected Integer height;
@@ -48,11 +49,17 @@ public abstract class AbstractCodecContextWrapper implements ICodecContextWrappe
     protected Integer sampleRate;
     protected SampleFormat sampleFormat;
     protected Integer frameSize;
+    protected Integer skipLoopFilter;
+    protected Integer skipIdct;
+    protected Integer skipFrame;
+    protected Integer threadCount;
+    protected Integer threadType;
     
     public AbstractCodecContextWrapper() {
         codedFrame = null;
         codecType = null;
         codecId = null;
+        codecTag = null;
         flags = null;
         width = null;
         height = null;
@@ -69,12 +76,18 @@ public abstract class AbstractCodecContextWrapper implements ICodecContextWrappe
         sampleRate = null;
         sampleFormat = null;
         frameSize = null;
+        skipLoopFilter = null;
+        skipIdct = null;
+        skipFrame = null;
+        threadCount = null;
+        threadType = null;
     }
     
     @Override
     public void clearWrapperCache() {
         codecType = null;
         codecId = null;
+        codecTag = null;
         flags = null;
         width = null;
         height = null;
@@ -91,6 +104,11 @@ public abstract class AbstractCodecContextWrapper implements ICodecContextWrappe
         sampleRate = null;
         sampleFormat = null;
         frameSize = null;
+        skipLoopFilter = null;
+        skipIdct = null;
+        skipFrame = null;
+        threadCount = null;
+        threadType = null;
     }
     
 }
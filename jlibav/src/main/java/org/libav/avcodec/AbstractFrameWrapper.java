@@ -17,7 +17,12 @@
  */
 package org.libav.avcodec;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.bridj.Pointer;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.PixelFormat;
+import org.libav.bridge.LibraryManager;
 
 /**
  * Abstract wrapper for the AVFrame.
@@ -26,6 +31,11 @@ import org.bridj.Pointer;
  */
 public abstract class AbstractFrameWrapper implements IFrameWrapper {
     
+    private static final int PALETTE_SIZE = 1024;
+    
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
     protected Pointer<Pointer<Byte>> data;
     protected Pointer<Pointer<Byte>> extendedData;
     protected Pointer<Integer> lineSize;
@@ -48,6 +58,106 @@ public abstract class AbstractFrameWrapper implements IFrameWrapper {
         nbSamples = null;
     }
 
+    @Override
+    public ByteBuffer getPlaneBuffer(int plane, int lineCount) {
+        Pointer<Pointer<Byte>> data = getData();
+        if (data == null)
+            return null;
+        
+        Pointer<Byte> p = data.get(plane);
+        int ls = getLineSize().get(plane);
+        if (p == null || ls <= 0)
+            return null;
+        
+        return p.getByteBufferAtOffset(0, (long)ls * lineCount);
+    }
+
+    @Override
+    public ByteBuffer[] getPictureBuffers(PixelFormat pixelFormat, int height) {
+        ByteBuffer[] result = new ByteBuffer[4];
+        Pointer<Pointer<Byte>> data = getData();
+        if (data == null)
+            return result;
+        
+        for (int i = 0; i < result.length; i++) {
+            if (i == 1 && pixelFormat.hasPalette()) {
+                Pointer<Byte> p = data.get(i);
+                result[i] = p == null ? null : p.getByteBufferAtOffset(0, PALETTE_SIZE);
+            } else
+                result[i] = getPlaneBuffer(i, getPlaneHeight(i, pixelFormat, height));
+        }
+        
+        return result;
+    }
+
+    @Override
+    public int getPlaneHeight(int plane, PixelFormat pixelFormat, int height) {
+        if (plane == 1 && pixelFormat.hasPalette())
+            return 0;
+        else if (plane != 1 && plane != 2)
+            return height;
+        
+        Pointer<Integer> hShift = Pointer.allocateInt();
+        Pointer<Integer> vShift = Pointer.allocateInt();
+        LibraryManager.getInstance().getAVCodecLibrary().avcodec_get_chroma_sub_sample(pixelFormat.value(), hShift, vShift);
+        int chromaHeight = -((-height) >> vShift.get());
+        hShift.release();
+        vShift.release();
+        
+        return chromaHeight;
+    }
+
+    @Override
+    public void setPlaneBuffer(int plane, ByteBuffer buffer, int lineSize) {
+        if (buffer != null && !buffer.isDirect())
+            throw new IllegalArgumentException("the buffer is not direct");
+        
+        Pointer<Byte> p = buffer == null ? null : Pointer.pointerToBuffer(buffer).as(Byte.class);
+        getData().set(plane, p);
+        getLineSize().set(plane, buffer == null ? 0 : lineSize);
+    }
+
+    @Override
+    public long getPlaneChecksum(int plane, int lineWidth, int lineCount) {
+        ByteBuffer bb = getPlaneBuffer(plane, lineCount);
+        if (bb == null)
+            return 0;
+        
+        bb.order(ByteOrder.nativeOrder());
+        int ls = getLineSize().get(plane);
+        int width = Math.min(lineWidth, ls);
+        long result = FNV_OFFSET_BASIS;
+        int i, end;
+        
+        for (int y = 0; y < lineCount; y++) {
+            i = y * ls;
+            end = i + width;
+            for (; i + 8 <= end; i += 8) {
+                result ^= bb.getLong(i);
+                result *= FNV_PRIME;
+            }
+            for (; i < end; i++) {
+                result ^= bb.get(i) & 0xff;
+                result *= FNV_PRIME;
+            }
+        }
+        
+        return result;
+    }
+
+    @Override
+    public void retain() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public boolean isReferenceCounted() {
+        return false;
+    }
+
     @Override
     public void clearWrapperCache() {
         data = null;
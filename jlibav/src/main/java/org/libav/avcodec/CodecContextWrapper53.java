@@ -17,13 +17,17 @@
  */
 package org.libav.avcodec;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.bridj.Pointer;
 import org.libav.LibavException;
 import org.libav.avcodec.bridge.AVCodecContext53;
 import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.IDictionaryWrapper;
 import org.libav.avutil.MediaType;
 import org.libav.avutil.PixelFormat;
 import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVOptionHandler;
 import org.libav.avutil.bridge.AVUtilLibrary;
 import org.libav.bridge.LibraryManager;
 import org.libav.util.Rational;
@@ -131,19 +135,47 @@ public class CodecContextWrapper53 extends AbstractCodecContextWrapper {
     
     @Override
     public void open(ICodecWrapper codec) throws LibavException {
+        open(codec, null);
+    }
+    
+    @Override
+    public void open(ICodecWrapper codec, IDictionaryWrapper options) throws LibavException {
         if (!isClosed())
             return;
         
         int result;
-        if (avcOpen2)
-            result = codecLib.avcodec_open2(getPointer(), codec.getPointer(), null);
-        else
+        if (avcOpen2) {
+            Pointer<Pointer<?>> opts = null;
+            if (options != null) {
+                opts = Pointer.allocatePointer();
+                opts.set(options.getPointer());
+            }
+            result = codecLib.avcodec_open2(getPointer(), codec.getPointer(), opts);
+            if (options != null) {
+                options.rebind(opts.get());
+                opts.release();
+            }
+        } else
             result = codecLib.avcodec_open(getPointer(), codec.getPointer());
         
         if(result < 0)
             throw new LibavException(result);
         
         closed = false;
+        
+        // avcodec_open() does not accept options, set them afterwards
+        if (!avcOpen2 && options != null)
+            setOptions(options);
+    }
+    
+    private void setOptions(IDictionaryWrapper options) {
+        for (IDictionaryWrapper.Pair p : options.toList()) {
+            try {
+                AVOptionHandler.setString(getPointer(), p.getKey(), p.getValue(), AVOptionHandler.AV_OPT_SEARCH_CHILDREN);
+            } catch (LibavException ex) {
+                Logger.getLogger(getClass().getName()).log(Level.WARNING, "unable to set codec option: " + p.getKey(), ex);
+            }
+        }
     }
     
     @Override
@@ -226,6 +258,39 @@ public class CodecContextWrapper53 extends AbstractCodecContextWrapper {
         this.codecId = codecId;
     }
     
+    @Override
+    public int getCodecTag() {
+        if (context == null)
+            return 0;
+        
+        if (codecTag == null)
+            codecTag = context.codec_tag();
+        
+        return codecTag;
+    }
+    
+    @Override
+    public void setCodecTag(int codecTag) {
+        if (context == null)
+            return;
+        
+        context.codec_tag(codecTag);
+        this.codecTag = codecTag;
+    }
+    
+    @Override
+    public byte[] getExtradata() {
+        if (context == null)
+            return new byte[0];
+        
+        Pointer<Byte> data = context.extradata();
+        int size = context.extradata_size();
+        if (data == null || size <= 0)
+            return new byte[0];
+        
+        return data.getBytes(size);
+    }
+    
     @Override
     public int getFlags() {
         if (context == null)
@@ -544,6 +609,114 @@ public class CodecContextWrapper53 extends AbstractCodecContextWrapper {
         
         return frameSize;
     }
+
+    @Override
+    public int getSkipLoopFilter() {
+        if (context == null)
+            return 0;
+        
+        if (skipLoopFilter == null)
+            skipLoopFilter = context.skip_loop_filter();
+        
+        return skipLoopFilter;
+    }
+
+    @Override
+    public void setSkipLoopFilter(int skipLoopFilter) {
+        if (context == null)
+            return;
+        
+        context.skip_loop_filter(skipLoopFilter);
+        this.skipLoopFilter = skipLoopFilter;
+    }
+
+    @Override
+    public int getSkipIdct() {
+        if (context == null)
+            return 0;
+        
+        if (skipIdct == null)
+            skipIdct = context.skip_idct();
+        
+        return skipIdct;
+    }
+
+    @Override
+    public void setSkipIdct(int skipIdct) {
+        if (context == null)
+            return;
+        
+        context.skip_idct(skipIdct);
+        this.skipIdct = skipIdct;
+    }
+
+    @Override
+    public int getSkipFrame() {
+        if (context == null)
+            return 0;
+        
+        if (skipFrame == null)
+            skipFrame = context.skip_frame();
+        
+        return skipFrame;
+    }
+
+    @Override
+    public void setSkipFrame(int skipFrame) {
+        if (context == null)
+            return;
+        
+        context.skip_frame(skipFrame);
+        this.skipFrame = skipFrame;
+    }
+
+    @Override
+    public int getThreadCount() {
+        if (context == null)
+            return 0;
+        
+        if (threadCount == null)
+            threadCount = context.thread_count();
+        
+        return threadCount;
+    }
+
+    @Override
+    public void setThreadCount(int threadCount) {
+        if (context == null)
+            return;
+        
+        context.thread_count(threadCount);
+        this.threadCount = threadCount;
+    }
+
+    @Override
+    public int getThreadType() {
+        if (context == null)
+            return 0;
+        
+        if (threadType == null)
+            threadType = context.thread_type();
+        
+        return threadType;
+    }
+
+    @Override
+    public void setThreadType(int threadType) {
+        if (context == null)
+            return;
+        
+        context.thread_type(threadType);
+        this.threadType = threadType;
+    }
+
+    @Override
+    public Pointer<?> getPrivateData() {
+        if (context == null)
+            return null;
+        
+        return context.priv_data();
+    }
     
     @Override
     public boolean decodeVideoFrame(IPacketWrapper packet, IFrameWrapper frame) throws LibavException {
@@ -21,6 +21,7 @@ import org.bridj.Pointer;
 import org.libav.LibavException;
 import org.libav.avcodec.bridge.AVCodecContext55;
 import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.IDictionaryWrapper;
 import org.libav.avutil.MediaType;
 import org.libav.avutil.PixelFormat;
 import org.libav.avutil.SampleFormat;
@@ -100,10 +101,24 @@ public class CodecContextWrapper55 extends AbstractCodecContextWrapper {
     
     @Override
     public void open(ICodecWrapper codec) throws LibavException {
+        open(codec, null);
+    }
+    
+    @Override
+    public void open(ICodecWrapper codec, IDictionaryWrapper options) throws LibavException {
         if (!isClosed())
             return;
         
-        int result = codecLib.avcodec_open2(getPointer(), codec.getPointer(), null);
+        Pointer<Pointer<?>> opts = null;
+        if (options != null) {
+            opts = Pointer.allocatePointer();
+            opts.set(options.getPointer());
+        }
+        int result = codecLib.avcodec_open2(getPointer(), codec.getPointer(), opts);
+        if (options != null) {
+            options.rebind(opts.get());
+            opts.release();
+        }
         if(result < 0)
             throw new LibavException(result);
         
@@ -189,6 +204,39 @@ public class CodecContextWrapper55 extends AbstractCodecContextWrapper {
         this.codecId = codecId;
     }
     
+    @Override
+    public int getCodecTag() {
+        if (context == null)
+            return 0;
+        
+        if (codecTag == null)
+            codecTag = context.codec_tag();
+        
+        return codecTag;
+    }
+    
+    @Override
+    public void setCodecTag(int codecTag) {
+        if (context == null)
+            return;
+        
+        context.codec_tag(codecTag);
+        this.codecTag = codecTag;
+    }
+    
+    @Override
+    public byte[] getExtradata() {
+        if (context == null)
+            return new byte[0];
+        
+        Pointer<Byte> data = context.extradata();
+        int size = context.extradata_size();
+        if (data == null || size <= 0)
+            return new byte[0];
+        
+        return data.getBytes(size);
+    }
+    
     @Override
     public int getFlags() {
         if (context == null)
@@ -508,6 +556,114 @@ public class CodecContextWrapper55 extends AbstractCodecContextWrapper {
         return frameSize;
     }
 
+    @Override
+    public int getSkipLoopFilter() {
+        if (context == null)
+            return 0;
+        
+        if (skipLoopFilter == null)
+            skipLoopFilter = context.skip_loop_filter();
+        
+        return skipLoopFilter;
+    }
+
+    @Override
+    public void setSkipLoopFilter(int skipLoopFilter) {
+        if (context == null)
+            return;
+        
+        context.skip_loop_filter(skipLoopFilter);
+        this.skipLoopFilter = skipLoopFilter;
+    }
+
+    @Override
+    public int getSkipIdct() {
+        if (context == null)
+            return 0;
+        
+        if (skipIdct == null)
+            skipIdct = context.skip_idct();
+        
+        return skipIdct;
+    }
+
+    @Override
+    public void setSkipIdct(int skipIdct) {
+        if (context == null)
+            return;
+        
+        context.skip_idct(skipIdct);
+        this.skipIdct = skipIdct;
+    }
+
+    @Override
+    public int getSkipFrame() {
+        if (context == null)
+            return 0;
+        
+        if (skipFrame == null)
+            skipFrame = context.skip_frame();
+        
+        return skipFrame;
+    }
+
+    @Override
+    public void setSkipFrame(int skipFrame) {
+        if (context == null)
+            return;
+        
+        context.skip_frame(skipFrame);
+        this.skipFrame = skipFrame;
+    }
+
+    @Override
+    public int getThreadCount() {
+        if (context == null)
+            return 0;
+        
+        if (threadCount == null)
+            threadCount = context.thread_count();
+        
+        return threadCount;
+    }
+
+    @Override
+    public void setThreadCount(int threadCount) {
+        if (context == null)
+            return;
+        
+        context.thread_count(threadCount);
+        this.threadCount = threadCount;
+    }
+
+    @Override
+    public int getThreadType() {
+        if (context == null)
+            return 0;
+        
+        if (threadType == null)
+            threadType = context.thread_type();
+        
+        return threadType;
+    }
+
+    @Override
+    public void setThreadType(int threadType) {
+        if (context == null)
+            return;
+        
+        context.thread_type(threadType);
+        this.threadType = threadType;
+    }
+
+    @Override
+    public Pointer<?> getPrivateData() {
+        if (context == null)
+            return null;
+        
+        return context.priv_data();
+    }
+
     @Override
     public boolean decodeVideoFrame(IPacketWrapper packet, IFrameWrapper frame) throws LibavException {
         if (isClosed())
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.avcodec;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.bridj.Pointer;
+import org.libav.LibavException;
+import org.libav.avutil.DictionaryWrapperFactory;
+import org.libav.avutil.IDictionaryWrapper;
+import org.libav.avutil.bridge.AVOptionHandler;
+import org.libav.util.Rational;
+
+/**
+ * Typed set of codec options. The options may be generic codec options as 
+ * well as codec private options (e.g. preset or tune for the libx264). 
+ * 
+ * Most of the private options have to be set before the codec is opened. Use
+ * the toDictionary() method and pass the result to the 
+ * ICodecContextWrapper.open() method. Options of an opened codec can be 
+ * changed using the apply() method.
+ * 
+ * @author Ondrej Perutka
+ */
+public class CodecOptions {
+    
+    private final Map<String, Object> options;
+    
+    /**
+     * Create an empty set of options.
+     */
+    public CodecOptions() {
+        options = new LinkedHashMap<String, Object>();
+    }
+    
+    /**
+     * Create a copy of the given options.
+     * 
+     * @param options options
+     */
+    public CodecOptions(CodecOptions options) {
+        this.options = new LinkedHashMap<String, Object>(options.options);
+    }
+    
+    /**
+     * Set a string option.
+     * 
+     * @param name option name
+     * @param value option value
+     * @return this object
+     */
+    public CodecOptions setString(String name, String value) {
+        options.put(name, value);
+        return this;
+    }
+    
+    /**
+     * Set an integer option.
+     * 
+     * @param name option name
+     * @param value option value
+     * @return this object
+     */
+    public CodecOptions setLong(String name, long value) {
+        options.put(name, value);
+        return this;
+    }
+    
+    /**
+     * Set a floating point option.
+     * 
+     * @param name option name
+     * @param value option value
+     * @return this object
+     */
+    public CodecOptions setDouble(String name, double value) {
+        options.put(name, value);
+        return this;
+    }
+    
+    /**
+     * Set a rational option.
+     * 
+     * @param name option name
+     * @param value option value
+     * @return this object
+     */
+    public CodecOptions setRational(String name, Rational value) {
+        options.put(name, value);
+        return this;
+    }
+    
+    /**
+     * Add all the given options. Existing options with the same name are 
+     * overwritten.
+     * 
+     * @param options options
+     * @return this object
+     */
+    public CodecOptions setAll(CodecOptions options) {
+        this.options.putAll(options.options);
+        return this;
+    }
+    
+    /**
+     * Remove an option.
+     * 
+     * @param name option name
+     */
+    public void remove(String name) {
+        options.remove(name);
+    }
+    
+    /**
+     * Get value of the given option.
+     * 
+     * @param name option name
+     * @return option value (String, Long, Double or Rational) or null if 
+     * there is no such option
+     */
+    public Object get(String name) {
+        return options.get(name);
+    }
+    
+    /**
+     * Get names of all options.
+     * 
+     * @return option names
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(options.keySet());
+    }
+    
+    /**
+     * Check whether the set is empty.
+     * 
+     * @return true if there are no options, false otherwise
+     */
+    public boolean isEmpty() {
+        return options.isEmpty();
+    }
+    
+    /**
+     * Convert the options into a new dictionary. The caller is responsible for
+     * freeing the dictionary.
+     * 
+     * @return dictionary
+     * @throws LibavException if the dictionary cannot be filled
+     */
+    public IDictionaryWrapper toDictionary() throws LibavException {
+        IDictionaryWrapper result = DictionaryWrapperFactory.getInstance().allocate();
+        try {
+            for (Map.Entry<String, Object> e : options.entrySet())
+                result.set(e.getKey(), toString(e.getValue()), 0);
+        } catch (LibavException ex) {
+            result.free();
+            throw ex;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Set the options of an opened codec context. Options are searched in the 
+     * codec context and in the codec private data.
+     * 
+     * @param cc an opened codec context
+     * @throws LibavException if an option cannot be set
+     */
+    public void apply(ICodecContextWrapper cc) throws LibavException {
+        Pointer<?> ctx = cc.getPointer();
+        int flags = AVOptionHandler.AV_OPT_SEARCH_CHILDREN;
+        
+        for (Map.Entry<String, Object> e : options.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof Long)
+                AVOptionHandler.setLong(ctx, e.getKey(), (Long)value, flags);
+            else if (value instanceof Double)
+                AVOptionHandler.setDouble(ctx, e.getKey(), (Double)value, flags);
+            else
+                AVOptionHandler.setString(ctx, e.getKey(), toString(value), flags);
+        }
+    }
+    
+    private static String toString(Object value) {
+        if (value instanceof Rational) {
+            Rational r = (Rational)value;
+            return r.getNumerator() + "/" + r.getDenominator();
+        }
+        
+        return String.valueOf(value);
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+    
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.avcodec;
+
+/**
+ * Named encoder speed/quality profiles. Each profile is translated into codec
+ * private options. Encoders which do not know an option simply ignore it.
+ * 
+ * @author Ondrej Perutka
+ */
+public enum EncodingProfile {
+    
+    /**
+     * The fastest encoding with minimal latency. Suitable for live streaming.
+     */
+    REALTIME("ultrafast", "zerolatency", "realtime", 8),
+    
+    /**
+     * Fast encoding with reasonable quality.
+     */
+    FAST("veryfast", null, "realtime", 4),
+    
+    /**
+     * Default balance between speed and quality.
+     */
+    BALANCED("medium", null, "good", 1),
+    
+    /**
+     * Slower encoding with better quality.
+     */
+    QUALITY("slow", null, "good", 0),
+    
+    /**
+     * The slowest encoding with the best quality.
+     */
+    BEST_QUALITY("veryslow", null, "best", 0);
+    
+    private final String preset;
+    private final String tune;
+    private final String deadline;
+    private final int cpuUsed;
+
+    private EncodingProfile(String preset, String tune, String deadline, int cpuUsed) {
+        this.preset = preset;
+        this.tune = tune;
+        this.deadline = deadline;
+        this.cpuUsed = cpuUsed;
+    }
+    
+    /**
+     * Get codec options of this profile.
+     * 
+     * @return codec options
+     */
+    public CodecOptions getOptions() {
+        CodecOptions result = new CodecOptions();
+        
+        // libx264
+        result.setString("preset", preset);
+        if (tune != null)
+            result.setString("tune", tune);
+        
+        // libvpx
+        result.setString("deadline", deadline);
+        result.setLong("cpu-used", cpuUsed);
+        
+        return result;
+    }
+    
+}
@@ -17,7 +17,9 @@
  */
 package org.libav.avcodec;
 
+import org.bridj.Pointer;
 import org.libav.LibavException;
+import org.libav.avutil.IDictionaryWrapper;
 import org.libav.avutil.MediaType;
 import org.libav.avutil.PixelFormat;
 import org.libav.avutil.SampleFormat;
@@ -51,6 +53,19 @@ public interface ICodecContextWrapper extends IWrapper {
      */
     void open(ICodecWrapper codec) throws LibavException;
     
+    /**
+     * Initialize the codec context to use the given codec and options. The 
+     * options may contain both generic codec options and codec private 
+     * options (e.g. preset for the libx264). Options which were not found are
+     * left in the given dictionary.
+     * 
+     * @param codec a codec
+     * @param options codec options or null
+     * @throws LibavException if the codec context cannot be initialized using
+     * the given codec (caused by the Libav)
+     */
+    void open(ICodecWrapper codec, IDictionaryWrapper options) throws LibavException;
+    
     /**
      * Release all resources associated with the codec.
      */
@@ -121,6 +136,33 @@ public interface ICodecContextWrapper extends IWrapper {
      */
     void setCodecId(CodecID codecId);
     
+    /**
+     * Get the codec_tag property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return codec tag (fourcc)
+     */
+    int getCodecTag();
+    
+    /**
+     * Set the codec_tag property of the AVCodecContext. The value may be 
+     * cached.
+     * 
+     * @param codecTag a codec tag (fourcc)
+     */
+    void setCodecTag(int codecTag);
+    
+    /**
+     * Get a copy of the extradata from the AVCodecContext (e.g. global 
+     * headers of the stream). The value is not cached.
+     * 
+     * @return extradata or an empty array if it is not set
+     */
+    byte[] getExtradata();
+    
     /**
      * Get the flags property from the AVCodecContext.
      * 
@@ -417,6 +459,113 @@ public interface ICodecContextWrapper extends IWrapper {
      */
     int getFrameSize();
     
+    /**
+     * Get the thread_count property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return number of threads used by the codec
+     */
+    int getThreadCount();
+    
+    /**
+     * Set the thread_count property of the AVCodecContext. The value may be 
+     * cached. It must be set before the codec is opened.
+     * 
+     * @param threadCount number of threads used by the codec
+     */
+    void setThreadCount(int threadCount);
+    
+    /**
+     * Get the thread_type property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return a mix of AVCodecLibrary.FF_THREAD_* flags
+     */
+    int getThreadType();
+    
+    /**
+     * Set the thread_type property of the AVCodecContext. The value may be 
+     * cached. It must be set before the codec is opened.
+     * 
+     * @param threadType a mix of AVCodecLibrary.FF_THREAD_* flags
+     */
+    void setThreadType(int threadType);
+    
+    /**
+     * Get the priv_data property from the AVCodecContext. It can be used to 
+     * access codec private options using the AVOptionHandler.
+     * 
+     * @return pointer to the codec private data or null if the codec has not 
+     * been opened yet
+     */
+    Pointer<?> getPrivateData();
+    
+    /**
+     * Get the skip_loop_filter property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return AVDISCARD level of frames for which the loop filter is skipped
+     */
+    int getSkipLoopFilter();
+    
+    /**
+     * Set the skip_loop_filter property of the AVCodecContext. The value may be 
+     * cached. Use one of the AVCodecLibrary.AVDISCARD_* constants.
+     * 
+     * @param skipLoopFilter AVDISCARD level of frames for which the loop filter is 
+     * skipped
+     */
+    void setSkipLoopFilter(int skipLoopFilter);
+    
+    /**
+     * Get the skip_idct property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return AVDISCARD level of frames for which the IDCT/dequantization is skipped
+     */
+    int getSkipIdct();
+    
+    /**
+     * Set the skip_idct property of the AVCodecContext. The value may be 
+     * cached. Use one of the AVCodecLibrary.AVDISCARD_* constants.
+     * 
+     * @param skipIdct AVDISCARD level of frames for which the IDCT/dequantization is 
+     * skipped
+     */
+    void setSkipIdct(int skipIdct);
+    
+    /**
+     * Get the skip_frame property from the AVCodecContext.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return AVDISCARD level of frames for which the decoding is skipped
+     */
+    int getSkipFrame();
+    
+    /**
+     * Set the skip_frame property of the AVCodecContext. The value may be 
+     * cached. Use one of the AVCodecLibrary.AVDISCARD_* constants.
+     * 
+     * @param skipFrame AVDISCARD level of frames for which the decoding is 
+     * skipped
+     */
+    void setSkipFrame(int skipFrame);
+    
     /**
      * Pass the given video packet to the decoder.
      * 
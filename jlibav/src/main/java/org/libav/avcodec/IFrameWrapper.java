@@ -17,8 +17,10 @@
  */
 package org.libav.avcodec;
 
+import java.nio.ByteBuffer;
 import org.bridj.Pointer;
 import org.libav.LibavException;
+import org.libav.avutil.PixelFormat;
 import org.libav.avutil.SampleFormat;
 import org.libav.bridge.IWrapper;
 
@@ -40,6 +42,33 @@ public interface IFrameWrapper extends IWrapper {
      */
     void getDefaults();
     
+    /**
+     * Increment the reference counter of this frame. Frame consumers which 
+     * need to access the frame after returning from the processFrame() method 
+     * must retain the frame and release it when they are done with it.
+     * 
+     * NOTE:
+     * Only pooled frames (see the FramePool) are reference counted. The call 
+     * has no effect for other frames and their content is valid only until 
+     * the processFrame() method returns.
+     */
+    void retain();
+    
+    /**
+     * Decrement the reference counter of this frame. A pooled frame is 
+     * returned to its pool when the counter reaches zero. The call has no 
+     * effect for frames which are not pooled.
+     */
+    void release();
+    
+    /**
+     * Check whether this frame is reference counted (i.e. whether it is
+     * valid to use it after retaining it).
+     * 
+     * @return true if the frame is reference counted, false otherwise
+     */
+    boolean isReferenceCounted();
+    
     /**
      * Fill audio frame data and linesize. AVFrame extended_data channel 
      * pointers are allocated if necessary for planar audio.
@@ -88,6 +117,75 @@ public interface IFrameWrapper extends IWrapper {
      */
     int getDataLength();
     
+    /**
+     * Get a direct byte buffer view of the given data plane. The view covers 
+     * lineCount lines of the plane (i.e. lineCount * linesize[plane] bytes). 
+     * No data is copied.
+     * 
+     * WARNING:
+     * The view is valid only as long as the plane memory is valid (i.e. 
+     * until the frame is freed, released or reused by its producer).
+     * 
+     * @param plane a plane index
+     * @param lineCount number of lines
+     * @return direct byte buffer or null if the plane is not set
+     */
+    ByteBuffer getPlaneBuffer(int plane, int lineCount);
+    
+    /**
+     * Get direct byte buffer views of all data planes of a picture with the 
+     * given pixel format and height. The number of lines of each plane is 
+     * computed from the vertical chroma subsampling of the pixel format. No 
+     * data is copied.
+     * 
+     * WARNING:
+     * The views are valid only as long as the plane memory is valid (i.e. 
+     * until the frame is freed, released or reused by its producer).
+     * 
+     * @param pixelFormat pixel format of the picture
+     * @param height height of the picture
+     * @return array of direct byte buffers, unused planes are null
+     */
+    ByteBuffer[] getPictureBuffers(PixelFormat pixelFormat, int height);
+    
+    /**
+     * Get number of lines of the given data plane of a picture with the given 
+     * pixel format and height (i.e. number of lines covered by the buffer 
+     * returned by the getPictureBuffers() method).
+     * 
+     * @param plane a plane index
+     * @param pixelFormat pixel format of the picture
+     * @param height height of the picture
+     * @return number of lines or 0 if the plane contains a palette
+     */
+    int getPlaneHeight(int plane, PixelFormat pixelFormat, int height);
+    
+    /**
+     * Use the given direct byte buffer as a data plane of this frame. The 
+     * buffer is not copied and it is not owned by the frame. The caller must 
+     * keep it (and its content) valid as long as the frame uses it.
+     * 
+     * @param plane a plane index
+     * @param buffer a direct byte buffer or null to clear the plane
+     * @param lineSize line size of the plane in bytes
+     * @throws IllegalArgumentException if the buffer is not direct
+     */
+    void setPlaneBuffer(int plane, ByteBuffer buffer, int lineSize);
+    
+    /**
+     * Compute a cheap 64-bit checksum (FNV-1a over 64-bit words) of the given
+     * data plane. Only the first lineWidth bytes of each line are used, so 
+     * the line padding does not affect the result. It is intended for 
+     * detection of unchanged pictures (e.g. using the luma plane), it is not 
+     * a cryptographic hash.
+     * 
+     * @param plane a plane index
+     * @param lineWidth number of bytes used from each line
+     * @param lineCount number of lines
+     * @return checksum or 0 if the plane is not set
+     */
+    long getPlaneChecksum(int plane, int lineWidth, int lineCount);
+    
     /**
      * Get the extended_data property from the AVFrame.
      * 
@@ -43,6 +43,16 @@ public final class AVCodecLibrary implements ILibrary {
     public static final int FF_MIN_BUFFER_SIZE = 16384;
     public static final int FF_MAX_B_FRAMES = 16;
     
+    public static final int AVDISCARD_NONE = -16;
+    public static final int AVDISCARD_DEFAULT = 0;
+    public static final int AVDISCARD_NONREF = 8;
+    public static final int AVDISCARD_BIDIR = 16;
+    public static final int AVDISCARD_NONKEY = 32;
+    public static final int AVDISCARD_ALL = 48;
+    
+    public static final int FF_THREAD_FRAME = 1;
+    public static final int FF_THREAD_SLICE = 2;
+    
     public static final int AV_PKT_FLAG_KEY = 0x0001;
     public static final int AV_PKT_FLAG_CORRUPT = 0x0002;
     
@@ -405,6 +415,31 @@ public final class AVCodecLibrary implements ILibrary {
         return Lib.avcodec_close(avctx.getPeer());
     }
     
+    /**
+     * Copy the settings of the source AVCodecContext into the destination
+     * AVCodecContext. The resulting destination codec context will be 
+     * unopened, i.e. you are required to call avcodec_open2() before you can
+     * use this AVCodecContext to decode/encode video/audio data.
+     * 
+     * @param dest target codec context, should be initialized with 
+     * avcodec_alloc_context3(), but otherwise uninitialized
+     * @param src source codec context
+     * @return zero on success, a negative value on error
+     */
+    public int avcodec_copy_context(Pointer<?> dest, Pointer<?> src) {
+        return Lib.avcodec_copy_context(dest.getPeer(), src.getPeer());
+    }
+    
+    /**
+     * Reset the internal decoder state / flush internal buffers. Should be 
+     * called e.g. when seeking or when switching to a different stream.
+     * 
+     * @param avctx codec context
+     */
+    public void avcodec_flush_buffers(Pointer<?> avctx) {
+        Lib.avcodec_flush_buffers(avctx.getPeer());
+    }
+    
     /**
      * Register a user provided lock manager supporting the operations
      * specified by AVLockOp. mutex points to a (void *) where the
@@ -797,6 +832,30 @@ public final class AVCodecLibrary implements ILibrary {
         return Lib.avcodec_fill_audio_frame(frame.getPeer(), nb_channels, sample_fmt, buf.getPeer(), buf_size, align);
     }
     
+    /**
+     * Copy image src to dst.
+     * 
+     * @param dst destination AVPicture
+     * @param src source AVPicture
+     * @param pix_fmt the format in which the picture data is stored
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     */
+    public void av_picture_copy(Pointer<?> dst, Pointer<?> src, int pix_fmt, int width, int height) {
+        Lib.av_picture_copy(dst.getPeer(), src.getPeer(), pix_fmt, width, height);
+    }
+    
+    /**
+     * Get chroma subsampling shifts of the given pixel format.
+     * 
+     * @param pix_fmt a pixel format
+     * @param h_shift store the horizontal chroma shift in pixels
+     * @param v_shift store the vertical chroma shift in pixels
+     */
+    public void avcodec_get_chroma_sub_sample(int pix_fmt, Pointer<Integer> h_shift, Pointer<Integer> v_shift) {
+        Lib.avcodec_get_chroma_sub_sample(pix_fmt, h_shift.getPeer(), v_shift.getPeer());
+    }
+    
     public static abstract class RegisterLockMgrCallback extends Callback<RegisterLockMgrCallback> {
         public abstract int apply(Pointer<Pointer<?>> mutex, int op);
     }
@@ -829,6 +888,8 @@ public final class AVCodecLibrary implements ILibrary {
         @Optional
 	public static native int avcodec_open2(@Ptr long avctx, @Ptr long codec, @Ptr long options);
         public static native int avcodec_close(@Ptr long avctx);
+        public static native int avcodec_copy_context(@Ptr long dest, @Ptr long src);
+        public static native void avcodec_flush_buffers(@Ptr long avctx);
         public static native int av_lockmgr_register(@Ptr long cb);
         public static native int avcodec_decode_video2(@Ptr long avctx, @Ptr long picture, @Ptr long got_picture_ptr, @Ptr long avpkt);
         @Optional
@@ -846,6 +907,8 @@ public final class AVCodecLibrary implements ILibrary {
         public static native int avpicture_get_size(int pix_fmt, int width, int height);
         public static native int avpicture_fill(@Ptr long picture, @Ptr long ptr, int pix_fmt, int width, int height);
         public static native int avpicture_layout(@Ptr long src, int pix_fmt, int width, int height, @Ptr long dest, int dest_size);
+        public static native void av_picture_copy(@Ptr long dst, @Ptr long src, int pix_fmt, int width, int height);
+        public static native void avcodec_get_chroma_sub_sample(int pix_fmt, @Ptr long h_shift, @Ptr long v_shift);
         public static native Pointer<?> av_audio_resample_init(int output_channels, int input_channels, int output_rate, int input_rate, int sample_fmt_out, int sample_fmt_in, int filter_length, int log2_phase_count, int linear, double cutoff);
         public static native int audio_resample(@Ptr long s, @Ptr long output, @Ptr long input, int nb_samples);
         public static native void audio_resample_close(@Ptr long s);
@@ -36,6 +36,7 @@ public abstract class AbstractStreamWrapper implements IStreamWrapper {
     protected Long duration;
     protected IDictionaryWrapper metadata;
     protected Integer disposition;
+    protected Integer discard;
 
     public AbstractStreamWrapper() {
         codecContext = null;
@@ -46,6 +47,7 @@ public abstract class AbstractStreamWrapper implements IStreamWrapper {
         duration = null;
         metadata = null;
         disposition = null;
+        discard = null;
     }
 
     @Override
@@ -56,6 +58,7 @@ public abstract class AbstractStreamWrapper implements IStreamWrapper {
         frameCount = null;
         duration = null;
         disposition = null;
+        discard = null;
     }
     
 }
@@ -108,6 +108,14 @@ public interface IStreamWrapper extends IWrapper {
      * @param timeBase a time base
      */
     void setTimeBase(Rational timeBase);
+    
+    /**
+     * Get the avg_frame_rate property from the AVStream. The numerator or 
+     * the denominator is zero if the frame rate is not known.
+     * 
+     * @return average frame rate
+     */
+    Rational getAverageFrameRate();
 
     /**
      * Get the nb_frames property from the AVStream.
@@ -142,6 +150,26 @@ public interface IStreamWrapper extends IWrapper {
      */
     int getDisposition();
     
+    /**
+     * Get the discard property from the AVStream.
+     * 
+     * WARNING:
+     * The returned value may be cached. Call the clearWrapperCahce() if you
+     * think the value have been changed.
+     * 
+     * @return AVDISCARD level of packets which are discarded by the demuxer
+     */
+    int getDiscard();
+    
+    /**
+     * Set the discard property of the AVStream. The value may be cached. Use 
+     * one of the AVCodecLibrary.AVDISCARD_* constants.
+     * 
+     * @param discard AVDISCARD level of packets which are discarded by the 
+     * demuxer
+     */
+    void setDiscard(int discard);
+    
     /**
      * Get the metadata property from the AVStream.
      * 
@@ -166,6 +166,14 @@ public class StreamWrapper53 extends AbstractStreamWrapper {
         return timeBase;
     }
     
+    @Override
+    public Rational getAverageFrameRate() {
+        if (stream == null)
+            return null;
+        
+        return new Rational(stream.avg_frame_rate());
+    }
+    
     @Override
     public void setTimeBase(Rational timeBase) {
         if (stream == null)
@@ -228,5 +236,25 @@ public class StreamWrapper53 extends AbstractStreamWrapper {
         
         return disposition;
     }
+
+    @Override
+    public int getDiscard() {
+        if (stream == null)
+            return 0;
+        
+        if (discard == null)
+            discard = stream.discard();
+        
+        return discard;
+    }
+
+    @Override
+    public void setDiscard(int discard) {
+        if (stream == null)
+            return;
+        
+        stream.discard(discard);
+        this.discard = discard;
+    }
     
 }
@@ -164,7 +164,7 @@ public class AudioResampleContextWrapperLAVC implements IAudioResampleContextWra
     }
     
     @Override
-    public int convert(Pointer<Pointer<?>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<?>> input, int inPlaneSize, int inSampleCount) throws LibavException {
+    public int convert(Pointer<Pointer<Byte>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<Byte>> input, int inPlaneSize, int inSampleCount) throws LibavException {
         if (rc == null || input == null)
             return 0;
         
@@ -177,6 +177,21 @@ public class AudioResampleContextWrapperLAVC implements IAudioResampleContextWra
         return len;
     }
     
+    @Override
+    public int getDelay() {
+        return 0;
+    }
+
+    @Override
+    public int getAvailableSampleCount() {
+        return 0;
+    }
+
+    @Override
+    public int read(Pointer<Pointer<Byte>> output, int sampleCount) {
+        return 0;
+    }
+    
     public static IAudioResampleContextWrapper allocate() {
         return new AudioResampleContextWrapperLAVC(null);
     }
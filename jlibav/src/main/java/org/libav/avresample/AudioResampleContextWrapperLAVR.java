@@ -312,13 +312,41 @@ public class AudioResampleContextWrapperLAVR implements IAudioResampleContextWra
     }
 
     @Override
-    public int convert(Pointer<Pointer<?>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<?>> input, int inPlaneSize, int inSampleCount) {
+    public int convert(Pointer<Pointer<Byte>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<Byte>> input, int inPlaneSize, int inSampleCount) {
         if (context == null)
             return 0;
         
         return resLib.avresample_convert(context, output, outPlaneSize, outSampleCount, input, inPlaneSize, inSampleCount);
     }
     
+    @Override
+    public int getDelay() {
+        if (context == null)
+            return 0;
+        
+        return resLib.avresample_get_delay(context);
+    }
+
+    @Override
+    public int getAvailableSampleCount() {
+        if (context == null)
+            return 0;
+        
+        return resLib.avresample_available(context);
+    }
+
+    @Override
+    public int read(Pointer<Pointer<Byte>> output, int sampleCount) throws LibavException {
+        if (context == null)
+            return 0;
+        
+        int res = resLib.avresample_read(context, output, sampleCount);
+        if (res < 0)
+            throw new LibavException(res);
+        
+        return res;
+    }
+    
     /**
      * Allocate a new audio resample context.
      * 
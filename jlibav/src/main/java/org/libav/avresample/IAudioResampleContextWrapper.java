@@ -178,6 +178,30 @@ public interface IAudioResampleContextWrapper extends IWrapper {
      * @return number of samples written to the output buffer, not including 
      * converted samples added to the internal output FIFO
      */
-    int convert(Pointer<Pointer<?>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<?>> input, int inPlaneSize, int inSampleCount) throws LibavException;
+    int convert(Pointer<Pointer<Byte>> output, int outPlaneSize, int outSampleCount, Pointer<Pointer<Byte>> input, int inPlaneSize, int inSampleCount) throws LibavException;
+    
+    /**
+     * Get number of input samples currently stored in the resampling delay 
+     * buffer.
+     * 
+     * @return number of samples in the delay buffer
+     */
+    int getDelay();
+    
+    /**
+     * Get number of converted samples waiting in the internal output FIFO.
+     * 
+     * @return number of available samples
+     */
+    int getAvailableSampleCount();
+    
+    /**
+     * Read converted samples from the internal output FIFO.
+     * 
+     * @param output output data pointers
+     * @param sampleCount maximum number of samples to read
+     * @return number of samples written to the output buffer
+     */
+    int read(Pointer<Pointer<Byte>> output, int sampleCount) throws LibavException;
     
 }
@@ -206,10 +206,54 @@ public final class AVResampleLibrary implements ILibrary {
      * @return number of samples written to the output buffer, not including 
      * converted samples added to the internal output FIFO
      */
-    public int avresample_convert(Pointer<?> avr, Pointer<Pointer<?>> output, int out_plane_size, int out_samples, Pointer<Pointer<?>> input, int in_plane_size, int in_samples) {
+    public int avresample_convert(Pointer<?> avr, Pointer<Pointer<Byte>> output, int out_plane_size, int out_samples, Pointer<Pointer<Byte>> input, int in_plane_size, int in_samples) {
         return Lib.avresample_convert(avr, output, out_plane_size, out_samples, input, in_plane_size, in_samples);
     }
     
+    /**
+     * Return the number of samples currently in the resampling delay buffer.
+     * 
+     * When resampling, there may be a delay between the input and output. Any 
+     * unconverted samples in each call are stored internally in a delay 
+     * buffer. This function allows the user to determine the number of 
+     * samples in the delay buffer, which can be useful for synchronization.
+     * 
+     * @param avr audio resample context
+     * @return number of samples currently in the resampling delay buffer
+     */
+    public int avresample_get_delay(Pointer<?> avr) {
+        return Lib.avresample_get_delay(avr);
+    }
+    
+    /**
+     * Return the number of available samples in the output FIFO.
+     * 
+     * During conversion, if the user does not specify an output buffer or 
+     * specifies an output buffer that is smaller than what is needed, 
+     * remaining samples that are not written to the output are stored to an 
+     * internal FIFO buffer. The samples in the FIFO can be read with 
+     * avresample_read() or avresample_convert().
+     * 
+     * @param avr audio resample context
+     * @return number of samples available for reading
+     */
+    public int avresample_available(Pointer<?> avr) {
+        return Lib.avresample_available(avr);
+    }
+    
+    /**
+     * Read samples from the output FIFO.
+     * 
+     * @param avr audio resample context
+     * @param output output data pointers. May be NULL, in which case 
+     * nb_samples of data is discarded from output FIFO.
+     * @param nb_samples number of samples to read from the FIFO
+     * @return the number of samples written to output
+     */
+    public int avresample_read(Pointer<?> avr, Pointer<Pointer<Byte>> output, int nb_samples) {
+        return Lib.avresample_read(avr, output, nb_samples);
+    }
+    
     @Library("avresample")
     private static class Lib {
         static {
@@ -223,7 +267,10 @@ public final class AVResampleLibrary implements ILibrary {
         public static native void avresample_free(Pointer<Pointer<?>> avr);
         public static native int avresample_get_matrix(Pointer<?> avr, Pointer<Double> matrix, int stride);
         public static native int avresample_set_matrix(Pointer<?> avr, Pointer<Double> matrix, int stride);
-        public static native int avresample_convert(Pointer<?> avr, Pointer<Pointer<?>> output, int out_plane_size, int out_samples, Pointer<Pointer<?>> input, int in_plane_size, int in_samples);
+        public static native int avresample_convert(Pointer<?> avr, Pointer<Pointer<Byte>> output, int out_plane_size, int out_samples, Pointer<Pointer<Byte>> input, int in_plane_size, int in_samples);
+        public static native int avresample_get_delay(Pointer<?> avr);
+        public static native int avresample_available(Pointer<?> avr);
+        public static native int avresample_read(Pointer<?> avr, Pointer<Pointer<Byte>> output, int nb_samples);
     }
     
 }
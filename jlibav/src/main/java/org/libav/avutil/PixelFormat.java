@@ -178,6 +178,24 @@ public enum PixelFormat {
         return idMap.get(value);
     }
     
+    /**
+     * Check whether pictures in this format store a palette in the second 
+     * data plane. It is true for paletted and pseudo-paletted formats.
+     * 
+     * @return true if the second plane contains a palette, false otherwise
+     */
+    public boolean hasPalette() {
+        switch (this) {
+            case PAL8:
+            case GRAY8:
+            case RGB8:
+            case BGR8:
+            case RGB4_BYTE:
+            case BGR4_BYTE: return true;
+            default: return false;
+        }
+    }
+    
     private static class PixelFormatMapper {
         
         private static final PixelFormatMapper mapper = new PixelFormatMapper();
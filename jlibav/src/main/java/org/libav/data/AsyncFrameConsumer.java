@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.data;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.libav.LibavException;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avutil.PixelFormat;
+import org.libav.avutil.SampleFormat;
+import org.libav.util.Buffer;
+
+/**
+ * Asynchronous frame pipeline stage. It queues received frames and passes
+ * them to its consumers from a dedicated thread, so the producer and the
+ * consumers (e.g. a frame scaler and a video encoder) may run in parallel.
+ * 
+ * Reference counted frames (see the FramePool) are retained while they are
+ * queued. Other frames are copied into an internal frame pool, which needs 
+ * to know the frame format (see the constructors). The queue is bounded, so 
+ * the producer is blocked if the consumers are not fast enough.
+ * 
+ * NOTE:
+ * Call the flush() method before flushing the consumers (e.g. at the end of
+ * a transcoding) to make sure that all queued frames have been processed.
+ * Errors thrown by the consumers are re-thrown from the next processFrame()
+ * or flush() call.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AsyncFrameConsumer implements IFrameConsumer, IFrameProducer {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    
+    private final Set<IFrameConsumer> consumers;
+    private final Buffer<IFrameWrapper> queue;
+    private final Object lock;
+    
+    private FramePool framePool;
+    private int channelCount;
+    private SampleFormat sampleFormat;
+    
+    private int pending;
+    private volatile LibavException error;
+    private boolean closed;
+    private Thread worker;
+    
+    /**
+     * Create a new asynchronous stage accepting only reference counted
+     * frames.
+     * 
+     * @param queueCapacity maximum number of queued frames
+     */
+    public AsyncFrameConsumer(int queueCapacity) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queue capacity must be greater than 0");
+        
+        consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
+        queue = new Buffer<IFrameWrapper>(queueCapacity);
+        lock = new Object();
+        
+        framePool = null;
+        channelCount = 0;
+        sampleFormat = null;
+        
+        pending = 0;
+        error = null;
+        closed = false;
+        
+        worker = new Thread(new Worker(), "AsyncFrameConsumer worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Create a new asynchronous stage for video pictures. Pictures which are
+     * not reference counted are copied.
+     * 
+     * @param queueCapacity maximum number of queued frames
+     * @param pixelFormat pixel format of the pictures
+     * @param width width of the pictures
+     * @param height height of the pictures
+     */
+    public AsyncFrameConsumer(int queueCapacity, PixelFormat pixelFormat, int width, int height) {
+        this(queueCapacity);
+        
+        framePool = new FramePool(pixelFormat, width, height, queueCapacity + 1);
+    }
+    
+    /**
+     * Create a new asynchronous stage for audio frames. Frames which are not
+     * reference counted are copied.
+     * 
+     * @param queueCapacity maximum number of queued frames
+     * @param channelCount number of channels
+     * @param sampleFormat sample format
+     * @param frameBufferSize maximum size of the audio frame data
+     */
+    public AsyncFrameConsumer(int queueCapacity, int channelCount, SampleFormat sampleFormat, int frameBufferSize) {
+        this(queueCapacity);
+        
+        this.channelCount = channelCount;
+        this.sampleFormat = sampleFormat;
+        framePool = new FramePool(frameBufferSize, queueCapacity + 1);
+    }
+    
+    /**
+     * Get maximum number of queued frames.
+     * 
+     * @return queue capacity
+     */
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+    
+    /**
+     * Get number of frames which are queued or currently processed.
+     * 
+     * @return number of pending frames
+     */
+    public int getPendingFrameCount() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+    
+    @Override
+    public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("the frame stage has been closed");
+            checkError();
+            pending++;
+        }
+        
+        IFrameWrapper queued = null;
+        try {
+            queued = hold(frame);
+            queue.waitPut(queued);
+        } catch (InterruptedException ex) {
+            queued.release();
+            done();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while waiting for a free queue slot", ex);
+        } catch (LibavException ex) {
+            done();
+            throw ex;
+        } catch (RuntimeException ex) {
+            done();
+            throw ex;
+        }
+    }
+    
+    private IFrameWrapper hold(IFrameWrapper frame) throws LibavException {
+        if (frame.isReferenceCounted()) {
+            frame.retain();
+            return frame;
+        } else if (framePool == null)
+            throw new LibavException("unable to queue a frame which is not reference counted");
+        else if (framePool.getPixelFormat() != null)
+            return framePool.clonePicture(frame);
+        
+        return framePool.cloneAudioFrame(frame, channelCount, sampleFormat);
+    }
+    
+    private void done() {
+        synchronized (lock) {
+            pending--;
+            lock.notifyAll();
+        }
+    }
+    
+    private void checkError() throws LibavException {
+        if (error == null)
+            return;
+        
+        LibavException ex = error;
+        error = null;
+        throw new LibavException("frame consumer error", ex);
+    }
+    
+    /**
+     * Wait until all queued frames are processed.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void flush() throws LibavException {
+        synchronized (lock) {
+            try {
+                while (pending > 0)
+                    lock.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new LibavException("interrupted while flushing the frame queue", ex);
+            }
+            
+            checkError();
+        }
+    }
+    
+    /**
+     * Process all queued frames, stop the worker thread and release all 
+     * associated resources.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void close() throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        
+        try {
+            // nothing can be queued once the stage is closed and all pending
+            // frames are processed, so the null item is the last one
+            synchronized (lock) {
+                while (pending > 0)
+                    lock.wait();
+            }
+            queue.waitPut(null);
+            worker.join();
+        } catch (InterruptedException ex) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while closing the frame stage", ex);
+        } finally {
+            if (framePool != null)
+                framePool.dispose();
+        }
+        
+        synchronized (lock) {
+            checkError();
+        }
+    }
+    
+    /**
+     * Check whether the stage is closed or not.
+     * 
+     * @return true if it is closed, false otherwise
+     */
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+    
+    private void sendFrame(IFrameWrapper frame) throws LibavException {
+        synchronized (consumers) {
+            for (IFrameConsumer c : consumers)
+                c.processFrame(this, frame);
+        }
+    }
+    
+    @Override
+    public void addFrameConsumer(IFrameConsumer c) {
+        consumers.add(c);
+    }
+    
+    @Override
+    public void removeFrameConsumer(IFrameConsumer c) {
+        consumers.remove(c);
+    }
+    
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            IFrameWrapper frame;
+            
+            try {
+                while ((frame = queue.waitGet()) != null) {
+                    try {
+                        if (error == null)
+                            sendFrame(frame);
+                    } catch (LibavException ex) {
+                        error = ex;
+                    } catch (RuntimeException ex) {
+                        error = new LibavException("unexpected frame consumer error", ex);
+                    } finally {
+                        frame.release();
+                        done();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // the stage is being closed
+            }
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.data;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.libav.LibavException;
+import org.libav.avcodec.IPacketWrapper;
+import org.libav.util.Buffer;
+
+/**
+ * Asynchronous packet pipeline stage. It copies received packets into a 
+ * bounded queue and passes them to its consumers from a dedicated thread. It
+ * allows to run muxing (e.g. a media writer) in parallel with encoding.
+ * 
+ * NOTE:
+ * Call the flush() method before writing the file trailer to make sure that
+ * all queued packets have been written. Errors thrown by the consumers are 
+ * re-thrown from the next processPacket() or flush() call.
+ * 
+ * @author Ondrej Perutka
+ */
+public class AsyncPacketConsumer implements IPacketConsumer, IPacketProducer {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    
+    private final Set<IPacketConsumer> consumers;
+    private final Buffer<IPacketWrapper> queue;
+    private final PacketPool packetPool;
+    private final Object lock;
+    
+    private int pending;
+    private volatile LibavException error;
+    private boolean closed;
+    private Thread worker;
+    
+    /**
+     * Create a new asynchronous packet stage.
+     * 
+     * @param queueCapacity maximum number of queued packets
+     */
+    public AsyncPacketConsumer(int queueCapacity) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queue capacity must be greater than 0");
+        
+        consumers = Collections.synchronizedSet(new HashSet<IPacketConsumer>());
+        queue = new Buffer<IPacketWrapper>(queueCapacity);
+        packetPool = new PacketPool();
+        lock = new Object();
+        
+        pending = 0;
+        error = null;
+        closed = false;
+        
+        worker = new Thread(new Worker(), "AsyncPacketConsumer worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Get maximum number of queued packets.
+     * 
+     * @return queue capacity
+     */
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+    
+    /**
+     * Get number of packets which are queued or currently processed.
+     * 
+     * @return number of pending packets
+     */
+    public int getPendingPacketCount() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+    
+    @Override
+    public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("the packet stage has been closed");
+            checkError();
+            pending++;
+        }
+        
+        IPacketWrapper pw = null;
+        try {
+            pw = packetPool.clonePacket(packet);
+            queue.waitPut(pw);
+        } catch (InterruptedException ex) {
+            pw.free();
+            done();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while waiting for a free queue slot", ex);
+        } catch (RuntimeException ex) {
+            done();
+            throw ex;
+        }
+    }
+    
+    private void done() {
+        synchronized (lock) {
+            pending--;
+            lock.notifyAll();
+        }
+    }
+    
+    private void checkError() throws LibavException {
+        if (error == null)
+            return;
+        
+        LibavException ex = error;
+        error = null;
+        throw new LibavException("packet consumer error", ex);
+    }
+    
+    /**
+     * Wait until all queued packets are processed.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void flush() throws LibavException {
+        synchronized (lock) {
+            try {
+                while (pending > 0)
+                    lock.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new LibavException("interrupted while flushing the packet queue", ex);
+            }
+            
+            checkError();
+        }
+    }
+    
+    /**
+     * Process all queued packets, stop the worker thread and release all 
+     * associated resources.
+     * 
+     * @throws LibavException if some consumer failed or the calling thread
+     * has been interrupted
+     */
+    public void close() throws LibavException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        
+        try {
+            // nothing can be queued once the stage is closed and all pending
+            // packets are processed, so the null item is the last one
+            synchronized (lock) {
+                while (pending > 0)
+                    lock.wait();
+            }
+            queue.waitPut(null);
+            worker.join();
+        } catch (InterruptedException ex) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while closing the packet stage", ex);
+        } finally {
+            packetPool.dispose();
+        }
+        
+        synchronized (lock) {
+            checkError();
+        }
+    }
+    
+    /**
+     * Check whether the stage is closed or not.
+     * 
+     * @return true if it is closed, false otherwise
+     */
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+    
+    private void sendPacket(IPacketWrapper packet) throws LibavException {
+        synchronized (consumers) {
+            for (IPacketConsumer c : consumers)
+                c.processPacket(this, packet);
+        }
+    }
+    
+    @Override
+    public void addPacketConsumer(IPacketConsumer c) {
+        consumers.add(c);
+    }
+    
+    @Override
+    public void removePacketConsumer(IPacketConsumer c) {
+        consumers.remove(c);
+    }
+    
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            IPacketWrapper packet;
+            
+            try {
+                while ((packet = queue.waitGet()) != null) {
+                    try {
+                        if (error == null)
+                            sendPacket(packet);
+                    } catch (LibavException ex) {
+                        error = ex;
+                    } catch (RuntimeException ex) {
+                        error = new LibavException("unexpected packet consumer error", ex);
+                    } finally {
+                        packet.free();
+                        done();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // the stage is being closed
+            }
+        }
+    }
+
+}
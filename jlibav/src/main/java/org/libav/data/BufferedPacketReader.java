@@ -18,6 +18,9 @@
 package org.libav.data;
 
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.libav.LibavException;
 import org.libav.avcodec.IPacketWrapper;
 import org.libav.avcodec.PacketWrapperFactory;
 import org.libav.avformat.IFormatContextWrapper;
@@ -26,6 +29,14 @@ import org.libav.util.Buffer;
 /**
  * Buffered packet reader.
  * 
+ * Packets are read by a background thread. Seeks and buffer drops do not 
+ * stop the thread, they only increase the buffer generation. Packets of 
+ * older generations are dropped lazily and only the most recent seek 
+ * request is executed if there are more requests pending. If a seek fails, 
+ * the reader stops at the current position and the error is thrown by the 
+ * next call of the nextPacket() method unless another seek is requested 
+ * in the meantime.
+ * 
  * @author Ondrej Perutka
  */
 public class BufferedPacketReader {
@@ -34,8 +45,18 @@ public class BufferedPacketReader {
     private IPacketWrapper packet;
     private PacketPool packetPool;
     
-    private final Buffer<IPacketWrapper> buffer;
+    private final Buffer<Entry> buffer;
     private boolean eof;
+    private boolean closed;
+    private long generation;
+    private long packetGeneration;
+    
+    private boolean seekPending;
+    private long seekMinTime;
+    private long seekTime;
+    private long seekMaxTime;
+    private LibavException seekError;
+    private long seekErrorGeneration;
     
     private ReaderThread readerThread;
     private Thread t;
@@ -52,8 +73,15 @@ public class BufferedPacketReader {
         packet = PacketWrapperFactory.getInstance().alloc();
         packetPool = new PacketPool();
         
-        buffer = new Buffer<IPacketWrapper>(bufferSize);
+        buffer = new Buffer<Entry>(bufferSize);
         eof = false;
+        closed = false;
+        generation = 0;
+        packetGeneration = -1;
+        
+        seekPending = false;
+        seekError = null;
+        seekErrorGeneration = -1;
         
         readerThread = null;
         t = null;
@@ -71,57 +99,90 @@ public class BufferedPacketReader {
     }
     
     private void stop() throws InterruptedException {
-        if (t == null)
-            return;
-        
-        readerThread.stop();
-        t.interrupt();
-        t.join();
+        Thread rt;
+        synchronized (buffer) {
+            if (t == null)
+                return;
         
-        t = null;
+            readerThread.stop();
+            buffer.notifyAll();
+            rt = t;
+            t = null;
+        }
+    
+        rt.interrupt();
+        rt.join();
+    }
+    
+    private void invalidate() {
+        generation++;
+        eof = false;
+        buffer.notifyAll();
     }
     
     /**
-     * Drop buffered data.
+     * Drop buffered data. The reader thread keeps running, the buffered 
+     * packets are freed lazily.
      */
     public void dropBuffer() {
-        try {
-            lock.lockInterruptibly();
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
-        
-        try {
-            stop();
-        } catch (InterruptedException ex) {
-            lock.unlock();
-            throw new RuntimeException(ex);
+        synchronized (buffer) {
+            invalidate();
         }
-        
-        IPacketWrapper pw;
+    }
+    
+    /**
+     * Seek to the given position. The seek is performed asynchronously by 
+     * the reader thread, so this method does not block. All packets read 
+     * before are dropped. If this method is called again before the reader 
+     * thread executes the seek, only the most recent position is used. The 
+     * new request replaces also a failed seek which has not been reported 
+     * yet, its error is dropped.
+     * 
+     * @param minTime minimal position (in milliseconds)
+     * @param time desired position (in milliseconds)
+     * @param maxTime maximal position (in milliseconds)
+     * @return generation of packets read after the seek
+     */
+    public long seek(long minTime, long time, long maxTime) {
         synchronized (buffer) {
-            while (buffer.getItemCount() > 0) {
-                pw = buffer.get();
-                if (pw != null)
-                    pw.free();
-            }
+            if (isClosed())
+                return generation;
+            
+            seekError = null;
+            seekMinTime = minTime;
+            seekTime = time;
+            seekMaxTime = maxTime;
+            seekPending = true;
+            invalidate();
+            // read ahead immediately
+            start();
+            
+            return generation;
         }
-        
-        lock.unlock();
     }
     
     /**
-     * Reset the EOF flag. (It is usefull when seeking.)
+     * Reset the EOF flag. (It is usefull when seeking.) All buffered packets
+     * are dropped.
      */
     public void resetEof() {
-        eof = false;
+        dropBuffer();
     }
     
     /**
      * Release all associated resources.
      */
     public void close() {
-        dropBuffer();
+        synchronized (buffer) {
+            closed = true;
+            buffer.notifyAll();
+        }
+        
+        try {
+            stop();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
         
         try {
             lock.lockInterruptibly();
@@ -129,6 +190,15 @@ public class BufferedPacketReader {
             throw new RuntimeException(ex);
         }
         
+        Entry e;
+        synchronized (buffer) {
+            while (buffer.getItemCount() > 0) {
+                e = buffer.get();
+                if (e.packet != null)
+                    e.packet.free();
+            }
+        }
+        
         packet = null;
         packetPool.dispose();
         
@@ -141,57 +211,119 @@ public class BufferedPacketReader {
      * @return true if it is close, false otherwise
      */
     public boolean isClosed() {
-        return packet == null;
+        return closed || packet == null;
     }
     
     /**
      * Get next packet.
      * 
      * @return packet wrapper or null in case of EOF
+     * @throws LibavException if the last seek failed
      */
-    public IPacketWrapper nextPacket() {
-        IPacketWrapper pw;
+    public IPacketWrapper nextPacket() throws LibavException {
         try {
             lock.lockInterruptibly();
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
         }
         
-        synchronized (buffer) {
-            if ((eof && buffer.getItemCount() == 0) || isClosed()) {
-                lock.unlock();
+        try {
+            synchronized (buffer) {
+                if (!isClosed())
+                    start();
+                
+                Entry e;
+                while (!eof && !isClosed()) {
+                    if (seekError != null && seekErrorGeneration == generation) {
+                        LibavException ex = seekError;
+                        seekError = null;
+                        throw ex;
+                    }
+                    
+                    if (buffer.getItemCount() == 0) {
+                        buffer.wait();
+                        continue;
+                    }
+                    
+                    e = buffer.get();
+                    if (e.generation != generation) {
+                        if (e.packet != null)
+                            e.packet.free();
+                    } else if (e.packet == null)
+                        eof = true;
+                    else {
+                        packetGeneration = e.generation;
+                        return e.packet;
+                    }
+                }
+                
                 return null;
             }
-            if (t == null)
-                start();
-            
-            try {
-                pw = buffer.waitGet();
-            } catch (InterruptedException ex) {
-                lock.unlock();
-                throw new RuntimeException(ex);
-            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            lock.unlock();
         }
+    }
         
-        lock.unlock();
-        return pw;
+    /**
+     * Get generation of the last packet returned by the nextPacket() method. 
+     * The generation is increased by every seek and buffer drop.
+     * 
+     * @return generation of the last packet or -1 if no packet has been 
+     * returned yet
+     */
+    public long getPacketGeneration() {
+        synchronized (buffer) {
+            return packetGeneration;
+        }
     }
+        
+    private boolean putPacket(IPacketWrapper pw, long gen) {
+        Entry e;
+        
+        synchronized (buffer) {
+            while (buffer.getItemCount() == buffer.getCapacity()) {
+                e = buffer.front();
+                if (e.generation != generation) {
+                    // make room by dropping packets of an old generation
+                    buffer.get();
+                    if (e.packet != null)
+                        e.packet.free();
+                    continue;
+                }
     
-    private boolean putPacket(IPacketWrapper pw) {
-        if (pw == null)
-            eof = true;
+                if (gen != generation || readerThread.stop)
+                    return false;
         
-        try {
-            buffer.waitPut(pw);
-        } catch (InterruptedException ex) {
-            return false;
+                try {
+                    buffer.wait();
+                } catch (InterruptedException ex) {
+                    return false;
+                }
+            }
+            
+            if (gen != generation)
+                return false;
+            
+            buffer.put(new Entry(pw, gen));
         }
 
         return true;
     }
     
+    private static class Entry {
+        private IPacketWrapper packet;
+        private long generation;
+
+        public Entry(IPacketWrapper packet, long generation) {
+            this.packet = packet;
+            this.generation = generation;
+        }
+    }
+    
     private class ReaderThread implements Runnable {
-        private boolean stop;
+        private volatile boolean stop;
 
         public ReaderThread() {
             stop = false;
@@ -204,23 +336,66 @@ public class BufferedPacketReader {
         @Override
         public void run() {
             IPacketWrapper pw;
-            boolean put;
+            boolean atEnd = false;
+            boolean seek;
+            long minTime = 0, time = 0, maxTime = 0;
+            long gen = -1;
             
             while (!stop) {
-                if (formatContext.readNextPacket(packet))
-                    pw = packetPool.clonePacket(packet);
-                else
-                    pw = null;
-                packet.free();
+                synchronized (buffer) {
+                    // at the end of the media, wait for a seek or a drop
+                    while (atEnd && gen == generation && !stop) {
+                        try {
+                            buffer.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    if (stop)
+                        return;
+                    
+                    gen = generation;
+                    seek = seekPending;
+                    if (seek) {
+                        minTime = seekMinTime;
+                        time = seekTime;
+                        maxTime = seekMaxTime;
+                        seekPending = false;
+                    }
+                }
+                
+                if (seek) {
+                    atEnd = false;
+                    try {
+                        formatContext.seekFile(minTime, time, maxTime);
+                    } catch (LibavException ex) {
+                        Logger.getLogger(BufferedPacketReader.class.getName()).log(Level.WARNING, "unable to seek", ex);
+                        // report the error to the consumer instead of 
+                        // reading from a wrong position
+                        synchronized (buffer) {
+                            // the error of a replaced seek is not reported
+                            if (gen == generation) {
+                                seekError = ex;
+                                seekErrorGeneration = gen;
+                                buffer.notifyAll();
+                            }
+                        }
+                        atEnd = true;
+                        continue;
+                    }
+                }
                 
-                do {
-                    //System.out.printf("got next packet: pts = %d, dts = %d, stream_index = %d, pos = %d\n", pw.getPts(), pw.getDts(), pw.getStreamIndex(), pw.getPosition());
-                    put = putPacket(pw);
-                } while (!put && !stop);
+                pw = null;
+                if (!atEnd) {
+                    if (formatContext.readNextPacket(packet))
+                        pw = packetPool.clonePacket(packet);
+                    else
+                        atEnd = true;
+                    packet.free();
+                }
                 
-                if (pw == null)
-                    stop = true;
-                else if (!put)
+                //if (pw != null) System.out.printf("got next packet: pts = %d, dts = %d, stream_index = %d, pos = %d\n", pw.getPts(), pw.getDts(), pw.getStreamIndex(), pw.getPosition());
+                if (!putPacket(pw, gen) && pw != null)
                     pw.free();
             }
         }
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.bridj.Pointer;
+import org.libav.LibavException;
+import org.libav.avcodec.FrameWrapperFactory;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.PixelFormat;
+import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.bridge.LibraryManager;
+
+/**
+ * Bounded pool of reference counted frames. Frames obtained from the pool
+ * have their reference counter set to one. The frame is returned to the pool
+ * when its reference counter drops to zero (see IFrameWrapper.retain() and
+ * IFrameWrapper.release()). Calling free() on a pooled frame is the same as
+ * calling release().
+ * 
+ * The pool blocks callers of the getFrame() and clone methods while the
+ * number of frames held outside the pool is equal to its capacity.
+ * 
+ * @author Ondrej Perutka
+ */
+public class FramePool {
+
+    public static final int DEFAULT_CAPACITY = 8;
+    
+    private static final AVCodecLibrary codecLib = LibraryManager.getInstance().getAVCodecLibrary();
+    private static final AVUtilLibrary utilLib = LibraryManager.getInstance().getAVUtilLibrary();
+    
+    private PixelFormat pixelFormat;
+    private int width;
+    private int height;
+    private int bufferSize;
+    
+    private Deque<PooledFrame> recycle;
+    private int capacity;
+    private int frameCount;
+    private boolean disposed;
+    
+    /**
+     * Create a new pool of video pictures.
+     * 
+     * @param pixelFormat pixel format of the pictures
+     * @param width width of the pictures
+     * @param height height of the pictures
+     * @param capacity maximum number of frames held outside the pool
+     */
+    public FramePool(PixelFormat pixelFormat, int width, int height, int capacity) {
+        this(pixelFormat, width, height, 0, capacity);
+    }
+    
+    /**
+     * Create a new pool of audio frames.
+     * 
+     * @param bufferSize size of the sample buffer of each frame
+     * @param capacity maximum number of frames held outside the pool
+     */
+    public FramePool(int bufferSize, int capacity) {
+        this(null, 0, 0, bufferSize, capacity);
+    }
+    
+    private FramePool(PixelFormat pixelFormat, int width, int height, int bufferSize, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        
+        this.pixelFormat = pixelFormat;
+        this.width = width;
+        this.height = height;
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        
+        recycle = new ArrayDeque<PooledFrame>();
+        frameCount = 0;
+        disposed = false;
+    }
+    
+    /**
+     * Release all resources held by this pool. Frames held outside the pool
+     * will be freed when they are released.
+     */
+    public synchronized void dispose() {
+        disposed = true;
+        while (!recycle.isEmpty())
+            recycle.poll().dispose();
+        
+        notifyAll();
+    }
+    
+    /**
+     * Get pixel format of pooled pictures.
+     * 
+     * @return pixel format or null for audio frame pools
+     */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+    
+    /**
+     * Get width of pooled pictures.
+     * 
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Get height of pooled pictures.
+     * 
+     * @return height
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Get size of the sample buffer of pooled audio frames.
+     * 
+     * @return buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+    /**
+     * Set maximum number of frames held outside the pool.
+     * 
+     * @param capacity capacity
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        
+        this.capacity = capacity;
+        notifyAll();
+    }
+    
+    /**
+     * Get maximum number of frames held outside the pool.
+     * 
+     * @return capacity
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Get number of frames currently held outside the pool.
+     * 
+     * @return number of frames
+     */
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+    
+    /**
+     * Get a frame from the pool. The method blocks until a frame is
+     * available. The content of the frame is undefined.
+     * 
+     * @return frame with reference counter set to one
+     * @throws LibavException if the pool has been disposed, the frame cannot
+     * be allocated or the calling thread has been interrupted
+     */
+    public IFrameWrapper getFrame() throws LibavException {
+        PooledFrame result;
+        
+        synchronized (this) {
+            try {
+                while (!disposed && frameCount >= capacity)
+                    wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new LibavException("interrupted while waiting for a free frame", ex);
+            }
+            
+            if (disposed)
+                throw new LibavException("frame pool has been disposed");
+            
+            result = recycle.poll();
+            frameCount++;
+        }
+        
+        if (result == null) {
+            try {
+                result = allocFrame();
+            } catch (LibavException ex) {
+                recycle(null);
+                throw ex;
+            } catch (RuntimeException ex) {
+                recycle(null);
+                throw ex;
+            }
+        }
+        
+        result.refCount = 1;
+        
+        return result;
+    }
+    
+    /**
+     * Copy the given picture into a pooled frame. The picture must have the
+     * same size and pixel format as pooled pictures.
+     * 
+     * @param picture a picture
+     * @return frame with reference counter set to one
+     * @throws LibavException if the frame cannot be obtained
+     */
+    public IFrameWrapper clonePicture(IFrameWrapper picture) throws LibavException {
+        if (pixelFormat == null)
+            throw new IllegalStateException("not a picture pool");
+        
+        IFrameWrapper result = getFrame();
+        copyPicture(picture, result);
+        
+        return result;
+    }
+    
+    /**
+     * Copy the given picture into a frame obtained from this pool. It allows
+     * the caller to wait for a free frame before the picture is available.
+     * 
+     * @param picture a picture
+     * @param frame a frame obtained from this pool
+     */
+    public void copyPicture(IFrameWrapper picture, IFrameWrapper frame) {
+        if (pixelFormat == null)
+            throw new IllegalStateException("not a picture pool");
+        
+        codecLib.av_picture_copy(frame.getPointer(), picture.getPointer(), pixelFormat.value(), width, height);
+        copyProperties(picture, frame);
+    }
+    
+    /**
+     * Copy the given audio frame into a pooled frame. The size of the frame
+     * data is taken from the first line size.
+     * 
+     * @param frame an audio frame
+     * @param channelCount number of channels
+     * @param sampleFormat sample format
+     * @return frame with reference counter set to one
+     * @throws LibavException if the frame cannot be obtained or it is too
+     * large for the pooled frames
+     */
+    public IFrameWrapper cloneAudioFrame(IFrameWrapper frame, int channelCount, SampleFormat sampleFormat) throws LibavException {
+        checkAudioFrame(frame, channelCount, sampleFormat);
+        
+        IFrameWrapper result = getFrame();
+        copyAudioFrame(frame, result, channelCount, sampleFormat);
+        
+        return result;
+    }
+    
+    /**
+     * Copy the given audio frame into a frame obtained from this pool. It 
+     * allows the caller to wait for a free frame before the audio frame is 
+     * available.
+     * 
+     * @param frame an audio frame
+     * @param pooled a frame obtained from this pool
+     * @param channelCount number of channels
+     * @param sampleFormat sample format
+     * @throws LibavException if the audio frame is too large for the pooled 
+     * frames
+     */
+    public void copyAudioFrame(IFrameWrapper frame, IFrameWrapper pooled, int channelCount, SampleFormat sampleFormat) throws LibavException {
+        checkAudioFrame(frame, channelCount, sampleFormat);
+        
+        int planeCount = sampleFormat.isPlanar() ? channelCount : 1;
+        int lineSize = frame.getLineSize().get(0);
+        PooledFrame result = (PooledFrame)pooled;
+        Pointer<Pointer<Byte>> srcData = frame.getData();
+        Pointer<Pointer<Byte>> dstData = result.getData();
+        for (int i = 0; i < planeCount; i++) {
+            Pointer<Byte> plane = result.buffer.offset((long)i * lineSize);
+            srcData.get(i).copyTo(plane, lineSize);
+            dstData.set(i, plane);
+        }
+        result.getLineSize().set(0, lineSize);
+        result.setExtendedData(dstData);
+        copyProperties(frame, result);
+        try {
+            result.setNbSamples(frame.getNbSamples());
+        } catch (UnsatisfiedLinkError ex) {
+            // nb_samples is not supported by this version of the libavcodec
+        }
+    }
+    
+    private void checkAudioFrame(IFrameWrapper frame, int channelCount, SampleFormat sampleFormat) throws LibavException {
+        if (pixelFormat != null)
+            throw new IllegalStateException("not an audio frame pool");
+        
+        int planeCount = sampleFormat.isPlanar() ? channelCount : 1;
+        if (planeCount > frame.getDataLength())
+            throw new LibavException("too many audio planes");
+        if (frame.getLineSize().get(0) * planeCount > bufferSize)
+            throw new LibavException("audio frame is too large");
+    }
+    
+    private static void copyProperties(IFrameWrapper src, IFrameWrapper dst) {
+        dst.setPts(src.getPts());
+        dst.setPacketPts(src.getPacketPts());
+        dst.setPacketDts(src.getPacketDts());
+        dst.setKeyFrame(src.isKeyFrame());
+        dst.setRepeatPicture(src.getRepeatPicture());
+    }
+    
+    private PooledFrame allocFrame() throws LibavException {
+        if (pixelFormat != null)
+            return new PooledFrame(FrameWrapperFactory.getInstance().allocPicture(pixelFormat, width, height), null);
+        
+        Pointer<Byte> buffer = utilLib.av_malloc(bufferSize + AVCodecLibrary.FF_INPUT_BUFFER_PADDING_SIZE).as(Byte.class);
+        if (buffer == null)
+            throw new OutOfMemoryError("unable to allocate an audio frame buffer");
+        
+        try {
+            return new PooledFrame(FrameWrapperFactory.getInstance().allocFrame(), buffer);
+        } catch (LibavException ex) {
+            utilLib.av_free(buffer);
+            throw ex;
+        }
+    }
+    
+    private synchronized void recycle(PooledFrame frame) {
+        frameCount--;
+        if (frame != null) {
+            if (disposed)
+                frame.dispose();
+            else
+                recycle.add(frame);
+        }
+        
+        notifyAll();
+    }
+    
+    private class PooledFrame implements IFrameWrapper {
+        private IFrameWrapper internal;
+        private Pointer<Byte> buffer;
+        private int refCount;
+        
+        public PooledFrame(IFrameWrapper internal, Pointer<Byte> buffer) {
+            this.internal = internal;
+            this.buffer = buffer;
+            this.refCount = 0;
+        }
+        
+        public synchronized void dispose() {
+            if (internal == null)
+                return;
+            
+            internal.free();
+            if (buffer != null)
+                utilLib.av_free(buffer);
+            internal = null;
+            buffer = null;
+        }
+        
+        @Override
+        public void retain() {
+            synchronized (this) {
+                if (refCount <= 0)
+                    throw new IllegalStateException("the frame has been already released");
+                refCount++;
+            }
+        }
+        
+        @Override
+        public void release() {
+            synchronized (this) {
+                if (refCount <= 0)
+                    throw new IllegalStateException("the frame has been already released");
+                if (--refCount > 0)
+                    return;
+            }
+            
+            recycle(this);
+        }
+        
+        @Override
+        public boolean isReferenceCounted() {
+            return true;
+        }
+        
+        @Override
+        public void free() {
+            release();
+        }
+        
+        @Override
+        public void getDefaults() {
+            internal.getDefaults();
+        }
+        
+        @Override
+        public void fillAudioFrame(int sampleCount, int channelCount, SampleFormat sampleFormat, Pointer<Byte> buffer, int bufferSize) throws LibavException {
+            internal.fillAudioFrame(sampleCount, channelCount, sampleFormat, buffer, bufferSize);
+        }
+        
+        @Override
+        public void fillAudioFrame(int sampleCount, int channelCount, SampleFormat sampleFormat, Pointer<Byte> buffer, int bufferSize, int bufferSampleCapacity) throws LibavException {
+            internal.fillAudioFrame(sampleCount, channelCount, sampleFormat, buffer, bufferSize, bufferSampleCapacity);
+        }
+        
+        @Override
+        public Pointer<Pointer<Byte>> getData() {
+            return internal.getData();
+        }
+        
+        @Override
+        public int getDataLength() {
+            return internal.getDataLength();
+        }
+        
+        @Override
+        public ByteBuffer getPlaneBuffer(int plane, int lineCount) {
+            return internal.getPlaneBuffer(plane, lineCount);
+        }
+        
+        @Override
+        public ByteBuffer[] getPictureBuffers(PixelFormat pixelFormat, int height) {
+            return internal.getPictureBuffers(pixelFormat, height);
+        }
+        
+        @Override
+        public int getPlaneHeight(int plane, PixelFormat pixelFormat, int height) {
+            return internal.getPlaneHeight(plane, pixelFormat, height);
+        }
+        
+        @Override
+        public void setPlaneBuffer(int plane, ByteBuffer buffer, int lineSize) {
+            internal.setPlaneBuffer(plane, buffer, lineSize);
+        }
+        
+        @Override
+        public long getPlaneChecksum(int plane, int lineWidth, int lineCount) {
+            return internal.getPlaneChecksum(plane, lineWidth, lineCount);
+        }
+        
+        @Override
+        public Pointer<Pointer<Byte>> getExtendedData() {
+            return internal.getExtendedData();
+        }
+        
+        @Override
+        public void setExtendedData(Pointer<Pointer<Byte>> extendedData) {
+            internal.setExtendedData(extendedData);
+        }
+        
+        @Override
+        public Pointer<Integer> getLineSize() {
+            return internal.getLineSize();
+        }
+        
+        @Override
+        public int getLineSizeLength() {
+            return internal.getLineSizeLength();
+        }
+        
+        @Override
+        public boolean isKeyFrame() {
+            return internal.isKeyFrame();
+        }
+        
+        @Override
+        public void setKeyFrame(boolean keyFrame) {
+            internal.setKeyFrame(keyFrame);
+        }
+        
+        @Override
+        public long getPts() {
+            return internal.getPts();
+        }
+        
+        @Override
+        public void setPts(long pts) {
+            internal.setPts(pts);
+        }
+        
+        @Override
+        public int getRepeatPicture() {
+            return internal.getRepeatPicture();
+        }
+        
+        @Override
+        public void setRepeatPicture(int repeatPicture) {
+            internal.setRepeatPicture(repeatPicture);
+        }
+        
+        @Override
+        public long getPacketDts() {
+            return internal.getPacketDts();
+        }
+        
+        @Override
+        public void setPacketDts(long packetDts) {
+            internal.setPacketDts(packetDts);
+        }
+        
+        @Override
+        public long getPacketPts() {
+            return internal.getPacketPts();
+        }
+        
+        @Override
+        public void setPacketPts(long packetPts) {
+            internal.setPacketPts(packetPts);
+        }
+        
+        @Override
+        public int getNbSamples() {
+            return internal.getNbSamples();
+        }
+        
+        @Override
+        public void setNbSamples(int nbSamples) {
+            internal.setNbSamples(nbSamples);
+        }
+        
+        @Override
+        public void clearWrapperCache() {
+            internal.clearWrapperCache();
+        }
+        
+        @Override
+        public Pointer<?> getPointer() {
+            return internal.getPointer();
+        }
+        
+        @Override
+        public void rebind(Pointer<?> pointer) {
+            internal.rebind(pointer);
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
  */
 package org.libav.swscale;
 
+import org.bridj.Pointer;
 import org.libav.LibavException;
 import org.libav.avcodec.IFrameWrapper;
 import org.libav.bridge.IWrapper;
@@ -45,4 +46,18 @@ public interface IScaleContextWrapper extends IWrapper {
      */
     int scale(IFrameWrapper src, IFrameWrapper dst, int srcSliceY, int srcSliceHeight) throws LibavException;
     
+    /**
+     * Scale the given slice of the source image planes.
+     * 
+     * @param srcData source plane pointers
+     * @param srcLineSize source line sizes
+     * @param srcSliceY Y position of the slice in the source image
+     * @param srcSliceHeight height of the slice from the source image
+     * @param dstData destination plane pointers
+     * @param dstLineSize destination line sizes
+     * @return the height of the output slice
+     * @throws LibavException if the scale context has been freed
+     */
+    int scale(Pointer<Pointer<Byte>> srcData, Pointer<Integer> srcLineSize, int srcSliceY, int srcSliceHeight, Pointer<Pointer<Byte>> dstData, Pointer<Integer> dstLineSize) throws LibavException;
+    
 }
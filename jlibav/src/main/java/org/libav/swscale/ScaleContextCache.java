@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.swscale;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import org.libav.LibavException;
+import org.libav.avutil.PixelFormat;
+
+/**
+ * Process-wide cache of scale contexts. Contexts are checked out for 
+ * exclusive use and checked back in when they are not needed anymore. Idle 
+ * contexts are kept in the cache and reused by following check outs with the 
+ * same conversion parameters. The least recently used idle contexts are freed
+ * when the number of idle contexts exceeds the cache capacity.
+ * 
+ * @author Ondrej Perutka
+ */
+public class ScaleContextCache {
+    
+    public static final int DEFAULT_CAPACITY = 16;
+    
+    private static final ScaleContextCache instance = new ScaleContextCache(DEFAULT_CAPACITY);
+    
+    private final LinkedList<Entry> idle;
+    private final Map<ScaleContextWrapper, Key> checkedOut;
+    private int capacity;
+    
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    
+    /**
+     * Create a new scale context cache.
+     * 
+     * @param capacity maximum number of idle contexts
+     */
+    public ScaleContextCache(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        
+        this.idle = new LinkedList<Entry>();
+        this.checkedOut = new IdentityHashMap<ScaleContextWrapper, Key>();
+        this.capacity = capacity;
+        
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+    
+    /**
+     * Get a scale context for the given conversion parameters. An idle 
+     * context is reused if there is one, otherwise a new context is created.
+     * The context must be returned using the checkIn() method and it must not 
+     * be freed by the caller.
+     * 
+     * @param srcWidth a width of source images
+     * @param srcHeight a height of source images
+     * @param srcFormat a pixel format of source images
+     * @param dstWidth a width of produced images
+     * @param dstHeight a height of produced images
+     * @param dstFormat a pixel format of produced images
+     * @param flags scaling flags
+     * @return scale context
+     * @throws LibavException if the context cannot be created
+     */
+    public ScaleContextWrapper checkOut(int srcWidth, int srcHeight, PixelFormat srcFormat, int dstWidth, int dstHeight, PixelFormat dstFormat, int flags) throws LibavException {
+        Key key = new Key(srcWidth, srcHeight, srcFormat, dstWidth, dstHeight, dstFormat, flags);
+        
+        synchronized (this) {
+            // search from the most recently used end
+            Iterator<Entry> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.key.equals(key)) {
+                    it.remove();
+                    checkedOut.put(e.context, e.key);
+                    hitCount++;
+                    return e.context;
+                }
+            }
+            
+            missCount++;
+        }
+        
+        ScaleContextWrapper result = ScaleContextWrapper.createContext(srcWidth, srcHeight, srcFormat, dstWidth, dstHeight, dstFormat, flags);
+        synchronized (this) {
+            checkedOut.put(result, key);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Return the given context into the cache. 
+     * 
+     * @param context a context obtained using the checkOut() method
+     */
+    public synchronized void checkIn(ScaleContextWrapper context) {
+        Key key = checkedOut.remove(context);
+        if (key == null)
+            throw new IllegalArgumentException("the context has not been checked out from this cache");
+        
+        idle.addLast(new Entry(key, context));
+        evict(capacity);
+    }
+    
+    /**
+     * Set maximum number of idle contexts.
+     * 
+     * @param capacity maximum number of idle contexts
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        
+        this.capacity = capacity;
+        evict(capacity);
+    }
+    
+    /**
+     * Get maximum number of idle contexts.
+     * 
+     * @return maximum number of idle contexts
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Free all idle contexts.
+     */
+    public synchronized void clear() {
+        evict(0);
+    }
+    
+    private void evict(int maxIdle) {
+        while (idle.size() > maxIdle) {
+            idle.removeFirst().context.free();
+            evictionCount++;
+        }
+    }
+    
+    /**
+     * Get number of idle contexts.
+     * 
+     * @return number of idle contexts
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+    
+    /**
+     * Get number of checked out contexts.
+     * 
+     * @return number of checked out contexts
+     */
+    public synchronized int getCheckedOutCount() {
+        return checkedOut.size();
+    }
+    
+    /**
+     * Get number of check outs satisfied by an idle context.
+     * 
+     * @return number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    
+    /**
+     * Get number of check outs which required a new context.
+     * 
+     * @return number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    
+    /**
+     * Get number of idle contexts freed because of the cache capacity.
+     * 
+     * @return number of evicted contexts
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    /**
+     * Get the process-wide instance of the cache.
+     * 
+     * @return instance of the cache
+     */
+    public static ScaleContextCache getInstance() {
+        return instance;
+    }
+    
+    private static class Entry {
+        private final Key key;
+        private final ScaleContextWrapper context;
+
+        public Entry(Key key, ScaleContextWrapper context) {
+            this.key = key;
+            this.context = context;
+        }
+    }
+    
+    private static class Key {
+        private final int srcWidth;
+        private final int srcHeight;
+        private final PixelFormat srcFormat;
+        private final int dstWidth;
+        private final int dstHeight;
+        private final PixelFormat dstFormat;
+        private final int flags;
+
+        public Key(int srcWidth, int srcHeight, PixelFormat srcFormat, int dstWidth, int dstHeight, PixelFormat dstFormat, int flags) {
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.srcFormat = srcFormat;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            this.dstFormat = dstFormat;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            
+            Key k = (Key)obj;
+            return srcWidth == k.srcWidth && srcHeight == k.srcHeight && srcFormat == k.srcFormat
+                    && dstWidth == k.dstWidth && dstHeight == k.dstHeight && dstFormat == k.dstFormat
+                    && flags == k.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = srcWidth;
+            result = 31 * result + srcHeight;
+            result = 31 * result + srcFormat.hashCode();
+            result = 31 * result + dstWidth;
+            result = 31 * result + dstHeight;
+            result = 31 * result + dstFormat.hashCode();
+            result = 31 * result + flags;
+            return result;
+        }
+    }
+    
+}
@@ -72,7 +72,15 @@ public class ScaleContextWrapper implements IScaleContextWrapper {
         if (scaleContext == null)
             throw new LibavException("current context has been freed");
         
-        return scaleLib.sws_scale(scaleContext, src.getData(), src.getLineSize(), srcSliceY, srcSliceHeight, dst.getData(), dst.getLineSize());
+        return scale(src.getData(), src.getLineSize(), srcSliceY, srcSliceHeight, dst.getData(), dst.getLineSize());
+    }
+    
+    @Override
+    public int scale(Pointer<Pointer<Byte>> srcData, Pointer<Integer> srcLineSize, int srcSliceY, int srcSliceHeight, Pointer<Pointer<Byte>> dstData, Pointer<Integer> dstLineSize) throws LibavException {
+        if (scaleContext == null)
+            throw new LibavException("current context has been freed");
+        
+        return scaleLib.sws_scale(scaleContext, srcData, srcLineSize, srcSliceY, srcSliceHeight, dstData, dstLineSize);
     }
     
     /**
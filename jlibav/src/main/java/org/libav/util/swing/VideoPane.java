@@ -25,6 +25,7 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.image.*;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JComponent;
@@ -34,12 +35,19 @@ import org.libav.avcodec.FrameWrapperFactory;
 import org.libav.avcodec.IFrameWrapper;
 import org.libav.avutil.PixelFormat;
 import org.libav.data.IFrameConsumer;
+import org.libav.swscale.ScaleContextCache;
 import org.libav.swscale.ScaleContextWrapper;
 import org.libav.swscale.bridge.SWScaleLibrary;
 
 /**
  * SWING component for video rendering.
  * 
+ * Frames are rendered using triple buffering. The decoding thread writes 
+ * into a back buffer and publishes it as the latest frame, the painting 
+ * thread draws the latest published frame. If a frame is published before 
+ * the previous one has been painted, the previous one is dropped, so the 
+ * decoding thread never waits for the painting thread.
+ * 
  * @author Ondrej Perutka
  */
 public class VideoPane extends JComponent implements IFrameConsumer {
@@ -67,8 +75,14 @@ public class VideoPane extends JComponent implements IFrameConsumer {
     private ScaleContextWrapper scaleContext;
     private IFrameWrapper rgbFrame;
     private Pointer<Byte> rgbFrameData;
-    private BufferedImage img;
-    private int[] imageData;
+    
+    private final Object bufferLock;
+    private RenderBuffer backBuffer;
+    private RenderBuffer readyBuffer;
+    private RenderBuffer displayBuffer;
+    private boolean freshFrame;
+    private long renderedFrames;
+    private long droppedFrames;
 
     private int x;
     private int y;
@@ -92,8 +106,14 @@ public class VideoPane extends JComponent implements IFrameConsumer {
         scaleContext = null;
         rgbFrame = null;
         rgbFrameData = null;
-        img = null;
-        imageData = null;
+        
+        bufferLock = new Object();
+        backBuffer = null;
+        readyBuffer = null;
+        displayBuffer = null;
+        freshFrame = false;
+        renderedFrames = 0;
+        droppedFrames = 0;
         
         x = 0;
         y = 0;
@@ -118,15 +138,51 @@ public class VideoPane extends JComponent implements IFrameConsumer {
     }
 
     @Override
-    public synchronized void paintComponent(Graphics grphcs) {
+    public void paintComponent(Graphics grphcs) {
         Color prev = grphcs.getColor();
         
         grphcs.setColor(getBackground());
         grphcs.fillRect(0, 0, getWidth(), getHeight());
         grphcs.setColor(prev);
         
-        if (scaleContext != null)
-            grphcs.drawImage(img, x, y, dstWidth, dstHeight, this);
+        RenderBuffer rb;
+        synchronized (bufferLock) {
+            if (freshFrame) {
+                rb = displayBuffer;
+                displayBuffer = readyBuffer;
+                readyBuffer = rb;
+                freshFrame = false;
+                renderedFrames++;
+            }
+            rb = displayBuffer;
+        }
+        
+        // the display buffer is never touched by the decoding thread
+        if (rb != null)
+            grphcs.drawImage(rb.img, rb.x, rb.y, rb.width, rb.height, this);
+    }
+    
+    /**
+     * Get number of frames which have been painted.
+     * 
+     * @return number of painted frames
+     */
+    public long getRenderedFrameCount() {
+        synchronized (bufferLock) {
+            return renderedFrames;
+        }
+    }
+    
+    /**
+     * Get number of frames which have been dropped because they were replaced 
+     * by a newer frame before they could be painted.
+     * 
+     * @return number of dropped frames
+     */
+    public long getDroppedFrameCount() {
+        synchronized (bufferLock) {
+            return droppedFrames;
+        }
     }
     
     /**
@@ -247,32 +303,42 @@ public class VideoPane extends JComponent implements IFrameConsumer {
         dstHeight = (int)(srcHeight * r);
         
         try {
-            scaleContext = ScaleContextWrapper.createContext(srcWidth, srcHeight, srcPixelFormat, dstWidth, dstHeight, dstPixelFormat, scalingAlgorithm);
+            scaleContext = ScaleContextCache.getInstance().checkOut(srcWidth, srcHeight, srcPixelFormat, dstWidth, dstHeight, dstPixelFormat, scalingAlgorithm);
             rgbFrame = FrameWrapperFactory.getInstance().allocPicture(dstPixelFormat, dstWidth, dstHeight);
             rgbFrameData = rgbFrame.getData().get();
         } catch (LibavException ex) {
             Logger.getLogger(VideoPane.class.getName()).log(Level.SEVERE, "unable initialize video pane scaling context", ex);
             if (scaleContext != null)
-                scaleContext.free();
+                ScaleContextCache.getInstance().checkIn(scaleContext);
             scaleContext = null;
             return;
         }
         
-        imageData = new int[dstWidth * dstHeight];
-        DataBuffer db = new DataBufferInt(imageData, imageData.length);
-        int[] masks = new int[] { 0x00ff0000, 0x0000ff00, 0x000000ff };
-        SampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, dstWidth, dstHeight, masks);
-        WritableRaster wr = Raster.createWritableRaster(sm, db, new Point());
-        img = new BufferedImage(new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff), wr, false, null);
+        RenderBuffer back = new RenderBuffer(x, y, dstWidth, dstHeight);
+        RenderBuffer ready = new RenderBuffer(x, y, dstWidth, dstHeight);
+        RenderBuffer display = new RenderBuffer(x, y, dstWidth, dstHeight);
+        synchronized (bufferLock) {
+            backBuffer = back;
+            readyBuffer = ready;
+            displayBuffer = display;
+            freshFrame = false;
+        }
     }
     
     private synchronized void disposeScaleContext() {
         if (scaleContext != null)
-            scaleContext.free();
+            ScaleContextCache.getInstance().checkIn(scaleContext);
         if (rgbFrame != null)
             rgbFrame.free();
         
         scaleContext = null;
+        rgbFrame = null;
+        synchronized (bufferLock) {
+            backBuffer = null;
+            readyBuffer = null;
+            displayBuffer = null;
+            freshFrame = false;
+        }
     }
     
     /**
@@ -286,9 +352,12 @@ public class VideoPane extends JComponent implements IFrameConsumer {
      * Clear the component with the background color.
      */
     public synchronized void clear() {
-        if (scaleContext != null) {
-            for (int i = 0; i < imageData.length; i++)
-                imageData[i] = 0;
+        synchronized (bufferLock) {
+            if (displayBuffer != null) {
+                Arrays.fill(readyBuffer.data, 0);
+                Arrays.fill(displayBuffer.data, 0);
+            }
+            freshFrame = false;
         }
         
         repaint();
@@ -301,10 +370,44 @@ public class VideoPane extends JComponent implements IFrameConsumer {
         
         try {
             scaleContext.scale(frame, rgbFrame, 0, srcHeight);
-            rgbFrameData.getIntsAtOffset(0, imageData, 0, imageData.length);
-            repaint();
+            rgbFrameData.getIntsAtOffset(0, backBuffer.data, 0, backBuffer.data.length);
         } catch (LibavException ex) {
             Logger.getLogger(VideoPane.class.getName()).log(Level.WARNING, "video pane has uninitielized source image format", ex);
+            return;
+        }
+        
+        synchronized (bufferLock) {
+            RenderBuffer tmp = readyBuffer;
+            readyBuffer = backBuffer;
+            backBuffer = tmp;
+            if (freshFrame)
+                droppedFrames++;
+            freshFrame = true;
+        }
+        
+        repaint();
+    }
+    
+    private static class RenderBuffer {
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final int[] data;
+        private final BufferedImage img;
+
+        public RenderBuffer(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            
+            data = new int[width * height];
+            DataBuffer db = new DataBufferInt(data, data.length);
+            int[] masks = new int[] { 0x00ff0000, 0x0000ff00, 0x000000ff };
+            SampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, masks);
+            WritableRaster wr = Raster.createWritableRaster(sm, db, new Point());
+            img = new BufferedImage(new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff), wr, false, null);
         }
     }
     
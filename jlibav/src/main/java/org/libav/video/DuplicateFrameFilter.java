@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.video;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.libav.LibavException;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.data.IFrameConsumer;
+import org.libav.data.IFrameProducer;
+
+/**
+ * Video frame filter which drops pictures with unchanged content. It 
+ * compares a checksum of the first data plane (the luma plane of YUV 
+ * formats) of each picture with the checksum of the last passed picture. It
+ * is intended to be put in front of a video encoder (e.g. for screen 
+ * capture inputs).
+ * 
+ * @author Ondrej Perutka
+ */
+public class DuplicateFrameFilter implements IFrameConsumer, IFrameProducer {
+
+    private final Set<IFrameConsumer> consumers;
+    
+    private int lineWidth;
+    private int lineCount;
+    private long maxSkipDuration;
+    
+    private boolean hasLast;
+    private long lastChecksum;
+    private long lastPts;
+    private long skippedFrames;
+    
+    /**
+     * Create a new duplicate frame filter.
+     * 
+     * @param lineWidth number of bytes of each line of the first plane used
+     * for the comparison (e.g. picture width for the YUV420P format)
+     * @param lineCount number of lines of the first plane (e.g. picture 
+     * height)
+     */
+    public DuplicateFrameFilter(int lineWidth, int lineCount) {
+        this.lineWidth = lineWidth;
+        this.lineCount = lineCount;
+        
+        consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
+        maxSkipDuration = 0;
+        
+        hasLast = false;
+        lastChecksum = 0;
+        lastPts = 0;
+        skippedFrames = 0;
+    }
+    
+    /**
+     * Set maximum time interval without any passed picture. An unchanged 
+     * picture is passed if the last passed picture is older. The default 
+     * value is 0 (no limit).
+     * 
+     * @param maxSkipDuration time in milliseconds (0 means no limit)
+     */
+    public synchronized void setMaxSkipDuration(long maxSkipDuration) {
+        this.maxSkipDuration = maxSkipDuration;
+    }
+    
+    /**
+     * Get maximum time interval without any passed picture.
+     * 
+     * @return time in milliseconds (0 means no limit)
+     */
+    public synchronized long getMaxSkipDuration() {
+        return maxSkipDuration;
+    }
+    
+    /**
+     * Get number of dropped pictures.
+     * 
+     * @return number of dropped pictures
+     */
+    public synchronized long getSkippedFrameCount() {
+        return skippedFrames;
+    }
+    
+    /**
+     * Forget the last passed picture (e.g. after seeking).
+     */
+    public synchronized void reset() {
+        hasLast = false;
+    }
+    
+    @Override
+    public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        long checksum = frame.getPlaneChecksum(0, lineWidth, lineCount);
+        long pts = frame.getPts();
+        
+        if (hasLast && checksum == lastChecksum && (maxSkipDuration <= 0 || pts - lastPts < maxSkipDuration)) {
+            skippedFrames++;
+            return;
+        }
+        
+        hasLast = true;
+        lastChecksum = checksum;
+        lastPts = pts;
+        sendFrame(frame);
+    }
+    
+    private void sendFrame(IFrameWrapper frame) throws LibavException {
+        synchronized (consumers) {
+            for (IFrameConsumer c : consumers)
+                c.processFrame(this, frame);
+        }
+    }
+    
+    @Override
+    public void addFrameConsumer(IFrameConsumer c) {
+        consumers.add(c);
+    }
+    
+    @Override
+    public void removeFrameConsumer(IFrameConsumer c) {
+        consumers.remove(c);
+    }
+
+}
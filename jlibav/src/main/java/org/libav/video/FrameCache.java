@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.video;
+
+import java.util.*;
+import org.libav.LibavException;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
+import org.libav.avutil.PixelFormat;
+import org.libav.bridge.LibraryManager;
+import org.libav.data.FramePool;
+import org.libav.data.IFrameConsumer;
+import org.libav.data.IFrameProducer;
+
+/**
+ * Cache of decoded video pictures of a single stream. It should be put 
+ * between a video frame decoder (or a frame scaler) and its consumers. All 
+ * passing pictures are copied into the cache and the copies are sent to the
+ * consumers. The cache is bounded by a byte budget and the least recently 
+ * used pictures are evicted first.
+ * 
+ * Pictures passing in one run (i.e. between two calls of the reset() 
+ * method) are linked together, so the cache knows which picture precedes 
+ * or follows another one.
+ * 
+ * Pictures returned by the get methods are reference counted frames. They 
+ * must be released by the caller using the release() method.
+ * 
+ * @author Ondrej Perutka
+ */
+public class FrameCache implements IFrameConsumer, IFrameProducer {
+
+    private static final AVCodecLibrary codecLib = LibraryManager.getInstance().getAVCodecLibrary();
+    
+    private static final long NONE = Long.MIN_VALUE;
+    
+    private final Set<IFrameConsumer> consumers;
+    
+    private PixelFormat pixelFormat;
+    private int width;
+    private int height;
+    private long frameSize;
+    private long byteBudget;
+    private FramePool framePool;
+    
+    private final LinkedHashMap<Long, Entry> entries;
+    private final TreeMap<Long, Entry> index;
+    private Entry last;
+    
+    private long hits;
+    private long misses;
+    
+    /**
+     * Create a new frame cache.
+     * 
+     * @param pixelFormat pixel format of the cached pictures
+     * @param width width of the cached pictures
+     * @param height height of the cached pictures
+     * @param byteBudget maximum number of bytes used by the cached pictures
+     */
+    public FrameCache(PixelFormat pixelFormat, int width, int height, long byteBudget) {
+        this.pixelFormat = pixelFormat;
+        this.width = width;
+        this.height = height;
+        
+        frameSize = Math.max(1, codecLib.avpicture_get_size(pixelFormat.value(), width, height));
+        if (byteBudget < frameSize)
+            throw new IllegalArgumentException("the byte budget is too small to hold a single picture");
+        
+        this.byteBudget = byteBudget;
+        
+        consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
+        // frames retained by the callers are held outside the pool as well
+        framePool = new FramePool(pixelFormat, width, height, getMaxFrameCount() + FramePool.DEFAULT_CAPACITY);
+        
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+        index = new TreeMap<Long, Entry>();
+        last = null;
+        
+        hits = 0;
+        misses = 0;
+    }
+    
+    /**
+     * Get pixel format of the cached pictures.
+     * 
+     * @return pixel format
+     */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+    
+    /**
+     * Get width of the cached pictures.
+     * 
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Get height of the cached pictures.
+     * 
+     * @return height
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Set maximum number of bytes used by the cached pictures. The least 
+     * recently used pictures are evicted if the cache is larger.
+     * 
+     * @param byteBudget maximum number of bytes
+     */
+    public synchronized void setByteBudget(long byteBudget) {
+        if (byteBudget < frameSize)
+            throw new IllegalArgumentException("the byte budget is too small to hold a single picture");
+        
+        this.byteBudget = byteBudget;
+        framePool.setCapacity(getMaxFrameCount() + FramePool.DEFAULT_CAPACITY);
+        evict(0);
+    }
+    
+    /**
+     * Get maximum number of bytes used by the cached pictures.
+     * 
+     * @return maximum number of bytes
+     */
+    public synchronized long getByteBudget() {
+        return byteBudget;
+    }
+    
+    /**
+     * Get number of bytes currently used by the cached pictures.
+     * 
+     * @return number of bytes
+     */
+    public synchronized long getSize() {
+        return entries.size() * frameSize;
+    }
+    
+    /**
+     * Get number of cached pictures.
+     * 
+     * @return number of pictures
+     */
+    public synchronized int getFrameCount() {
+        return entries.size();
+    }
+    
+    /**
+     * Get number of successful lookups.
+     * 
+     * @return number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+    
+    /**
+     * Get number of unsuccessful lookups.
+     * 
+     * @return number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+    
+    private int getMaxFrameCount() {
+        return (int)Math.min(Integer.MAX_VALUE - FramePool.DEFAULT_CAPACITY, byteBudget / frameSize);
+    }
+    
+    /**
+     * Get pts of the most recently cached picture.
+     * 
+     * @return pts of the last picture or Long.MIN_VALUE if there was no 
+     * picture since the last reset
+     */
+    public synchronized long getLastPts() {
+        return last == null ? NONE : last.pts;
+    }
+    
+    /**
+     * Get the picture with the given pts.
+     * 
+     * @param pts a presentation timestamp (in milliseconds)
+     * @return retained picture or null if it is not cached
+     */
+    public synchronized IFrameWrapper getFrame(long pts) {
+        return lookup(index.get(pts));
+    }
+    
+    /**
+     * Get the picture displayed at the given time, i.e. the picture with the
+     * greatest pts less or equal to the given time. The picture is returned 
+     * only if its pts is equal to the given time or if it is known that its 
+     * successor has greater pts than the given time.
+     * 
+     * @param time a time (in milliseconds)
+     * @return retained picture or null if it is not cached
+     */
+    public synchronized IFrameWrapper getFrameAt(long time) {
+        Map.Entry<Long, Entry> me = index.floorEntry(time);
+        Entry e = me == null ? null : me.getValue();
+        if (e != null && e.pts != time && (e.next == NONE || e.next <= time))
+            e = null;
+        
+        return lookup(e);
+    }
+    
+    /**
+     * Get the picture preceding the picture with the given pts.
+     * 
+     * @param pts a presentation timestamp (in milliseconds)
+     * @return retained picture or null if it is not cached or it is not 
+     * known
+     */
+    public synchronized IFrameWrapper getPrevious(long pts) {
+        Entry e = index.get(pts);
+        return lookup(e == null || e.previous == NONE ? null : index.get(e.previous));
+    }
+    
+    /**
+     * Get the picture following the picture with the given pts.
+     * 
+     * @param pts a presentation timestamp (in milliseconds)
+     * @return retained picture or null if it is not cached or it is not 
+     * known
+     */
+    public synchronized IFrameWrapper getNext(long pts) {
+        Entry e = index.get(pts);
+        return lookup(e == null || e.next == NONE ? null : index.get(e.next));
+    }
+    
+    private IFrameWrapper lookup(Entry e) {
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        
+        hits++;
+        entries.get(e.pts); // update the access order
+        e.frame.retain();
+        return e.frame;
+    }
+    
+    /**
+     * Break the link between the last cached picture and the next incoming 
+     * picture. It must be called after seeking.
+     */
+    public synchronized void reset() {
+        last = null;
+    }
+    
+    /**
+     * Drop all cached pictures.
+     */
+    public synchronized void clear() {
+        for (Entry e : entries.values())
+            e.frame.release();
+        
+        entries.clear();
+        index.clear();
+        last = null;
+    }
+    
+    /**
+     * Drop all cached pictures and release all resources held by the cache.
+     */
+    public synchronized void dispose() {
+        clear();
+        framePool.dispose();
+    }
+    
+    @Override
+    public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        IFrameWrapper f = cache(frame);
+        try {
+            synchronized (consumers) {
+                for (IFrameConsumer c : consumers)
+                    c.processFrame(this, f);
+            }
+        } finally {
+            f.release();
+        }
+    }
+    
+    private synchronized IFrameWrapper cache(IFrameWrapper frame) throws LibavException {
+        long pts = frame.getPts();
+        Entry e = index.get(pts);
+        
+        if (e == null) {
+            // make room before taking a frame from the pool, so that the 
+            // pool does not block
+            evict(1);
+            e = new Entry(pts, framePool.clonePicture(frame));
+            entries.put(pts, e);
+            index.put(pts, e);
+        } else
+            entries.get(pts);
+        
+        if (last != null && last != e && last.pts < pts) {
+            last.next = pts;
+            e.previous = last.pts;
+        }
+        last = e;
+        
+        e.frame.retain();
+        return e.frame;
+    }
+    
+    private void evict(int reserve) {
+        Iterator<Entry> it = entries.values().iterator();
+        Entry e;
+        
+        while ((entries.size() + reserve) * frameSize > byteBudget && it.hasNext()) {
+            e = it.next();
+            it.remove();
+            index.remove(e.pts);
+            unlink(e);
+            e.frame.release();
+        }
+    }
+    
+    private void unlink(Entry e) {
+        Entry tmp;
+        if (e.previous != NONE && (tmp = index.get(e.previous)) != null)
+            tmp.next = NONE;
+        if (e.next != NONE && (tmp = index.get(e.next)) != null)
+            tmp.previous = NONE;
+        if (e == last)
+            last = null;
+    }
+    
+    @Override
+    public void addFrameConsumer(IFrameConsumer c) {
+        consumers.add(c);
+    }
+    
+    @Override
+    public void removeFrameConsumer(IFrameConsumer c) {
+        consumers.remove(c);
+    }
+    
+    private static class Entry {
+        private long pts;
+        private IFrameWrapper frame;
+        private long previous;
+        private long next;
+        
+        public Entry(long pts, IFrameWrapper frame) {
+            this.pts = pts;
+            this.frame = frame;
+            
+            previous = NONE;
+            next = NONE;
+        }
+    }
+
+}
@@ -20,22 +20,59 @@ package org.libav.video;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.bridj.Pointer;
 import org.libav.LibavException;
 import org.libav.avcodec.FrameWrapperFactory;
 import org.libav.avcodec.IFrameWrapper;
+import org.libav.avcodec.bridge.AVCodecLibrary;
 import org.libav.avutil.PixelFormat;
+import org.libav.bridge.LibraryManager;
+import org.libav.data.FramePool;
 import org.libav.data.IFrameConsumer;
 import org.libav.data.IFrameProducer;
+import org.libav.swscale.ScaleContextCache;
 import org.libav.swscale.ScaleContextWrapper;
 import org.libav.swscale.bridge.SWScaleLibrary;
 
 /**
  * Native vide frame scaler.
  * 
+ * The scaler can split images into horizontal bands and scale them in 
+ * parallel using a pool of worker threads (see setThreadCount()). Each band 
+ * has its own scale context. Band boundaries are placed only where the 
+ * source and destination rows correspond exactly, so all bands use the same 
+ * scale ratio as the whole image, and each band is scaled together with 
+ * a few overlapping rows of its neighbours, so the vertical filter is not 
+ * clamped at band boundaries. The output differs from the output of 
+ * a single context only by rounding.
+ * 
+ * Scale contexts are shared with other scalers using the process-wide 
+ * ScaleContextCache, so reconfiguring the scaler to a previously used format 
+ * does not need to initialize a new context.
+ * 
+ * By default, the scaler reuses a single picture for all produced images, so
+ * consumers must process them synchronously. If a frame pool capacity is set,
+ * produced images are taken from a bounded frame pool and consumers may 
+ * retain them and process them asynchronously.
+ * 
  * @author Ondrej Perutka
  */
 public class FrameScaler implements IFrameConsumer, IFrameProducer {
     
+    private static final AVCodecLibrary codecLib = LibraryManager.getInstance().getAVCodecLibrary();
+    private static final ScaleContextCache contextCache = ScaleContextCache.getInstance();
+    
+    private static final int MIN_BAND_HEIGHT = 16;
+    // source rows needed on each side of a band by the widest filter 
+    // (without downscaling)
+    private static final int FILTER_MARGIN = 4;
+    
     private int srcWidth;
     private int srcHeight;
     private PixelFormat srcFormat;
@@ -48,6 +85,12 @@ public class FrameScaler implements IFrameConsumer, IFrameProducer {
     private int scalingAlg;
     
     private IFrameWrapper picture;
+    private FramePool framePool;
+    private int framePoolCapacity;
+    
+    private int threadCount;
+    private ExecutorService workers;
+    private Band[] bands;
     
     private final Set<IFrameConsumer> consumers;
 
@@ -63,13 +106,37 @@ public class FrameScaler implements IFrameConsumer, IFrameProducer {
      * @throws LibavException if an error occurs
      */
     public FrameScaler(int srcWidth, int srcHeight, PixelFormat srcPixelFormat, int dstWidth, int dstHeight, PixelFormat dstPixelFormat) throws LibavException {
+        this(srcWidth, srcHeight, srcPixelFormat, dstWidth, dstHeight, dstPixelFormat, 1);
+    }
+    
+    /**
+     * Create a new video frame scaler and set scaling parameters.
+     * 
+     * @param srcWidth a width of source images
+     * @param srcHeight a height of source images
+     * @param srcFormat a pixel format of source images
+     * @param dstWidth a width of produced images
+     * @param dstHeight a height of produced images
+     * @param dstPixelFormat a pixel format of produced images
+     * @param threadCount number of threads used for scaling (each thread 
+     * scales one horizontal band of the image)
+     * @throws LibavException if an error occurs
+     */
+    public FrameScaler(int srcWidth, int srcHeight, PixelFormat srcPixelFormat, int dstWidth, int dstHeight, PixelFormat dstPixelFormat, int threadCount) throws LibavException {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("thread count must be greater than 0");
+        
         this.srcWidth = srcWidth;
         this.srcHeight = srcHeight;
         this.srcFormat = srcPixelFormat;
         this.dstWidth = dstWidth;
         this.dstHeight = dstHeight;
         this.dstFormat = dstPixelFormat;
+        this.threadCount = threadCount;
+        framePoolCapacity = 0;
         scalingAlg = SWScaleLibrary.SWS_BICUBIC;
+        workers = null;
+        bands = null;
         
         init();
         
@@ -78,11 +145,127 @@ public class FrameScaler implements IFrameConsumer, IFrameProducer {
     
     private void init() throws LibavException {
         if (scaleContext != null)
-            scaleContext.free();
+            contextCache.checkIn(scaleContext);
+        freeOutput();
+        freeBands();
+        scaleContext = null;
+        
+        initOutput();
+        
+        int bandCount = getBandCount();
+        if (bandCount < 2 || !initBands(bandCount))
+            scaleContext = contextCache.checkOut(srcWidth, srcHeight, srcFormat, dstWidth, dstHeight, dstFormat, scalingAlg);
+    }
+    
+    private void initOutput() throws LibavException {
+        if (framePoolCapacity > 0)
+            framePool = new FramePool(dstFormat, dstWidth, dstHeight, framePoolCapacity);
+        else
+            picture = FrameWrapperFactory.getInstance().allocPicture(dstFormat, dstWidth, dstHeight);
+    }
+    
+    private void freeOutput() {
+        // disposing the pool also wakes up a thread waiting for a pooled frame
+        if (framePool != null)
+            framePool.dispose();
         if (picture != null)
             picture.free();
-        scaleContext = ScaleContextWrapper.createContext(srcWidth, srcHeight, srcFormat, dstWidth, dstHeight, dstFormat, scalingAlg);
-        picture = FrameWrapperFactory.getInstance().allocPicture(dstFormat, dstWidth, dstHeight);
+        
+        framePool = null;
+        picture = null;
+    }
+    
+    private int getBandCount() {
+        // paletted and pseudo-paletted formats store the palette in the 
+        // second plane, so its pointer cannot be offset
+        if (threadCount < 2 || srcFormat.hasPalette() || dstFormat.hasPalette())
+            return 1;
+        
+        int result = Math.min(threadCount, Math.min(srcHeight, dstHeight) / MIN_BAND_HEIGHT);
+        return Math.max(result, 1);
+    }
+    
+    private boolean initBands(int bandCount) throws LibavException {
+        int srcShift = getVerticalChromaShift(srcFormat);
+        int dstShift = getVerticalChromaShift(dstFormat);
+        
+        // band boundaries must be placed on destination rows which map 
+        // exactly to chroma aligned source rows
+        int g = gcd(srcHeight, dstHeight);
+        int srcStep = srcHeight / g;
+        int dstStep = dstHeight / g;
+        int srcAlign = 1 << srcShift;
+        int dstAlign = 1 << dstShift;
+        long n = lcm(dstAlign / gcd(dstStep, dstAlign), srcAlign / gcd(srcStep, srcAlign));
+        long srcUnit = n * srcStep;
+        long dstUnit = n * dstStep;
+        int unitCount = (int)(dstHeight / dstUnit);
+        bandCount = Math.min(bandCount, unitCount);
+        if (bandCount < 2)
+            return false;
+        
+        // the overlap in units (downscaling widens the filter)
+        long margin = (long)FILTER_MARGIN * ((srcHeight + dstHeight - 1) / dstHeight) << srcShift;
+        int marginUnits = (int)((margin + srcUnit - 1) / srcUnit);
+        
+        bands = new Band[bandCount];
+        int dstY = 0;
+        for (int i = 0; i < bandCount; i++) {
+            int end = i + 1 < bandCount ? unitCount * (i + 1) / bandCount : -1;
+            int dstEnd = end < 0 ? dstHeight : (int)(end * dstUnit);
+            int extStart = (int)Math.max(0, dstY / dstUnit - marginUnits);
+            int extEnd = end < 0 ? -1 : end + marginUnits;
+            if (extEnd >= unitCount)
+                extEnd = -1;
+            
+            int extSrcY = (int)(extStart * srcUnit);
+            int extDstY = (int)(extStart * dstUnit);
+            int extSrcEnd = extEnd < 0 ? srcHeight : (int)(extEnd * srcUnit);
+            int extDstEnd = extEnd < 0 ? dstHeight : (int)(extEnd * dstUnit);
+            
+            bands[i] = new Band(extSrcY, extSrcEnd - extSrcY, srcShift, extDstY, extDstEnd - extDstY, dstY, dstEnd - dstY, dstShift);
+            dstY = dstEnd;
+        }
+        
+        if (workers == null)
+            workers = Executors.newFixedThreadPool(threadCount - 1, new WorkerThreadFactory());
+        
+        return true;
+    }
+    
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        
+        return a;
+    }
+    
+    private static long lcm(int a, int b) {
+        return (long)a / gcd(a, b) * b;
+    }
+    
+    private void freeBands() {
+        if (bands == null)
+            return;
+        
+        for (Band b : bands)
+            b.free();
+        bands = null;
+    }
+    
+    private static int getVerticalChromaShift(PixelFormat format) {
+        Pointer<Integer> hShift = Pointer.allocateInt();
+        Pointer<Integer> vShift = Pointer.allocateInt();
+        try {
+            codecLib.avcodec_get_chroma_sub_sample(format.value(), hShift, vShift);
+            return vShift.get();
+        } finally {
+            hShift.release();
+            vShift.release();
+        }
     }
     
     /**
@@ -195,29 +378,162 @@ public class FrameScaler implements IFrameConsumer, IFrameProducer {
         return scalingAlg;
     }
     
+    /**
+     * Set number of threads used for scaling. Images are split into 
+     * horizontal bands, one for each thread. The band count may be lower than 
+     * the thread count for small images or if the source and destination 
+     * heights have only a few rows which correspond exactly. Paletted formats 
+     * are always scaled by a single thread.
+     * 
+     * @param threadCount number of threads
+     * @throws LibavException if an error occurs
+     */
+    public synchronized void setThreadCount(int threadCount) throws LibavException {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("thread count must be greater than 0");
+        
+        if (threadCount != this.threadCount) {
+            this.threadCount = threadCount;
+            if (workers != null)
+                workers.shutdown();
+            workers = null;
+            init();
+        }
+    }
+    
+    /**
+     * Get number of threads used for scaling.
+     * 
+     * @return number of threads
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+    
+    /**
+     * Set maximum number of produced images which can be held by consumers 
+     * at the same time. The scaler blocks when the limit is reached until 
+     * some of the images are released. Zero means that no frame pool is used
+     * and a single picture is reused for all produced images (the default).
+     * 
+     * @param capacity maximum number of retained images or 0
+     * @throws LibavException if an error occurs
+     */
+    public synchronized void setFramePoolCapacity(int capacity) throws LibavException {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity cannot be negative");
+        
+        int oldCapacity = framePoolCapacity;
+        framePoolCapacity = capacity;
+        if (framePool != null && capacity > 0)
+            framePool.setCapacity(capacity);
+        else if ((oldCapacity > 0) != (capacity > 0) && (framePool != null || picture != null)) {
+            freeOutput();
+            initOutput();
+        }
+    }
+    
+    /**
+     * Get maximum number of produced images which can be held by consumers 
+     * at the same time.
+     * 
+     * @return maximum number of retained images or 0 if no frame pool is used
+     */
+    public int getFramePoolCapacity() {
+        return framePoolCapacity;
+    }
+    
     /**
      * Release all native sources.
      */
     public synchronized void dispose() {
         if (scaleContext != null)
-            scaleContext.free();
-        if (picture != null)
-            picture.free();
+            contextCache.checkIn(scaleContext);
+        freeOutput();
+        freeBands();
+        if (workers != null)
+            workers.shutdown();
         
         scaleContext = null;
-        picture = null;
+        workers = null;
     }
 
     @Override
-    public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
-        if (scaleContext == null)
-            return;
+    public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+        FramePool pool;
+        synchronized (this) {
+            pool = framePool;
+            if (pool == null) {
+                if (picture != null)
+                    scaleFrame(frame, picture);
+                return;
+            }
+        }
+        
+        // wait for a free frame without holding the scaler lock, so the pool 
+        // can be reconfigured or disposed meanwhile
+        IFrameWrapper pooled;
+        try {
+            pooled = pool.getFrame();
+        } catch (LibavException ex) {
+            synchronized (this) {
+                if (pool != framePool)
+                    return;
+            }
+            throw ex;
+        }
+        
+        try {
+            synchronized (this) {
+                if (pool == framePool)
+                    scaleFrame(frame, pooled);
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+    
+    private void scaleFrame(IFrameWrapper frame, IFrameWrapper picture) throws LibavException {
+        if (scaleContext != null)
+            scaleContext.scale(frame, picture, 0, srcHeight);
+        else
+            scaleBands(frame, picture);
         
-        scaleContext.scale(frame, picture, 0, srcHeight);
         picture.setPts(frame.getPts());
         sendFrame(picture);
     }
     
+    private void scaleBands(IFrameWrapper frame, IFrameWrapper picture) throws LibavException {
+        Future<?>[] results = new Future<?>[bands.length - 1];
+        for (int i = 1; i < bands.length; i++) {
+            bands[i].setFrames(frame, picture);
+            results[i - 1] = workers.submit(bands[i]);
+        }
+        
+        LibavException error = null;
+        try {
+            bands[0].setFrames(frame, picture);
+            bands[0].call();
+        } catch (LibavException ex) {
+            error = ex;
+        }
+        
+        for (Future<?> f : results) {
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                if (error == null)
+                    error = ex.getCause() instanceof LibavException ? (LibavException)ex.getCause() : new LibavException(ex.getCause());
+            } catch (InterruptedException ex) {
+                if (error == null)
+                    error = new LibavException("interrupted while waiting for scaling threads", ex);
+            }
+        }
+        
+        if (error != null)
+            throw error;
+    }
+    
     private void sendFrame(IFrameWrapper frame) throws LibavException {
         synchronized (consumers) {
             for (IFrameConsumer c : consumers)
@@ -239,4 +555,86 @@ public class FrameScaler implements IFrameConsumer, IFrameProducer {
         return consumers.size();
     }
     
+    /**
+     * Horizontal band of an image scaled by its own scale context. The band 
+     * is scaled together with the overlapping rows into a temporary picture 
+     * and only its own rows are copied into the destination picture.
+     */
+    private class Band implements Callable<Void> {
+        private final int srcY;
+        private final int srcChromaShift;
+        private final int srcBandHeight;
+        private final int tmpY;
+        private final int dstY;
+        private final int dstBandHeight;
+        private final int dstChromaShift;
+        
+        private ScaleContextWrapper context;
+        private Pointer<Pointer<Byte>> srcData;
+        private Pointer<Integer> srcLineSize;
+        private IFrameWrapper tmpPicture;
+        private IFrameWrapper tmpRows;
+        private IFrameWrapper dstRows;
+
+        public Band(int srcY, int srcBandHeight, int srcChromaShift, int extDstY, int extDstHeight, int dstY, int dstBandHeight, int dstChromaShift) throws LibavException {
+            this.srcY = srcY;
+            this.srcChromaShift = srcChromaShift;
+            this.srcBandHeight = srcBandHeight;
+            this.tmpY = dstY - extDstY;
+            this.dstY = dstY;
+            this.dstBandHeight = dstBandHeight;
+            this.dstChromaShift = dstChromaShift;
+            
+            context = contextCache.checkOut(srcWidth, srcBandHeight, srcFormat, dstWidth, extDstHeight, dstFormat, scalingAlg);
+            srcData = Pointer.allocatePointers(Byte.class, 8);
+            srcLineSize = Pointer.allocateInts(8);
+            tmpPicture = FrameWrapperFactory.getInstance().allocPicture(dstFormat, dstWidth, extDstHeight);
+            tmpRows = FrameWrapperFactory.getInstance().allocFrame();
+            dstRows = FrameWrapperFactory.getInstance().allocFrame();
+            setPlanes(tmpPicture, tmpY, dstChromaShift, tmpRows.getData(), tmpRows.getLineSize());
+        }
+        
+        public void setFrames(IFrameWrapper src, IFrameWrapper dst) {
+            setPlanes(src, srcY, srcChromaShift, srcData, srcLineSize);
+            setPlanes(dst, dstY, dstChromaShift, dstRows.getData(), dstRows.getLineSize());
+        }
+        
+        private void setPlanes(IFrameWrapper frame, int y, int chromaShift, Pointer<Pointer<Byte>> data, Pointer<Integer> lineSize) {
+            Pointer<Pointer<Byte>> fd = frame.getData();
+            Pointer<Integer> fls = frame.getLineSize();
+            for (int i = 0; i < 4; i++) {
+                Pointer<Byte> plane = fd.get(i);
+                int ls = fls.get(i);
+                int row = (i == 1 || i == 2) ? y >> chromaShift : y;
+                data.set(i, plane == null ? null : plane.offset((long)row * ls));
+                lineSize.set(i, ls);
+            }
+        }
+
+        @Override
+        public Void call() throws LibavException {
+            context.scale(srcData, srcLineSize, 0, srcBandHeight, tmpPicture.getData(), tmpPicture.getLineSize());
+            codecLib.av_picture_copy(dstRows.getPointer(), tmpRows.getPointer(), dstFormat.value(), dstWidth, dstBandHeight);
+            return null;
+        }
+        
+        public void free() {
+            contextCache.checkIn(context);
+            srcData.release();
+            srcLineSize.release();
+            tmpPicture.free();
+            tmpRows.free();
+            dstRows.free();
+        }
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "FrameScaler worker");
+            result.setDaemon(true);
+            return result;
+        }
+    }
+    
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.video;
+
+import org.libav.IMediaReader;
+import org.libav.LibavException;
+import org.libav.avcodec.ICodecContextWrapper;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avutil.PixelFormat;
+
+/**
+ * Frame accurate random access to a video stream backed by a frame cache. 
+ * If the requested picture is not cached, the media is seeked to the 
+ * preceding key frame and the whole group of pictures up to the requested 
+ * position is decoded into the cache. Stepping backward and scrubbing 
+ * around a position are then served from memory.
+ * 
+ * Returned pictures are reference counted frames. They must be released 
+ * by the caller using the release() method.
+ * 
+ * @author Ondrej Perutka
+ */
+public class FrameStepper {
+
+    private static final int MAX_PACKETS_PER_GOP = 10000;
+    private static final int MAX_SEEK_ATTEMPTS = 4;
+    private static final long SEEK_BACKOFF = 1000;
+    
+    private static final long NONE = Long.MIN_VALUE;
+    
+    private IMediaReader mr;
+    private int videoStreamIndex;
+    
+    private VideoFrameDecoder decoder;
+    private FrameScaler scaler;
+    private FrameCache cache;
+    
+    private long position;
+    private boolean eof;
+    
+    /**
+     * Create a new frame stepper for the given video stream. Pictures are 
+     * cached in the decoder format.
+     * 
+     * @param mr a media reader
+     * @param videoStreamIndex a video stream index
+     * @param byteBudget maximum number of bytes used by cached pictures
+     * @throws LibavException if the decoder cannot be created
+     */
+    public FrameStepper(IMediaReader mr, int videoStreamIndex, long byteBudget) throws LibavException {
+        this(mr, videoStreamIndex, 0, 0, null, byteBudget);
+    }
+    
+    /**
+     * Create a new frame stepper for the given video stream. Pictures are 
+     * scaled before they are cached.
+     * 
+     * @param mr a media reader
+     * @param videoStreamIndex a video stream index
+     * @param width width of cached pictures (a value less or equal to zero 
+     * means the original width)
+     * @param height height of cached pictures (a value less or equal to zero
+     * means the original height)
+     * @param pixelFormat pixel format of cached pictures (null means the 
+     * original pixel format)
+     * @param byteBudget maximum number of bytes used by cached pictures
+     * @throws LibavException if the decoder or the scaler cannot be created
+     */
+    public FrameStepper(IMediaReader mr, int videoStreamIndex, int width, int height, PixelFormat pixelFormat, long byteBudget) throws LibavException {
+        this.mr = mr;
+        this.videoStreamIndex = videoStreamIndex;
+        
+        decoder = new VideoFrameDecoder(mr.getVideoStream(videoStreamIndex));
+        scaler = null;
+        
+        try {
+            ICodecContextWrapper cc = decoder.getCodecContext();
+            if (width <= 0)
+                width = cc.getWidth();
+            if (height <= 0)
+                height = cc.getHeight();
+            if (pixelFormat == null)
+                pixelFormat = cc.getPixelFormat();
+            
+            cache = new FrameCache(pixelFormat, width, height, byteBudget);
+            if (width != cc.getWidth() || height != cc.getHeight() || pixelFormat != cc.getPixelFormat()) {
+                scaler = new FrameScaler(cc.getWidth(), cc.getHeight(), cc.getPixelFormat(), width, height, pixelFormat);
+                scaler.addFrameConsumer(cache);
+                decoder.addFrameConsumer(scaler);
+            } else
+                decoder.addFrameConsumer(cache);
+        } catch (LibavException ex) {
+            close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            close();
+            throw ex;
+        }
+        
+        mr.addVideoPacketConsumer(videoStreamIndex, decoder);
+        
+        position = NONE;
+        eof = false;
+    }
+    
+    /**
+     * Get the underlaying frame cache.
+     * 
+     * @return frame cache
+     */
+    public FrameCache getFrameCache() {
+        return cache;
+    }
+    
+    /**
+     * Get pts of the current picture.
+     * 
+     * @return pts in milliseconds or Long.MIN_VALUE if there is no current 
+     * picture yet
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+    
+    /**
+     * Get the picture displayed at the given time and make it the current
+     * picture.
+     * 
+     * @param time a time (in milliseconds)
+     * @return retained picture or null if there is no such picture
+     * @throws LibavException if an error occurs while decoding
+     */
+    public synchronized IFrameWrapper seek(long time) throws LibavException {
+        IFrameWrapper result = cache.getFrameAt(time);
+        long target = time;
+        
+        for (int i = 0; result == null && i < MAX_SEEK_ATTEMPTS && target >= 0; i++) {
+            long first = decodeFrom(target, time);
+            result = getDecodedFrameAt(time);
+            if (result != null || first == NONE || first <= time)
+                break;
+            // the demuxer has found a key frame after the given time
+            target -= SEEK_BACKOFF << i;
+        }
+        
+        if (result != null)
+            position = result.getPts();
+        
+        return result;
+    }
+    
+    /**
+     * Move to the next picture.
+     * 
+     * @return retained picture or null if the current picture is the last one
+     * @throws LibavException if an error occurs while decoding
+     */
+    public synchronized IFrameWrapper stepForward() throws LibavException {
+        if (position == NONE)
+            return seek(0);
+        
+        IFrameWrapper result = cache.getNext(position);
+        if (result == null && cache.getLastPts() == position && !eof) {
+            // continue decoding from the current position
+            decodeNext();
+            result = cache.getNext(position);
+        }
+        if (result == null && !eof) {
+            decodeFrom(position, position + 1);
+            result = cache.getNext(position);
+        }
+        
+        if (result != null)
+            position = result.getPts();
+        
+        return result;
+    }
+    
+    /**
+     * Move to the previous picture. If it is not cached, the whole preceding 
+     * group of pictures is decoded.
+     * 
+     * @return retained picture or null if the current picture is the first 
+     * one
+     * @throws LibavException if an error occurs while decoding
+     */
+    public synchronized IFrameWrapper stepBackward() throws LibavException {
+        if (position == NONE)
+            return seek(0);
+        
+        IFrameWrapper result = cache.getPrevious(position);
+        if (result != null) {
+            position = result.getPts();
+            return result;
+        }
+        
+        long current = position;
+        if (current <= 0 || (result = seek(current - 1)) == null)
+            return null;
+        if (result.getPts() >= current) {
+            result.release();
+            position = current;
+            return null;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Remove the decoder from the media reader and release all resources.
+     */
+    public synchronized void close() {
+        if (decoder != null) {
+            mr.removeVideoPacketConsumer(videoStreamIndex, decoder);
+            decoder.close();
+        }
+        if (scaler != null)
+            scaler.dispose();
+        if (cache != null)
+            cache.dispose();
+        
+        decoder = null;
+        scaler = null;
+        cache = null;
+    }
+    
+    private IFrameWrapper getDecodedFrameAt(long time) {
+        IFrameWrapper result = cache.getFrameAt(time);
+        long last = cache.getLastPts();
+        
+        // the successor of the last picture is not known at the end of the 
+        // stream
+        if (result == null && eof && last != NONE && last <= time)
+            result = cache.getFrame(last);
+        
+        return result;
+    }
+    
+    /**
+     * Seek to the given position and decode pictures until the first 
+     * picture after the given time. Returns pts of the first decoded picture.
+     */
+    private long decodeFrom(long seekTime, long time) throws LibavException {
+        long first = NONE;
+        int packets = 0;
+        
+        mr.seek(Math.max(0, seekTime));
+        decoder.flushBuffers();
+        cache.reset();
+        eof = false;
+        
+        while (cache.getLastPts() == NONE || cache.getLastPts() <= time) {
+            if (packets++ >= MAX_PACKETS_PER_GOP)
+                break;
+            if (!readPacket())
+                break;
+            if (first == NONE)
+                first = cache.getLastPts();
+        }
+        
+        return first;
+    }
+    
+    private void decodeNext() throws LibavException {
+        long last = cache.getLastPts();
+        int packets = 0;
+        
+        while (cache.getLastPts() == last && packets++ < MAX_PACKETS_PER_GOP) {
+            if (!readPacket())
+                break;
+        }
+    }
+    
+    private boolean readPacket() throws LibavException {
+        if (mr.readNextVideoPacket(videoStreamIndex))
+            return true;
+        
+        decoder.flush();
+        eof = true;
+        
+        return false;
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.libav.DefaultMediaReader;
+import org.libav.IMediaReader;
+import org.libav.LibavException;
+import org.libav.avcodec.ICodecContextWrapper;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avutil.PixelFormat;
+import org.libav.data.IFrameConsumer;
+
+/**
+ * Thumbnail generator. It decodes only key frames of the first video stream. 
+ * Thumbnails are taken from evenly spaced positions of seekable media or from 
+ * the first key frames of media which are not seekable.
+ * 
+ * Returned thumbnails are reference counted frames. They must be released 
+ * by the caller using the release() method.
+ * 
+ * @author Ondrej Perutka
+ */
+public class ThumbnailGenerator {
+    
+    private static final int MAX_PACKETS_PER_THUMBNAIL = 1000;
+    
+    private int width;
+    private int height;
+    private PixelFormat pixelFormat;
+
+    /**
+     * Create a new thumbnail generator.
+     * 
+     * @param width thumbnail width
+     * @param height thumbnail height, if it is less or equal to zero it will 
+     * be computed from the width and the aspect ratio of the video
+     * @param pixelFormat thumbnail pixel format
+     */
+    public ThumbnailGenerator(int width, int height, PixelFormat pixelFormat) {
+        if (width <= 0)
+            throw new IllegalArgumentException("illegal thumbnail width");
+        
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+    }
+
+    /**
+     * Get thumbnail width.
+     * 
+     * @return thumbnail width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get thumbnail height.
+     * 
+     * @return thumbnail height or a value less or equal to zero if it is 
+     * computed from the aspect ratio
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get thumbnail pixel format.
+     * 
+     * @return thumbnail pixel format
+     */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+    
+    /**
+     * Generate thumbnails of the given media.
+     * 
+     * @param url a media URL
+     * @param count requested number of thumbnails
+     * @return thumbnails (the array may be shorter than requested)
+     * @throws LibavException if an error occurs
+     */
+    public IFrameWrapper[] generate(String url, int count) throws LibavException {
+        IMediaReader mr = new DefaultMediaReader(url);
+        try {
+            return generate(mr, count);
+        } finally {
+            mr.close();
+        }
+    }
+    
+    /**
+     * Generate thumbnails of the first video stream of the given media 
+     * reader. The reader position is changed.
+     * 
+     * @param mr a media reader
+     * @param count requested number of thumbnails
+     * @return thumbnails (the array may be shorter than requested)
+     * @throws LibavException if an error occurs
+     */
+    public IFrameWrapper[] generate(IMediaReader mr, int count) throws LibavException {
+        if (count <= 0)
+            throw new IllegalArgumentException("thumbnail count must be greater than 0");
+        if (mr.getVideoStreamCount() == 0)
+            throw new LibavException("there is no video stream");
+        
+        VideoFrameDecoder decoder = new VideoFrameDecoder(mr.getVideoStream(0));
+        ThumbnailCollector collector = new ThumbnailCollector(count);
+        FrameScaler scaler = null;
+        
+        try {
+            decoder.setKeyFrameOnlyDecoding(true);
+            ICodecContextWrapper cc = decoder.getCodecContext();
+            int h = height;
+            if (h <= 0)
+                h = Math.max(1, (int)((long)width * cc.getHeight() / Math.max(1, cc.getWidth())));
+            
+            scaler = new FrameScaler(cc.getWidth(), cc.getHeight(), cc.getPixelFormat(), width, h, pixelFormat);
+            scaler.setFramePoolCapacity(count + 1);
+            scaler.addFrameConsumer(collector);
+            decoder.addFrameConsumer(scaler);
+            mr.addVideoPacketConsumer(0, decoder);
+            
+            long duration = mr.getDuration();
+            boolean seek = mr.isSeekable() && duration > 0;
+            for (int i = 0; i < count; i++) {
+                if (seek)
+                    mr.seek(duration * (2 * i + 1) / (2 * count));
+                
+                int collected = collector.getCount();
+                int packets = 0;
+                boolean eof = false;
+                while (collector.getCount() == collected && packets++ < MAX_PACKETS_PER_THUMBNAIL) {
+                    if (!mr.readNextVideoPacket(0)) {
+                        eof = true;
+                        break;
+                    }
+                }
+                
+                if (eof && !seek)
+                    break;
+            }
+            
+            if (collector.getCount() < count)
+                decoder.flush();
+        } catch (LibavException ex) {
+            collector.releaseAll();
+            throw ex;
+        } catch (RuntimeException ex) {
+            collector.releaseAll();
+            throw ex;
+        } finally {
+            mr.removeVideoPacketConsumer(0, decoder);
+            decoder.close();
+            if (scaler != null)
+                scaler.dispose();
+        }
+        
+        return collector.getThumbnails();
+    }
+    
+    /**
+     * Generate thumbnails of the given media files in parallel. Failures are 
+     * logged and the corresponding result is null.
+     * 
+     * @param urls media URLs
+     * @param count requested number of thumbnails per media
+     * @param threadCount number of worker threads
+     * @return list of thumbnail arrays in the same order as the given URLs
+     * @throws LibavException if the calling thread has been interrupted
+     */
+    public List<IFrameWrapper[]> generate(List<String> urls, int count, int threadCount) throws LibavException {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("thread count must be greater than 0");
+        
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+        List<ThumbnailTask> tasks = new ArrayList<ThumbnailTask>();
+        List<Future<IFrameWrapper[]>> futures = new ArrayList<Future<IFrameWrapper[]>>();
+        List<IFrameWrapper[]> result = new ArrayList<IFrameWrapper[]>();
+        
+        try {
+            for (String url : urls) {
+                ThumbnailTask task = new ThumbnailTask(url, count);
+                tasks.add(task);
+                futures.add(workers.submit(task));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    result.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(ThumbnailGenerator.class.getName()).log(Level.WARNING, "unable to generate thumbnails of " + urls.get(i), ex.getCause());
+                    result.add(null);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // cancel the remaining tasks and release thumbnails of the tasks 
+            // which have already finished (running tasks release their 
+            // thumbnails when they finish)
+            for (int i = result.size(); i < tasks.size(); i++) {
+                futures.get(i).cancel(true);
+                release(tasks.get(i).abandon());
+            }
+            workers.shutdownNow();
+            for (IFrameWrapper[] thumbnails : result)
+                release(thumbnails);
+            Thread.currentThread().interrupt();
+            throw new LibavException("interrupted while generating thumbnails", ex);
+        } finally {
+            workers.shutdown();
+        }
+        
+        return result;
+    }
+    
+    private static void release(IFrameWrapper[] thumbnails) {
+        if (thumbnails == null)
+            return;
+        
+        for (IFrameWrapper t : thumbnails)
+            t.release();
+    }
+    
+    /**
+     * Thumbnail generation task of a single media. If the task is abandoned, 
+     * it releases its thumbnails when it finishes.
+     */
+    private class ThumbnailTask implements Callable<IFrameWrapper[]> {
+        private final String url;
+        private final int count;
+        private IFrameWrapper[] thumbnails;
+        private boolean abandoned;
+
+        public ThumbnailTask(String url, int count) {
+            this.url = url;
+            this.count = count;
+            
+            thumbnails = null;
+            abandoned = false;
+        }
+        
+        @Override
+        public IFrameWrapper[] call() throws Exception {
+            IFrameWrapper[] result = generate(url, count);
+            synchronized (this) {
+                if (abandoned) {
+                    release(result);
+                    return null;
+                }
+                
+                thumbnails = result;
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Abandon the task.
+         * 
+         * @return thumbnails if the task has already finished, null otherwise
+         */
+        public synchronized IFrameWrapper[] abandon() {
+            IFrameWrapper[] result = thumbnails;
+            abandoned = true;
+            thumbnails = null;
+            return result;
+        }
+    }
+    
+    private static class ThumbnailCollector implements IFrameConsumer {
+        private final int capacity;
+        private final List<IFrameWrapper> thumbnails;
+        private long lastPts;
+
+        public ThumbnailCollector(int capacity) {
+            this.capacity = capacity;
+            
+            thumbnails = new ArrayList<IFrameWrapper>();
+            lastPts = Long.MIN_VALUE;
+        }
+        
+        @Override
+        public synchronized void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+            // skip key frames repeated after seeking
+            if (thumbnails.size() >= capacity || frame.getPts() <= lastPts)
+                return;
+            
+            frame.retain();
+            thumbnails.add(frame);
+            lastPts = frame.getPts();
+        }
+        
+        public synchronized int getCount() {
+            return thumbnails.size();
+        }
+        
+        public synchronized IFrameWrapper[] getThumbnails() {
+            return thumbnails.toArray(new IFrameWrapper[thumbnails.size()]);
+        }
+        
+        public synchronized void releaseAll() {
+            for (IFrameWrapper t : thumbnails)
+                t.release();
+            thumbnails.clear();
+        }
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "ThumbnailGenerator worker");
+            result.setDaemon(true);
+            return result;
+        }
+    }
+    
+}
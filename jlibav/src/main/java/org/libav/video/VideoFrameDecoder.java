@@ -24,9 +24,12 @@ import org.bridj.Pointer;
 import org.libav.IDecoder;
 import org.libav.LibavException;
 import org.libav.avcodec.*;
+import org.libav.avcodec.bridge.AVCodecLibrary;
 import org.libav.avformat.IStreamWrapper;
 import org.libav.avutil.MediaType;
 import org.libav.avutil.bridge.AVUtilLibrary;
+import org.libav.bridge.LibraryManager;
+import org.libav.data.FramePool;
 import org.libav.data.IFrameConsumer;
 import org.libav.util.Rational;
 
@@ -37,6 +40,8 @@ import org.libav.util.Rational;
  */
 public class VideoFrameDecoder implements IDecoder {
     
+    private static final AVCodecLibrary codecLib = LibraryManager.getInstance().getAVCodecLibrary();
+    
     private IStreamWrapper stream;
     private ICodecContextWrapper cc;
     
@@ -46,6 +51,9 @@ public class VideoFrameDecoder implements IDecoder {
     
     private IFrameWrapper frame;
     
+    private FramePool framePool;
+    private int framePoolCapacity;
+    
     private final Set<IFrameConsumer> consumers;
 
     /**
@@ -71,6 +79,9 @@ public class VideoFrameDecoder implements IDecoder {
 
         frame = FrameWrapperFactory.getInstance().allocFrame();
 
+        framePool = null;
+        framePoolCapacity = 0;
+        
         consumers = Collections.synchronizedSet(new HashSet<IFrameConsumer>());
     }
     
@@ -88,7 +99,70 @@ public class VideoFrameDecoder implements IDecoder {
     public synchronized void close() {
         if (frame != null)
             frame.free();
+        if (framePool != null)
+            framePool.dispose();
         cc.close();
+        
+        framePool = null;
+    }
+    
+    /**
+     * Enable or disable the key frame only decoding mode. In this mode the 
+     * decoder skips all non-key frames and it does not apply the loop filter. 
+     * It is useful for fast thumbnail and preview generation.
+     * 
+     * @param enabled true to decode only key frames, false to decode all 
+     * frames
+     */
+    public synchronized void setKeyFrameOnlyDecoding(boolean enabled) {
+        cc.setSkipFrame(enabled ? AVCodecLibrary.AVDISCARD_NONKEY : AVCodecLibrary.AVDISCARD_DEFAULT);
+        cc.setSkipIdct(enabled ? AVCodecLibrary.AVDISCARD_NONKEY : AVCodecLibrary.AVDISCARD_DEFAULT);
+        cc.setSkipLoopFilter(enabled ? AVCodecLibrary.AVDISCARD_ALL : AVCodecLibrary.AVDISCARD_DEFAULT);
+    }
+    
+    /**
+     * Check whether the key frame only decoding mode is enabled.
+     * 
+     * @return true if only key frames are decoded, false otherwise
+     */
+    public boolean isKeyFrameOnlyDecoding() {
+        return cc.getSkipFrame() >= AVCodecLibrary.AVDISCARD_NONKEY;
+    }
+    
+    /**
+     * Set maximum number of decoded frames which can be held by consumers at 
+     * the same time. If the capacity is greater than zero, decoded frames are 
+     * copied into a bounded frame pool before they are sent to consumers, 
+     * so the consumers may retain them and process them asynchronously. The 
+     * decoder blocks when the limit is reached until some of the frames are 
+     * released. Zero capacity (default) disables the pool and consumers get 
+     * the internal decoder frame which is valid only until the processFrame() 
+     * method returns.
+     * 
+     * @param capacity maximum number of retained frames or zero
+     */
+    public synchronized void setFramePoolCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        
+        if (capacity == 0 && framePool != null) {
+            framePool.dispose();
+            framePool = null;
+        } else if (framePool != null)
+            framePool.setCapacity(capacity);
+        
+        framePoolCapacity = capacity;
+    }
+    
+    /**
+     * Get maximum number of decoded frames which can be held by consumers at 
+     * the same time.
+     * 
+     * @return maximum number of retained frames or zero if the frame pool is 
+     * disabled
+     */
+    public int getFramePoolCapacity() {
+        return framePoolCapacity;
     }
     
     @Override
@@ -97,42 +171,113 @@ public class VideoFrameDecoder implements IDecoder {
     }
 
     @Override
-    public synchronized void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
+    public void processPacket(Object producer, IPacketWrapper packet) throws LibavException {
         if (isClosed() || packet.getStreamIndex() != stream.getIndex())
             return;
         
         //System.out.printf("VP: dts = %d\n", sTimeBase.mul(packet.getDts()).longValue());
         Pointer<Byte> tmp = packet.getData();
-        while (packet.getSize() > 0) {
-            if (cc.decodeVideoFrame(packet, frame))
-                sendFrame(transformPts(frame));
+        try {
+            while (packet.getSize() > 0 && !isClosed())
+                decodeFrame(packet);
+        } finally {
+            packet.setData(tmp);
         }
-        packet.setData(tmp);
     }
     
     @Override
-    public synchronized void flush() throws LibavException {
-        IFrameWrapper fr;
-        while ((fr = flushContext()) != null)
-            sendFrame(transformPts(fr));
+    public void flush() throws LibavException {
+        IPacketWrapper packet = PacketWrapperFactory.getInstance().alloc();
+        packet.setSize(0);
+        packet.setData(null);
+        try {
+            while (decodeFrame(packet));
+        } finally {
+            packet.free();
+        }
     }
     
-    private synchronized IFrameWrapper flushContext() throws LibavException {
+    /**
+     * Drop all frames buffered by the codec without decoding them. It should
+     * be called after seeking, so that the decoder does not use reference 
+     * frames from the previous position.
+     */
+    public synchronized void flushBuffers() {
         if (isClosed())
-            return null;
+            return;
         
-        IPacketWrapper packet = PacketWrapperFactory.getInstance().alloc();
-        IFrameWrapper result = null;
+        codecLib.avcodec_flush_buffers(cc.getPointer());
+    }
+    
+    /**
+     * Decode a frame from the given packet and send it to the consumers. 
+     * Returns false if no frame has been decoded.
+     */
+    private boolean decodeFrame(IPacketWrapper packet) throws LibavException {
+        FramePool pool;
+        synchronized (this) {
+            if (framePoolCapacity > 0 && framePool == null && !isClosed())
+                framePool = new FramePool(cc.getPixelFormat(), cc.getWidth(), cc.getHeight(), framePoolCapacity);
+            pool = framePool;
+        }
         
-        packet.setSize(0);
-        packet.setData(null);
-        if (cc.decodeVideoFrame(packet, frame))
-            result = frame;
-        packet.free();
+        // wait for a free frame without holding the decoder lock, so the pool 
+        // can be reconfigured or disposed meanwhile
+        IFrameWrapper pooled = null;
+        if (pool != null) {
+            try {
+                pooled = pool.getFrame();
+            } catch (LibavException ex) {
+                synchronized (this) {
+                    if (pool == framePool)
+                        throw ex;
+                }
+            }
+        }
         
-        return result;
+        try {
+            synchronized (this) {
+                if (isClosed() || !cc.decodeVideoFrame(packet, frame))
+                    return false;
+                
+                transformPts(frame);
+                IFrameWrapper f = framePoolCapacity == 0 ? frame : clonePicture(frame, pool, pooled);
+                try {
+                    sendFrame(f);
+                } finally {
+                    if (f != frame)
+                        f.release();
+                }
+                
+                return true;
+            }
+        } finally {
+            if (pooled != null)
+                pooled.release();
+        }
     }
     
+    /**
+     * Copy the given picture into the pooled frame if it comes from the 
+     * current frame pool. Otherwise the pool has been replaced meanwhile and 
+     * the picture is copied into a frame of the new pool, which never blocks.
+     * The returned frame holds its own reference.
+     */
+    private IFrameWrapper clonePicture(IFrameWrapper frame, FramePool pool, IFrameWrapper pooled) throws LibavException {
+        if (framePool != null && (framePool.getWidth() != cc.getWidth() || framePool.getHeight() != cc.getHeight() || framePool.getPixelFormat() != cc.getPixelFormat())) {
+            framePool.dispose();
+            framePool = null;
+        }
+        if (framePool == null)
+            framePool = new FramePool(cc.getPixelFormat(), cc.getWidth(), cc.getHeight(), framePoolCapacity);
+        
+        if (pooled == null || pool != framePool)
+            return framePool.clonePicture(frame);
+        
+        framePool.copyPicture(frame, pooled);
+        pooled.retain();
+        return pooled;
+    }
     
     protected void sendFrame(IFrameWrapper frame) throws LibavException {
         synchronized (consumers) {
@@ -177,8 +177,12 @@ public class VideoFrameEncoder implements IEncoder {
             if (frame == null)
                 gotPacket = cc.encodeVideoFrame(null, packet);
             else {
+                // round to the nearest tick, truncated millisecond 
+                // timestamps (e.g. 33 ms at 29.97 fps) would map two frames
+                // to the same tick
+                Rational codecPts = tsToCodecBase.mul(pts);
                 long oldPts = frame.getPts();
-                frame.setPts(tsToCodecBase.mul(pts).longValue());
+                frame.setPts((2 * codecPts.getNumerator() + codecPts.getDenominator()) / (2 * codecPts.getDenominator()));
                 gotPacket = cc.encodeVideoFrame(frame, packet);
                 frame.setPts(oldPts);
             }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.libav.avutil.SampleFormat;
+import org.libav.avutil.bridge.AVChannelLayout;
+
+/**
+ *
+ * @author Ondrej Perutka
+ */
+public class AudioAnalyzerTest {
+    
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FRAME_SIZE = 1024;
+    
+    @Test
+    public void testSine() throws Exception {
+        System.out.println("AudioAnalyzer 997 Hz sine test...");
+        
+        // ITU-R BS.1770: a 0 dBFS 997 Hz sine in a single front channel 
+        // measures -3.01 LUFS
+        AudioAnalyzer aa = new AudioAnalyzer(AVChannelLayout.AV_CH_LAYOUT_MONO, SAMPLE_RATE, SampleFormat.FLT);
+        feedSine(aa, 1, 10 * SAMPLE_RATE);
+        
+        assertEquals(10 * SAMPLE_RATE, aa.getSampleCount());
+        assertEquals(-3.01, aa.getIntegratedLoudness(), 0.05);
+        assertEquals(-3.01, aa.getMomentaryLoudness(), 0.05);
+        assertEquals(-3.01, aa.getShortTermLoudness(), 0.05);
+        assertEquals(-3.01, aa.getRms(), 0.01);
+        assertEquals(0, aa.getTruePeak(), 0.1);
+        assertTrue(aa.getSamplePeak() <= 0);
+        assertTrue(aa.getSamplePeak() > -0.1);
+    }
+    
+    @Test
+    public void testStereo() throws Exception {
+        System.out.println("AudioAnalyzer stereo test...");
+        
+        // the sine in the left channel only, the right channel is silent
+        AudioAnalyzer aa = new AudioAnalyzer(AVChannelLayout.AV_CH_LAYOUT_STEREO, SAMPLE_RATE, SampleFormat.FLT);
+        feedSine(aa, 2, 10 * SAMPLE_RATE);
+        
+        assertEquals(-3.01, aa.getIntegratedLoudness(), 0.05);
+        assertEquals(-3.01, aa.getRms(0), 0.01);
+        assertEquals(Double.NEGATIVE_INFINITY, aa.getRms(1), 0);
+        assertEquals(-6.02, aa.getRms(), 0.01);
+        assertEquals(0, aa.getTruePeak(0), 0.1);
+    }
+    
+    @Test
+    public void testSilence() throws Exception {
+        System.out.println("AudioAnalyzer silence test...");
+        
+        AudioAnalyzer aa = new AudioAnalyzer(AVChannelLayout.AV_CH_LAYOUT_MONO, SAMPLE_RATE, SampleFormat.FLT);
+        assertEquals(Double.NEGATIVE_INFINITY, aa.getIntegratedLoudness(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, aa.getRms(), 0);
+        
+        ByteBuffer bb = ByteBuffer.allocate(4 * FRAME_SIZE);
+        for (int i = 0; i < SAMPLE_RATE; i += FRAME_SIZE)
+            aa.processSamples(new ByteBuffer[] { bb }, FRAME_SIZE);
+        
+        // silence is below the absolute gate
+        assertEquals(Double.NEGATIVE_INFINITY, aa.getIntegratedLoudness(), 0);
+    }
+    
+    private static void feedSine(AudioAnalyzer aa, int channelCount, int sampleCount) {
+        ByteBuffer bb = ByteBuffer.allocate(4 * channelCount * FRAME_SIZE).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < sampleCount; i += FRAME_SIZE) {
+            int count = Math.min(FRAME_SIZE, sampleCount - i);
+            bb.clear();
+            for (int j = 0; j < count; j++) {
+                bb.putFloat((float)Math.sin(2 * Math.PI * 997 * (i + j) / SAMPLE_RATE));
+                for (int c = 1; c < channelCount; c++)
+                    bb.putFloat(0);
+            }
+            aa.processSamples(new ByteBuffer[] { bb }, count);
+        }
+    }
+    
+}
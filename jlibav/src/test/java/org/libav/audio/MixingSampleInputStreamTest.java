@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ondrej Perutka
+ */
+public class MixingSampleInputStreamTest {
+    
+    private static final AudioFormat.Encoding PCM_FLOAT = new AudioFormat.Encoding("PCM_FLOAT");
+    
+    @Test
+    public void testCodecs() throws Exception {
+        System.out.println("MixingSampleInputStream codec test...");
+        double[] a = new double[] { 0.25, -0.25, 0.5, -0.5, 0, 0.125 };
+        double[] b = new double[] { 0.125, -0.5, 0.25, 0.25, 0, -0.125 };
+        double[] sum = new double[] { 0.375, -0.75, 0.75, -0.25, 0, 0 };
+        
+        for (int bits = 8; bits <= 32; bits += 8) {
+            for (int e = 0; e < 4; e++) {
+                boolean signed = (e & 1) == 0;
+                boolean bigEndian = (e & 2) != 0;
+                AudioFormat af = getFormat(signed ? AudioFormat.Encoding.PCM_SIGNED : AudioFormat.Encoding.PCM_UNSIGNED, bits, 2, bigEndian, 44100);
+                assertMix(af, a, b, sum);
+            }
+        }
+        
+        assertMix(getFormat(PCM_FLOAT, 32, 2, false, 44100), a, b, sum);
+        assertMix(getFormat(PCM_FLOAT, 32, 2, true, 44100), a, b, sum);
+    }
+    
+    @Test
+    public void testUnsupportedFormat() {
+        System.out.println("MixingSampleInputStream unsupported format test...");
+        try {
+            new MixingSampleInputStream(getFormat(AudioFormat.Encoding.PCM_SIGNED, 12, 1, false, 44100));
+            fail("12bit samples are not supported");
+        } catch (IllegalArgumentException ex) {
+        }
+        
+        try {
+            new MixingSampleInputStream(getFormat(PCM_FLOAT, 64, 1, false, 44100));
+            fail("64bit float samples are not supported");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+    
+    @Test
+    public void testGainRamp() throws Exception {
+        System.out.println("MixingSampleInputStream gain ramp test...");
+        // the ramp takes 10 ms, i.e. 10 frames at 1 kHz
+        AudioFormat af = getFormat(AudioFormat.Encoding.PCM_SIGNED, 16, 1, false, 1000);
+        MixingSampleInputStream mixer = new MixingSampleInputStream(af);
+        AudioInputStream ais = createStream(af, constant(0.5, 60));
+        mixer.addAudioInputStream(ais);
+        
+        mixer.setStreamVolume(ais, 0f);
+        assertEquals(0.0, mixer.getStreamVolume(ais), 0.0);
+        double[] result = read(mixer, af, 20);
+        for (int i = 0; i < 20; i++)
+            assertEquals("frame " + i, i < 10 ? 0.5 * (9 - i) / 10 : 0, result[i], 1e-4);
+        
+        mixer.setStreamVolume(ais, 1f);
+        result = read(mixer, af, 20);
+        for (int i = 0; i < 20; i++)
+            assertEquals("frame " + i, i < 10 ? 0.5 * (i + 1) / 10 : 0.5, result[i], 1e-4);
+        
+        // the ramp continues across reads
+        mixer.setStreamVolume(ais, 0.5f);
+        double[] r1 = read(mixer, af, 4);
+        double[] r2 = read(mixer, af, 16);
+        for (int i = 0; i < 20; i++) {
+            double expected = i < 10 ? 0.5 * (1 - 0.05 * (i + 1)) : 0.25;
+            assertEquals("frame " + i, expected, i < 4 ? r1[i] : r2[i - 4], 1e-4);
+        }
+        
+        assertEquals(-1.0, mixer.getStreamVolume(createStream(af, constant(0, 1))), 0.0);
+    }
+    
+    @Test
+    public void testClipping() throws Exception {
+        System.out.println("MixingSampleInputStream clipping test...");
+        AudioFormat af = getFormat(AudioFormat.Encoding.PCM_SIGNED, 16, 1, false, 44100);
+        double[] s1 = new double[] { 0.75, -0.75, 0.5, 0.25 };
+        double[] s2 = new double[] { 0.75, -0.75, 0.25, 0.25 };
+        // x / (1 + x) compression above the 0.8 knee
+        double x = (1.5 - 0.8) / 0.2;
+        double soft = 0.8 + 0.2 * x / (1 + x);
+        
+        MixingSampleInputStream mixer = new MixingSampleInputStream(af);
+        assertTrue(mixer.isSoftClippingEnabled());
+        mixer.addAudioInputStream(createStream(af, s1));
+        mixer.addAudioInputStream(createStream(af, s2));
+        double[] result = read(mixer, af, 4);
+        assertEquals(soft, result[0], 1e-4);
+        assertEquals(-soft, result[1], 1e-4);
+        assertEquals(0.75, result[2], 1e-4);
+        assertEquals(0.5, result[3], 1e-4);
+        
+        mixer = new MixingSampleInputStream(af);
+        mixer.setSoftClippingEnabled(false);
+        assertFalse(mixer.isSoftClippingEnabled());
+        mixer.addAudioInputStream(createStream(af, s1));
+        mixer.addAudioInputStream(createStream(af, s2));
+        result = read(mixer, af, 4);
+        assertEquals(32767.0 / 32768, result[0], 1e-6);
+        assertEquals(-1.0, result[1], 1e-6);
+        assertEquals(0.75, result[2], 1e-4);
+        assertEquals(0.5, result[3], 1e-4);
+    }
+    
+    @Test
+    public void testModificationDuringRead() throws Exception {
+        System.out.println("MixingSampleInputStream modification during read test...");
+        AudioFormat af = getFormat(AudioFormat.Encoding.PCM_SIGNED, 16, 1, false, 44100);
+        final MixingSampleInputStream mixer = new MixingSampleInputStream(af);
+        final AudioInputStream added = createStream(af, constant(0.25, 8));
+        AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(encode(af, constant(0.125, 8))), af, 8) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                // the stream list is replaced, the running read is not affected
+                mixer.removeAudioInputStream(this);
+                mixer.addAudioInputStream(added);
+                return super.read(b, off, len);
+            }
+        };
+        mixer.addAudioInputStream(createStream(af, constant(0.5, 8)));
+        mixer.addAudioInputStream(ais);
+        
+        double[] result = read(mixer, af, 4);
+        for (int i = 0; i < result.length; i++)
+            assertEquals(0.625, result[i], 1e-4);
+        
+        result = read(mixer, af, 4);
+        for (int i = 0; i < result.length; i++)
+            assertEquals(0.75, result[i], 1e-4);
+        assertEquals(-1.0, mixer.getStreamVolume(ais), 0.0);
+        assertEquals(1.0, mixer.getStreamVolume(added), 0.0);
+    }
+    
+    @Test
+    public void testConcurrentModification() throws Exception {
+        System.out.println("MixingSampleInputStream concurrent modification test...");
+        final AudioFormat af = getFormat(AudioFormat.Encoding.PCM_SIGNED, 16, 2, false, 44100);
+        final MixingSampleInputStream mixer = new MixingSampleInputStream(af);
+        final AudioInputStream ais = createStream(af, constant(0.25, 1 << 16));
+        mixer.addAudioInputStream(createStream(af, constant(0.25, 1 << 16)));
+        
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    mixer.addAudioInputStream(ais);
+                    mixer.setStreamVolume(ais, 0.5f);
+                    mixer.removeAudioInputStream(ais);
+                }
+            }
+        });
+        t.start();
+        
+        byte[] buffer = new byte[64 * af.getFrameSize()];
+        while (t.isAlive())
+            assertEquals(buffer.length, mixer.read(buffer));
+        t.join();
+        
+        double[] result = read(mixer, af, 16);
+        for (int i = 0; i < result.length; i++)
+            assertEquals(0.25, result[i], 1e-4);
+    }
+    
+    private static void assertMix(AudioFormat af, double[] a, double[] b, double[] sum) throws IOException {
+        MixingSampleInputStream mixer = new MixingSampleInputStream(af);
+        mixer.addAudioInputStream(createStream(af, a));
+        mixer.addAudioInputStream(createStream(af, b));
+        
+        byte[] data = new byte[sum.length * af.getFrameSize() / af.getChannels()];
+        assertEquals(af.toString(), data.length, mixer.read(data));
+        assertArrayEquals(af.toString(), encode(af, sum), data);
+        
+        double[] result = decode(af, data);
+        for (int i = 0; i < sum.length; i++)
+            assertEquals(af.toString(), sum[i], result[i], 1e-9);
+    }
+    
+    private static double[] read(MixingSampleInputStream mixer, AudioFormat af, int frameCount) throws IOException {
+        byte[] data = new byte[frameCount * af.getFrameSize()];
+        assertEquals(data.length, mixer.read(data));
+        return decode(af, data);
+    }
+    
+    private static AudioFormat getFormat(AudioFormat.Encoding encoding, int bits, int channels, boolean bigEndian, float sampleRate) {
+        return new AudioFormat(encoding, sampleRate, bits, channels, bits / 8 * channels, sampleRate, bigEndian);
+    }
+    
+    private static AudioInputStream createStream(AudioFormat af, double[] samples) {
+        return new AudioInputStream(new ByteArrayInputStream(encode(af, samples)), af, samples.length / af.getChannels());
+    }
+    
+    private static double[] constant(double value, int count) {
+        double[] result = new double[count];
+        for (int i = 0; i < count; i++)
+            result[i] = value;
+        
+        return result;
+    }
+    
+    private static byte[] encode(AudioFormat af, double[] samples) {
+        int size = af.getSampleSizeInBits() / 8;
+        long fullScale = 1L << (size * 8 - 1);
+        boolean real = af.getEncoding().toString().equals(PCM_FLOAT.toString());
+        boolean signed = af.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+        byte[] result = new byte[samples.length * size];
+        long value;
+        
+        for (int i = 0; i < samples.length; i++) {
+            if (real)
+                value = Float.floatToIntBits((float)samples[i]);
+            else {
+                value = Math.min(Math.round(samples[i] * fullScale), fullScale - 1);
+                if (!signed)
+                    value += fullScale;
+            }
+            for (int j = 0; j < size; j++) {
+                int shift = af.isBigEndian() ? (size - 1 - j) * 8 : j * 8;
+                result[i * size + j] = (byte)(value >> shift);
+            }
+        }
+        
+        return result;
+    }
+    
+    private static double[] decode(AudioFormat af, byte[] data) {
+        int size = af.getSampleSizeInBits() / 8;
+        long fullScale = 1L << (size * 8 - 1);
+        boolean real = af.getEncoding().toString().equals(PCM_FLOAT.toString());
+        boolean signed = af.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+        double[] result = new double[data.length / size];
+        long value;
+        
+        for (int i = 0; i < result.length; i++) {
+            value = 0;
+            for (int j = 0; j < size; j++) {
+                int shift = af.isBigEndian() ? (size - 1 - j) * 8 : j * 8;
+                value |= (data[i * size + j] & 0xffL) << shift;
+            }
+            if (real)
+                result[i] = Float.intBitsToFloat((int)value);
+            else {
+                if (!signed)
+                    value -= fullScale;
+                else if (value >= fullScale)
+                    value -= 2 * fullScale;
+                result[i] = (double)value / fullScale;
+            }
+        }
+        
+        return result;
+    }
+    
+}
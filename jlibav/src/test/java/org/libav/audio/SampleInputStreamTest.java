@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.libav.LibavException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ondrej Perutka
+ */
+public class SampleInputStreamTest {
+    
+    @Test
+    public void testWraparound() throws Exception {
+        System.out.println("SampleInputStream wraparound test...");
+        SampleInputStream sis = new SampleInputStream(10);
+        byte[] data = new byte[8];
+        
+        sis.processFrame(this, createFrame(0, 6));
+        assertEquals(6, sis.available());
+        assertEquals(4, sis.read(data, 0, 4));
+        assertArrayEquals(sequence(0, 4), copyOf(data, 4));
+        
+        // the second frame is split at the end of the buffer
+        sis.processFrame(this, createFrame(6, 6));
+        assertEquals(8, sis.available());
+        assertEquals(8, sis.read(data));
+        assertArrayEquals(sequence(4, 8), data);
+        assertEquals(0, sis.available());
+        
+        for (int i = 0; i < 10; i++) {
+            sis.processFrame(this, createFrame(12 + 7 * i, 7));
+            assertEquals((12 + 7 * i) & 0xff, sis.read());
+            assertEquals(6, sis.read(data, 1, 6));
+            assertArrayEquals(sequence(13 + 7 * i, 6), copyOfRange(data, 1, 7));
+        }
+        
+        assertEquals(0, sis.getOverrunCount());
+        assertEquals(0, sis.getDroppedByteCount());
+        
+        try {
+            sis.processFrame(this, createFrame(0, 11));
+            fail("the frame is larger than the buffer");
+        } catch (LibavException ex) {
+        }
+    }
+    
+    @Test
+    public void testNonBlockingOverwrite() throws Exception {
+        System.out.println("SampleInputStream non-blocking overwrite test...");
+        SampleInputStream sis = new SampleInputStream(8, false);
+        assertFalse(sis.isFrameProcessingBlocking());
+        
+        sis.processFrame(this, createFrame(0, 6));
+        sis.processFrame(this, createFrame(6, 6));
+        assertEquals(1, sis.getOverrunCount());
+        assertEquals(4, sis.getDroppedByteCount());
+        assertEquals(8, sis.available());
+        
+        byte[] data = new byte[8];
+        assertEquals(8, sis.read(data));
+        assertArrayEquals(sequence(4, 8), data);
+    }
+    
+    @Test
+    public void testConcurrentOverwrite() throws Exception {
+        System.out.println("SampleInputStream concurrent overwrite test...");
+        final SampleInputStream sis = new SampleInputStream(256, false);
+        final int frameSize = 48;
+        final int frameCount = 20000;
+        final long written = (long)frameSize * frameCount;
+        
+        // each byte is equal to its stream position modulo 251, so any torn
+        // read shows up as a gap which does not match the dropped bytes
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] samples = new byte[frameSize];
+                try {
+                    for (int i = 0; i < frameCount; i++) {
+                        for (int j = 0; j < frameSize; j++)
+                            samples[j] = (byte)(((long)i * frameSize + j) % 251);
+                        sis.processFrame(this, new AudioFrame(samples, 1, null, 0));
+                    }
+                } catch (LibavException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        producer.start();
+        
+        Random random = new Random(1);
+        byte[] data = new byte[100];
+        long read = 0;
+        long gaps = 0;
+        int last = 250;
+        while (producer.isAlive() || sis.available() > 0) {
+            if (sis.available() == 0) {
+                Thread.yield();
+                continue;
+            }
+            
+            // the stream blocks until the whole request is satisfied
+            int len = Math.min(sis.available(), 1 + random.nextInt(data.length));
+            len = sis.read(data, 0, len);
+            for (int i = 0; i < len; i++) {
+                int value = data[i] & 0xff;
+                gaps += (value - last - 1 + 251) % 251;
+                last = value;
+            }
+            read += len;
+        }
+        producer.join();
+        
+        assertEquals(written, read + sis.getDroppedByteCount());
+        assertEquals(sis.getDroppedByteCount() % 251, gaps % 251);
+    }
+    
+    @Test
+    public void testReadByteBuffer() throws Exception {
+        System.out.println("SampleInputStream read(ByteBuffer) test...");
+        SampleInputStream sis = new SampleInputStream(10);
+        byte[] data = new byte[4];
+        
+        sis.processFrame(this, createFrame(0, 6));
+        assertEquals(4, sis.read(data));
+        sis.processFrame(this, createFrame(6, 6));
+        
+        ByteBuffer bb = ByteBuffer.allocateDirect(16);
+        assertEquals(0, sis.read((ByteBuffer)bb.duplicate().limit(0)));
+        assertEquals(8, sis.read(bb));
+        assertEquals(8, bb.position());
+        bb.flip();
+        byte[] result = new byte[8];
+        bb.get(result);
+        assertArrayEquals(sequence(4, 8), result);
+        
+        sis.processFrame(this, createFrame(12, 6));
+        bb = ByteBuffer.allocate(4);
+        assertEquals(4, sis.read(bb));
+        assertArrayEquals(sequence(12, 4), bb.array());
+        assertEquals(2, sis.available());
+    }
+    
+    @Test
+    public void testEof() throws Exception {
+        System.out.println("SampleInputStream EOF test...");
+        final SampleInputStream sis = new SampleInputStream(8);
+        assertTrue(sis.isOpen());
+        
+        // a waiting reader is woken up by close()
+        final int[] result = new int[] { 0 };
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = sis.read(new byte[4]);
+                } catch (Exception ex) {
+                    result[0] = -2;
+                }
+            }
+        });
+        reader.start();
+        waitUntilWaiting(reader);
+        sis.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(-1, result[0]);
+        
+        assertFalse(sis.isOpen());
+        sis.processFrame(this, createFrame(0, 4));
+        assertEquals(0, sis.available());
+        assertEquals(-1, sis.read());
+        assertEquals(-1, sis.read(new byte[4]));
+        assertEquals(-1, sis.read(ByteBuffer.allocate(4)));
+        
+        // a waiting writer is woken up by close() as well
+        final SampleInputStream sis2 = new SampleInputStream(8);
+        sis2.processFrame(this, createFrame(0, 6));
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sis2.processFrame(this, createFrame(6, 6));
+                } catch (LibavException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        writer.start();
+        waitUntilWaiting(writer);
+        sis2.close();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertEquals(-1, sis2.read());
+    }
+    
+    @Test
+    public void testCounters() throws Exception {
+        System.out.println("SampleInputStream counters test...");
+        final SampleInputStream sis = new SampleInputStream(8);
+        byte[] data = new byte[8];
+        
+        // underrun
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    sis.processFrame(this, createFrame(0, 6));
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        writer.start();
+        assertEquals(6, sis.read(data, 0, 6));
+        writer.join();
+        assertEquals(1, sis.getUnderrunCount());
+        assertEquals(0, sis.getOverrunCount());
+        
+        // blocking overrun
+        sis.processFrame(this, createFrame(6, 6));
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sis.processFrame(this, createFrame(12, 6));
+                } catch (LibavException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        writer.start();
+        waitUntilWaiting(writer);
+        assertEquals(1, sis.getOverrunCount());
+        assertEquals(6, sis.read(data, 0, 6));
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertEquals(6, sis.read(data, 0, 6));
+        assertArrayEquals(sequence(12, 6), copyOf(data, 6));
+        assertEquals(0, sis.getDroppedByteCount());
+        
+        // non-blocking overrun
+        sis.setBlockingFrameProcessing(false);
+        sis.processFrame(this, createFrame(18, 6));
+        sis.processFrame(this, createFrame(24, 6));
+        assertEquals(2, sis.getOverrunCount());
+        assertEquals(4, sis.getDroppedByteCount());
+        assertEquals(2, sis.skip(2));
+        assertEquals(6, sis.available());
+        
+        sis.resetCounters();
+        assertEquals(0, sis.getUnderrunCount());
+        assertEquals(0, sis.getOverrunCount());
+        assertEquals(0, sis.getDroppedByteCount());
+    }
+    
+    private static AudioFrame createFrame(int first, int length) {
+        return new AudioFrame(sequence(first, length), 1, null, 0);
+    }
+    
+    private static byte[] sequence(int first, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte)(first + i);
+        
+        return result;
+    }
+    
+    private static byte[] copyOf(byte[] data, int length) {
+        return copyOfRange(data, 0, length);
+    }
+    
+    private static byte[] copyOfRange(byte[] data, int from, int to) {
+        byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+    
+    private static void waitUntilWaiting(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING)
+            Thread.sleep(10);
+    }
+    
+}
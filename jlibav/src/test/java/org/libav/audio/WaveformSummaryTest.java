@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.audio;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ondrej Perutka
+ */
+public class WaveformSummaryTest {
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("WaveformSummary write/open round trip test...");
+        File file = createTempFile();
+        
+        // only the first binCounts[i] min/max pairs of each level are stored
+        short[][] levels = new short[][] {
+            { -100, 200, -32767, 32767, 0, 0, 5, 6, -7, -6, 99, 99 },
+            { -32767, 32767, -7, 99, 1, 1 },
+            { -32767, 32767 }
+        };
+        int[] binCounts = new int[] { 5, 2, 1 };
+        WaveformSummary.write(file, 44100, 256, levels, binCounts);
+        
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(0x4a4c5746, dis.readInt());
+            assertEquals(1, dis.readInt());
+        } finally {
+            dis.close();
+        }
+        assertEquals(20 + 4 * 3 + 4 * (5 + 2 + 1), file.length());
+        
+        WaveformSummary ws = WaveformSummary.open(file);
+        assertEquals(44100, ws.getSampleRate());
+        assertEquals(3, ws.getLevelCount());
+        for (int i = 0; i < binCounts.length; i++) {
+            assertEquals(binCounts[i], ws.getBinCount(i));
+            assertEquals(256 << i, ws.getSamplesPerBin(i));
+            for (int j = 0; j < binCounts[i]; j++) {
+                assertEquals("minimum at " + i + "/" + j, levels[i][2 * j] / 32767.0, ws.getMinimum(i, j), 1e-6);
+                assertEquals("maximum at " + i + "/" + j, levels[i][2 * j + 1] / 32767.0, ws.getMaximum(i, j), 1e-6);
+            }
+        }
+        
+        assertEquals(0, ws.getLevel(100));
+        assertEquals(0, ws.getLevel(511));
+        assertEquals(1, ws.getLevel(512));
+        assertEquals(2, ws.getLevel(4096));
+    }
+    
+    @Test
+    public void testInvalidFile() throws Exception {
+        System.out.println("WaveformSummary invalid file test...");
+        File file = createTempFile();
+        WaveformSummary.write(file, 8000, 64, new short[][] { { -1, 1, -2, 2 } }, new int[] { 2 });
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // truncate the min/max pairs
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+        assertOpenFails(file);
+        
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeInt(0x12345678);
+            raf.writeInt(1);
+        } finally {
+            raf.close();
+        }
+        assertOpenFails(file);
+        
+        // header shorter than 20 bytes
+        writeHeader(file, 8000, 64);
+        assertOpenFails(file);
+        
+        // negative and huge level counts
+        writeHeader(file, 8000, 64, -1);
+        assertOpenFails(file);
+        writeHeader(file, 8000, 64, Integer.MAX_VALUE);
+        assertOpenFails(file);
+        writeHeader(file, 8000, 64, 2, 1);
+        assertOpenFails(file);
+        
+        // negative and huge bin counts
+        writeHeader(file, 8000, 64, 1, -1);
+        assertOpenFails(file);
+        writeHeader(file, 8000, 64, 2, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertOpenFails(file);
+    }
+    
+    private static void writeHeader(File file, int... values) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeInt(0x4a4c5746);
+            raf.writeInt(1);
+            for (int v : values)
+                raf.writeInt(v);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private static void assertOpenFails(File file) {
+        try {
+            WaveformSummary.open(file);
+            fail("an invalid waveform summary file was opened");
+        } catch (IOException ex) {
+        }
+    }
+    
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("waveform", ".summary");
+        file.deleteOnExit();
+        return file;
+    }
+    
+}
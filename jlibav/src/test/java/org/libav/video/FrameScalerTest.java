@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 Ondrej Perutka
+ *
+ * This program is free software: you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library. If not, see 
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.libav.video;
+
+import static org.junit.Assert.*;
+import org.bridj.Pointer;
+import org.junit.Test;
+import org.libav.LibavException;
+import org.libav.avcodec.FrameWrapperFactory;
+import org.libav.avcodec.IFrameWrapper;
+import org.libav.avutil.PixelFormat;
+import org.libav.data.IFrameConsumer;
+
+/**
+ *
+ * @author Ondrej Perutka
+ */
+public class FrameScalerTest {
+    
+    @Test
+    public void testBands() throws Exception {
+        System.out.println("FrameScaler bands test...");
+        
+        compareBands(320, 240, 200, 150);
+        compareBands(320, 240, 640, 480);
+        compareBands(640, 480, 640, 360);
+    }
+    
+    private static void compareBands(int srcWidth, int srcHeight, int dstWidth, int dstHeight) throws Exception {
+        IFrameWrapper src = FrameWrapperFactory.getInstance().allocPicture(PixelFormat.YUV420P, srcWidth, srcHeight);
+        fillPicture(src, srcWidth, srcHeight);
+        
+        byte[][] single = scale(src, srcWidth, srcHeight, dstWidth, dstHeight, 1);
+        byte[][] banded = scale(src, srcWidth, srcHeight, dstWidth, dstHeight, 4);
+        src.free();
+        
+        for (int i = 0; i < 3; i++) {
+            assertEquals(single[i].length, banded[i].length);
+            for (int j = 0; j < single[i].length; j++) {
+                int diff = Math.abs((single[i][j] & 0xff) - (banded[i][j] & 0xff));
+                assertTrue("plane " + i + ", byte " + j + " differs by " + diff, diff <= 2);
+            }
+        }
+    }
+    
+    private static void fillPicture(IFrameWrapper picture, int width, int height) {
+        for (int i = 0; i < 3; i++) {
+            int w = i == 0 ? width : width / 2;
+            int h = i == 0 ? height : height / 2;
+            Pointer<Byte> plane = picture.getData().get(i);
+            int lineSize = picture.getLineSize().get(i);
+            byte[] row = new byte[w];
+            for (int y = 0; y < h; y++) {
+                // sharp horizontal edges make the band boundaries visible
+                for (int x = 0; x < w; x++)
+                    row[x] = (byte)(((y / 3) % 2 == 0 ? 32 : 224) + (x + i * 7) % 16);
+                plane.setBytesAtOffset((long)y * lineSize, row, 0, w);
+            }
+        }
+    }
+    
+    private static byte[][] scale(IFrameWrapper src, int srcWidth, int srcHeight, int dstWidth, int dstHeight, int threadCount) throws Exception {
+        FrameScaler scaler = new FrameScaler(srcWidth, srcHeight, PixelFormat.YUV420P, dstWidth, dstHeight, PixelFormat.YUV420P, threadCount);
+        final byte[][] result = new byte[3][];
+        final int w = dstWidth;
+        final int h = dstHeight;
+        
+        scaler.addFrameConsumer(new IFrameConsumer() {
+            @Override
+            public void processFrame(Object producer, IFrameWrapper frame) throws LibavException {
+                for (int i = 0; i < 3; i++) {
+                    int pw = i == 0 ? w : w / 2;
+                    int ph = i == 0 ? h : h / 2;
+                    Pointer<Byte> plane = frame.getData().get(i);
+                    int lineSize = frame.getLineSize().get(i);
+                    result[i] = new byte[pw * ph];
+                    for (int y = 0; y < ph; y++)
+                        plane.getBytesAtOffset((long)y * lineSize, result[i], y * pw, pw);
+                }
+            }
+        });
+        
+        scaler.processFrame(null, src);
+        scaler.dispose();
+        
+        return result;
+    }
+    
+}
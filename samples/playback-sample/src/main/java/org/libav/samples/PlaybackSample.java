@@ -233,6 +233,8 @@ public class PlaybackSample extends javax.swing.JFrame {
             audioDecoder.addFrameConsumer(resampler);
             player.setAudioStreamDecodingEnabled(streamIndex, true);
             audioMixer = PlaybackMixer.getMixer(audioStream.getFormat());
+            // the audio output becomes the master clock
+            this.player.setAudioStreamDataLine(streamIndex, audioMixer.getDataLine());
             resampler.addAudioFrameConsumer(sis);
             audioMixer.addInputStream(audioStream);
             audioMixer.setStreamVolume(audioStream, getVolume());
@@ -22,6 +22,7 @@ import java.util.logging.Logger;
 import org.libav.*;
 import org.libav.avcodec.CodecID;
 import org.libav.avcodec.ICodecContextWrapper;
+import org.libav.data.AsyncFrameConsumer;
 import org.libav.video.FrameScaler;
 
 /**
@@ -42,6 +43,7 @@ public class TranscodeSample {
         IMediaReader mr;
         IMediaWriter mw;
         FrameScaler scaler = null;
+        AsyncFrameConsumer encoderStage = null;
         
         try {
             md = new DefaultMediaDecoder(srcUrl); // open input file/stream
@@ -65,7 +67,12 @@ public class TranscodeSample {
                 cc2 = enc.getCodecContext();
                 cc2.setPixelFormat(cc1.getPixelFormat());
                 scaler = new FrameScaler(cc1.getWidth(), cc1.getHeight(), cc1.getPixelFormat(), cc2.getWidth(), cc2.getHeight(), cc2.getPixelFormat());
-                scaler.addFrameConsumer(enc);
+                // encode on a separate thread (scaled pictures are pooled, 
+                // so they are not copied)
+                scaler.setFramePoolCapacity(AsyncFrameConsumer.DEFAULT_QUEUE_CAPACITY + 2);
+                encoderStage = new AsyncFrameConsumer(AsyncFrameConsumer.DEFAULT_QUEUE_CAPACITY);
+                encoderStage.addFrameConsumer(enc);
+                scaler.addFrameConsumer(encoderStage);
                 dec.addFrameConsumer(scaler);
             }
             
@@ -89,12 +96,16 @@ public class TranscodeSample {
                 }
             }
             md.flush();
+            if (encoderStage != null)
+                encoderStage.flush();
             me.flush();
             mw.writeTrailer(); // write file trailer
         } catch (Exception ex) {
             Logger.getLogger(TranscodeSample.class.getName()).log(Level.SEVERE, "oooops", ex);
         } finally {
             try {
+                if (encoderStage != null)
+                    encoderStage.close();
                 if (md != null)
                     md.close();
                 if (me != null)